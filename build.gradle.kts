@@ -22,6 +22,34 @@ dependencies {
     testImplementation("junit:junit:4.13.2")
 }
 
+// JMH benchmarks of the handler serialization paths (run with: gradle jmh [-PjmhArgs="<JMH options>"])
+val jmhVersion = "1.37"
+
+sourceSets {
+    create("jmh") {
+        compileClasspath += sourceSets.main.get().output
+        runtimeClasspath += sourceSets.main.get().output
+    }
+}
+
+configurations["jmhImplementation"].extendsFrom(configurations.implementation.get())
+
+dependencies {
+    "jmhImplementation"("org.openjdk.jmh:jmh-core:$jmhVersion")
+    "jmhAnnotationProcessor"("org.openjdk.jmh:jmh-generator-annprocess:$jmhVersion")
+}
+
+tasks.register<JavaExec>("jmh") {
+    group = "benchmark"
+    description = "Runs the JMH benchmarks reporting throughput and allocation rate (gc profiler)."
+    classpath = sourceSets["jmh"].runtimeClasspath
+    mainClass.set("org.openjdk.jmh.Main")
+    val resultFile = layout.buildDirectory.file("reports/jmh/results.json").get().asFile
+    doFirst { resultFile.parentFile.mkdirs() }
+    args("-prof", "gc", "-rf", "json", "-rff", resultFile.absolutePath)
+    (project.findProperty("jmhArgs") as String?)?.let { args(it.trim().split(Regex("\\s+"))) }
+}
+
 java {
     withJavadocJar()
     withSourcesJar()
@@ -0,0 +1,153 @@
+package it.wldt.adapter.http.digital.server;
+
+import it.wldt.core.state.*;
+import it.wldt.storage.model.physical.PhysicalAssetPropertyVariationRecord;
+import it.wldt.storage.query.QueryRequest;
+import it.wldt.storage.query.QueryRequestType;
+import it.wldt.storage.query.QueryResourceType;
+import it.wldt.storage.query.QueryResult;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH benchmarks of the serialization paths of the HTTP Digital Adapter handlers. Each benchmark performs the same
+ * work of the corresponding handler in {@link HttpDigitalAdapterHandlersFactory} (using the same shared Gson
+ * instances), excluding the Undertow response sending:
+ * <ul>
+ *     <li>{@code stateSnapshot}: the DT State serialization of createGetDigitalTwinStateHandler (and of the /state snapshot)</li>
+ *     <li>{@code propertiesList}: the component list serialization of createGetComponentsListHandler</li>
+ *     <li>{@code relationshipInstances}: the relationship list serialization through getRelationshipInstancesSerializer</li>
+ *     <li>{@code eventNotifications}: the event notification list serialization</li>
+ *     <li>{@code queryResult}: the query result serialization of createInvokeQueryHandler</li>
+ * </ul>
+ * Run with {@code gradle jmh}, the gc profiler reports the allocation rate of each benchmark.
+ *
+ * @author Marco Picone, Ph.D. - picone.m@gmail.com, Marta Spadoni University of Bologna
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HttpDigitalAdapterHandlersBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class StateFixture {
+
+        @Param({"10", "100", "1000"})
+        public int propertyCount;
+
+        DigitalTwinState digitalTwinState;
+
+        Collection<DigitalTwinStateProperty<?>> propertyList;
+
+        @Setup
+        public void setup() throws Exception {
+
+            Map<String, DigitalTwinStateProperty<?>> properties = new LinkedHashMap<>();
+            for(int i = 0; i < propertyCount; i++)
+                properties.put("property-" + i, new DigitalTwinStateProperty<>("property-" + i, i * 0.5));
+
+            Map<String, DigitalTwinStateAction> actions = new LinkedHashMap<>();
+            actions.put("switch_on", new DigitalTwinStateAction("switch_on", "switch.on", "text/plain"));
+
+            Map<String, DigitalTwinStateEvent> events = new LinkedHashMap<>();
+            events.put("overheating", new DigitalTwinStateEvent("overheating", "text/plain"));
+
+            digitalTwinState = new DigitalTwinState(properties, actions, events, new LinkedHashMap<>());
+            propertyList = digitalTwinState.getPropertyList().get();
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class RelationshipFixture {
+
+        @Param({"10", "100", "1000"})
+        public int relationshipInstanceCount;
+
+        List<DigitalTwinStateRelationship<?>> relationshipList;
+
+        @Setup
+        public void setup() throws Exception {
+
+            DigitalTwinStateRelationship<String> relationship = new DigitalTwinStateRelationship<>("insideIn", "insideIn");
+
+            for(int i = 0; i < relationshipInstanceCount; i++) {
+                Map<String, Object> metadata = new HashMap<>();
+                metadata.put("floor", i % 4);
+                relationship.addInstance(new DigitalTwinStateRelationshipInstance<>("insideIn", "room-" + i, "insideIn-room-" + i, metadata));
+            }
+
+            relationshipList = Collections.singletonList(relationship);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class NotificationFixture {
+
+        @Param({"10", "100", "1000"})
+        public int notificationCount;
+
+        List<DigitalTwinStateEventNotification<?>> notificationList;
+
+        @Setup
+        public void setup() {
+
+            notificationList = new ArrayList<>(notificationCount);
+            for(int i = 0; i < notificationCount; i++)
+                notificationList.add(new DigitalTwinStateEventNotification<>("overheating", "temperature above threshold " + i, 1700000000000L + i));
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class QueryFixture {
+
+        @Param({"10", "100", "1000"})
+        public int resultCount;
+
+        QueryResult<?> queryResult;
+
+        @Setup
+        public void setup() {
+
+            QueryRequest queryRequest = new QueryRequest();
+            queryRequest.setResourceType(QueryResourceType.PHYSICAL_ASSET_PROPERTY_VARIATION);
+            queryRequest.setRequestType(QueryRequestType.SAMPLE_RANGE);
+            queryRequest.setStartIndex(0);
+            queryRequest.setEndIndex(resultCount - 1);
+
+            List<PhysicalAssetPropertyVariationRecord> results = new ArrayList<>(resultCount);
+            for(int i = 0; i < resultCount; i++)
+                results.add(new PhysicalAssetPropertyVariationRecord(1700000000000L + i, "temperature", 20.0 + i * 0.01, new HashMap<>()));
+
+            queryResult = new QueryResult<>(queryRequest, true, null, results, resultCount);
+        }
+    }
+
+    @Benchmark
+    public HttpDigitalAdapterStateSnapshot stateSnapshot(StateFixture fixture) {
+        return HttpDigitalAdapterStateSnapshot.create(1, fixture.digitalTwinState, null);
+    }
+
+    @Benchmark
+    public String propertiesList(StateFixture fixture) {
+        return HttpDigitalAdapterHandlersFactory.getGson().toJson(fixture.propertyList);
+    }
+
+    @Benchmark
+    public String relationshipInstances(RelationshipFixture fixture) {
+        return HttpDigitalAdapterHandlersFactory.getGson().toJson(fixture.relationshipList);
+    }
+
+    @Benchmark
+    public String eventNotifications(NotificationFixture fixture) {
+        return HttpDigitalAdapterHandlersFactory.getGson().toJson(fixture.notificationList);
+    }
+
+    @Benchmark
+    public String queryResult(QueryFixture fixture) {
+        return HttpDigitalAdapterHandlersFactory.getDefaultGson().toJson(fixture.queryResult);
+    }
+}
@@ -1,8 +1,19 @@
 package it.wldt.adapter.http.digital.adapter;
 
 import io.undertow.Undertow;
+import io.undertow.UndertowOptions;
+import io.undertow.server.HttpHandler;
 import it.wldt.adapter.digital.DigitalAdapter;
+import it.wldt.adapter.http.digital.server.HttpDigitalAdapterActionRequests;
+import it.wldt.adapter.http.digital.server.HttpDigitalAdapterDispatcher;
+import it.wldt.adapter.http.digital.server.HttpDigitalAdapterMetrics;
 import it.wldt.adapter.http.digital.server.HttpDigitalAdapterRequestListener;
+import it.wldt.adapter.http.digital.server.HttpDigitalAdapterRingBuffer;
+import it.wldt.adapter.http.digital.server.HttpDigitalAdapterSharedServer;
+import it.wldt.adapter.http.digital.server.HttpDigitalAdapterStateChangesLongPoll;
+import it.wldt.adapter.http.digital.server.HttpDigitalAdapterStateSnapshot;
+import it.wldt.adapter.http.digital.server.HttpDigitalAdapterStateStream;
+import it.wldt.adapter.http.digital.server.HttpDigitalAdapterWebSocketEndpoint;
 import it.wldt.core.engine.DigitalTwin;
 import it.wldt.core.state.*;
 import it.wldt.exception.EventBusException;
@@ -11,6 +22,8 @@ import it.wldt.storage.query.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 
 import static it.wldt.adapter.http.digital.server.HttpDigitalAdapterHandlersFactory.createDefaultRoutingHandler;
@@ -46,15 +59,70 @@ public class HttpDigitalAdapter extends DigitalAdapter<HttpDigitalAdapterConfigu
     private ArrayList<DigitalTwinStateChange> latestDigitalTwinStateChangeList = null;
 
     /**
-     * List of received Event Notifications
+     * White list filter applied to each DT State update according to the adapter configuration
      */
-    private final List<DigitalTwinStateEventNotification<?>> eventNotificationList = new LinkedList<>();
+    private final HttpDigitalAdapterStateFilter stateFilter;
 
     /**
-     * The reference to the Undertow server used by the Adapter
+     * Monotonically increasing version of the DT State, incremented for each received update
+     */
+    private final AtomicLong stateVersion = new AtomicLong(0);
+
+    /**
+     * The latest pre-serialized snapshot of the DT State served by the HTTP handlers
+     */
+    private volatile HttpDigitalAdapterStateSnapshot stateSnapshot = HttpDigitalAdapterStateSnapshot.EMPTY;
+
+    /**
+     * The Server-Sent Events stream pushing the DT State updates to the subscribers
+     */
+    private final HttpDigitalAdapterStateStream stateStream;
+
+    /**
+     * The WebSocket endpoint pushing the filtered DT State changes and event notifications to the clients
+     */
+    private final HttpDigitalAdapterWebSocketEndpoint webSocketEndpoint;
+
+    /**
+     * Long-polling handler of /state/changes
+     */
+    private final HttpDigitalAdapterStateChangesLongPoll stateChangesLongPoll;
+
+    /**
+     * Table tracking the status of the action requests
+     */
+    private final HttpDigitalAdapterActionRequests actionRequests;
+
+    /**
+     * Bounded buffer of the received Event Notifications
+     */
+    private final HttpDigitalAdapterRingBuffer<DigitalTwinStateEventNotification<?>> eventNotificationBuffer;
+
+    /**
+     * Cache of the Storage Query results (null if the cache is disabled)
+     */
+    private final HttpDigitalAdapterQueryCache queryCache;
+
+    /**
+     * Per-route metrics registry, owned by the shared server when it is used (null if the metrics are disabled)
+     */
+    private HttpDigitalAdapterMetrics metrics;
+
+    /**
+     * The reference to the Undertow server used by the Adapter (null if the shared server is used)
      */
     private Undertow server;
 
+    /**
+     * The shared server exposing the routes of the Adapter (null if a dedicated server is used)
+     */
+    private HttpDigitalAdapterSharedServer sharedServer;
+
+    /**
+     * The dispatcher moving the configured routes off the Undertow IO threads (null if the shared server is used)
+     */
+    private HttpDigitalAdapterDispatcher dispatcher;
+
     /**
      * The Query Executor used to interact with the Storage Manager
      */
@@ -71,6 +139,55 @@ public class HttpDigitalAdapter extends DigitalAdapter<HttpDigitalAdapterConfigu
 
         // Set the Digital Twin Instance
         this.digitalTwinInstance = digitalTwinInstance;
+
+        // Precompute the white list filters applied to each DT State update
+        this.stateFilter = new HttpDigitalAdapterStateFilter(configuration);
+
+        // Create the bounded buffer retaining the latest event notifications
+        this.eventNotificationBuffer = new HttpDigitalAdapterRingBuffer<>(configuration.getEventNotificationBufferSize());
+
+        // Create the DT State stream with the configured replay buffer
+        this.stateStream = new HttpDigitalAdapterStateStream(configuration.getStateStreamReplayBufferSize(), configuration.getStateStreamOutboundQueueSize());
+
+        // Create the long-polling handler parking the requests waiting for the next DT State change
+        this.stateChangesLongPoll = new HttpDigitalAdapterStateChangesLongPoll(configuration.getLongPollDefaultTimeoutMs(),
+                configuration.getLongPollMaxTimeoutMs(),
+                configuration.getLongPollMaxWaiters(),
+                configuration.getStateStreamReplayBufferSize());
+
+        // Create the table tracking the action requests, completed by the following DT State updates
+        this.actionRequests = new HttpDigitalAdapterActionRequests(configuration.getActionRequestsMaxEntries(),
+                configuration.getActionRequestsTtlMs(),
+                configuration.getLongPollDefaultTimeoutMs(),
+                configuration.getLongPollMaxTimeoutMs(),
+                configuration.getLongPollMaxWaiters());
+
+        // Create the WebSocket endpoint, actions received on the channel are handled and tracked as the HTTP ones
+        this.webSocketEndpoint = new HttpDigitalAdapterWebSocketEndpoint(configuration.getWebSocketOutboundQueueSize(), this.actionRequests, this::onActionRequest);
+
+        // Create the cache of the Storage Query results
+        this.queryCache = (configuration.getQueryCacheMaxEntries() > 0) ? new HttpDigitalAdapterQueryCache(configuration.getQueryCacheMaxEntries(), configuration.getQueryCacheTtlMs()) : null;
+    }
+
+    /**
+     * Registers the gauges describing the state of the adapter channels on a metrics registry.
+     *
+     * @param metrics The metrics registry.
+     * @param digitalTwinId The Digital Twin Id used as label on a registry shared by more adapters (null for a dedicated registry).
+     */
+    private void registerMetrics(HttpDigitalAdapterMetrics metrics, String digitalTwinId) {
+        metrics.registerGauge("state_version", "Version of the latest DT State snapshot.", digitalTwinId, this.stateVersion::get);
+        metrics.registerGauge("state_stream_subscribers", "Number of connected Server-Sent Events subscribers.", digitalTwinId, this.stateStream::getSubscriberCount);
+        metrics.registerGauge("websocket_subscribers", "Number of connected WebSocket clients.", digitalTwinId, this.webSocketEndpoint::getSubscriberCount);
+        metrics.registerGauge("long_poll_waiters", "Number of parked long-polling requests.", digitalTwinId, this.stateChangesLongPoll::getWaiterCount);
+        metrics.registerGauge("action_requests", "Number of tracked action requests.", digitalTwinId, this.actionRequests::size);
+        metrics.registerGauge("action_request_waiters", "Number of requests waiting for the completion of an action.", digitalTwinId, this.actionRequests::getWaiterCount);
+        metrics.registerCounter("event_notifications_total", "Total number of received DT event notifications.", digitalTwinId, this.eventNotificationBuffer::getLatestSequence);
+        if(this.queryCache != null) {
+            metrics.registerCounter("query_cache_hits_total", "Total number of Storage Queries served from the cache.", digitalTwinId, this.queryCache::getHitCount);
+            metrics.registerCounter("query_cache_misses_total", "Total number of Storage Queries not found in the cache.", digitalTwinId, this.queryCache::getMissCount);
+            metrics.registerGauge("query_cache_entries", "Number of cached Storage Query results.", digitalTwinId, this.queryCache::size);
+        }
     }
 
     /**
@@ -86,6 +203,26 @@ public class HttpDigitalAdapter extends DigitalAdapter<HttpDigitalAdapterConfigu
         // In newDigitalTwinState we have the new DT State
         logger.debug("New DT State: {} - Previous DT State: {}", newDigitalTwinState, previousDigitalTwinState);
 
+        try {
+
+            // Apply the configured white list filters once for all the following requests
+            ArrayList<DigitalTwinStateChange> filteredChangeList = this.stateFilter.filter(digitalTwinStateChangeList);
+
+            // The update involves only resources that are not exposed by the adapter, it still follows the dispatched actions
+            if(filteredChangeList != null && filteredChangeList.isEmpty() && !digitalTwinStateChangeList.isEmpty()) {
+                this.actionRequests.publishFilteredUpdate();
+                return;
+            }
+
+            newDigitalTwinState = this.stateFilter.filter(newDigitalTwinState);
+            previousDigitalTwinState = this.stateFilter.filter(previousDigitalTwinState);
+            digitalTwinStateChangeList = filteredChangeList;
+
+        } catch (Exception e) {
+            logger.error("Error filtering DT State ! Update discarded. Error: {}", e.toString());
+            return;
+        }
+
         // Update DT State
         this.updatedDigitalTwinState = newDigitalTwinState;
 
@@ -95,6 +232,18 @@ public class HttpDigitalAdapter extends DigitalAdapter<HttpDigitalAdapterConfigu
         // Keep track of the list of changes on the DT State that triggered the variation
         this.latestDigitalTwinStateChangeList = digitalTwinStateChangeList;
 
+        // Serialize the new DT State once and publish the new snapshot
+        this.stateSnapshot = HttpDigitalAdapterStateSnapshot.create(this.stateVersion.incrementAndGet(), newDigitalTwinState, previousDigitalTwinState);
+
+        // Push the update to the state stream subscribers
+        this.stateStream.publish(this.stateSnapshot, digitalTwinStateChangeList);
+        this.webSocketEndpoint.publishStateChanges(this.stateSnapshot.getVersion(), digitalTwinStateChangeList);
+        this.stateChangesLongPoll.publish(this.stateSnapshot, digitalTwinStateChangeList);
+        this.actionRequests.publish(this.stateSnapshot.getVersion());
+
+        // The results of the queries depending on the latest records are no longer valid
+        if(this.queryCache != null)
+            this.queryCache.invalidateVolatileEntries();
     }
 
     /**
@@ -105,7 +254,16 @@ public class HttpDigitalAdapter extends DigitalAdapter<HttpDigitalAdapterConfigu
     @Override
     protected void onEventNotificationReceived(DigitalTwinStateEventNotification<?> digitalTwinStateEventNotification) {
         logger.debug("HTTP Digital Adapter receive event: {}", digitalTwinStateEventNotification);
-        this.eventNotificationList.add(digitalTwinStateEventNotification);
+
+        // The storage records all the notifications, so the latest records change even for the filtered events
+        if(this.queryCache != null)
+            this.queryCache.invalidateVolatileEntries();
+
+        if(!this.stateFilter.isEventAllowed(digitalTwinStateEventNotification.getDigitalEventKey()))
+            return;
+
+        this.eventNotificationBuffer.add(digitalTwinStateEventNotification);
+        this.webSocketEndpoint.publishEventNotification(digitalTwinStateEventNotification);
     }
 
     /**
@@ -117,14 +275,41 @@ public class HttpDigitalAdapter extends DigitalAdapter<HttpDigitalAdapterConfigu
         // Create the query executor associated to the target DT Id and Adapter Id
         this.queryExecutor = new QueryExecutor(this.digitalTwinId, this.getId());
 
-        // Create the Query Executor
-        this.server = Undertow.builder()
-                .addHttpListener(getConfiguration().getPort(), getConfiguration().getHost())
-                .setHandler(createDefaultRoutingHandler(this))
-                .build();
+        // Register the routes under the DT path of the shared server or start a dedicated server
+        if(getConfiguration().isSharedServerEnabled()) {
 
-        // Start the Undertow Server
-        this.server.start();
+            // The routes use the dispatcher and the metrics registry shared by all the Digital Twins of the server
+            this.sharedServer = HttpDigitalAdapterSharedServer.register(getConfiguration(), this.digitalTwinId, (sharedDispatcher, sharedMetrics) -> {
+                this.metrics = sharedMetrics;
+                if(sharedMetrics != null)
+                    registerMetrics(sharedMetrics, this.digitalTwinId);
+                return createDefaultRoutingHandler(this, getConfiguration(), sharedDispatcher, sharedMetrics);
+            }, this::onStateSnapshotGet);
+        }
+        else {
+
+            // Create the dispatcher applying the configured dispatch mode to each route
+            this.dispatcher = new HttpDigitalAdapterDispatcher(getConfiguration());
+
+            // Create the metrics registry exposed through the /metrics endpoint
+            if(getConfiguration().isMetricsEnabled()) {
+                this.metrics = new HttpDigitalAdapterMetrics(getConfiguration().getMetricsLatencyBuckets());
+                registerMetrics(this.metrics, null);
+            }
+
+            HttpHandler routingHandler = createDefaultRoutingHandler(this, getConfiguration(), this.dispatcher, this.metrics);
+
+            final HttpDigitalAdapterServerOptions serverOptions = getConfiguration().getServerOptions();
+
+            // Create the Undertow Server
+            this.server = serverOptions.addListener(serverOptions.applyTo(Undertow.builder()), getConfiguration().getHost(), getConfiguration().getPort())
+                    .setServerOption(UndertowOptions.RECORD_REQUEST_START_TIME, this.metrics != null)
+                    .setHandler(routingHandler)
+                    .build();
+
+            // Start the Undertow Server
+            this.server.start();
+        }
 
         logger.info("HTTP Digital Adapter Started");
 
@@ -136,7 +321,16 @@ public class HttpDigitalAdapter extends DigitalAdapter<HttpDigitalAdapterConfigu
      */
     @Override
     public void onAdapterStop() {
-        this.server.stop();
+        this.stateStream.shutdown();
+        this.webSocketEndpoint.shutdown();
+        this.stateChangesLongPoll.shutdown();
+        this.actionRequests.shutdown();
+        if(this.server != null)
+            this.server.stop();
+        if(this.sharedServer != null)
+            this.sharedServer.unregister(this.digitalTwinId);
+        if(this.dispatcher != null)
+            this.dispatcher.shutdown();
     }
 
     /**
@@ -149,10 +343,24 @@ public class HttpDigitalAdapter extends DigitalAdapter<HttpDigitalAdapterConfigu
         try {
             if(currentDigitalTwinState != null){
 
+                // Apply the configured white list filters
+                currentDigitalTwinState = this.stateFilter.filter(currentDigitalTwinState);
+
                 //Update DT State
                 this.updatedDigitalTwinState = currentDigitalTwinState;
 
-                // Observer Existing Digital Twin Events Notifications
+                // Serialize the synchronized DT State and publish the new snapshot
+                this.stateSnapshot = HttpDigitalAdapterStateSnapshot.create(this.stateVersion.incrementAndGet(), currentDigitalTwinState, this.previousDigitalTwinState);
+
+                // The synchronized DT State is not incremental and is pushed as a full snapshot
+                this.stateStream.publish(this.stateSnapshot, null);
+                this.stateChangesLongPoll.publish(this.stateSnapshot, null);
+                this.actionRequests.publish(this.stateSnapshot.getVersion());
+
+                if(this.queryCache != null)
+                    this.queryCache.invalidateVolatileEntries();
+
+                // Observer Existing Digital Twin Events Notifications (only the ones allowed by the filter)
                 currentDigitalTwinState.getEventList()
                         .map(events -> events.stream()
                                 .map(DigitalTwinStateEvent::getKey)
@@ -261,6 +469,57 @@ public class HttpDigitalAdapter extends DigitalAdapter<HttpDigitalAdapterConfigu
         }
     }
 
+    /**
+     * Retrieves the latest pre-serialized snapshot of the Digital Twin state. The snapshot is built once
+     * for each state update and shared by all the requests served until the next update.
+     *
+     * @return The current Digital Twin state snapshot.
+     */
+    @Override
+    public HttpDigitalAdapterStateSnapshot onStateSnapshotGet() {
+        return this.stateSnapshot;
+    }
+
+    /**
+     * Retrieves the stream of the Digital Twin state updates used to serve the Server-Sent Events subscriptions.
+     *
+     * @return The Digital Twin state stream.
+     */
+    @Override
+    public HttpDigitalAdapterStateStream onStateStreamGet() {
+        return this.stateStream;
+    }
+
+    /**
+     * Retrieves the WebSocket endpoint used to serve the bidirectional channels with the Digital Twin.
+     *
+     * @return The WebSocket endpoint.
+     */
+    @Override
+    public HttpDigitalAdapterWebSocketEndpoint onWebSocketEndpointGet() {
+        return this.webSocketEndpoint;
+    }
+
+    /**
+     * Retrieves the long-polling handler parking the requests waiting for the next DT State change.
+     *
+     * @return The long-polling handler.
+     */
+    @Override
+    public HttpDigitalAdapterStateChangesLongPoll onStateChangesLongPollGet() {
+        return this.stateChangesLongPoll;
+    }
+
+    /**
+     * Retrieves the table tracking the status of the action requests received through the HTTP API.
+     *
+     * @return The action request table.
+     */
+    @Override
+    public HttpDigitalAdapterActionRequests onActionRequestsGet() {
+        return this.actionRequests;
+    }
+
     /**
      * Retrieves the list of state changes that occurred in the Digital Twin. This method is invoked
      * when a request is made to obtain the list of changes in the associated Digital Twin's state.
@@ -491,11 +750,24 @@ public class HttpDigitalAdapter extends DigitalAdapter<HttpDigitalAdapterConfigu
      * Retrieves a list of event notifications in the Digital Twin state. This method is invoked
      * when a request is made to obtain a list of event notifications.
      *
-     * @return A list of Digital Twin state event notifications.
+     * @return A list of the retained Digital Twin state event notifications.
      */
     @Override
     public List<DigitalTwinStateEventNotification<?>> onEventNotificationGet() {
-        return this.eventNotificationList;
+        return this.eventNotificationBuffer.readAll();
+    }
+
+    /**
+     * Retrieves the event notifications received after a known sequence. This method is invoked
+     * when a client requests only the notifications it has not read yet.
+     *
+     * @param sinceSequence The sequence of the last notification already known by the client.
+     * @param limit The maximum number of returned notifications.
+     * @return The slice of the retained Digital Twin state event notifications.
+     */
+    @Override
+    public HttpDigitalAdapterRingBuffer.Slice<DigitalTwinStateEventNotification<?>> onEventNotificationGet(long sinceSequence, int limit) {
+        return this.eventNotificationBuffer.read(sinceSequence, limit);
     }
 
     /**
@@ -587,6 +859,82 @@ public class HttpDigitalAdapter extends DigitalAdapter<HttpDigitalAdapterConfigu
         }
     }
 
+    /**
+     * Retrieves the Storage Information of the Digital Twin without blocking the caller. The query is sent to the
+     * Storage Manager through the asynchronous query executor and the returned future is completed with its result.
+     *
+     * @return A future completed with the storage information, or with null if not available.
+     */
+    @Override
+    public CompletableFuture<StorageStats> onAsyncStorageInfoRequest() {
+
+        // Create Query Request to the Storage Manager for the Storage Stats
+        QueryRequest queryRequest = new QueryRequest();
+        queryRequest.setResourceType(QueryResourceType.STORAGE_STATS);
+        queryRequest.setRequestType(QueryRequestType.LAST_VALUE);
+
+        return onAsyncQueryRequest(queryRequest).thenApply(queryResult -> {
+            if(queryResult != null && queryResult.isSuccessful() && queryResult.getTotalResults() == 1 && queryResult.getResults().get(0) instanceof StorageStats)
+                return (StorageStats) queryResult.getResults().get(0);
+            else
+                return null;
+        });
+    }
+
+    /**
+     * Executes a Storage Query without blocking the caller. The returned future is completed by the query executor
+     * when the Storage Manager publishes the result, or immediately if the result is available in the query cache. Since the storage does not support the cancellation of a
+     * running query, cancelling the future only discards its result, which is not cached.
+     *
+     * @param queryRequest The query request to execute.
+     * @return A future completed with the result of the query request.
+     */
+    @Override
+    public CompletableFuture<QueryResult<?>> onAsyncQueryRequest(QueryRequest queryRequest) {
+
+        // Serve the repeated queries from the cache
+        if(this.queryCache != null) {
+
+            QueryResult<?> cachedQueryResult = this.queryCache.get(queryRequest);
+            if(cachedQueryResult != null)
+                return CompletableFuture.completedFuture(cachedQueryResult);
+
+            // The future of the execution is returned, so that the callers can still cancel it
+            final long cacheGeneration = this.queryCache.getGeneration();
+            CompletableFuture<QueryResult<?>> queryResultFuture = executeAsyncQuery(queryRequest);
+            queryResultFuture.whenComplete((queryResult, error) -> {
+                if(error == null)
+                    this.queryCache.put(queryRequest, queryResult, cacheGeneration);
+            });
+            return queryResultFuture;
+        }
+
+        return executeAsyncQuery(queryRequest);
+    }
+
+    /**
+     * Sends a Storage Query to the Storage Manager through the asynchronous query executor. Subclasses can override
+     * it to execute the queries on a different storage, still served through the query cache.
+     *
+     * @param queryRequest The query request to execute.
+     * @return A future completed with the result of the query request.
+     */
+    protected CompletableFuture<QueryResult<?>> executeAsyncQuery(QueryRequest queryRequest) {
+
+        CompletableFuture<QueryResult<?>> queryResultFuture = new CompletableFuture<>();
+
+        try {
+            // Send the Query Request to the Storage Manager for the target DT
+            this.queryExecutor.asyncQueryExecute(queryRequest, queryResultFuture::complete);
+        }
+        catch (Exception e){
+            logger.error("Error executing Query Request ! Msg: {}", e.getLocalizedMessage());
+            queryResultFuture.complete(new QueryResult<>(queryRequest, false, "Error executing Query Request ! Msg: " + e.getLocalizedMessage()));
+        }
+
+        return queryResultFuture;
+    }
+
     @Override
     public QueryResult<?> onQueryRequest(QueryRequest queryRequest) {
 
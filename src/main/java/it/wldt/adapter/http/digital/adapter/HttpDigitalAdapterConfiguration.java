@@ -1,6 +1,7 @@
 package it.wldt.adapter.http.digital.adapter;
 
 import it.wldt.adapter.http.digital.exception.HttpDigitalAdapterConfigurationException;
+import it.wldt.adapter.http.digital.server.HttpDigitalAdapterMetrics;
 
 import java.util.*;
 
@@ -16,6 +17,26 @@ import java.util.*;
  */
 public class HttpDigitalAdapterConfiguration {
 
+    /**
+     * Default maximum time to wait for the Storage Manager before answering a storage request with 504
+     */
+    public final static long DEFAULT_STORAGE_REQUEST_TIMEOUT_MS = 10000;
+
+    /**
+     * Default maximum number of Storage Queries of a batch request
+     */
+    public final static int DEFAULT_QUERY_BATCH_MAX_SIZE = 32;
+
+    /**
+     * Default maximum number of buckets of each series of a downsampled Storage Query
+     */
+    public final static int DEFAULT_QUERY_AGGREGATION_MAX_BUCKETS = 10000;
+
+    /**
+     * Default minimum size in bytes of the compressed responses
+     */
+    public final static int DEFAULT_RESPONSE_COMPRESSION_MIN_SIZE = 1024;
+
     /**
      * Adapter Id
      */
@@ -55,6 +76,131 @@ public class HttpDigitalAdapterConfiguration {
      */
     private final List<String> relationshipFilter;
 
+    /**
+     * Default dispatch mode used for the routes without a specific dispatch mode
+     */
+    private HttpDigitalAdapterDispatchMode defaultDispatchMode = HttpDigitalAdapterDispatchMode.IO_THREAD;
+
+    /**
+     * Dispatch modes associated to specific routes (identified by their path template, e.g., /storage/query). The
+     * Storage Query routes use the WORKER mode by default, so that the serialization of large query results does not
+     * run on the IO threads
+     */
+    private final Map<String, HttpDigitalAdapterDispatchMode> routeDispatchModes;
+
+    /**
+     * Number of threads of the dedicated executor used by the routes with the EXECUTOR dispatch mode
+     */
+    private int dispatchExecutorPoolSize = Runtime.getRuntime().availableProcessors() * 2;
+
+    /**
+     * Maximum number of requests waiting for the dedicated executor before being rejected with 503
+     */
+    private int dispatchExecutorQueueSize = 1024;
+
+    /**
+     * Number of DT State change lists kept in memory to resume the state stream through the Last-Event-ID header and
+     * to answer the long-polling requests that missed some versions
+     */
+    private int stateStreamReplayBufferSize = 256;
+
+    /**
+     * Maximum number of outgoing events queued for each state stream client before replacing them with the latest snapshot
+     */
+    private int stateStreamOutboundQueueSize = 256;
+
+    /**
+     * Maximum number of outgoing messages queued for each WebSocket client before discarding the oldest ones
+     */
+    private int webSocketOutboundQueueSize = 256;
+
+    /**
+     * Maximum number of DT event notifications retained in memory by the adapter
+     */
+    private int eventNotificationBufferSize = 1024;
+
+    /**
+     * Waiting time applied to the long-polling requests on /state/changes that do not specify it
+     */
+    private long longPollDefaultTimeoutMs = 30000;
+
+    /**
+     * Maximum waiting time accepted for the long-polling requests on /state/changes
+     */
+    private long longPollMaxTimeoutMs = 120000;
+
+    /**
+     * Maximum number of parked long-polling requests before rejecting the new ones with 503
+     */
+    private int longPollMaxWaiters = 10000;
+
+    /**
+     * Maximum time to wait for the Storage Manager before answering a storage request with 504
+     */
+    private long storageRequestTimeoutMs = DEFAULT_STORAGE_REQUEST_TIMEOUT_MS;
+
+    /**
+     * Maximum number of Storage Queries of a batch request (/storage/query/batch)
+     */
+    private int queryBatchMaxSize = DEFAULT_QUERY_BATCH_MAX_SIZE;
+
+    /**
+     * Maximum number of buckets of each series of a downsampled Storage Query
+     */
+    private int queryAggregationMaxBuckets = DEFAULT_QUERY_AGGREGATION_MAX_BUCKETS;
+
+    /**
+     * Maximum number of Storage Query results cached by the adapter (0 disables the cache)
+     */
+    private int queryCacheMaxEntries = 256;
+
+    /**
+     * Time to live of the cached Storage Query results
+     */
+    private long queryCacheTtlMs = 5000;
+
+    /**
+     * Maximum number of action requests tracked by the adapter (/state/actions/requests/{requestId})
+     */
+    private int actionRequestsMaxEntries = 1024;
+
+    /**
+     * Time to live of the tracked action requests from their acceptance
+     */
+    private long actionRequestsTtlMs = 300000;
+
+    /**
+     * Options of the Undertow server (thread pools, buffers, socket options and request limits)
+     */
+    private HttpDigitalAdapterServerOptions serverOptions = new HttpDigitalAdapterServerOptions();
+
+    /**
+     * Serves the adapter through the HTTP server shared by all the adapters with the same host and port
+     */
+    private boolean sharedServerEnabled = false;
+
+    /**
+     * Enables the compression of the responses negotiated through the Accept-Encoding header (disabled by default, since
+     * it trades CPU time on the adapter for bandwidth)
+     */
+    private boolean responseCompressionEnabled = false;
+
+    /**
+     * Minimum size in bytes of the compressed responses
+     */
+    private int responseCompressionMinSize = DEFAULT_RESPONSE_COMPRESSION_MIN_SIZE;
+
+    /**
+     * Enables the per-route metrics exposed through the /metrics endpoint (disabled by default since the endpoint is
+     * not authenticated)
+     */
+    private boolean metricsEnabled = false;
+
+    /**
+     * Upper bounds in seconds of the latency histogram buckets of the per-route metrics
+     */
+    private double[] metricsLatencyBuckets = HttpDigitalAdapterMetrics.DEFAULT_LATENCY_BUCKETS.clone();
+
     /**
      * Constructs a new {@code HttpDigitalAdapterConfiguration} with the specified
      * identifier, host, and port.
@@ -71,6 +217,9 @@ public class HttpDigitalAdapterConfiguration {
         actionFilter = new LinkedList<>();
         eventFilter = new LinkedList<>();
         relationshipFilter = new LinkedList<>();
+        routeDispatchModes = new HashMap<>();
+        routeDispatchModes.put("/storage/query", HttpDigitalAdapterDispatchMode.WORKER);
+        routeDispatchModes.put("/storage/query/batch", HttpDigitalAdapterDispatchMode.WORKER);
     }
 
     /**
@@ -197,6 +346,478 @@ public class HttpDigitalAdapterConfiguration {
         return relationshipFilter;
     }
 
+    /**
+     * Sets the dispatch mode used for a specific route of the adapter. The /storage/query and /storage/query/batch
+     * routes use the WORKER dispatch mode unless a different one is set through this method.
+     *
+     * @param route The path template of the route (e.g., /storage/query).
+     * @param dispatchMode The dispatch mode of the route.
+     * @throws HttpDigitalAdapterConfigurationException If the route or the dispatch mode are null or empty.
+     */
+    public void setDispatchMode(String route, HttpDigitalAdapterDispatchMode dispatchMode) throws HttpDigitalAdapterConfigurationException {
+        if(route == null || route.isEmpty() || dispatchMode == null) throw new HttpDigitalAdapterConfigurationException("Cannot use null or empty route or dispatch mode");
+        routeDispatchModes.put(route, dispatchMode);
+    }
+
+    /**
+     * Sets the default dispatch mode used for all the routes without a specific dispatch mode.
+     *
+     * @param defaultDispatchMode The default dispatch mode.
+     * @throws HttpDigitalAdapterConfigurationException If the dispatch mode is null.
+     */
+    public void setDefaultDispatchMode(HttpDigitalAdapterDispatchMode defaultDispatchMode) throws HttpDigitalAdapterConfigurationException {
+        if(defaultDispatchMode == null) throw new HttpDigitalAdapterConfigurationException("Cannot use null default dispatch mode");
+        this.defaultDispatchMode = defaultDispatchMode;
+    }
+
+    /**
+     * Sets the size of the dedicated executor used by the routes with the EXECUTOR dispatch mode.
+     *
+     * @param poolSize The number of threads of the executor.
+     * @param queueSize The maximum number of queued requests.
+     * @throws HttpDigitalAdapterConfigurationException If the pool size or the queue size are not positive.
+     */
+    public void setDispatchExecutorSize(int poolSize, int queueSize) throws HttpDigitalAdapterConfigurationException {
+        if(poolSize <= 0 || queueSize <= 0) throw new HttpDigitalAdapterConfigurationException("Dispatch executor pool and queue size must be positive");
+        this.dispatchExecutorPoolSize = poolSize;
+        this.dispatchExecutorQueueSize = queueSize;
+    }
+
+    /**
+     * Retrieves the dispatch mode associated to a route or the default one if not specified.
+     *
+     * @param route The path template of the route.
+     * @return The dispatch mode of the route.
+     */
+    public HttpDigitalAdapterDispatchMode getDispatchMode(String route) {
+        return routeDispatchModes.getOrDefault(route, defaultDispatchMode);
+    }
+
+    /**
+     * Retrieves the default dispatch mode.
+     *
+     * @return The default dispatch mode.
+     */
+    public HttpDigitalAdapterDispatchMode getDefaultDispatchMode() {
+        return defaultDispatchMode;
+    }
+
+    /**
+     * Retrieves the dispatch modes associated to specific routes.
+     *
+     * @return The unmodifiable map of the dispatch modes indexed by route.
+     */
+    public Map<String, HttpDigitalAdapterDispatchMode> getRouteDispatchModes() {
+        return Collections.unmodifiableMap(routeDispatchModes);
+    }
+
+    /**
+     * Retrieves the number of threads of the dedicated dispatch executor.
+     *
+     * @return The pool size.
+     */
+    public int getDispatchExecutorPoolSize() {
+        return dispatchExecutorPoolSize;
+    }
+
+    /**
+     * Retrieves the maximum number of requests queued on the dedicated dispatch executor.
+     *
+     * @return The queue size.
+     */
+    public int getDispatchExecutorQueueSize() {
+        return dispatchExecutorQueueSize;
+    }
+
+    /**
+     * Sets the number of DT State change lists kept in memory to resume the state stream (/state/stream) and to
+     * answer the long-polling requests on /state/changes that missed some versions.
+     *
+     * @param stateStreamReplayBufferSize The size of the replay buffer (0 disables the replay of the changes).
+     * @throws HttpDigitalAdapterConfigurationException If the size is negative.
+     */
+    public void setStateStreamReplayBufferSize(int stateStreamReplayBufferSize) throws HttpDigitalAdapterConfigurationException {
+        if(stateStreamReplayBufferSize < 0) throw new HttpDigitalAdapterConfigurationException("State stream replay buffer size cannot be negative");
+        this.stateStreamReplayBufferSize = stateStreamReplayBufferSize;
+    }
+
+    /**
+     * Retrieves the number of DT State change lists kept in memory to resume the state stream.
+     *
+     * @return The size of the replay buffer.
+     */
+    public int getStateStreamReplayBufferSize() {
+        return stateStreamReplayBufferSize;
+    }
+
+    /**
+     * Sets the maximum number of outgoing events queued for each state stream client (/state/stream). When the queue
+     * of a slow client is full, the pending events are replaced by the latest DT State snapshot.
+     *
+     * @param stateStreamOutboundQueueSize The size of the per-client outbound queue.
+     * @throws HttpDigitalAdapterConfigurationException If the size is not positive.
+     */
+    public void setStateStreamOutboundQueueSize(int stateStreamOutboundQueueSize) throws HttpDigitalAdapterConfigurationException {
+        if(stateStreamOutboundQueueSize <= 0) throw new HttpDigitalAdapterConfigurationException("State stream outbound queue size must be positive");
+        this.stateStreamOutboundQueueSize = stateStreamOutboundQueueSize;
+    }
+
+    /**
+     * Retrieves the maximum number of outgoing events queued for each state stream client.
+     *
+     * @return The size of the per-client outbound queue.
+     */
+    public int getStateStreamOutboundQueueSize() {
+        return stateStreamOutboundQueueSize;
+    }
+
+    /**
+     * Sets the maximum number of outgoing messages queued for each WebSocket client (/state/ws).
+     *
+     * @param webSocketOutboundQueueSize The size of the per-client outbound queue.
+     * @throws HttpDigitalAdapterConfigurationException If the size is not positive.
+     */
+    public void setWebSocketOutboundQueueSize(int webSocketOutboundQueueSize) throws HttpDigitalAdapterConfigurationException {
+        if(webSocketOutboundQueueSize <= 0) throw new HttpDigitalAdapterConfigurationException("WebSocket outbound queue size must be positive");
+        this.webSocketOutboundQueueSize = webSocketOutboundQueueSize;
+    }
+
+    /**
+     * Retrieves the maximum number of outgoing messages queued for each WebSocket client.
+     *
+     * @return The size of the per-client outbound queue.
+     */
+    public int getWebSocketOutboundQueueSize() {
+        return webSocketOutboundQueueSize;
+    }
+
+    /**
+     * Sets the maximum number of DT event notifications retained in memory (/state/events/notifications).
+     * When the limit is reached the oldest notifications are discarded.
+     *
+     * @param eventNotificationBufferSize The capacity of the event notification buffer.
+     * @throws HttpDigitalAdapterConfigurationException If the size is not positive.
+     */
+    public void setEventNotificationBufferSize(int eventNotificationBufferSize) throws HttpDigitalAdapterConfigurationException {
+        if(eventNotificationBufferSize <= 0) throw new HttpDigitalAdapterConfigurationException("Event notification buffer size must be positive");
+        this.eventNotificationBufferSize = eventNotificationBufferSize;
+    }
+
+    /**
+     * Retrieves the maximum number of DT event notifications retained in memory.
+     *
+     * @return The capacity of the event notification buffer.
+     */
+    public int getEventNotificationBufferSize() {
+        return eventNotificationBufferSize;
+    }
+
+    /**
+     * Sets the waiting times of the long-polling requests on /state/changes (afterVersion and timeoutMs parameters).
+     * The timeout requested by a client is limited to the maximum value.
+     *
+     * @param defaultTimeoutMs The waiting time applied when the client does not specify it.
+     * @param maxTimeoutMs The maximum waiting time accepted from the clients.
+     * @throws HttpDigitalAdapterConfigurationException If the values are not positive or the default exceeds the maximum.
+     */
+    public void setLongPollTimeout(long defaultTimeoutMs, long maxTimeoutMs) throws HttpDigitalAdapterConfigurationException {
+        if(defaultTimeoutMs <= 0 || maxTimeoutMs <= 0) throw new HttpDigitalAdapterConfigurationException("Long poll timeouts must be positive");
+        if(defaultTimeoutMs > maxTimeoutMs) throw new HttpDigitalAdapterConfigurationException("Long poll default timeout cannot exceed the maximum one");
+        this.longPollDefaultTimeoutMs = defaultTimeoutMs;
+        this.longPollMaxTimeoutMs = maxTimeoutMs;
+    }
+
+    /**
+     * Retrieves the waiting time applied to the long-polling requests that do not specify it.
+     *
+     * @return The default long poll timeout in milliseconds.
+     */
+    public long getLongPollDefaultTimeoutMs() {
+        return longPollDefaultTimeoutMs;
+    }
+
+    /**
+     * Retrieves the maximum waiting time accepted for the long-polling requests.
+     *
+     * @return The maximum long poll timeout in milliseconds.
+     */
+    public long getLongPollMaxTimeoutMs() {
+        return longPollMaxTimeoutMs;
+    }
+
+    /**
+     * Sets the maximum number of long-polling requests parked at the same time. Additional requests are rejected with 503.
+     *
+     * @param longPollMaxWaiters The maximum number of parked requests.
+     * @throws HttpDigitalAdapterConfigurationException If the value is not positive.
+     */
+    public void setLongPollMaxWaiters(int longPollMaxWaiters) throws HttpDigitalAdapterConfigurationException {
+        if(longPollMaxWaiters <= 0) throw new HttpDigitalAdapterConfigurationException("Long poll max waiters must be positive");
+        this.longPollMaxWaiters = longPollMaxWaiters;
+    }
+
+    /**
+     * Retrieves the maximum number of long-polling requests parked at the same time.
+     *
+     * @return The maximum number of parked requests.
+     */
+    public int getLongPollMaxWaiters() {
+        return longPollMaxWaiters;
+    }
+
+    /**
+     * Sets the maximum time to wait for the Storage Manager when serving the storage requests (/storage and
+     * /storage/query). Requests exceeding it are answered with 504 Gateway Timeout.
+     *
+     * @param storageRequestTimeoutMs The timeout in milliseconds.
+     * @throws HttpDigitalAdapterConfigurationException If the timeout is not positive.
+     */
+    public void setStorageRequestTimeout(long storageRequestTimeoutMs) throws HttpDigitalAdapterConfigurationException {
+        if(storageRequestTimeoutMs <= 0) throw new HttpDigitalAdapterConfigurationException("Storage request timeout must be positive");
+        this.storageRequestTimeoutMs = storageRequestTimeoutMs;
+    }
+
+    /**
+     * Retrieves the maximum time to wait for the Storage Manager when serving the storage requests.
+     *
+     * @return The timeout in milliseconds.
+     */
+    public long getStorageRequestTimeoutMs() {
+        return storageRequestTimeoutMs;
+    }
+
+    /**
+     * Sets the maximum number of Storage Queries accepted in a single batch request (/storage/query/batch).
+     * Larger batches are rejected with 400.
+     *
+     * @param queryBatchMaxSize The maximum number of queries of a batch.
+     * @throws HttpDigitalAdapterConfigurationException If the size is not positive.
+     */
+    public void setQueryBatchMaxSize(int queryBatchMaxSize) throws HttpDigitalAdapterConfigurationException {
+        if(queryBatchMaxSize <= 0) throw new HttpDigitalAdapterConfigurationException("Query batch size must be positive");
+        this.queryBatchMaxSize = queryBatchMaxSize;
+    }
+
+    /**
+     * Retrieves the maximum number of Storage Queries of a batch request.
+     *
+     * @return The maximum number of queries of a batch.
+     */
+    public int getQueryBatchMaxSize() {
+        return queryBatchMaxSize;
+    }
+
+    /**
+     * Sets the maximum number of buckets of each series of a downsampled Storage Query (bucketMs). When the samples
+     * span more buckets the bucket size is enlarged and the applied size is reported in the response. The same maximum
+     * caps the number of points of a LTTB downsampled series (lttbPoints).
+     *
+     * @param queryAggregationMaxBuckets The maximum number of buckets of a series.
+     * @throws HttpDigitalAdapterConfigurationException If the number of buckets is lower than 2.
+     */
+    public void setQueryAggregationMaxBuckets(int queryAggregationMaxBuckets) throws HttpDigitalAdapterConfigurationException {
+        if(queryAggregationMaxBuckets < 2) throw new HttpDigitalAdapterConfigurationException("Query aggregation buckets must be at least 2");
+        this.queryAggregationMaxBuckets = queryAggregationMaxBuckets;
+    }
+
+    /**
+     * Retrieves the maximum number of buckets of each series of a downsampled Storage Query.
+     *
+     * @return The maximum number of buckets of a series.
+     */
+    public int getQueryAggregationMaxBuckets() {
+        return queryAggregationMaxBuckets;
+    }
+
+    /**
+     * Sets the size and the time to live of the cache of the Storage Query results (/storage/query).
+     * Results that can change when the DT evolves (e.g., LAST_VALUE queries or time ranges ending in the future)
+     * are also invalidated on each DT State update.
+     *
+     * @param maxEntries The maximum number of cached results (0 disables the cache).
+     * @param ttlMs The time to live of the cached results in milliseconds.
+     * @throws HttpDigitalAdapterConfigurationException If the size is negative or the time to live is not positive.
+     */
+    public void setQueryCache(int maxEntries, long ttlMs) throws HttpDigitalAdapterConfigurationException {
+        if(maxEntries < 0) throw new HttpDigitalAdapterConfigurationException("Query cache size cannot be negative");
+        if(ttlMs <= 0) throw new HttpDigitalAdapterConfigurationException("Query cache time to live must be positive");
+        this.queryCacheMaxEntries = maxEntries;
+        this.queryCacheTtlMs = ttlMs;
+    }
+
+    /**
+     * Retrieves the maximum number of cached Storage Query results.
+     *
+     * @return The maximum number of cached results (0 if the cache is disabled).
+     */
+    public int getQueryCacheMaxEntries() {
+        return queryCacheMaxEntries;
+    }
+
+    /**
+     * Retrieves the time to live of the cached Storage Query results.
+     *
+     * @return The time to live in milliseconds.
+     */
+    public long getQueryCacheTtlMs() {
+        return queryCacheTtlMs;
+    }
+
+    /**
+     * Sets the size and the time to live of the table tracking the action requests received through
+     * POST /state/actions/{key} and exposed at /state/actions/requests/{requestId}. The oldest action requests are
+     * evicted when the maximum number of entries is reached.
+     *
+     * @param maxEntries The maximum number of tracked action requests.
+     * @param ttlMs The time to live of the action requests in milliseconds.
+     * @throws HttpDigitalAdapterConfigurationException If the values are not positive.
+     */
+    public void setActionRequests(int maxEntries, long ttlMs) throws HttpDigitalAdapterConfigurationException {
+        if(maxEntries <= 0) throw new HttpDigitalAdapterConfigurationException("Action requests size must be positive");
+        if(ttlMs <= 0) throw new HttpDigitalAdapterConfigurationException("Action requests time to live must be positive");
+        this.actionRequestsMaxEntries = maxEntries;
+        this.actionRequestsTtlMs = ttlMs;
+    }
+
+    /**
+     * Retrieves the maximum number of tracked action requests.
+     *
+     * @return The maximum number of action requests.
+     */
+    public int getActionRequestsMaxEntries() {
+        return actionRequestsMaxEntries;
+    }
+
+    /**
+     * Retrieves the time to live of the tracked action requests.
+     *
+     * @return The time to live in milliseconds.
+     */
+    public long getActionRequestsTtlMs() {
+        return actionRequestsTtlMs;
+    }
+
+    /**
+     * Sets the options of the Undertow server started by the adapter, e.g., one of the presets
+     * {@link HttpDigitalAdapterServerOptions#lowLatency()}, {@link HttpDigitalAdapterServerOptions#highThroughput()}
+     * and {@link HttpDigitalAdapterServerOptions#lowMemory()}. With the shared server, the options of the first
+     * adapter starting the server are used.
+     *
+     * @param serverOptions The server options.
+     * @throws HttpDigitalAdapterConfigurationException If the options are null.
+     */
+    public void setServerOptions(HttpDigitalAdapterServerOptions serverOptions) throws HttpDigitalAdapterConfigurationException {
+        if(serverOptions == null) throw new HttpDigitalAdapterConfigurationException("Server options cannot be null");
+        this.serverOptions = serverOptions;
+    }
+
+    /**
+     * Retrieves the options of the Undertow server started by the adapter.
+     *
+     * @return The server options.
+     */
+    public HttpDigitalAdapterServerOptions getServerOptions() {
+        return serverOptions;
+    }
+
+    /**
+     * Enables or disables the HTTP server shared by all the adapters of the process configured with the same host and
+     * port. When enabled, the routes of the adapter are exposed under the path of its Digital Twin
+     * (/dt/{digitalTwinId}/...) and all the Digital Twins share a single port and a single pool of IO and worker
+     * threads, instead of starting a dedicated server for each adapter.
+     *
+     * @param sharedServerEnabled True to use the shared server.
+     */
+    public void setSharedServerEnabled(boolean sharedServerEnabled) {
+        this.sharedServerEnabled = sharedServerEnabled;
+    }
+
+    /**
+     * Checks if the adapter is served through the shared HTTP server.
+     *
+     * @return True if the shared server is used.
+     */
+    public boolean isSharedServerEnabled() {
+        return sharedServerEnabled;
+    }
+
+    /**
+     * Enables or disables the compression (gzip or deflate) of the responses negotiated with the clients through the
+     * Accept-Encoding header. Only responses with a known length of at least the minimum size are compressed, so that
+     * small payloads (e.g., single property values) and streamed responses are sent as they are. The compression is
+     * disabled by default.
+     *
+     * @param enabled True to enable the compression.
+     * @param minSizeBytes The minimum size in bytes of the compressed responses.
+     * @throws HttpDigitalAdapterConfigurationException If the minimum size is negative.
+     */
+    public void setResponseCompression(boolean enabled, int minSizeBytes) throws HttpDigitalAdapterConfigurationException {
+        if(minSizeBytes < 0) throw new HttpDigitalAdapterConfigurationException("Response compression minimum size cannot be negative");
+        this.responseCompressionEnabled = enabled;
+        this.responseCompressionMinSize = minSizeBytes;
+    }
+
+    /**
+     * Checks if the compression of the responses is enabled.
+     *
+     * @return True if the compression is enabled.
+     */
+    public boolean isResponseCompressionEnabled() {
+        return responseCompressionEnabled;
+    }
+
+    /**
+     * Retrieves the minimum size of the compressed responses.
+     *
+     * @return The minimum size in bytes.
+     */
+    public int getResponseCompressionMinSize() {
+        return responseCompressionMinSize;
+    }
+
+    /**
+     * Enables or disables the per-route metrics (latency histograms, status codes, response bytes and in-flight
+     * requests) exposed in the Prometheus text format through the /metrics endpoint. The metrics are disabled by
+     * default, the /metrics endpoint is not authenticated and should only be enabled on trusted networks.
+     *
+     * @param metricsEnabled True to enable the metrics.
+     */
+    public void setMetricsEnabled(boolean metricsEnabled) {
+        this.metricsEnabled = metricsEnabled;
+    }
+
+    /**
+     * Checks if the per-route metrics are enabled.
+     *
+     * @return True if the metrics are enabled.
+     */
+    public boolean isMetricsEnabled() {
+        return metricsEnabled;
+    }
+
+    /**
+     * Sets the upper bounds of the latency histogram buckets of the per-route metrics.
+     *
+     * @param metricsLatencyBuckets The strictly increasing positive bucket bounds in seconds.
+     * @throws HttpDigitalAdapterConfigurationException If the bounds are empty, not positive or not strictly increasing.
+     */
+    public void setMetricsLatencyBuckets(double... metricsLatencyBuckets) throws HttpDigitalAdapterConfigurationException {
+        if(metricsLatencyBuckets == null || metricsLatencyBuckets.length == 0) throw new HttpDigitalAdapterConfigurationException("Metrics latency buckets cannot be empty");
+        for(int i = 0; i < metricsLatencyBuckets.length; i++)
+            if(metricsLatencyBuckets[i] <= 0 || (i > 0 && metricsLatencyBuckets[i] <= metricsLatencyBuckets[i - 1]))
+                throw new HttpDigitalAdapterConfigurationException("Metrics latency buckets must be positive and strictly increasing");
+        this.metricsLatencyBuckets = metricsLatencyBuckets.clone();
+    }
+
+    /**
+     * Retrieves the upper bounds of the latency histogram buckets of the per-route metrics.
+     *
+     * @return The bucket bounds in seconds.
+     */
+    public double[] getMetricsLatencyBuckets() {
+        return metricsLatencyBuckets.clone();
+    }
+
     /**
      * Retrieves the host address for the HTTP Digital Adapter.
      *
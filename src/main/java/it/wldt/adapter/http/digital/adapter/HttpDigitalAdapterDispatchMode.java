@@ -0,0 +1,33 @@
+package it.wldt.adapter.http.digital.adapter;
+
+/**
+ * Defines on which threads the HTTP handler associated to a route of the HTTP Digital Adapter is executed.
+ * Cheap in-memory reads can safely stay on the non-blocking IO threads, while handlers calling blocking
+ * components (e.g., the Storage Manager through the Query Executor) should be moved away from them
+ * in order to avoid stalling all the other connections bound to the same IO thread.
+ *
+ * @author Marco Picone, Ph.D. - picone.m@gmail.com, Marta Spadoni University of Bologna
+ */
+public enum HttpDigitalAdapterDispatchMode {
+
+    /**
+     * The handler is executed directly on the Undertow (XNIO) IO thread that received the request
+     */
+    IO_THREAD,
+
+    /**
+     * The handler is dispatched to the Undertow worker thread pool
+     */
+    WORKER,
+
+    /**
+     * The handler is dispatched to a dedicated bounded executor owned by the adapter
+     */
+    EXECUTOR,
+
+    /**
+     * The handler is executed on a new virtual thread (JDK 21+). On previous JDK versions the dedicated
+     * bounded executor is used instead
+     */
+    VIRTUAL_THREAD
+}
@@ -0,0 +1,203 @@
+package it.wldt.adapter.http.digital.adapter;
+
+import it.wldt.adapter.http.digital.server.HttpDigitalAdapterQueryKey;
+import it.wldt.storage.query.QueryRequest;
+import it.wldt.storage.query.QueryRequestType;
+import it.wldt.storage.query.QueryResult;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory cache of the successful Storage Query results served by the HTTP Digital Adapter.
+ * Results are keyed on the normalized {@link QueryRequest} ({@link HttpDigitalAdapterQueryKey}). Entries are evicted
+ * in least recently used order when the maximum size is reached and expire after the configured time to live.
+ * Results that can change when the DT evolves (LAST_VALUE, COUNT and SAMPLE_RANGE queries, since indexes are relative
+ * to the stored records, and TIME_RANGE queries whose window ends in the future) are marked as volatile and invalidated
+ * on each DT State update and event notification, while fully historical time ranges stay cached until they expire.
+ *
+ * @author Marco Picone, Ph.D. - picone.m@gmail.com, Marta Spadoni University of Bologna
+ */
+public class HttpDigitalAdapterQueryCache {
+
+    /**
+     * Cached result with its expiration time
+     */
+    private static class CacheEntry {
+
+        private final QueryResult<?> queryResult;
+
+        private final long expirationTimeMs;
+
+        private final boolean volatileResult;
+
+        private CacheEntry(QueryResult<?> queryResult, long expirationTimeMs, boolean volatileResult) {
+            this.queryResult = queryResult;
+            this.expirationTimeMs = expirationTimeMs;
+            this.volatileResult = volatileResult;
+        }
+    }
+
+    /**
+     * Maximum number of cached results
+     */
+    private final int maxEntries;
+
+    /**
+     * Time to live of the cached results
+     */
+    private final long ttlMs;
+
+    /**
+     * Cached results in access order
+     */
+    private final LinkedHashMap<HttpDigitalAdapterQueryKey, CacheEntry> entries;
+
+    /**
+     * Number of invalidations of the volatile entries, used to discard the results of queries started before an update
+     */
+    private final AtomicLong generation = new AtomicLong(0);
+
+    /**
+     * Number of requests served from the cache
+     */
+    private final AtomicLong hitCount = new AtomicLong(0);
+
+    /**
+     * Number of requests not found in the cache
+     */
+    private final AtomicLong missCount = new AtomicLong(0);
+
+    /**
+     * Constructs a new query cache.
+     *
+     * @param maxEntries The maximum number of cached results.
+     * @param ttlMs The time to live of the cached results in milliseconds.
+     */
+    public HttpDigitalAdapterQueryCache(int maxEntries, long ttlMs) {
+        this.maxEntries = maxEntries;
+        this.ttlMs = ttlMs;
+        this.entries = new LinkedHashMap<HttpDigitalAdapterQueryKey, CacheEntry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<HttpDigitalAdapterQueryKey, CacheEntry> eldest) {
+                return size() > HttpDigitalAdapterQueryCache.this.maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Retrieves the cached result of a query. The returned result refers to the provided request.
+     *
+     * @param queryRequest The query request.
+     * @return The cached result or null if not available.
+     */
+    public QueryResult<?> get(QueryRequest queryRequest) {
+
+        CacheEntry cacheEntry;
+        HttpDigitalAdapterQueryKey cacheKey = new HttpDigitalAdapterQueryKey(queryRequest);
+
+        synchronized (entries) {
+            cacheEntry = entries.get(cacheKey);
+            if(cacheEntry != null && cacheEntry.expirationTimeMs <= System.currentTimeMillis()) {
+                entries.remove(cacheKey);
+                cacheEntry = null;
+            }
+        }
+
+        if(cacheEntry == null) {
+            missCount.incrementAndGet();
+            return null;
+        }
+
+        hitCount.incrementAndGet();
+
+        QueryResult<?> queryResult = cacheEntry.queryResult;
+        return new QueryResult<>(queryRequest, queryResult.isSuccessful(), queryResult.getErrorMessage(), queryResult.getResults(), queryResult.getTotalResults());
+    }
+
+    /**
+     * Retrieves the current generation of the cache, to be read before executing a query and provided when its
+     * result is stored.
+     *
+     * @return The current generation.
+     */
+    public long getGeneration() {
+        return generation.get();
+    }
+
+    /**
+     * Stores the result of a query. Only successful results are cached, and volatile results are discarded if the
+     * DT State has been updated while the query was executed.
+     *
+     * @param queryRequest The executed query request.
+     * @param queryResult The query result.
+     * @param queryGeneration The generation of the cache read before executing the query.
+     */
+    public void put(QueryRequest queryRequest, QueryResult<?> queryResult, long queryGeneration) {
+
+        if(queryResult == null || !queryResult.isSuccessful())
+            return;
+
+        boolean volatileResult = isVolatile(queryRequest);
+        CacheEntry cacheEntry = new CacheEntry(queryResult, System.currentTimeMillis() + ttlMs, volatileResult);
+
+        synchronized (entries) {
+            if(!volatileResult || queryGeneration == generation.get())
+                entries.put(new HttpDigitalAdapterQueryKey(queryRequest), cacheEntry);
+        }
+    }
+
+    /**
+     * Invalidates the cached results that can be changed by a DT State update.
+     */
+    public void invalidateVolatileEntries() {
+        synchronized (entries) {
+            generation.incrementAndGet();
+            Iterator<CacheEntry> iterator = entries.values().iterator();
+            while(iterator.hasNext())
+                if(iterator.next().volatileResult)
+                    iterator.remove();
+        }
+    }
+
+    /**
+     * Retrieves the number of requests served from the cache.
+     *
+     * @return The number of cache hits.
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * Retrieves the number of requests not found in the cache.
+     *
+     * @return The number of cache misses.
+     */
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * Retrieves the number of cached results.
+     *
+     * @return The cache size.
+     */
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * Checks if the result of a query can change when the DT evolves.
+     *
+     * @param queryRequest The query request.
+     * @return True if the result has to be invalidated on the DT State updates.
+     */
+    private static boolean isVolatile(QueryRequest queryRequest) {
+        return queryRequest.getRequestType() != QueryRequestType.TIME_RANGE || HttpDigitalAdapterQueryKey.isOpenEnded(queryRequest);
+    }
+}
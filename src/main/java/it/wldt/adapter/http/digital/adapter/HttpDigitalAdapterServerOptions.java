@@ -0,0 +1,487 @@
+package it.wldt.adapter.http.digital.adapter;
+
+import io.undertow.Undertow;
+import io.undertow.UndertowOptions;
+import it.wldt.adapter.http.digital.exception.HttpDigitalAdapterConfigurationException;
+import org.xnio.Options;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.KeyStore;
+import java.util.Objects;
+
+/**
+ * Options of the Undertow server started by the HTTP Digital Adapter: thread pools, buffers, socket options and
+ * request limits. The default options keep the Undertow defaults (threads and buffers sized on the available cores
+ * and memory), while the presets tune them for the typical deployments:
+ * <ul>
+ *     <li>{@link #lowLatency()}: small buffers, no Nagle delay and idle connections closed after one minute, for
+ *     interactive clients reading small state payloads;</li>
+ *     <li>{@link #highThroughput()}: more IO and worker threads, large buffers and a long accept backlog, for servers
+ *     answering many concurrent clients and large storage queries;</li>
+ *     <li>{@link #lowMemory()}: a single IO thread, few workers, small heap buffers and bounded request bodies, for
+ *     edge devices.</li>
+ * </ul>
+ * The values of a preset can be further adjusted through the setters.
+ * The options also enable HTTP/2, negotiated through the cleartext upgrade (h2c) on HTTP listeners and through ALPN
+ * on TLS listeners, so that the many parallel requests of a dashboard are multiplexed on a single connection.
+ *
+ * @author Marco Picone, Ph.D. - picone.m@gmail.com, Marta Spadoni University of Bologna
+ */
+public class HttpDigitalAdapterServerOptions {
+
+    /**
+     * Default length of the queue of the pending connections
+     */
+    public final static int DEFAULT_BACKLOG = 1000;
+
+    /**
+     * Number of IO threads (0 for the Undertow default, i.e., the available cores)
+     */
+    private int ioThreads = 0;
+
+    /**
+     * Number of worker threads (0 for the Undertow default, i.e., 8 workers for each IO thread)
+     */
+    private int workerThreads = 0;
+
+    /**
+     * Size in bytes of the IO buffers (0 for the Undertow default based on the available memory)
+     */
+    private int bufferSize = 0;
+
+    /**
+     * Allocates the IO buffers off heap (applied only with an explicit buffer size)
+     */
+    private boolean directBuffers = true;
+
+    /**
+     * Length of the queue of the pending connections
+     */
+    private int backlog = DEFAULT_BACKLOG;
+
+    /**
+     * Disables the Nagle algorithm on the accepted connections
+     */
+    private boolean tcpNoDelay = true;
+
+    /**
+     * Time after which idle connections are closed (0 to keep them open)
+     */
+    private long idleTimeoutMs = 0;
+
+    /**
+     * Maximum size in bytes of the request bodies (0 for no limit)
+     */
+    private long maxEntitySize = 0;
+
+    /**
+     * Enables HTTP/2 (h2c upgrade on HTTP listeners, ALPN on TLS listeners)
+     */
+    private boolean http2Enabled = false;
+
+    /**
+     * Maximum number of concurrent HTTP/2 streams of a connection (0 for the Undertow default, i.e., unlimited)
+     */
+    private int http2MaxConcurrentStreams = 0;
+
+    /**
+     * Initial HTTP/2 flow control window in bytes (0 for the protocol default, i.e., 65535 bytes)
+     */
+    private int http2InitialWindowSize = 0;
+
+    /**
+     * SSL context of the TLS listener built from the configured key store (null for a cleartext HTTP listener)
+     */
+    private SSLContext sslContext = null;
+
+    /**
+     * Constructs the default options, keeping the Undertow defaults.
+     */
+    public HttpDigitalAdapterServerOptions() {
+    }
+
+    /**
+     * Creates the options tuned for the latency of interactive clients.
+     *
+     * @return The low latency options.
+     */
+    public static HttpDigitalAdapterServerOptions lowLatency() {
+        HttpDigitalAdapterServerOptions serverOptions = new HttpDigitalAdapterServerOptions();
+        serverOptions.bufferSize = 8 * 1024;
+        serverOptions.directBuffers = true;
+        serverOptions.tcpNoDelay = true;
+        serverOptions.idleTimeoutMs = 60000;
+        serverOptions.maxEntitySize = 16 * 1024 * 1024;
+        return serverOptions;
+    }
+
+    /**
+     * Creates the options tuned for the throughput of servers with many concurrent clients.
+     *
+     * @return The high throughput options.
+     */
+    public static HttpDigitalAdapterServerOptions highThroughput() {
+        int cores = Runtime.getRuntime().availableProcessors();
+        HttpDigitalAdapterServerOptions serverOptions = new HttpDigitalAdapterServerOptions();
+        serverOptions.ioThreads = Math.max(cores * 2, 2);
+        serverOptions.workerThreads = Math.max(cores * 16, 16);
+        serverOptions.bufferSize = 64 * 1024;
+        serverOptions.directBuffers = true;
+        serverOptions.backlog = 8192;
+        serverOptions.tcpNoDelay = true;
+        serverOptions.idleTimeoutMs = 300000;
+        serverOptions.maxEntitySize = 64 * 1024 * 1024;
+        return serverOptions;
+    }
+
+    /**
+     * Creates the options tuned for the memory footprint of edge devices.
+     *
+     * @return The low memory options.
+     */
+    public static HttpDigitalAdapterServerOptions lowMemory() {
+        HttpDigitalAdapterServerOptions serverOptions = new HttpDigitalAdapterServerOptions();
+        serverOptions.ioThreads = 1;
+        serverOptions.workerThreads = 4;
+        serverOptions.bufferSize = 2 * 1024;
+        serverOptions.directBuffers = false;
+        serverOptions.backlog = 128;
+        serverOptions.tcpNoDelay = true;
+        serverOptions.idleTimeoutMs = 30000;
+        serverOptions.maxEntitySize = 1024 * 1024;
+        return serverOptions;
+    }
+
+    /**
+     * Applies the options to an Undertow server builder.
+     *
+     * @param builder The Undertow builder.
+     * @return The same builder.
+     */
+    public Undertow.Builder applyTo(Undertow.Builder builder) {
+
+        if(ioThreads > 0)
+            builder.setIoThreads(ioThreads);
+
+        if(workerThreads > 0)
+            builder.setWorkerThreads(workerThreads);
+
+        if(bufferSize > 0)
+            builder.setBufferSize(bufferSize).setDirectBuffers(directBuffers);
+
+        builder.setSocketOption(Options.BACKLOG, backlog);
+        builder.setSocketOption(Options.TCP_NODELAY, tcpNoDelay);
+
+        if(idleTimeoutMs > 0)
+            builder.setServerOption(UndertowOptions.IDLE_TIMEOUT, (int) Math.min(idleTimeoutMs, Integer.MAX_VALUE));
+
+        if(maxEntitySize > 0)
+            builder.setServerOption(UndertowOptions.MAX_ENTITY_SIZE, maxEntitySize);
+
+        if(http2Enabled) {
+
+            builder.setServerOption(UndertowOptions.ENABLE_HTTP2, true);
+
+            if(http2MaxConcurrentStreams > 0)
+                builder.setServerOption(UndertowOptions.HTTP2_SETTINGS_MAX_CONCURRENT_STREAMS, http2MaxConcurrentStreams);
+
+            if(http2InitialWindowSize > 0)
+                builder.setServerOption(UndertowOptions.HTTP2_SETTINGS_INITIAL_WINDOW_SIZE, http2InitialWindowSize);
+        }
+
+        return builder;
+    }
+
+    /**
+     * Adds the listener of the server to an Undertow server builder: a TLS listener if a key store has been
+     * configured, otherwise a cleartext HTTP listener.
+     *
+     * @param builder The Undertow builder.
+     * @param host The listening host.
+     * @param port The listening port.
+     * @return The same builder.
+     */
+    public Undertow.Builder addListener(Undertow.Builder builder, String host, int port) {
+        return (sslContext != null) ? builder.addHttpsListener(port, host, sslContext) : builder.addHttpListener(port, host);
+    }
+
+    /**
+     * Retrieves the number of IO threads.
+     *
+     * @return The number of IO threads (0 for the Undertow default).
+     */
+    public int getIoThreads() {
+        return ioThreads;
+    }
+
+    /**
+     * Sets the number of IO threads handling the connections.
+     *
+     * @param ioThreads The number of IO threads (0 for the Undertow default).
+     * @throws HttpDigitalAdapterConfigurationException If the number is negative.
+     */
+    public void setIoThreads(int ioThreads) throws HttpDigitalAdapterConfigurationException {
+        if(ioThreads < 0) throw new HttpDigitalAdapterConfigurationException("IO threads cannot be negative");
+        this.ioThreads = ioThreads;
+    }
+
+    /**
+     * Retrieves the number of worker threads.
+     *
+     * @return The number of worker threads (0 for the Undertow default).
+     */
+    public int getWorkerThreads() {
+        return workerThreads;
+    }
+
+    /**
+     * Sets the number of worker threads executing the dispatched handlers.
+     *
+     * @param workerThreads The number of worker threads (0 for the Undertow default).
+     * @throws HttpDigitalAdapterConfigurationException If the number is negative.
+     */
+    public void setWorkerThreads(int workerThreads) throws HttpDigitalAdapterConfigurationException {
+        if(workerThreads < 0) throw new HttpDigitalAdapterConfigurationException("Worker threads cannot be negative");
+        this.workerThreads = workerThreads;
+    }
+
+    /**
+     * Retrieves the size of the IO buffers.
+     *
+     * @return The buffer size in bytes (0 for the Undertow default).
+     */
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Checks if the IO buffers are allocated off heap.
+     *
+     * @return True for direct buffers.
+     */
+    public boolean isDirectBuffers() {
+        return directBuffers;
+    }
+
+    /**
+     * Sets the size and the allocation of the IO buffers.
+     *
+     * @param bufferSize The size in bytes of the buffers (0 for the Undertow default based on the available memory).
+     * @param directBuffers True to allocate the buffers off heap.
+     * @throws HttpDigitalAdapterConfigurationException If the size is negative.
+     */
+    public void setBuffers(int bufferSize, boolean directBuffers) throws HttpDigitalAdapterConfigurationException {
+        if(bufferSize < 0) throw new HttpDigitalAdapterConfigurationException("Buffer size cannot be negative");
+        this.bufferSize = bufferSize;
+        this.directBuffers = directBuffers;
+    }
+
+    /**
+     * Retrieves the length of the queue of the pending connections.
+     *
+     * @return The backlog length.
+     */
+    public int getBacklog() {
+        return backlog;
+    }
+
+    /**
+     * Sets the length of the queue of the pending connections.
+     *
+     * @param backlog The backlog length.
+     * @throws HttpDigitalAdapterConfigurationException If the length is not positive.
+     */
+    public void setBacklog(int backlog) throws HttpDigitalAdapterConfigurationException {
+        if(backlog <= 0) throw new HttpDigitalAdapterConfigurationException("Backlog must be positive");
+        this.backlog = backlog;
+    }
+
+    /**
+     * Checks if the TCP_NODELAY option is enabled.
+     *
+     * @return True if the Nagle algorithm is disabled.
+     */
+    public boolean isTcpNoDelay() {
+        return tcpNoDelay;
+    }
+
+    /**
+     * Enables or disables the TCP_NODELAY option (Nagle algorithm disabled) on the accepted connections.
+     *
+     * @param tcpNoDelay True to send the responses without the Nagle delay.
+     */
+    public void setTcpNoDelay(boolean tcpNoDelay) {
+        this.tcpNoDelay = tcpNoDelay;
+    }
+
+    /**
+     * Retrieves the time after which idle connections are closed.
+     *
+     * @return The idle timeout in milliseconds (0 if disabled).
+     */
+    public long getIdleTimeoutMs() {
+        return idleTimeoutMs;
+    }
+
+    /**
+     * Sets the time after which idle connections are closed.
+     *
+     * @param idleTimeoutMs The idle timeout in milliseconds (0 to keep idle connections open).
+     * @throws HttpDigitalAdapterConfigurationException If the timeout is negative.
+     */
+    public void setIdleTimeoutMs(long idleTimeoutMs) throws HttpDigitalAdapterConfigurationException {
+        if(idleTimeoutMs < 0) throw new HttpDigitalAdapterConfigurationException("Idle timeout cannot be negative");
+        this.idleTimeoutMs = idleTimeoutMs;
+    }
+
+    /**
+     * Retrieves the maximum size of the request bodies.
+     *
+     * @return The maximum size in bytes (0 for no limit).
+     */
+    public long getMaxEntitySize() {
+        return maxEntitySize;
+    }
+
+    /**
+     * Sets the maximum size of the request bodies (e.g., action payloads and storage queries). Larger requests are
+     * rejected by the server.
+     *
+     * @param maxEntitySize The maximum size in bytes (0 for no limit).
+     * @throws HttpDigitalAdapterConfigurationException If the size is negative.
+     */
+    public void setMaxEntitySize(long maxEntitySize) throws HttpDigitalAdapterConfigurationException {
+        if(maxEntitySize < 0) throw new HttpDigitalAdapterConfigurationException("Max entity size cannot be negative");
+        this.maxEntitySize = maxEntitySize;
+    }
+
+    /**
+     * Checks if HTTP/2 is enabled.
+     *
+     * @return True if HTTP/2 is enabled.
+     */
+    public boolean isHttp2Enabled() {
+        return http2Enabled;
+    }
+
+    /**
+     * Enables or disables HTTP/2. Clients can upgrade cleartext connections (h2c) or negotiate HTTP/2 through ALPN on
+     * TLS connections, while HTTP/1.1 clients keep working on the same listener.
+     *
+     * @param http2Enabled True to enable HTTP/2.
+     */
+    public void setHttp2Enabled(boolean http2Enabled) {
+        this.http2Enabled = http2Enabled;
+    }
+
+    /**
+     * Retrieves the maximum number of concurrent HTTP/2 streams of a connection.
+     *
+     * @return The maximum number of streams (0 for the Undertow default).
+     */
+    public int getHttp2MaxConcurrentStreams() {
+        return http2MaxConcurrentStreams;
+    }
+
+    /**
+     * Retrieves the initial HTTP/2 flow control window.
+     *
+     * @return The window size in bytes (0 for the protocol default).
+     */
+    public int getHttp2InitialWindowSize() {
+        return http2InitialWindowSize;
+    }
+
+    /**
+     * Sets the HTTP/2 settings advertised to the clients: the maximum number of requests multiplexed at the same time
+     * on a connection and the initial flow control window of each stream, which bounds the data sent on a stream
+     * before the client acknowledges it.
+     *
+     * @param maxConcurrentStreams The maximum number of concurrent streams (0 for the Undertow default).
+     * @param initialWindowSize The initial window size in bytes (0 for the protocol default).
+     * @throws HttpDigitalAdapterConfigurationException If a value is negative.
+     */
+    public void setHttp2Settings(int maxConcurrentStreams, int initialWindowSize) throws HttpDigitalAdapterConfigurationException {
+        if(maxConcurrentStreams < 0) throw new HttpDigitalAdapterConfigurationException("HTTP/2 max concurrent streams cannot be negative");
+        if(initialWindowSize < 0) throw new HttpDigitalAdapterConfigurationException("HTTP/2 initial window size cannot be negative");
+        this.http2MaxConcurrentStreams = maxConcurrentStreams;
+        this.http2InitialWindowSize = initialWindowSize;
+    }
+
+    /**
+     * Checks if the server uses a TLS listener.
+     *
+     * @return True if a key store has been configured.
+     */
+    public boolean isTlsEnabled() {
+        return sslContext != null;
+    }
+
+    /**
+     * Configures a TLS listener using the certificate and the private key of a local key store (PKCS12 or JKS).
+     *
+     * @param keyStorePath The path of the key store file.
+     * @param keyStorePassword The password of the key store and of its private key.
+     * @throws HttpDigitalAdapterConfigurationException If the key store cannot be loaded.
+     */
+    public void setTls(String keyStorePath, String keyStorePassword) throws HttpDigitalAdapterConfigurationException {
+
+        if(keyStorePath == null || keyStorePassword == null)
+            throw new HttpDigitalAdapterConfigurationException("Key store path and password cannot be null");
+
+        try (InputStream keyStoreStream = Files.newInputStream(Paths.get(keyStorePath))) {
+
+            KeyStore keyStore = KeyStore.getInstance(KeyStore.getDefaultType());
+            keyStore.load(keyStoreStream, keyStorePassword.toCharArray());
+
+            KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keyManagerFactory.init(keyStore, keyStorePassword.toCharArray());
+
+            SSLContext tlsContext = SSLContext.getInstance("TLS");
+            tlsContext.init(keyManagerFactory.getKeyManagers(), null, null);
+
+            this.sslContext = tlsContext;
+
+        } catch (Exception e) {
+            throw new HttpDigitalAdapterConfigurationException(String.format("Error loading key store %s: %s", keyStorePath, e.getMessage()));
+        }
+    }
+
+    /**
+     * Compares the options applied to the server, used to detect the adapters sharing a server with different options.
+     * The TLS configurations are compared through the identity of the loaded SSL context, since the key store file
+     * may have changed after it has been loaded: adapters sharing a TLS server have to use the same options instance,
+     * while any other TLS configuration, even if loaded from the same key store, is considered different.
+     *
+     * @param o The compared object.
+     * @return True if the options are the same.
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        HttpDigitalAdapterServerOptions that = (HttpDigitalAdapterServerOptions) o;
+        return ioThreads == that.ioThreads &&
+                workerThreads == that.workerThreads &&
+                bufferSize == that.bufferSize &&
+                directBuffers == that.directBuffers &&
+                backlog == that.backlog &&
+                tcpNoDelay == that.tcpNoDelay &&
+                idleTimeoutMs == that.idleTimeoutMs &&
+                maxEntitySize == that.maxEntitySize &&
+                http2Enabled == that.http2Enabled &&
+                http2MaxConcurrentStreams == that.http2MaxConcurrentStreams &&
+                http2InitialWindowSize == that.http2InitialWindowSize &&
+                sslContext == that.sslContext;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(ioThreads, workerThreads, bufferSize, directBuffers, backlog, tcpNoDelay, idleTimeoutMs,
+                maxEntitySize, http2Enabled, http2MaxConcurrentStreams, http2InitialWindowSize, System.identityHashCode(sslContext));
+    }
+}
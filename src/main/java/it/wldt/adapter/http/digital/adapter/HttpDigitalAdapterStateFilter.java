@@ -0,0 +1,216 @@
+package it.wldt.adapter.http.digital.adapter;
+
+import it.wldt.core.state.*;
+
+import java.time.Instant;
+import java.util.*;
+
+/**
+ * Applies the white list filters of the {@link HttpDigitalAdapterConfiguration} to the Digital Twin State.
+ * The configured keys are copied into hash sets when the filter is created, and each DT State update is filtered
+ * only once when it is received by the adapter. All the HTTP endpoints then work on the already filtered state,
+ * reducing both the payload size and the per-request work.
+ * An empty filter list means that all the resources of that kind are exposed.
+ *
+ * @author Marco Picone, Ph.D. - picone.m@gmail.com, Marta Spadoni University of Bologna
+ */
+public class HttpDigitalAdapterStateFilter {
+
+    /**
+     * Filtered DT State preserving the evaluation instant of the original one
+     */
+    private static class FilteredDigitalTwinState extends DigitalTwinState {
+
+        private FilteredDigitalTwinState(Map<String, DigitalTwinStateProperty<?>> properties,
+                                         Map<String, DigitalTwinStateAction> actions,
+                                         Map<String, DigitalTwinStateEvent> events,
+                                         Map<String, DigitalTwinStateRelationship<?>> relationships,
+                                         Instant evaluationInstant) {
+            super(properties, actions, events, relationships);
+            setEvaluationInstant(evaluationInstant);
+        }
+    }
+
+    /**
+     * Allowed property keys (null if all the properties are allowed)
+     */
+    private final Set<String> propertyKeys;
+
+    /**
+     * Allowed action keys (null if all the actions are allowed)
+     */
+    private final Set<String> actionKeys;
+
+    /**
+     * Allowed event keys (null if all the events are allowed)
+     */
+    private final Set<String> eventKeys;
+
+    /**
+     * Allowed relationship names (null if all the relationships are allowed)
+     */
+    private final Set<String> relationshipNames;
+
+    /**
+     * Constructs a filter from the white lists of the adapter configuration.
+     *
+     * @param configuration The HTTP Digital Adapter configuration.
+     */
+    public HttpDigitalAdapterStateFilter(HttpDigitalAdapterConfiguration configuration) {
+        this.propertyKeys = toSet(configuration.getPropertyFilter());
+        this.actionKeys = toSet(configuration.getActionFilter());
+        this.eventKeys = toSet(configuration.getEventFilter());
+        this.relationshipNames = toSet(configuration.getRelationshipFilter());
+    }
+
+    /**
+     * Checks if no filter is configured and the DT State is exposed as it is.
+     *
+     * @return True if the filter does not remove any resource.
+     */
+    public boolean isEmpty() {
+        return propertyKeys == null && actionKeys == null && eventKeys == null && relationshipNames == null;
+    }
+
+    /**
+     * Checks if a property is exposed by the adapter.
+     *
+     * @param propertyKey The property key.
+     * @return True if the property is allowed by the filter.
+     */
+    public boolean isPropertyAllowed(String propertyKey) {
+        return isAllowed(propertyKeys, propertyKey);
+    }
+
+    /**
+     * Checks if an action is exposed by the adapter.
+     *
+     * @param actionKey The action key.
+     * @return True if the action is allowed by the filter.
+     */
+    public boolean isActionAllowed(String actionKey) {
+        return isAllowed(actionKeys, actionKey);
+    }
+
+    /**
+     * Checks if an event is exposed by the adapter.
+     *
+     * @param eventKey The event key.
+     * @return True if the event is allowed by the filter.
+     */
+    public boolean isEventAllowed(String eventKey) {
+        return isAllowed(eventKeys, eventKey);
+    }
+
+    /**
+     * Checks if a relationship is exposed by the adapter.
+     *
+     * @param relationshipName The relationship name.
+     * @return True if the relationship is allowed by the filter.
+     */
+    public boolean isRelationshipAllowed(String relationshipName) {
+        return isAllowed(relationshipNames, relationshipName);
+    }
+
+    /**
+     * Filters a DT State keeping only the allowed resources.
+     *
+     * @param digitalTwinState The DT State to filter (can be null).
+     * @return The filtered DT State, or the same instance if no filter is configured.
+     * @throws Exception If the DT State cannot be read.
+     */
+    public DigitalTwinState filter(DigitalTwinState digitalTwinState) throws Exception {
+
+        if(digitalTwinState == null || isEmpty())
+            return digitalTwinState;
+
+        Map<String, DigitalTwinStateProperty<?>> properties = new LinkedHashMap<>();
+        if(digitalTwinState.getPropertyList().isPresent())
+            for(DigitalTwinStateProperty<?> property : digitalTwinState.getPropertyList().get())
+                if(isPropertyAllowed(property.getKey()))
+                    properties.put(property.getKey(), property);
+
+        Map<String, DigitalTwinStateAction> actions = new LinkedHashMap<>();
+        if(digitalTwinState.getActionList().isPresent())
+            for(DigitalTwinStateAction action : digitalTwinState.getActionList().get())
+                if(isActionAllowed(action.getKey()))
+                    actions.put(action.getKey(), action);
+
+        Map<String, DigitalTwinStateEvent> events = new LinkedHashMap<>();
+        if(digitalTwinState.getEventList().isPresent())
+            for(DigitalTwinStateEvent event : digitalTwinState.getEventList().get())
+                if(isEventAllowed(event.getKey()))
+                    events.put(event.getKey(), event);
+
+        Map<String, DigitalTwinStateRelationship<?>> relationships = new LinkedHashMap<>();
+        if(digitalTwinState.getRelationshipList().isPresent())
+            for(DigitalTwinStateRelationship<?> relationship : digitalTwinState.getRelationshipList().get())
+                if(isRelationshipAllowed(relationship.getName()))
+                    relationships.put(relationship.getName(), relationship);
+
+        return new FilteredDigitalTwinState(properties, actions, events, relationships, digitalTwinState.getEvaluationInstant());
+    }
+
+    /**
+     * Filters a list of DT State changes keeping only the ones involving allowed resources.
+     *
+     * @param digitalTwinStateChangeList The list of changes to filter (can be null).
+     * @return The filtered list of changes, or the same instance if no filter is configured.
+     */
+    public ArrayList<DigitalTwinStateChange> filter(ArrayList<DigitalTwinStateChange> digitalTwinStateChangeList) {
+
+        if(digitalTwinStateChangeList == null || isEmpty())
+            return digitalTwinStateChangeList;
+
+        ArrayList<DigitalTwinStateChange> filteredChangeList = new ArrayList<>(digitalTwinStateChangeList.size());
+
+        for(DigitalTwinStateChange stateChange : digitalTwinStateChangeList)
+            if(isAllowed(stateChange.getResource()))
+                filteredChangeList.add(stateChange);
+
+        return filteredChangeList;
+    }
+
+    /**
+     * Checks if a DT State resource is allowed by the filter.
+     *
+     * @param resource The DT State resource.
+     * @return True if the resource is allowed.
+     */
+    private boolean isAllowed(DigitalTwinStateResource resource) {
+
+        if(resource instanceof DigitalTwinStateProperty)
+            return isPropertyAllowed(((DigitalTwinStateProperty<?>) resource).getKey());
+        else if(resource instanceof DigitalTwinStateAction)
+            return isActionAllowed(((DigitalTwinStateAction) resource).getKey());
+        else if(resource instanceof DigitalTwinStateEvent)
+            return isEventAllowed(((DigitalTwinStateEvent) resource).getKey());
+        else if(resource instanceof DigitalTwinStateRelationship)
+            return isRelationshipAllowed(((DigitalTwinStateRelationship<?>) resource).getName());
+        else if(resource instanceof DigitalTwinStateRelationshipInstance)
+            return isRelationshipAllowed(((DigitalTwinStateRelationshipInstance<?>) resource).getRelationshipName());
+
+        return true;
+    }
+
+    /**
+     * Checks if a key is contained in a filter set.
+     *
+     * @param filter The filter set (null means that all the keys are allowed).
+     * @param key The key to check.
+     * @return True if the key is allowed.
+     */
+    private static boolean isAllowed(Set<String> filter, String key) {
+        return filter == null || filter.contains(key);
+    }
+
+    /**
+     * Copies a filter list into a hash set.
+     *
+     * @param filterList The configured filter list.
+     * @return The filter set or null if the list is empty.
+     */
+    private static Set<String> toSet(List<String> filterList) {
+        return (filterList == null || filterList.isEmpty()) ? null : new HashSet<>(filterList);
+    }
+}
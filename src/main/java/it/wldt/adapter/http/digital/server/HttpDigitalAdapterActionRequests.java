@@ -0,0 +1,556 @@
+package it.wldt.adapter.http.digital.server;
+
+import com.google.gson.JsonObject;
+import io.undertow.server.HttpHandler;
+import io.undertow.server.HttpServerExchange;
+import io.undertow.util.Headers;
+import io.undertow.util.SameThreadExecutor;
+import org.xnio.XnioExecutor;
+
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-memory table of the action requests received through POST /state/actions/{key} and the WebSocket channel,
+ * exposed as the /state/actions/requests/{requestId} resources so that the clients can follow the invocation of an
+ * action. Only the actions accepted by the DT are tracked, so rejected requests never evict the tracked ones.
+ * Each action request moves through the following statuses:
+ * <ul>
+ *     <li>{@code dispatched}: the action has been published to the DT;</li>
+ *     <li>{@code completed}: the DT State has been updated after the action was dispatched. WLDT does not correlate
+ *     the state changes with the actions, so the first DT State update following the dispatch completes the request,
+ *     even if it is not caused by the action, and the current DT State version is reported together with it. The
+ *     updates involving only the resources filtered out by the adapter complete the requests as well.</li>
+ * </ul>
+ * Since the completion only means that the DT State has been updated after the dispatch, the JSON representation of
+ * the action requests reports it explicitly through the {@code stateUpdatedAfterDispatch} field.
+ * A GET request with the {@code timeoutMs} query parameter on a request that is not completed yet is parked, as the
+ * long-polling requests on /state/changes, until the completion or the expiration of the waiting time, and is then
+ * answered with the current status of the action request.
+ * The table is bounded: action requests expire after the configured time to live from their acceptance and the oldest
+ * ones are evicted when the maximum number of entries is reached.
+ *
+ * @author Marco Picone, Ph.D. - picone.m@gmail.com, Marta Spadoni University of Bologna
+ */
+public class HttpDigitalAdapterActionRequests {
+
+    /**
+     * The path of the action request resources.
+     */
+    public final static String ACTION_REQUESTS_PATH = "/state/actions/requests/";
+
+    /**
+     * Query parameter with the maximum waiting time for the completion requested by the client
+     */
+    public final static String TIMEOUT_QUERY_PARAMETER = "timeoutMs";
+
+    /**
+     * Status of an action request
+     */
+    public enum Status {
+        DISPATCHED, COMPLETED;
+
+        @Override
+        public String toString() {
+            return name().toLowerCase();
+        }
+    }
+
+    /**
+     * Tracked action request, updated while holding the lock of the table
+     */
+    public static class ActionRequest {
+
+        private final String id;
+
+        private final String actionKey;
+
+        private final long createdTimeMs;
+
+        private final long expirationTimeMs;
+
+        private Status status = Status.DISPATCHED;
+
+        private long updatedTimeMs;
+
+        /**
+         * DT State version known when the action was dispatched
+         */
+        private long dispatchedStateVersion;
+
+        /**
+         * Number of DT State updates (including the filtered ones) known when the action was dispatched
+         */
+        private long dispatchedUpdateCount;
+
+        /**
+         * DT State version following the completion
+         */
+        private long completedStateVersion;
+
+        /**
+         * Requests parked until the completion
+         */
+        private final List<Waiter> waiters = new ArrayList<>(1);
+
+        private ActionRequest(String id, String actionKey, long createdTimeMs, long expirationTimeMs, long dispatchedStateVersion, long dispatchedUpdateCount) {
+            this.id = id;
+            this.actionKey = actionKey;
+            this.createdTimeMs = createdTimeMs;
+            this.expirationTimeMs = expirationTimeMs;
+            this.updatedTimeMs = createdTimeMs;
+            this.dispatchedStateVersion = dispatchedStateVersion;
+            this.dispatchedUpdateCount = dispatchedUpdateCount;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getActionKey() {
+            return actionKey;
+        }
+    }
+
+    /**
+     * Parked request waiting for the completion of an action request
+     */
+    private static class Waiter {
+
+        private final HttpServerExchange exchange;
+
+        private final AtomicBoolean completed = new AtomicBoolean(false);
+
+        private volatile XnioExecutor.Key timeoutKey;
+
+        private Waiter(HttpServerExchange exchange) {
+            this.exchange = exchange;
+        }
+    }
+
+    /**
+     * Maximum number of tracked action requests
+     */
+    private final int maxEntries;
+
+    /**
+     * Time to live of the action requests from their acceptance
+     */
+    private final long ttlMs;
+
+    /**
+     * Waiting time applied when the client does not specify it
+     */
+    private final long defaultTimeoutMs;
+
+    /**
+     * Maximum waiting time accepted from the clients
+     */
+    private final long maxTimeoutMs;
+
+    /**
+     * Maximum number of parked requests, additional requests are rejected with 503
+     */
+    private final int maxWaiters;
+
+    /**
+     * Tracked action requests in acceptance order, so that both the expired and the evicted entries are the eldest
+     */
+    private final LinkedHashMap<String, ActionRequest> entries;
+
+    /**
+     * Dispatched action requests waiting for the next DT State update
+     */
+    private final List<ActionRequest> dispatchedRequests = new ArrayList<>();
+
+    /**
+     * Number of currently parked requests
+     */
+    private final AtomicInteger waiterCount = new AtomicInteger(0);
+
+    /**
+     * Latest published DT State version, guarded by the lock of the table
+     */
+    private long stateVersion = 0;
+
+    /**
+     * Number of published DT State updates, including the ones filtered out by the adapter, guarded by the lock of the table
+     */
+    private long updateCount = 0;
+
+    /**
+     * Constructs a new action request table.
+     *
+     * @param maxEntries The maximum number of tracked action requests.
+     * @param ttlMs The time to live of the action requests in milliseconds.
+     * @param defaultTimeoutMs The waiting time applied when the client does not specify it.
+     * @param maxTimeoutMs The maximum waiting time accepted from the clients.
+     * @param maxWaiters The maximum number of parked requests.
+     */
+    public HttpDigitalAdapterActionRequests(int maxEntries, long ttlMs, long defaultTimeoutMs, long maxTimeoutMs, int maxWaiters) {
+        this.maxEntries = maxEntries;
+        this.ttlMs = ttlMs;
+        this.defaultTimeoutMs = defaultTimeoutMs;
+        this.maxTimeoutMs = maxTimeoutMs;
+        this.maxWaiters = maxWaiters;
+        this.entries = new LinkedHashMap<String, ActionRequest>(16, 0.75f, false) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, ActionRequest> eldest) {
+                if(size() <= HttpDigitalAdapterActionRequests.this.maxEntries)
+                    return false;
+                dispatchedRequests.remove(eldest.getValue());
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Invokes an action and, if the DT accepts it (202), tracks it in the dispatched status, removing the expired
+     * action requests. If the DT State has been updated while the action was being published the request is
+     * completed immediately.
+     *
+     * @param actionKey The key of the requested action.
+     * @param body The body of the action request.
+     * @param actionFunction The function publishing the action to the DT (returning an HTTP status code).
+     * @return The tracked action request or null if the action has been rejected.
+     */
+    public ActionRequest invoke(String actionKey, String body, BiFunction<String, String, Integer> actionFunction) {
+
+        // The version is read before publishing the action, so that any following update completes the request
+        long dispatchedStateVersion;
+        long dispatchedUpdateCount;
+        synchronized (entries) {
+            dispatchedStateVersion = stateVersion;
+            dispatchedUpdateCount = updateCount;
+        }
+
+        Integer statusCode = actionFunction.apply(actionKey, body);
+        if(statusCode == null || statusCode != 202)
+            return null;
+
+        long nowMs = System.currentTimeMillis();
+        ActionRequest actionRequest = new ActionRequest(UUID.randomUUID().toString(), actionKey, nowMs, nowMs + ttlMs, dispatchedStateVersion, dispatchedUpdateCount);
+
+        synchronized (entries) {
+            removeExpiredEntries(nowMs);
+            entries.put(actionRequest.id, actionRequest);
+            if(stateVersion > dispatchedStateVersion || updateCount > dispatchedUpdateCount) {
+                actionRequest.status = Status.COMPLETED;
+                actionRequest.completedStateVersion = stateVersion;
+            }
+            else
+                dispatchedRequests.add(actionRequest);
+        }
+
+        return actionRequest;
+    }
+
+    /**
+     * Publishes a new DT State version completing the action requests dispatched before it, together with the
+     * requests parked on them.
+     *
+     * @param stateVersion The version of the updated DT State.
+     */
+    public void publish(long stateVersion) {
+        publish(stateVersion, false);
+    }
+
+    /**
+     * Publishes a DT State update involving only resources filtered out by the adapter, which does not change the
+     * exposed DT State version but still completes all the dispatched action requests.
+     */
+    public void publishFilteredUpdate() {
+        publish(0, true);
+    }
+
+    /**
+     * Publishes a DT State update completing the dispatched action requests.
+     *
+     * @param stateVersion The version of the updated DT State (ignored for filtered updates).
+     * @param filtered True if the update involves only resources filtered out by the adapter.
+     */
+    private void publish(long stateVersion, boolean filtered) {
+
+        List<ActionRequest> completedRequests = null;
+
+        synchronized (entries) {
+
+            this.updateCount++;
+            this.stateVersion = Math.max(this.stateVersion, stateVersion);
+
+            if(dispatchedRequests.isEmpty())
+                return;
+
+            long nowMs = System.currentTimeMillis();
+            Iterator<ActionRequest> iterator = dispatchedRequests.iterator();
+
+            while(iterator.hasNext()) {
+                ActionRequest actionRequest = iterator.next();
+                if(filtered || actionRequest.dispatchedStateVersion < stateVersion) {
+                    iterator.remove();
+                    actionRequest.status = Status.COMPLETED;
+                    actionRequest.completedStateVersion = this.stateVersion;
+                    actionRequest.updatedTimeMs = nowMs;
+                    if(!actionRequest.waiters.isEmpty()) {
+                        if(completedRequests == null)
+                            completedRequests = new ArrayList<>();
+                        completedRequests.add(actionRequest);
+                    }
+                }
+            }
+        }
+
+        if(completedRequests != null)
+            for(ActionRequest actionRequest : completedRequests)
+                releaseWaiters(actionRequest);
+    }
+
+    /**
+     * Creates the handler of the /state/actions/requests/{requestId} resources.
+     *
+     * @return The action request handler.
+     */
+    public HttpHandler createHandler() {
+        return exchange -> {
+
+            String requestId = exchange.getQueryParameters().get("requestId").getFirst();
+            long timeoutMs = 0;
+
+            try {
+                Deque<String> timeoutParameter = exchange.getQueryParameters().get(TIMEOUT_QUERY_PARAMETER);
+                if(timeoutParameter != null && !timeoutParameter.isEmpty())
+                    timeoutMs = timeoutParameter.getFirst().isEmpty() ? defaultTimeoutMs : Long.parseLong(timeoutParameter.getFirst());
+                if(timeoutMs < 0)
+                    throw new NumberFormatException();
+            } catch (NumberFormatException e) {
+                sendError(exchange, 400, "Invalid timeoutMs parameter !");
+                return;
+            }
+
+            final ActionRequest actionRequest = get(requestId);
+
+            if(actionRequest == null) {
+                sendError(exchange, 404, "Action Request not found !");
+                return;
+            }
+
+            if(timeoutMs == 0 || isCompleted(actionRequest)) {
+                send(exchange, actionRequest);
+                return;
+            }
+
+            if(waiterCount.get() >= maxWaiters) {
+                sendError(exchange, 503, "Too many pending requests !");
+                return;
+            }
+
+            final Waiter waiter = new Waiter(exchange);
+            final long waitMs = Math.min(timeoutMs, maxTimeoutMs);
+
+            // Suspend the exchange until the completion, without holding any thread
+            exchange.dispatch(SameThreadExecutor.INSTANCE, () -> {
+
+                waiterCount.incrementAndGet();
+                waiter.timeoutKey = exchange.getIoThread().executeAfter(() -> onTimeout(actionRequest, waiter), waitMs, TimeUnit.MILLISECONDS);
+
+                // The action request could have been completed before the registration of the waiter
+                boolean alreadyCompleted;
+                synchronized (entries) {
+                    alreadyCompleted = actionRequest.status == Status.COMPLETED;
+                    if(!alreadyCompleted)
+                        actionRequest.waiters.add(waiter);
+                }
+
+                if(alreadyCompleted)
+                    complete(actionRequest, waiter);
+            });
+        };
+    }
+
+    /**
+     * Retrieves a tracked action request.
+     *
+     * @param requestId The id of the action request.
+     * @return The action request or null if unknown or expired.
+     */
+    public ActionRequest get(String requestId) {
+        synchronized (entries) {
+            ActionRequest actionRequest = entries.get(requestId);
+            if(actionRequest != null && actionRequest.expirationTimeMs <= System.currentTimeMillis()) {
+                removeExpiredEntries(System.currentTimeMillis());
+                return null;
+            }
+            return actionRequest;
+        }
+    }
+
+    /**
+     * Retrieves the current status of an action request.
+     *
+     * @param actionRequest The action request.
+     * @return The current status.
+     */
+    public Status getStatus(ActionRequest actionRequest) {
+        synchronized (entries) {
+            return actionRequest.status;
+        }
+    }
+
+    /**
+     * Retrieves the number of tracked action requests.
+     *
+     * @return The table size.
+     */
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * Retrieves the number of currently parked requests.
+     *
+     * @return The number of waiting clients.
+     */
+    public int getWaiterCount() {
+        return waiterCount.get();
+    }
+
+    /**
+     * Answers all the parked requests with the current status of their action requests.
+     */
+    public void shutdown() {
+
+        List<ActionRequest> waitedRequests = new ArrayList<>();
+
+        synchronized (entries) {
+            for(ActionRequest actionRequest : entries.values())
+                if(!actionRequest.waiters.isEmpty())
+                    waitedRequests.add(actionRequest);
+        }
+
+        for(ActionRequest actionRequest : waitedRequests)
+            releaseWaiters(actionRequest);
+    }
+
+    /**
+     * Serializes the current status of an action request.
+     *
+     * @param actionRequest The action request.
+     * @return The JSON representation of the action request.
+     */
+    public JsonObject toJson(ActionRequest actionRequest) {
+
+        JsonObject actionRequestObj = new JsonObject();
+
+        synchronized (entries) {
+            actionRequestObj.addProperty("id", actionRequest.id);
+            actionRequestObj.addProperty("action", actionRequest.actionKey);
+            actionRequestObj.addProperty("status", actionRequest.status.toString());
+            actionRequestObj.addProperty("createdAt", actionRequest.createdTimeMs);
+            actionRequestObj.addProperty("updatedAt", actionRequest.updatedTimeMs);
+            actionRequestObj.addProperty("stateUpdatedAfterDispatch", actionRequest.status == Status.COMPLETED);
+            if(actionRequest.status == Status.COMPLETED)
+                actionRequestObj.addProperty("stateVersion", actionRequest.completedStateVersion);
+        }
+
+        return actionRequestObj;
+    }
+
+    /**
+     * Removes the expired action requests, which are the eldest ones since all the entries share the same time to live.
+     * Must be invoked while holding the lock of the table.
+     *
+     * @param nowMs The current time in milliseconds.
+     */
+    private void removeExpiredEntries(long nowMs) {
+        Iterator<ActionRequest> iterator = entries.values().iterator();
+        while(iterator.hasNext()) {
+            ActionRequest actionRequest = iterator.next();
+            if(actionRequest.expirationTimeMs > nowMs)
+                break;
+            iterator.remove();
+            dispatchedRequests.remove(actionRequest);
+        }
+    }
+
+    private boolean isCompleted(ActionRequest actionRequest) {
+        return getStatus(actionRequest) == Status.COMPLETED;
+    }
+
+    /**
+     * Answers the requests parked on an action request with its current status.
+     *
+     * @param actionRequest The action request.
+     */
+    private void releaseWaiters(ActionRequest actionRequest) {
+
+        List<Waiter> waiters;
+        synchronized (entries) {
+            waiters = new ArrayList<>(actionRequest.waiters);
+            actionRequest.waiters.clear();
+        }
+
+        for(Waiter waiter : waiters)
+            complete(actionRequest, waiter);
+    }
+
+    /**
+     * Sends the status of the action request to a parked request on the IO thread of its connection.
+     *
+     * @param actionRequest The action request.
+     * @param waiter The parked request.
+     */
+    private void complete(ActionRequest actionRequest, Waiter waiter) {
+
+        if(!waiter.completed.compareAndSet(false, true))
+            return;
+
+        waiterCount.decrementAndGet();
+
+        XnioExecutor.Key timeoutKey = waiter.timeoutKey;
+        if(timeoutKey != null)
+            timeoutKey.remove();
+
+        waiter.exchange.getIoThread().execute(() -> send(waiter.exchange, actionRequest));
+    }
+
+    /**
+     * Answers a parked request with the current status of the action request when its waiting time expires.
+     *
+     * @param actionRequest The action request.
+     * @param waiter The expired request.
+     */
+    private void onTimeout(ActionRequest actionRequest, Waiter waiter) {
+
+        if(!waiter.completed.compareAndSet(false, true))
+            return;
+
+        synchronized (entries) {
+            actionRequest.waiters.remove(waiter);
+        }
+
+        waiterCount.decrementAndGet();
+        send(waiter.exchange, actionRequest);
+    }
+
+    private void send(HttpServerExchange exchange, ActionRequest actionRequest) {
+        exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, "application/json");
+        exchange.getResponseSender().send(HttpDigitalAdapterHandlersFactory.getDefaultGson().toJson(toJson(actionRequest)));
+    }
+
+    private static void sendError(HttpServerExchange exchange, int statusCode, String message) {
+        exchange.setStatusCode(statusCode);
+        exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, "application/json");
+        exchange.getResponseSender().send(HttpDigitalAdapterHandlersFactory.toErrorJson(message));
+    }
+}
@@ -0,0 +1,169 @@
+package it.wldt.adapter.http.digital.server;
+
+import io.undertow.server.HttpHandler;
+import io.undertow.server.HttpServerExchange;
+import io.undertow.server.handlers.encoding.ContentEncodingRepository;
+import io.undertow.server.handlers.encoding.DeflateEncodingProvider;
+import io.undertow.server.handlers.encoding.EncodingHandler;
+import io.undertow.server.handlers.encoding.GzipEncodingProvider;
+import io.undertow.util.AttachmentKey;
+import io.undertow.util.HeaderValues;
+import io.undertow.util.Headers;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compression of the responses of the HTTP Digital Adapter negotiated with the clients through the Accept-Encoding
+ * header. Responses are compressed with gzip (preferred) or deflate only when their length is known and at least equal
+ * to the configured minimum size, so small payloads and streamed responses (NDJSON, Server-Sent Events) are never
+ * compressed.
+ * Handlers serving pre-serialized content (e.g., the DT State snapshot) can send an already compressed version of the
+ * content through {@link #acceptsPrecompressedContent(HttpServerExchange, int)}, so that the content is compressed
+ * once and not for every request.
+ *
+ * @author Marco Picone, Ph.D. - picone.m@gmail.com, Marta Spadoni University of Bologna
+ */
+public class HttpDigitalAdapterCompression {
+
+    /**
+     * The gzip content encoding, also used for the pre-compressed content.
+     */
+    public final static String GZIP_ENCODING = "gzip";
+
+    /**
+     * The deflate content encoding.
+     */
+    public final static String DEFLATE_ENCODING = "deflate";
+
+    /**
+     * Exchange attachment with the compression applied to the response
+     */
+    private final static AttachmentKey<HttpDigitalAdapterCompression> COMPRESSION_ATTACHMENT = AttachmentKey.create(HttpDigitalAdapterCompression.class);
+
+    /**
+     * Minimum size in bytes of the compressed responses
+     */
+    private final int minSize;
+
+    /**
+     * Constructs the response compression.
+     *
+     * @param minSize The minimum size in bytes of the compressed responses.
+     */
+    public HttpDigitalAdapterCompression(int minSize) {
+        this.minSize = minSize;
+    }
+
+    /**
+     * Creates the handler negotiating the compression of the responses produced by the next handler.
+     *
+     * @param next The handler producing the responses.
+     * @return The compression handler.
+     */
+    public HttpHandler createHandler(HttpHandler next) {
+
+        ContentEncodingRepository encodingRepository = new ContentEncodingRepository()
+                .addEncodingHandler(GZIP_ENCODING, new GzipEncodingProvider(), 50, this::isCompressible)
+                .addEncodingHandler(DEFLATE_ENCODING, new DeflateEncodingProvider(), 10, this::isCompressible);
+
+        final EncodingHandler encodingHandler = new EncodingHandler(next, encodingRepository);
+
+        return exchange -> {
+            exchange.putAttachment(COMPRESSION_ATTACHMENT, this);
+            exchange.getResponseHeaders().add(Headers.VARY, Headers.ACCEPT_ENCODING_STRING);
+            encodingHandler.handleRequest(exchange);
+        };
+    }
+
+    /**
+     * Checks if the response of the exchange has a known length large enough to be compressed.
+     *
+     * @param exchange The current exchange.
+     * @return True if the response has to be compressed.
+     */
+    private boolean isCompressible(HttpServerExchange exchange) {
+        String contentLength = exchange.getResponseHeaders().getFirst(Headers.CONTENT_LENGTH);
+        return contentLength != null && Long.parseLong(contentLength) >= minSize;
+    }
+
+    /**
+     * Checks if a pre-serialized content can be sent with its gzip compressed version, i.e., if the compression is
+     * enabled, the content is large enough and the client accepts the gzip encoding. In that case the Content-Encoding
+     * header is added to the response, and the compressed content has to be sent.
+     *
+     * @param exchange The current exchange.
+     * @param contentLength The length of the uncompressed content.
+     * @return True if the compressed content has to be sent.
+     */
+    public static boolean acceptsPrecompressedContent(HttpServerExchange exchange, int contentLength) {
+
+        HttpDigitalAdapterCompression compression = exchange.getAttachment(COMPRESSION_ATTACHMENT);
+
+        if(compression == null || contentLength < compression.minSize || !acceptsGzip(exchange))
+            return false;
+
+        exchange.getResponseHeaders().put(Headers.CONTENT_ENCODING, GZIP_ENCODING);
+        return true;
+    }
+
+    /**
+     * Checks if the Accept-Encoding header of the request accepts the gzip encoding.
+     *
+     * @param exchange The current exchange.
+     * @return True if gzip (or any encoding) is accepted with a non-zero quality.
+     */
+    private static boolean acceptsGzip(HttpServerExchange exchange) {
+
+        HeaderValues acceptEncodingValues = exchange.getRequestHeaders().get(Headers.ACCEPT_ENCODING);
+
+        if(acceptEncodingValues == null)
+            return false;
+
+        for(String acceptEncodingValue : acceptEncodingValues) {
+            for(String encoding : acceptEncodingValue.split(",")) {
+
+                String[] encodingParts = encoding.split(";");
+                String encodingName = encodingParts[0].trim();
+
+                if(!GZIP_ENCODING.equalsIgnoreCase(encodingName) && !"*".equals(encodingName))
+                    continue;
+
+                boolean accepted = true;
+                for(int i = 1; i < encodingParts.length; i++) {
+                    String parameter = encodingParts[i].trim();
+                    if(parameter.startsWith("q=")) {
+                        try {
+                            accepted = Double.parseDouble(parameter.substring(2)) > 0;
+                        } catch (NumberFormatException e) {
+                            accepted = false;
+                        }
+                    }
+                }
+
+                if(accepted)
+                    return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Compresses a content with gzip.
+     *
+     * @param content The content to compress.
+     * @return The gzip compressed content.
+     */
+    public static byte[] gzip(byte[] content) {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream(Math.max(64, content.length / 4));
+        try (GZIPOutputStream gzipOutputStream = new GZIPOutputStream(outputStream)) {
+            gzipOutputStream.write(content);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return outputStream.toByteArray();
+    }
+}
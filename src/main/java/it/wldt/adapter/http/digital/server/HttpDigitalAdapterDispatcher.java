@@ -0,0 +1,175 @@
+package it.wldt.adapter.http.digital.server;
+
+import io.undertow.server.Connectors;
+import io.undertow.server.HttpHandler;
+import io.undertow.util.SameThreadExecutor;
+import it.wldt.adapter.http.digital.adapter.HttpDigitalAdapterConfiguration;
+import it.wldt.adapter.http.digital.adapter.HttpDigitalAdapterDispatchMode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Applies the configured {@link HttpDigitalAdapterDispatchMode} to the routes of the HTTP Digital Adapter.
+ * Each route handler is wrapped in order to be executed on the IO thread, on the Undertow worker pool,
+ * on a dedicated bounded executor or on virtual threads (when available on the running JDK).
+ * The dispatcher owns the dedicated executors and must be shut down when the adapter stops.
+ *
+ * @author Marco Picone, Ph.D. - picone.m@gmail.com, Marta Spadoni University of Bologna
+ */
+public class HttpDigitalAdapterDispatcher {
+
+    private final static Logger logger = LoggerFactory.getLogger(HttpDigitalAdapterDispatcher.class);
+
+    /**
+     * The adapter configuration providing the dispatch mode of each route
+     */
+    private final HttpDigitalAdapterConfiguration configuration;
+
+    /**
+     * Dedicated bounded executor, lazily created when the first EXECUTOR route is registered
+     */
+    private ExecutorService dedicatedExecutor = null;
+
+    /**
+     * Virtual thread per task executor, lazily created when the first VIRTUAL_THREAD route is registered
+     */
+    private ExecutorService virtualThreadExecutor = null;
+
+    /**
+     * Constructs a dispatcher for the provided adapter configuration.
+     *
+     * @param configuration The HTTP Digital Adapter configuration.
+     */
+    public HttpDigitalAdapterDispatcher(HttpDigitalAdapterConfiguration configuration) {
+        this.configuration = configuration;
+    }
+
+    /**
+     * Wraps the handler of a route according to the configured dispatch mode.
+     *
+     * @param route The path template of the route.
+     * @param handler The handler of the route.
+     * @return The wrapped handler.
+     */
+    public synchronized HttpHandler dispatch(String route, HttpHandler handler) {
+
+        HttpDigitalAdapterDispatchMode dispatchMode = (configuration != null) ? configuration.getDispatchMode(route) : HttpDigitalAdapterDispatchMode.IO_THREAD;
+
+        // Handlers leaving the IO thread can safely use blocking request and response streams
+        final HttpHandler blockingHandler = exchange -> {
+            exchange.startBlocking();
+            handler.handleRequest(exchange);
+        };
+
+        switch (dispatchMode) {
+            case WORKER:
+                return exchange -> {
+                    if(exchange.isInIoThread())
+                        exchange.dispatch(blockingHandler);
+                    else
+                        handler.handleRequest(exchange);
+                };
+            case EXECUTOR:
+                return createExecutorHandler(getDedicatedExecutor(), handler, blockingHandler);
+            case VIRTUAL_THREAD:
+                return createExecutorHandler(getVirtualThreadExecutor(), handler, blockingHandler);
+            case IO_THREAD:
+            default:
+                return handler;
+        }
+    }
+
+    /**
+     * Shuts down the dedicated executors owned by the dispatcher.
+     */
+    public synchronized void shutdown() {
+
+        if(dedicatedExecutor != null)
+            dedicatedExecutor.shutdown();
+
+        if(virtualThreadExecutor != null && virtualThreadExecutor != dedicatedExecutor)
+            virtualThreadExecutor.shutdown();
+
+        dedicatedExecutor = null;
+        virtualThreadExecutor = null;
+    }
+
+    /**
+     * Creates a handler dispatching the exchange to the target executor. If the executor rejects the task
+     * the request is completed with 503 Service Unavailable.
+     *
+     * @param executor The target executor.
+     * @param handler The original handler (used when already outside the IO thread).
+     * @param blockingHandler The handler executed on the target executor.
+     * @return The dispatching handler.
+     */
+    private static HttpHandler createExecutorHandler(Executor executor, HttpHandler handler, HttpHandler blockingHandler) {
+        return exchange -> {
+
+            if(!exchange.isInIoThread()) {
+                handler.handleRequest(exchange);
+                return;
+            }
+
+            exchange.dispatch(SameThreadExecutor.INSTANCE, () -> {
+                try {
+                    executor.execute(() -> Connectors.executeRootHandler(blockingHandler, exchange));
+                } catch (RejectedExecutionException e) {
+                    logger.warn("HTTP Digital Adapter dispatch executor saturated ! Rejecting request: {}", exchange.getRequestPath());
+                    exchange.setStatusCode(503);
+                    exchange.endExchange();
+                }
+            });
+        };
+    }
+
+    /**
+     * Returns the dedicated bounded executor creating it if required.
+     *
+     * @return The dedicated executor.
+     */
+    private ExecutorService getDedicatedExecutor() {
+
+        if(dedicatedExecutor == null) {
+
+            final AtomicInteger threadCounter = new AtomicInteger(0);
+            final int poolSize = configuration.getDispatchExecutorPoolSize();
+
+            dedicatedExecutor = new ThreadPoolExecutor(poolSize, poolSize,
+                    60L, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<>(configuration.getDispatchExecutorQueueSize()),
+                    runnable -> {
+                        Thread thread = new Thread(runnable, String.format("http-da-%s-dispatch-%d", configuration.getId(), threadCounter.incrementAndGet()));
+                        thread.setDaemon(true);
+                        return thread;
+                    },
+                    new ThreadPoolExecutor.AbortPolicy());
+        }
+
+        return dedicatedExecutor;
+    }
+
+    /**
+     * Returns the virtual thread per task executor creating it if required. Virtual threads are looked up through
+     * reflection in order to keep the library compatible with Java 8. If they are not available on the running
+     * JDK the dedicated bounded executor is returned instead.
+     *
+     * @return The virtual thread executor or the dedicated executor as fallback.
+     */
+    private ExecutorService getVirtualThreadExecutor() {
+
+        if(virtualThreadExecutor == null) {
+            try {
+                virtualThreadExecutor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (Exception e) {
+                logger.warn("Virtual Threads not available on the current JDK ! Using the dedicated dispatch executor.");
+                virtualThreadExecutor = getDedicatedExecutor();
+            }
+        }
+
+        return virtualThreadExecutor;
+    }
+}
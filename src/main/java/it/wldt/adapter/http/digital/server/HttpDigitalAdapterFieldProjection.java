@@ -0,0 +1,145 @@
+package it.wldt.adapter.http.digital.server;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import io.undertow.server.HttpServerExchange;
+
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Sparse fieldset applied to the JSON responses of the HTTP Digital Adapter through the {@code fields} query parameter.
+ * The parameter contains a comma separated list of field names, where dotted paths select nested fields
+ * (e.g., {@code fields=key,value} on a property list or {@code fields=properties.key,properties.value} on the DT
+ * State). The projection is applied to the response object or to each element of the response array, and fields
+ * missing in the response are ignored.
+ * The field list is compiled once into a tree of the selected paths, and the compiled projections are cached by their
+ * textual representation, so requests only walk the already serialized JSON tree keeping the selected members.
+ *
+ * @author Marco Picone, Ph.D. - picone.m@gmail.com, Marta Spadoni University of Bologna
+ */
+public class HttpDigitalAdapterFieldProjection {
+
+    /**
+     * The query parameter with the comma separated fields included in the response.
+     */
+    public final static String FIELDS_QUERY_PARAMETER = "fields";
+
+    /**
+     * Maximum number of cached compiled projections
+     */
+    private final static int MAX_CACHED_PROJECTIONS = 256;
+
+    /**
+     * Compiled projections indexed by their field list
+     */
+    private final static Map<String, HttpDigitalAdapterFieldProjection> PROJECTION_CACHE = new ConcurrentHashMap<>();
+
+    /**
+     * Selected fields with the projection of their nested fields (null to keep the whole field)
+     */
+    private final Map<String, HttpDigitalAdapterFieldProjection> fields = new LinkedHashMap<>();
+
+    private HttpDigitalAdapterFieldProjection() {
+    }
+
+    /**
+     * Compiles a projection from a comma separated list of (dotted) field paths.
+     *
+     * @param fieldList The comma separated list of fields.
+     * @return The compiled projection or null if the list does not contain any field.
+     */
+    public static HttpDigitalAdapterFieldProjection compile(String fieldList) {
+
+        HttpDigitalAdapterFieldProjection projection = new HttpDigitalAdapterFieldProjection();
+
+        for(String fieldPath : fieldList.split(",")) {
+
+            if(fieldPath.trim().isEmpty())
+                continue;
+
+            HttpDigitalAdapterFieldProjection current = projection;
+            String[] pathElements = fieldPath.trim().split("\\.");
+
+            for(int i = 0; i < pathElements.length; i++) {
+
+                boolean leaf = (i == pathElements.length - 1);
+
+                // A field selected as a whole includes all its nested fields
+                if(current.fields.containsKey(pathElements[i]) && current.fields.get(pathElements[i]) == null)
+                    break;
+
+                if(leaf) {
+                    current.fields.put(pathElements[i], null);
+                }
+                else {
+                    current = current.fields.computeIfAbsent(pathElements[i], key -> new HttpDigitalAdapterFieldProjection());
+                }
+            }
+        }
+
+        return projection.fields.isEmpty() ? null : projection;
+    }
+
+    /**
+     * Retrieves the compiled projection requested through the fields query parameter of the exchange.
+     *
+     * @param exchange The current exchange.
+     * @return The compiled projection or null if no projection has been requested.
+     */
+    public static HttpDigitalAdapterFieldProjection fromRequest(HttpServerExchange exchange) {
+
+        Deque<String> parameterValues = exchange.getQueryParameters().get(FIELDS_QUERY_PARAMETER);
+
+        if(parameterValues == null || parameterValues.isEmpty())
+            return null;
+
+        String fieldList = (parameterValues.size() == 1) ? parameterValues.getFirst() : String.join(",", parameterValues);
+
+        HttpDigitalAdapterFieldProjection projection = PROJECTION_CACHE.get(fieldList);
+
+        if(projection == null) {
+            projection = compile(fieldList);
+            if(projection != null && PROJECTION_CACHE.size() < MAX_CACHED_PROJECTIONS)
+                PROJECTION_CACHE.putIfAbsent(fieldList, projection);
+        }
+
+        return projection;
+    }
+
+    /**
+     * Applies the projection to a JSON element without modifying it.
+     *
+     * @param element The JSON element (an object or an array of objects).
+     * @return The projected element.
+     */
+    public JsonElement apply(JsonElement element) {
+
+        if(element == null)
+            return null;
+
+        if(element.isJsonArray()) {
+            JsonArray projectedArray = new JsonArray(element.getAsJsonArray().size());
+            for(JsonElement item : element.getAsJsonArray())
+                projectedArray.add(apply(item));
+            return projectedArray;
+        }
+
+        if(!element.isJsonObject())
+            return element;
+
+        JsonObject sourceObj = element.getAsJsonObject();
+        JsonObject projectedObj = new JsonObject();
+
+        for(Map.Entry<String, HttpDigitalAdapterFieldProjection> field : fields.entrySet()) {
+            JsonElement fieldValue = sourceObj.get(field.getKey());
+            if(fieldValue != null)
+                projectedObj.add(field.getKey(), (field.getValue() != null) ? field.getValue().apply(fieldValue) : fieldValue);
+        }
+
+        return projectedObj;
+    }
+}
@@ -0,0 +1,251 @@
+package it.wldt.adapter.http.digital.server;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import io.undertow.server.HttpHandler;
+import io.undertow.server.HttpServerExchange;
+import io.undertow.server.RoutingHandler;
+import io.undertow.server.handlers.error.SimpleErrorPageHandler;
+import io.undertow.util.HeaderValues;
+import io.undertow.util.Headers;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.function.DoublePredicate;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Fleet level endpoints of the shared HTTP server, answering the queries spanning all the registered Digital Twins
+ * with a single request. Each request scans the current DT State snapshot of every registered Digital Twin through
+ * its property index, in parallel (fork/join) when the number of Digital Twins is large, and returns the combined
+ * result, also streamed as NDJSON when requested through the Accept header.
+ * The available endpoints are:
+ * <ul>
+ *     <li>{@code GET /fleet/properties/{key}}: the current value of the property for each Digital Twin, optionally
+ *     restricted to the Digital Twins whose numeric value satisfies the {@code gt}, {@code gte}, {@code lt},
+ *     {@code lte} and {@code eq} parameters;</li>
+ *     <li>{@code GET /fleet/properties/{key}/stats}: the number of matching Digital Twins and the minimum, maximum
+ *     and average numeric value of the property, with the same filters.</li>
+ * </ul>
+ *
+ * @author Marco Picone, Ph.D. - picone.m@gmail.com, Marta Spadoni University of Bologna
+ */
+public class HttpDigitalAdapterFleet {
+
+    /**
+     * Minimum number of Digital Twins scanned in parallel
+     */
+    private final static int PARALLEL_SCAN_THRESHOLD = 64;
+
+    /**
+     * Supported numeric filters on the property values
+     */
+    private final static String[] FILTER_QUERY_PARAMETERS = {"gt", "gte", "lt", "lte", "eq"};
+
+    /**
+     * Snapshot suppliers of the registered Digital Twins indexed by Digital Twin Id
+     */
+    private final Map<String, Supplier<HttpDigitalAdapterStateSnapshot>> snapshotSuppliers;
+
+    /**
+     * Constructs the fleet endpoints on a registry of Digital Twins.
+     *
+     * @param snapshotSuppliers The snapshot suppliers of the registered Digital Twins (concurrently updated).
+     */
+    public HttpDigitalAdapterFleet(Map<String, Supplier<HttpDigitalAdapterStateSnapshot>> snapshotSuppliers) {
+        this.snapshotSuppliers = snapshotSuppliers;
+    }
+
+    /**
+     * Creates the handler of the fleet endpoints.
+     *
+     * @return The fleet handler.
+     */
+    public HttpHandler createHandler() {
+        return new RoutingHandler()
+                .get("/fleet/properties/{key}", exchange -> handleFleetRequest(exchange, this::sendPropertyValues))
+                .get("/fleet/properties/{key}/stats", exchange -> handleFleetRequest(exchange, this::sendPropertyStats))
+                .setFallbackHandler(new SimpleErrorPageHandler());
+    }
+
+    /**
+     * Moves the scan off the IO thread, reads the property key and the filters, and sends the matching properties.
+     *
+     * @param exchange The current exchange.
+     * @param responder The function sending the response from the matching properties.
+     * @throws Exception If the response cannot be sent.
+     */
+    private void handleFleetRequest(HttpServerExchange exchange, FleetResponder responder) throws Exception {
+
+        // The scan of the whole fleet is executed on the worker threads
+        if(exchange.isInIoThread()) {
+            exchange.dispatch(() -> {
+                try {
+                    handleFleetRequest(exchange, responder);
+                } catch (Exception e) {
+                    exchange.setStatusCode(500);
+                    exchange.endExchange();
+                }
+            });
+            return;
+        }
+
+        String propertyKey = exchange.getQueryParameters().get("key").getFirst();
+        DoublePredicate valueFilter;
+
+        try {
+            valueFilter = readValueFilter(exchange);
+        } catch (NumberFormatException e) {
+            exchange.setStatusCode(400);
+            exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, "application/json");
+            exchange.getResponseSender().send("{\"error\": \"Invalid filter parameter !\"}");
+            return;
+        }
+
+        responder.send(exchange, propertyKey, scanProperty(propertyKey, valueFilter));
+    }
+
+    /**
+     * Scans the current snapshot of all the registered Digital Twins collecting the ones exposing the property with
+     * a value matching the filter, sorted by Digital Twin Id.
+     *
+     * @param propertyKey The property key.
+     * @param valueFilter The filter on the numeric value (null to keep all the values).
+     * @return The matching Digital Twins with the version of their snapshot and the serialized property.
+     */
+    List<JsonObject> scanProperty(String propertyKey, DoublePredicate valueFilter) {
+
+        Stream<Map.Entry<String, Supplier<HttpDigitalAdapterStateSnapshot>>> registryStream = (snapshotSuppliers.size() >= PARALLEL_SCAN_THRESHOLD) ?
+                snapshotSuppliers.entrySet().parallelStream() : snapshotSuppliers.entrySet().stream();
+
+        return registryStream
+                .map(registryEntry -> {
+
+                    HttpDigitalAdapterStateSnapshot snapshot = registryEntry.getValue().get();
+                    JsonObject propertyObj = (snapshot != null) ? snapshot.getPropertyJson(propertyKey) : null;
+
+                    if(propertyObj == null || (valueFilter != null && !matches(propertyObj.get("value"), valueFilter)))
+                        return null;
+
+                    JsonObject itemObj = new JsonObject();
+                    itemObj.addProperty("digitalTwinId", registryEntry.getKey());
+                    itemObj.addProperty("version", snapshot.getVersion());
+                    itemObj.add("property", propertyObj);
+                    return itemObj;
+                })
+                .filter(itemObj -> itemObj != null)
+                .sorted(Comparator.comparing(itemObj -> itemObj.get("digitalTwinId").getAsString()))
+                .collect(Collectors.toList());
+    }
+
+    private void sendPropertyValues(HttpServerExchange exchange, String propertyKey, List<JsonObject> items) {
+
+        final Gson gson = HttpDigitalAdapterHandlersFactory.getDefaultGson();
+        final HttpDigitalAdapterFieldProjection fieldProjection = HttpDigitalAdapterFieldProjection.fromRequest(exchange);
+
+        List<JsonElement> responseItems = new ArrayList<>(items.size());
+        for(JsonObject itemObj : items)
+            responseItems.add((fieldProjection != null) ? fieldProjection.apply(itemObj) : itemObj);
+
+        if(acceptsNdjson(exchange)) {
+            exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, HttpDigitalAdapterNdjsonSender.NDJSON_CONTENT_TYPE);
+            HttpDigitalAdapterNdjsonSender.send(exchange, responseItems, gson);
+            return;
+        }
+
+        exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, "application/json");
+        exchange.getResponseSender().send(gson.toJson(responseItems));
+    }
+
+    private void sendPropertyStats(HttpServerExchange exchange, String propertyKey, List<JsonObject> items) {
+
+        long count = 0;
+        double min = Double.POSITIVE_INFINITY;
+        double max = Double.NEGATIVE_INFINITY;
+        double sum = 0;
+
+        for(JsonObject itemObj : items) {
+            JsonElement value = itemObj.getAsJsonObject("property").get("value");
+            if(isNumber(value)) {
+                double numericValue = value.getAsDouble();
+                min = Math.min(min, numericValue);
+                max = Math.max(max, numericValue);
+                sum += numericValue;
+                count++;
+            }
+        }
+
+        JsonObject statsObj = new JsonObject();
+        statsObj.addProperty("key", propertyKey);
+        statsObj.addProperty("twins", items.size());
+        statsObj.addProperty("count", count);
+        if(count > 0) {
+            statsObj.addProperty("min", min);
+            statsObj.addProperty("max", max);
+            statsObj.addProperty("avg", sum / count);
+        }
+
+        exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, "application/json");
+        exchange.getResponseSender().send(HttpDigitalAdapterHandlersFactory.getDefaultGson().toJson(statsObj));
+    }
+
+    /**
+     * Builds the filter on the numeric property values from the query parameters of the request.
+     *
+     * @param exchange The current exchange.
+     * @return The filter or null if no filter has been requested.
+     * @throws NumberFormatException If a filter value is not a number.
+     */
+    private static DoublePredicate readValueFilter(HttpServerExchange exchange) {
+
+        DoublePredicate valueFilter = null;
+
+        for(String filterParameter : FILTER_QUERY_PARAMETERS) {
+
+            Deque<String> parameterValues = exchange.getQueryParameters().get(filterParameter);
+            if(parameterValues == null || parameterValues.isEmpty())
+                continue;
+
+            final double threshold = Double.parseDouble(parameterValues.getFirst());
+            DoublePredicate condition;
+
+            switch (filterParameter) {
+                case "gt": condition = value -> value > threshold; break;
+                case "gte": condition = value -> value >= threshold; break;
+                case "lt": condition = value -> value < threshold; break;
+                case "lte": condition = value -> value <= threshold; break;
+                default: condition = value -> value == threshold; break;
+            }
+
+            valueFilter = (valueFilter != null) ? valueFilter.and(condition) : condition;
+        }
+
+        return valueFilter;
+    }
+
+    private static boolean matches(JsonElement value, DoublePredicate valueFilter) {
+        return isNumber(value) && valueFilter.test(value.getAsDouble());
+    }
+
+    private static boolean isNumber(JsonElement value) {
+        return value != null && value.isJsonPrimitive() && value.getAsJsonPrimitive().isNumber();
+    }
+
+    private static boolean acceptsNdjson(HttpServerExchange exchange) {
+        HeaderValues acceptValues = exchange.getRequestHeaders().get(Headers.ACCEPT);
+        return acceptValues != null && acceptValues.stream().anyMatch(accept -> accept.contains(HttpDigitalAdapterNdjsonSender.NDJSON_CONTENT_TYPE));
+    }
+
+    /**
+     * Sends the response of a fleet endpoint from the matching properties.
+     */
+    private interface FleetResponder {
+        void send(HttpServerExchange exchange, String propertyKey, List<JsonObject> items);
+    }
+}
@@ -1,21 +1,39 @@
 package it.wldt.adapter.http.digital.server;
 
 import com.google.gson.*;
+import io.undertow.connector.PooledByteBuffer;
+import io.undertow.server.Connectors;
 import io.undertow.server.HttpHandler;
+import io.undertow.server.HttpServerExchange;
+import io.undertow.server.RequestTooBigException;
 import io.undertow.server.RoutingHandler;
+import io.undertow.server.ServerConnection;
 import io.undertow.server.handlers.error.SimpleErrorPageHandler;
+import io.undertow.server.protocol.http.HttpServerConnection;
+import io.undertow.util.AttachmentKey;
+import io.undertow.util.ETagUtils;
+import io.undertow.util.HeaderValues;
 import io.undertow.util.Headers;
+import io.undertow.util.HttpString;
 import io.undertow.util.Methods;
+import io.undertow.util.SameThreadExecutor;
+import it.wldt.adapter.http.digital.adapter.HttpDigitalAdapterConfiguration;
 import it.wldt.core.engine.DigitalTwin;
 import it.wldt.core.state.*;
 import it.wldt.storage.model.StorageStats;
 import it.wldt.storage.query.QueryRequest;
-import it.wldt.storage.query.QueryRequestType;
-import it.wldt.storage.query.QueryResourceType;
 import it.wldt.storage.query.QueryResult;
-import java.time.ZoneId;
-import java.time.format.DateTimeFormatter;
+import org.xnio.IoUtils;
+import org.xnio.XnioExecutor;
+import org.xnio.conduits.ConduitStreamSourceChannel;
+import org.xnio.conduits.StreamSourceConduit;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.BiConsumer;
 import java.util.function.BiFunction;
 import java.util.function.Function;
 import java.util.function.Supplier;
@@ -35,75 +53,228 @@ public class HttpDigitalAdapterHandlersFactory {
     private final static String JSON_CONTENT_TYPE = "application/json";
 
     /**
-     * The query body field for the resource type.
+     * The response header reporting the version of the DT State snapshot used to build the response.
      */
-    private final static String QUERY_BODY_RESOURCE_TYPE_FIELD = "resourceType";
+    public final static HttpString STATE_VERSION_HEADER = new HttpString("X-DT-State-Version");
 
     /**
-     * The query body field for the query type.
+     * The response header reporting the sequence of the last returned event notification (cursor for the next read).
      */
-    private final static String QUERY_BODY_QUERY_TYPE_FIELD = "queryType";
+    public final static HttpString NOTIFICATION_SEQUENCE_HEADER = new HttpString("X-Notification-Sequence");
 
-    private final static String QUERY_BODY_START_MS_FIELD = "startMs";
+    /**
+     * The response header reporting the total number of results of a streamed storage query.
+     */
+    public final static HttpString QUERY_TOTAL_RESULTS_HEADER = new HttpString("X-Query-Total-Results");
 
-    private final static String QUERY_BODY_END_MS_FIELD = "startMs";
+    /**
+     * The response header with the continuation cursor of the next page of a paginated storage query.
+     */
+    public final static HttpString QUERY_NEXT_CURSOR_HEADER = new HttpString("X-Query-Next-Cursor");
 
-    private final static String QUERY_BODY_START_INDEX_FIELD = "startIndex";
+    /**
+     * The query parameter with the sequence of the last event notification known by the client.
+     */
+    private final static String SINCE_QUERY_PARAMETER = "since";
 
-    private final static String QUERY_BODY_END_INDEX_FIELD = "endIndex";
+    /**
+     * The query parameter with the maximum number of returned items.
+     */
+    private final static String LIMIT_QUERY_PARAMETER = "limit";
+
+    /**
+     * The query parameter with the comma separated keys of the requested properties.
+     */
+    private final static String KEYS_QUERY_PARAMETER = "keys";
+
+    /**
+     * Connection attachment with the asynchronous operations to cancel when the client disconnects.
+     */
+    private final static AttachmentKey<Set<CompletableFuture<?>>> PENDING_OPERATIONS_ATTACHMENT = AttachmentKey.create(Set.class);
+
+    /**
+     * Shared Gson instance with the default configuration (Gson instances are thread-safe), extended with the
+     * serializers of the JDK types that cannot be serialized through reflection (e.g., on JDK 17+).
+     */
+    private final static Gson DEFAULT_GSON = new GsonBuilder()
+            .registerTypeAdapter(Instant.class, getInstantSerializer())
+            .registerTypeHierarchyAdapter(Optional.class, getOptionalSerializer())
+            .create();
+
+    /**
+     * Shared Gson instance configured with the custom serializer for relationship instances.
+     */
+    private final static Gson GSON = new GsonBuilder().registerTypeAdapter(Map.class, getRelationshipInstancesSerializer()).create();
 
     /**
      * Creates a default routing handler for the HTTP Digital Adapter based on the provided request listener.
+     * All the routes are executed directly on the IO threads.
      *
      * @param httpDigitalAdapterRequestListener The request listener implementing the HTTP Digital Adapter contract.
      * @return The default routing handler.
      */
     public static HttpHandler createDefaultRoutingHandler(HttpDigitalAdapterRequestListener httpDigitalAdapterRequestListener){
-        return new RoutingHandler()
-                .add(Methods.GET, "/instance", createGetDigitalTwinInstanceHandler(httpDigitalAdapterRequestListener::onInstanceRequest))
-                .add(Methods.GET, "/state", createGetDigitalTwinStateHandler(httpDigitalAdapterRequestListener::onStateGet))
-                .add(Methods.GET, "/state/previous", createGetDigitalTwinStateHandler(httpDigitalAdapterRequestListener::onPreviousStateGet))
-                .add(Methods.GET, "/state/changes", createGetDigitalTwinStateChangeListHandler(httpDigitalAdapterRequestListener::onStateChangesListGet))
-                .add(Methods.GET,"/state/properties", createGetComponentsListHandler(httpDigitalAdapterRequestListener::onPropertiesGet))
-                .add(Methods.GET, "/state/properties/{key}", createGetComponentHandler(httpDigitalAdapterRequestListener::onPropertyGet))
-                .add(Methods.GET, "/state/properties/{key}/value", createReadPropertyValueHandler(httpDigitalAdapterRequestListener::onReadProperty))
-                .add(Methods.GET,"/state/actions", createGetComponentsListHandler(httpDigitalAdapterRequestListener::onActionsGet))
-                .add(Methods.GET, "/state/actions/{key}", createGetComponentHandler(httpDigitalAdapterRequestListener::onActionGet))
-                .add(Methods.POST, "/state/actions/{key}", createInvokeActionHandler(httpDigitalAdapterRequestListener::onActionRequest))
-                .add(Methods.GET,"/state/events", createGetComponentsListHandler(httpDigitalAdapterRequestListener::onEventsGet))
-                .add(Methods.GET, "/state/events/{key}", createGetComponentHandler(httpDigitalAdapterRequestListener::onEventGet))
-                .add(Methods.GET,"/state/events/notifications", createGetComponentsListHandler(httpDigitalAdapterRequestListener::onEventNotificationGet))
-                .add(Methods.GET, "/state/relationships", createGetComponentsListHandler(httpDigitalAdapterRequestListener::onRelationshipsGet))
-                .add(Methods.GET, "/state/relationships/{key}", createGetComponentHandler(httpDigitalAdapterRequestListener::onRelationshipGet))
-                .add(Methods.GET, "/state/relationships/{key}/instances", createGetComponentHandler(httpDigitalAdapterRequestListener::onRelationshipInstancesGet))
-                .add(Methods.GET, "/storage", createGetStorageInfoHandler(httpDigitalAdapterRequestListener::onStorageInfoRequest))
-                .add(Methods.POST, "/storage/query", createInvokeQueryHandler(httpDigitalAdapterRequestListener::onQueryRequest))
-                .setFallbackHandler(new SimpleErrorPageHandler());
-    }
-
-    /**
-     * Creates an HTTP handler for invoking a specific action on the digital twin.
+        return createDefaultRoutingHandler(httpDigitalAdapterRequestListener, new HttpDigitalAdapterDispatcher(null));
+    }
+
+    /**
+     * Creates a default routing handler for the HTTP Digital Adapter based on the provided request listener.
+     * Each route is wrapped by the dispatcher according to its configured dispatch mode.
+     *
+     * @param httpDigitalAdapterRequestListener The request listener implementing the HTTP Digital Adapter contract.
+     * @param dispatcher The dispatcher applying the configured dispatch mode to each route.
+     * @return The default routing handler.
+     */
+    public static HttpHandler createDefaultRoutingHandler(HttpDigitalAdapterRequestListener httpDigitalAdapterRequestListener, HttpDigitalAdapterDispatcher dispatcher){
+        return createDefaultRoutingHandler(httpDigitalAdapterRequestListener, null, dispatcher, null);
+    }
+
+    /**
+     * Creates a default routing handler for the HTTP Digital Adapter based on the provided request listener.
+     * Each route is wrapped by the dispatcher according to its configured dispatch mode and, if a metrics registry
+     * is provided, instrumented in order to record its metrics, exposed through the /metrics endpoint.
      *
+     * @param httpDigitalAdapterRequestListener The request listener implementing the HTTP Digital Adapter contract.
+     * @param configuration The adapter configuration or null to use the default settings.
+     * @param dispatcher The dispatcher applying the configured dispatch mode to each route.
+     * @param metrics The metrics registry or null to disable the instrumentation of the routes.
+     * @return The default routing handler.
+     */
+    public static HttpHandler createDefaultRoutingHandler(HttpDigitalAdapterRequestListener httpDigitalAdapterRequestListener,
+                                                          HttpDigitalAdapterConfiguration configuration,
+                                                          HttpDigitalAdapterDispatcher dispatcher,
+                                                          HttpDigitalAdapterMetrics metrics){
+
+        final long storageRequestTimeoutMs = (configuration != null) ? configuration.getStorageRequestTimeoutMs() : HttpDigitalAdapterConfiguration.DEFAULT_STORAGE_REQUEST_TIMEOUT_MS;
+        final int queryBatchMaxSize = (configuration != null) ? configuration.getQueryBatchMaxSize() : HttpDigitalAdapterConfiguration.DEFAULT_QUERY_BATCH_MAX_SIZE;
+        final int queryAggregationMaxBuckets = (configuration != null) ? configuration.getQueryAggregationMaxBuckets() : HttpDigitalAdapterConfiguration.DEFAULT_QUERY_AGGREGATION_MAX_BUCKETS;
+
+        // Concurrent equivalent storage queries share a single execution and serialization
+        final HttpDigitalAdapterQueryCoalescer queryCoalescer = new HttpDigitalAdapterQueryCoalescer(DEFAULT_GSON);
+
+        RoutingHandler routingHandler = new RoutingHandler();
+
+        addRoute(routingHandler, dispatcher, metrics, Methods.GET, "/instance", createGetDigitalTwinInstanceHandler(httpDigitalAdapterRequestListener::onInstanceRequest));
+        addRoute(routingHandler, dispatcher, metrics, Methods.GET, "/state", createGetStateSnapshotHandler(httpDigitalAdapterRequestListener::onStateSnapshotGet, HttpDigitalAdapterStateSnapshot::getStateJson, HttpDigitalAdapterStateSnapshot::getStateTree));
+        addRoute(routingHandler, dispatcher, metrics, Methods.GET, "/state/previous", createGetStateSnapshotHandler(httpDigitalAdapterRequestListener::onStateSnapshotGet, HttpDigitalAdapterStateSnapshot::getPreviousStateJson, HttpDigitalAdapterStateSnapshot::getPreviousStateTree));
+
+        // Long-polling requests are parked on the IO threads, the regular ones follow the configured dispatch mode
+        addChannelRoute(routingHandler, metrics, Methods.GET, "/state/changes", httpDigitalAdapterRequestListener.onStateChangesLongPollGet().createHandler(
+                dispatcher.dispatch("/state/changes", createStateConditionalHandler(httpDigitalAdapterRequestListener::onStateSnapshotGet, createGetDigitalTwinStateChangeListHandler(httpDigitalAdapterRequestListener::onStateChangesListGet)))));
+
+        // SSE and WebSocket channels keep the connection open through non-blocking writes and always stay on the IO threads
+        addChannelRoute(routingHandler, metrics, Methods.GET, "/state/stream", httpDigitalAdapterRequestListener.onStateStreamGet().getHandler());
+        addChannelRoute(routingHandler, metrics, Methods.GET, "/state/ws", httpDigitalAdapterRequestListener.onWebSocketEndpointGet().getHandler());
+
+        addRoute(routingHandler, dispatcher, metrics, Methods.GET, "/state/properties", createGetPropertiesHandler(httpDigitalAdapterRequestListener::onStateSnapshotGet));
+        addRoute(routingHandler, dispatcher, metrics, Methods.GET, "/state/properties/{key}", createStateConditionalHandler(httpDigitalAdapterRequestListener::onStateSnapshotGet, createGetComponentHandler(httpDigitalAdapterRequestListener::onPropertyGet)));
+        addRoute(routingHandler, dispatcher, metrics, Methods.GET, "/state/properties/{key}/value", createStateConditionalHandler(httpDigitalAdapterRequestListener::onStateSnapshotGet, createReadPropertyValueHandler(httpDigitalAdapterRequestListener::onReadProperty)));
+        addRoute(routingHandler, dispatcher, metrics, Methods.GET, "/state/actions", createStateConditionalHandler(httpDigitalAdapterRequestListener::onStateSnapshotGet, createGetComponentsListHandler(httpDigitalAdapterRequestListener::onActionsGet)));
+        addRoute(routingHandler, dispatcher, metrics, Methods.GET, "/state/actions/{key}", createStateConditionalHandler(httpDigitalAdapterRequestListener::onStateSnapshotGet, createGetComponentHandler(httpDigitalAdapterRequestListener::onActionGet)));
+        addRoute(routingHandler, dispatcher, metrics, Methods.POST, "/state/actions/{key}", createInvokeActionHandler(httpDigitalAdapterRequestListener.onActionRequestsGet(), httpDigitalAdapterRequestListener::onActionRequest));
+
+        // Requests waiting for the completion of an action are parked on the IO threads as the long-polling ones
+        addChannelRoute(routingHandler, metrics, Methods.GET, HttpDigitalAdapterActionRequests.ACTION_REQUESTS_PATH + "{requestId}", httpDigitalAdapterRequestListener.onActionRequestsGet().createHandler());
+        addRoute(routingHandler, dispatcher, metrics, Methods.GET, "/state/events", createStateConditionalHandler(httpDigitalAdapterRequestListener::onStateSnapshotGet, createGetComponentsListHandler(httpDigitalAdapterRequestListener::onEventsGet)));
+        addRoute(routingHandler, dispatcher, metrics, Methods.GET, "/state/events/{key}", createStateConditionalHandler(httpDigitalAdapterRequestListener::onStateSnapshotGet, createGetComponentHandler(httpDigitalAdapterRequestListener::onEventGet)));
+        addRoute(routingHandler, dispatcher, metrics, Methods.GET, "/state/events/notifications", createGetEventNotificationsHandler(httpDigitalAdapterRequestListener::onEventNotificationGet, httpDigitalAdapterRequestListener::onEventNotificationGet));
+        addRoute(routingHandler, dispatcher, metrics, Methods.GET, "/state/relationships", createStateConditionalHandler(httpDigitalAdapterRequestListener::onStateSnapshotGet, createGetComponentsListHandler(httpDigitalAdapterRequestListener::onRelationshipsGet)));
+        addRoute(routingHandler, dispatcher, metrics, Methods.GET, "/state/relationships/{key}", createStateConditionalHandler(httpDigitalAdapterRequestListener::onStateSnapshotGet, createGetComponentHandler(httpDigitalAdapterRequestListener::onRelationshipGet)));
+        addRoute(routingHandler, dispatcher, metrics, Methods.GET, "/state/relationships/{key}/instances", createStateConditionalHandler(httpDigitalAdapterRequestListener::onStateSnapshotGet, createGetComponentHandler(httpDigitalAdapterRequestListener::onRelationshipInstancesGet)));
+        addRoute(routingHandler, dispatcher, metrics, Methods.GET, "/storage", createGetStorageInfoHandler(httpDigitalAdapterRequestListener::onAsyncStorageInfoRequest, storageRequestTimeoutMs));
+        addRoute(routingHandler, dispatcher, metrics, Methods.POST, "/storage/query", createInvokeQueryHandler(queryCoalescer, httpDigitalAdapterRequestListener::onAsyncQueryRequest, storageRequestTimeoutMs, queryAggregationMaxBuckets));
+        addRoute(routingHandler, dispatcher, metrics, Methods.POST, "/storage/query/batch", createInvokeQueryBatchHandler(queryCoalescer, httpDigitalAdapterRequestListener::onAsyncQueryRequest, storageRequestTimeoutMs, queryBatchMaxSize, queryAggregationMaxBuckets));
+
+        if(metrics != null) {
+            metrics.registerCounter("storage_queries_executed_total", "Total number of Storage Queries executed by the Storage Manager.", queryCoalescer::getExecutionCount);
+            metrics.registerCounter("storage_queries_coalesced_total", "Total number of Storage Queries served by joining an identical query in flight.", queryCoalescer::getCoalescedCount);
+            routingHandler.add(Methods.GET, "/metrics", metrics.createHandler());
+        }
+
+        routingHandler.setFallbackHandler(new SimpleErrorPageHandler());
+
+        // Negotiate the compression of the responses with the clients if enabled
+        if(configuration != null && configuration.isResponseCompressionEnabled())
+            return new HttpDigitalAdapterCompression(configuration.getResponseCompressionMinSize()).createHandler(routingHandler);
+
+        return routingHandler;
+    }
+
+    /**
+     * Registers a route on the routing handler applying the dispatch mode configured for its path template.
+     *
+     * @param routingHandler The target routing handler.
+     * @param dispatcher The dispatcher applying the configured dispatch mode.
+     * @param metrics The metrics registry (null if the metrics are disabled).
+     * @param method The HTTP method of the route.
+     * @param template The path template of the route.
+     * @param handler The handler of the route.
+     */
+    private static void addRoute(RoutingHandler routingHandler, HttpDigitalAdapterDispatcher dispatcher, HttpDigitalAdapterMetrics metrics, HttpString method, String template, HttpHandler handler){
+        addChannelRoute(routingHandler, metrics, method, template, dispatcher.dispatch(template, handler));
+    }
+
+    /**
+     * Registers a route on the routing handler without applying any dispatch mode (e.g., streaming channels that
+     * always stay on the IO threads).
+     *
+     * @param routingHandler The target routing handler.
+     * @param metrics The metrics registry (null if the metrics are disabled).
+     * @param method The HTTP method of the route.
+     * @param template The path template of the route.
+     * @param handler The handler of the route.
+     */
+    private static void addChannelRoute(RoutingHandler routingHandler, HttpDigitalAdapterMetrics metrics, HttpString method, String template, HttpHandler handler){
+        routingHandler.add(method, template, (metrics != null) ? metrics.instrument(method, template, handler) : handler);
+    }
+
+    /**
+     * Creates an HTTP handler for invoking a specific action on the digital twin. Each invocation accepted by the DT is
+     * tracked in the action request table and answered with 202 Accepted, the current status of the action request
+     * and its location (/state/actions/requests/{requestId}).
+     *
+     * @param actionRequests The table tracking the status of the action requests.
      * @param actionFunction The function to handle the action invocation.
      * @return The action invocation handler.
      */
-    private static HttpHandler createInvokeActionHandler(BiFunction<String, String, Integer> actionFunction) {
+    private static HttpHandler createInvokeActionHandler(HttpDigitalAdapterActionRequests actionRequests,
+                                                         BiFunction<String, String, Integer> actionFunction) {
         return exchange -> {
             String pathKey = exchange.getQueryParameters().get("key").getFirst();
             exchange.getRequestReceiver().receiveFullBytes((e, requestBody) -> {
+
+                HttpDigitalAdapterActionRequests.ActionRequest actionRequest = actionRequests.invoke(pathKey, new String(requestBody), actionFunction);
+
                 exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, JSON_CONTENT_TYPE);
-                exchange.setStatusCode(actionFunction.apply(pathKey, new String(requestBody)));
-//                exchange.endExchange();
-            });
+
+                if(actionRequest == null) {
+                    exchange.setStatusCode(400);
+                    exchange.getResponseSender().send("{\"error\": \"Invalid Action Request !\"}");
+                    return;
+                }
+
+                exchange.setStatusCode(202);
+
+                // The resolved path keeps the Digital Twin prefix of the shared server
+                exchange.getResponseHeaders().put(Headers.LOCATION, exchange.getResolvedPath() + HttpDigitalAdapterActionRequests.ACTION_REQUESTS_PATH + actionRequest.getId());
+                exchange.getResponseSender().send(DEFAULT_GSON.toJson(actionRequests.toJson(actionRequest)));
+
+            }, HttpDigitalAdapterHandlersFactory::sendRequestBodyError);
         };
     }
 
     /**
-     * Creates an HTTP handler for invoking a Storage Query.
+     * Creates an HTTP handler for invoking a Storage Query. The query is executed asynchronously and the exchange
+     * is resumed when the result is available, without holding any thread while the storage is working.
+     * Concurrent requests for the same query are coalesced into a single execution through the query coalescer.
      *
-     * @return The action invocation handler.
+     * @param queryCoalescer The coalescer deduplicating the concurrent executions of the same query.
+     * @param queryExecutionFunction The function starting the asynchronous execution of a query.
+     * @param timeoutMs The maximum time to wait for the query result before answering with 504 (0 to wait indefinitely).
+     * @param aggregationMaxBuckets The maximum number of buckets of each downsampled series.
+     * @return The query invocation handler.
      */
-    private static HttpHandler createInvokeQueryHandler(Function<QueryRequest, QueryResult<?>> queryExecutionFunction) {
+    private static HttpHandler createInvokeQueryHandler(HttpDigitalAdapterQueryCoalescer queryCoalescer, Function<QueryRequest, CompletableFuture<QueryResult<?>>> queryExecutionFunction, long timeoutMs, int aggregationMaxBuckets) {
         return exchange -> {
 
             exchange.getRequestReceiver().receiveFullBytes((e, requestBody) -> {
@@ -111,69 +282,414 @@ public class HttpDigitalAdapterHandlersFactory {
                 try{
                     JsonObject requestJson = JsonParser.parseString(new String(requestBody)).getAsJsonObject();
 
-                    if(requestJson != null && requestJson.has(QUERY_BODY_RESOURCE_TYPE_FIELD) && requestJson.has(QUERY_BODY_QUERY_TYPE_FIELD)) {
+                    final HttpDigitalAdapterStorageQuery storageQuery;
+                    try {
+                        storageQuery = HttpDigitalAdapterStorageQuery.fromJson(requestJson, aggregationMaxBuckets);
+                    } catch (IllegalArgumentException invalidQueryException) {
+                        exchange.setStatusCode(400);
+                        exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, JSON_CONTENT_TYPE);
+                        exchange.getResponseSender().send(toErrorJson(invalidQueryException.getMessage()));
+                        return;
+                    }
+
+                    // Execute the Query Request and resume the exchange with its result
+                    resumeOnCompletion(exchange, storageQuery.execute(queryCoalescer, queryExecutionFunction), timeoutMs,
+                            (resumedExchange, sharedQueryResult) -> sendStorageQueryResult(resumedExchange, sharedQueryResult, storageQuery));
+
+                }catch (Exception exception){
+                    sendQueryException(exchange, exception);
+                }
+            }, HttpDigitalAdapterHandlersFactory::sendRequestBodyError);
+        };
+    }
+
+    /**
+     * Creates an HTTP handler executing a batch of Storage Queries, received as a JSON array of query bodies.
+     * All the queries of the batch are started at the same time, without holding any thread while the storage is
+     * working, and the exchange is resumed once all of them completed in order to send the combined response: a JSON
+     * array with, for each query in the same order of the request, the status code and the response of the query.
+     *
+     * @param queryCoalescer The coalescer deduplicating the concurrent executions of the same query.
+     * @param queryExecutionFunction The function starting the asynchronous execution of a query.
+     * @param timeoutMs The maximum time to wait for the whole batch before answering with 504 (0 to wait indefinitely).
+     * @param maxBatchSize The maximum number of queries of a batch.
+     * @return The batch query invocation handler.
+     */
+    private static HttpHandler createInvokeQueryBatchHandler(HttpDigitalAdapterQueryCoalescer queryCoalescer, Function<QueryRequest, CompletableFuture<QueryResult<?>>> queryExecutionFunction, long timeoutMs, int maxBatchSize, int aggregationMaxBuckets) {
+        return exchange -> {
 
-                            // Create a new Query Request
-                            QueryRequest queryRequest = new QueryRequest();
+            exchange.getRequestReceiver().receiveFullBytes((e, requestBody) -> {
 
-                            QueryResourceType queryResourceType = QueryResourceType.valueOf(requestJson.get(QUERY_BODY_RESOURCE_TYPE_FIELD).getAsString());
-                            QueryRequestType queryRequestType = QueryRequestType.valueOf(requestJson.get(QUERY_BODY_QUERY_TYPE_FIELD).getAsString());
+                try{
+                    JsonElement requestJson = JsonParser.parseString(new String(requestBody));
 
-                            // Set the Query Request Resource Type and Query Request Type
-                            queryRequest.setResourceType(queryResourceType);
-                            queryRequest.setRequestType(queryRequestType);
+                    if(!requestJson.isJsonArray() || requestJson.getAsJsonArray().size() == 0 || requestJson.getAsJsonArray().size() > maxBatchSize) {
+                        exchange.setStatusCode(400);
+                        exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, JSON_CONTENT_TYPE);
+                        exchange.getResponseSender().send(toErrorJson(String.format("Invalid Query Batch ! Expected an array of 1 to %d queries", maxBatchSize)));
+                        return;
+                    }
 
-                            //Check if the QueryRequestType is TIME_RANGE or SAMPLE_RANGE
-                            if(queryRequestType == QueryRequestType.TIME_RANGE){
+                    JsonArray queriesJson = requestJson.getAsJsonArray();
+                    List<CompletableFuture<JsonObject>> itemFutures = new ArrayList<>(queriesJson.size());
 
-                                long startMs = requestJson.has(QUERY_BODY_START_MS_FIELD) ? requestJson.get(QUERY_BODY_START_MS_FIELD).getAsLong() : 0;
-                                long endMs = requestJson.has(QUERY_BODY_END_MS_FIELD) ? requestJson.get(QUERY_BODY_END_MS_FIELD).getAsLong() : System.currentTimeMillis();
+                    for(JsonElement queryJson : queriesJson)
+                        itemFutures.add(executeBatchItem(queryCoalescer, queryExecutionFunction, queryJson, aggregationMaxBuckets));
 
-                                //Set the Query Request Time Range
-                                queryRequest.setStartTimestampMs(startMs);
-                                queryRequest.setEndTimestampMs(endMs);
-                            }
-                            else if(queryRequestType == QueryRequestType.SAMPLE_RANGE) {
+                    CompletableFuture<JsonArray> batchFuture = CompletableFuture.allOf(itemFutures.toArray(new CompletableFuture<?>[0])).thenApply(ignored -> {
+                        JsonArray responseArray = new JsonArray(itemFutures.size());
+                        for(CompletableFuture<JsonObject> itemFuture : itemFutures)
+                            responseArray.add(itemFuture.join());
+                        return responseArray;
+                    });
 
-                                int startIndex = requestJson.has(QUERY_BODY_START_INDEX_FIELD) ? requestJson.get(QUERY_BODY_START_INDEX_FIELD).getAsInt() : 0;
-                                int endIndex = requestJson.has(QUERY_BODY_END_INDEX_FIELD) ? requestJson.get(QUERY_BODY_END_INDEX_FIELD).getAsInt() : 0;
+                    resumeOnCompletion(exchange, batchFuture, timeoutMs, (resumedExchange, responseArray) -> {
+                        resumedExchange.getResponseHeaders().put(Headers.CONTENT_TYPE, JSON_CONTENT_TYPE);
+                        resumedExchange.getResponseSender().send(responseArray.toString());
+                    });
 
-                                //Set the Query Request Sample Range
-                                queryRequest.setStartIndex(startIndex);
-                                queryRequest.setEndIndex(endIndex);
-                            }
+                }catch (Exception exception){
+                    sendQueryException(exchange, exception);
+                }
+            }, HttpDigitalAdapterHandlersFactory::sendRequestBodyError);
+        };
+    }
 
-                            // Execute the Query Request
-                            QueryResult<?> queryResult = queryExecutionFunction.apply(queryRequest);
+    /**
+     * Completes the exchange when the request body cannot be received, answering with 413 if the body exceeds the
+     * maximum entity size configured on the server.
+     *
+     * @param exchange The current exchange.
+     * @param exception The error receiving the request body.
+     */
+    private static void sendRequestBodyError(HttpServerExchange exchange, IOException exception) {
 
-                            // Create a new Gson Instance
-                            final Gson gson = new Gson();
+        if(exception instanceof RequestTooBigException) {
+            exchange.setStatusCode(413);
+            exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, JSON_CONTENT_TYPE);
+            exchange.getResponseSender().send("{\"error\": \"Request Body Too Large !\"}");
+            return;
+        }
 
-                            // Check if the Query Result is not null and successful
-                            if(queryResult != null && queryResult.isSuccessful())
-                                exchange.setStatusCode(200);
-                            else
-                                exchange.setStatusCode(400);
+        exchange.setStatusCode(500);
+        exchange.endExchange();
+    }
 
-                            exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, JSON_CONTENT_TYPE);
-                            exchange.getResponseSender().send(gson.toJson(queryResult));
-                    }
-                    else {
-                        exchange.setStatusCode(400);
-                        exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, JSON_CONTENT_TYPE);
-                        exchange.getResponseSender().send("{\"error\": \"Invalid Query Request !\"}");
-                    }
+    /**
+     * Starts the execution of a query of a batch.
+     *
+     * @param queryCoalescer The coalescer deduplicating the concurrent executions of the same query.
+     * @param queryExecutionFunction The function starting the asynchronous execution of a query.
+     * @param queryJson The query body.
+     * @param aggregationMaxBuckets The maximum number of buckets of each downsampled series.
+     * @return A future completed with the status code and the response of the query (never completed exceptionally).
+     */
+    private static CompletableFuture<JsonObject> executeBatchItem(HttpDigitalAdapterQueryCoalescer queryCoalescer, Function<QueryRequest, CompletableFuture<QueryResult<?>>> queryExecutionFunction, JsonElement queryJson, int aggregationMaxBuckets) {
 
-                }catch (Exception exception){
-                    String errorMessage = String.format("{\"error\": \"Exception Executing Query ! %s\"}", exception.getMessage());
-                    exchange.setStatusCode(500);
-                    exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, "application/json");
-                    exchange.getResponseSender().send(errorMessage);
+        final HttpDigitalAdapterStorageQuery storageQuery;
+        try {
+            storageQuery = HttpDigitalAdapterStorageQuery.fromJson(queryJson.isJsonObject() ? queryJson.getAsJsonObject() : null, aggregationMaxBuckets);
+        } catch (IllegalArgumentException invalidQueryException) {
+            return CompletableFuture.completedFuture(createBatchItem(400, "error", new JsonPrimitive(invalidQueryException.getMessage())));
+        }
+
+        return storageQuery.execute(queryCoalescer, queryExecutionFunction).handle((sharedQueryResult, error) -> {
+            if(error != null)
+                return createBatchItem(500, "error", new JsonPrimitive(String.format("Exception Executing Query ! %s", error.getMessage())));
+            try {
+                QueryResult<?> queryResult = sharedQueryResult.getQueryResult();
+                return createBatchItem((queryResult != null && queryResult.isSuccessful()) ? 200 : 400, "response", storageQuery.toJson(queryResult, DEFAULT_GSON));
+            } catch (Exception exception) {
+                return createBatchItem(500, "error", new JsonPrimitive(String.format("Exception Executing Query ! %s", exception.getMessage())));
+            }
+        });
+    }
+
+    /**
+     * Creates the item of the batch response associated to a query.
+     *
+     * @param statusCode The status code of the query, as it would have been returned by /storage/query.
+     * @param field The name of the field carrying the content ("response" or "error").
+     * @param content The response of the query or the error message.
+     * @return The batch item.
+     */
+    private static JsonObject createBatchItem(int statusCode, String field, JsonElement content) {
+        JsonObject itemObj = new JsonObject();
+        itemObj.addProperty("status", statusCode);
+        itemObj.add(field, content);
+        return itemObj;
+    }
+
+    /**
+     * Sends the response of a Storage Query according to the requested downsampling or pagination.
+     *
+     * @param exchange The current exchange.
+     * @param sharedQueryResult The shared result of the query request.
+     * @param storageQuery The Storage Query received from the client.
+     */
+    private static void sendStorageQueryResult(HttpServerExchange exchange, HttpDigitalAdapterQueryCoalescer.SharedQueryResult sharedQueryResult, HttpDigitalAdapterStorageQuery storageQuery) {
+
+        QueryResult<?> queryResult = sharedQueryResult.getQueryResult();
+
+        if(queryResult == null || !queryResult.isSuccessful() || (storageQuery.getQueryAggregation() == null && storageQuery.getQueryCursor() == null)) {
+            sendQueryResult(exchange, sharedQueryResult);
+            return;
+        }
+
+        try {
+
+            // Report the pagination through the headers, also available for streamed pages
+            HttpDigitalAdapterQueryCursor queryCursor = storageQuery.getQueryCursor();
+            if(queryCursor != null) {
+
+                List<?> results = HttpDigitalAdapterStorageQuery.getResults(queryResult);
+                HttpDigitalAdapterQueryCursor nextCursor = queryCursor.next(results);
+
+                exchange.getResponseHeaders().put(QUERY_TOTAL_RESULTS_HEADER, queryCursor.getTotalItems(results));
+                if(nextCursor != null)
+                    exchange.getResponseHeaders().put(QUERY_NEXT_CURSOR_HEADER, nextCursor.encode());
+
+                if(acceptsNdjson(exchange)) {
+                    exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, HttpDigitalAdapterNdjsonSender.NDJSON_CONTENT_TYPE);
+                    HttpDigitalAdapterNdjsonSender.send(exchange, queryCursor.getPageItems(results), DEFAULT_GSON);
+                    return;
                 }
+            }
+
+            exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, JSON_CONTENT_TYPE);
+            exchange.getResponseSender().send(toResponseJson(exchange, DEFAULT_GSON, storageQuery.toJson(queryResult, DEFAULT_GSON)));
+
+        }catch (Exception exception){
+            sendQueryException(exchange, exception);
+        }
+    }
+
+    /**
+     * Sends the result of a Storage Query, streamed as NDJSON if requested by the client.
+     * JSON responses reuse the serialization shared by all the coalesced requests.
+     *
+     * @param exchange The current exchange.
+     * @param sharedQueryResult The shared query result.
+     */
+    private static void sendQueryResult(HttpServerExchange exchange, HttpDigitalAdapterQueryCoalescer.SharedQueryResult sharedQueryResult) {
+
+        try {
+
+            QueryResult<?> queryResult = sharedQueryResult.getQueryResult();
+
+            // Stream the results one record per line without building the whole response in memory
+            if(queryResult != null && queryResult.isSuccessful() && acceptsNdjson(exchange)) {
+                exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, HttpDigitalAdapterNdjsonSender.NDJSON_CONTENT_TYPE);
+                exchange.getResponseHeaders().put(QUERY_TOTAL_RESULTS_HEADER, queryResult.getTotalResults());
+                HttpDigitalAdapterNdjsonSender.send(exchange, HttpDigitalAdapterStorageQuery.getResults(queryResult), DEFAULT_GSON);
+                return;
+            }
+
+            // Check if the Query Result is not null and successful
+            if(queryResult != null && queryResult.isSuccessful())
+                exchange.setStatusCode(200);
+            else
+                exchange.setStatusCode(400);
+
+            exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, JSON_CONTENT_TYPE);
+
+            // The shared serialization is reused unless the client restricts the returned fields
+            HttpDigitalAdapterFieldProjection fieldProjection = HttpDigitalAdapterFieldProjection.fromRequest(exchange);
+            if(fieldProjection != null)
+                exchange.getResponseSender().send(DEFAULT_GSON.toJson(fieldProjection.apply(DEFAULT_GSON.toJsonTree(queryResult))));
+            else
+                exchange.getResponseSender().send(ByteBuffer.wrap(sharedQueryResult.getJsonBytes()));
+
+        }catch (Exception exception){
+            sendQueryException(exchange, exception);
+        }
+    }
+
+    private static void sendQueryException(HttpServerExchange exchange, Exception exception) {
+        exchange.setStatusCode(500);
+        exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, "application/json");
+        exchange.getResponseSender().send(toErrorJson(String.format("Exception Executing Query ! %s", exception.getMessage())));
+    }
+
+    /**
+     * Suspends the exchange until an asynchronous operation completes and then resumes it in order to send the
+     * response, on the IO thread or on a worker thread if the exchange is in blocking mode.
+     * If the operation does not complete within the timeout the request is answered with 504 Gateway Timeout, and if
+     * the client disconnects in the meanwhile the operation is cancelled and its result discarded.
+     *
+     * @param exchange The current exchange.
+     * @param future The asynchronous operation.
+     * @param timeoutMs The maximum waiting time in milliseconds (0 to wait indefinitely).
+     * @param responder The function sending the response with the result of the operation.
+     * @param <T> The type of the result.
+     */
+    private static <T> void resumeOnCompletion(HttpServerExchange exchange, CompletableFuture<T> future, long timeoutMs, BiConsumer<HttpServerExchange, T> responder) {
+
+        exchange.dispatch(SameThreadExecutor.INSTANCE, () -> {
+
+            final XnioExecutor.Key timeoutKey = (timeoutMs > 0) ?
+                    exchange.getIoThread().executeAfter(() -> future.completeExceptionally(new TimeoutException()), timeoutMs, TimeUnit.MILLISECONDS) :
+                    null;
+
+            final Runnable unwatchDisconnection = cancelOnDisconnection(exchange, future);
+
+            future.whenComplete((result, error) -> {
+
+                if(timeoutKey != null)
+                    timeoutKey.remove();
+
+                final Runnable resume = () -> {
+
+                    // The client disconnected, nothing to send
+                    if(future.isCancelled())
+                        return;
+
+                    Executor executor = exchange.isBlocking() ? exchange.getConnection().getWorker() : exchange.getIoThread();
+                    executor.execute(() -> Connectors.executeRootHandler(resumedExchange -> {
+                        if(error == null)
+                            responder.accept(resumedExchange, result);
+                        else if(error instanceof TimeoutException) {
+                            resumedExchange.setStatusCode(504);
+                            resumedExchange.getResponseHeaders().put(Headers.CONTENT_TYPE, JSON_CONTENT_TYPE);
+                            resumedExchange.getResponseSender().send(toErrorJson("Storage request timeout !"));
+                        }
+                        else {
+                            resumedExchange.setStatusCode(500);
+                            resumedExchange.getResponseHeaders().put(Headers.CONTENT_TYPE, JSON_CONTENT_TYPE);
+                            resumedExchange.getResponseSender().send(toErrorJson(String.format("Storage request failed ! %s", error.getMessage())));
+                        }
+                    }, exchange));
+                };
+
+                // The connection is handed back to the exchange before resuming it, in the same IO thread task, so
+                // that the response is never sent while the connection is still watched
+                if(unwatchDisconnection != null)
+                    exchange.getIoThread().execute(() -> {
+                        unwatchDisconnection.run();
+                        resume.run();
+                    });
+                else
+                    resume.run();
             });
+        });
+    }
+
+    /**
+     * Registers the asynchronous operation awaited by a suspended exchange, in order to cancel it as soon as the client
+     * disconnects. Invoked on the IO thread of the exchange once the exchange has been dispatched.
+     *
+     * @param exchange The suspended exchange.
+     * @param operation The asynchronous operation.
+     * @return The task to execute on the IO thread of the exchange before resuming it (null if the connection is not watched).
+     */
+    static Runnable cancelOnDisconnection(HttpServerExchange exchange, CompletableFuture<?> operation) {
+        Set<CompletableFuture<?>> pendingOperations = getPendingOperations(exchange.getConnection());
+        pendingOperations.add(operation);
+        operation.whenComplete((result, error) -> pendingOperations.remove(operation));
+        return watchDisconnection(exchange, operation);
+    }
+
+    /**
+     * Watches the HTTP/1.1 connection of an exchange waiting for an asynchronous operation, since the disconnection of
+     * the client would otherwise be noticed only when writing the response. The connection is closed, cancelling its
+     * pending operations, as soon as the client closes it, while the bytes of a pipelined request are given back to
+     * the connection in order to be parsed once the current exchange completes.
+     * This relies on the HTTP/1.1 connection internals of Undertow 2.3.16.Final
+     * ({@link HttpServerConnection#getOriginalSourceConduit()} and {@link HttpServerConnection#ungetRequestBytes(PooledByteBuffer)}),
+     * to be verified when upgrading Undertow.
+     *
+     * @param exchange The exchange whose request has been completely read.
+     * @param future The asynchronous operation.
+     * @return The task to execute on the IO thread of the exchange before resuming it (null if not watched).
+     */
+    private static Runnable watchDisconnection(HttpServerExchange exchange, CompletableFuture<?> future) {
+
+        if(future.isDone() || !(exchange.getConnection() instanceof HttpServerConnection) || !exchange.isRequestComplete() || exchange.isUpgrade())
+            return null;
+
+        final HttpServerConnection connection = (HttpServerConnection) exchange.getConnection();
+
+        // A pipelined request has already been received, so the client is still connected
+        if(connection.getExtraBytes() != null)
+            return null;
+
+        final ConduitStreamSourceChannel sourceChannel = connection.getChannel().getSourceChannel();
+        final StreamSourceConduit requestConduit = sourceChannel.getConduit();
+
+        // The connection is read below the conduit of the completed request body, once the IO thread is done with
+        // the current request (which suspends the reads)
+        exchange.getIoThread().execute(() -> {
+            if(future.isDone())
+                return;
+            sourceChannel.setConduit(connection.getOriginalSourceConduit());
+            sourceChannel.setReadListener(channel -> readAfterRequest(channel, connection));
+            sourceChannel.resumeReads();
+        });
+
+        return () -> {
+            sourceChannel.suspendReads();
+            sourceChannel.setConduit(requestConduit);
         };
     }
 
+    /**
+     * Reads from the connection of an exchange waiting for an asynchronous operation, closing the connection if the
+     * client disconnected or giving back the bytes of a pipelined request.
+     *
+     * @param sourceChannel The watched channel.
+     * @param connection The connection.
+     */
+    private static void readAfterRequest(ConduitStreamSourceChannel sourceChannel, HttpServerConnection connection) {
+
+        PooledByteBuffer pooledBuffer = connection.getByteBufferPool().allocate();
+
+        try {
+            int read = sourceChannel.read(pooledBuffer.getBuffer());
+            if(read == 0) {
+                pooledBuffer.close();
+                return;
+            }
+
+            sourceChannel.suspendReads();
+
+            if(read < 0) {
+                pooledBuffer.close();
+                IoUtils.safeClose(connection);
+                return;
+            }
+
+            pooledBuffer.getBuffer().flip();
+            connection.ungetRequestBytes(pooledBuffer);
+
+        } catch (IOException e) {
+            pooledBuffer.close();
+            IoUtils.safeClose(connection);
+        }
+    }
+
+    /**
+     * Retrieves the asynchronous operations pending on a connection. A single close listener is registered on each
+     * connection in order to cancel its pending operations when the client disconnects.
+     *
+     * @param connection The server connection.
+     * @return The set of pending operations.
+     */
+    private static Set<CompletableFuture<?>> getPendingOperations(ServerConnection connection) {
+
+        Set<CompletableFuture<?>> pendingOperations = connection.getAttachment(PENDING_OPERATIONS_ATTACHMENT);
+
+        if(pendingOperations == null) {
+            Set<CompletableFuture<?>> newPendingOperations = ConcurrentHashMap.newKeySet();
+            pendingOperations = connection.putAttachment(PENDING_OPERATIONS_ATTACHMENT, newPendingOperations);
+            if(pendingOperations == null) {
+                pendingOperations = newPendingOperations;
+                connection.addCloseListener(closedConnection -> newPendingOperations.forEach(future -> future.cancel(false)));
+            }
+        }
+
+        return pendingOperations;
+    }
+
     /**
      * Creates an HTTP handler for retrieving a list of components (properties, actions, events, relationships).
      *
@@ -184,31 +700,85 @@ public class HttpDigitalAdapterHandlersFactory {
     public static <T> HttpHandler createGetComponentsListHandler(Supplier<T> componentsSupplier){
         return exchange -> {
             exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, JSON_CONTENT_TYPE);
-            exchange.getResponseSender().send(getGson().toJson(componentsSupplier.get()));
+            exchange.getResponseSender().send(toResponseJson(exchange, getGson(), componentsSupplier.get()));
         };
     }
 
     /**
-     * Creates an HTTP handler for retrieving the State History of the Digital Twin.
-     * @param storageInfoSupplier The function to produce the specified component.
+     * Creates an HTTP handler for retrieving the event notifications. Without query parameters all the retained
+     * notifications are returned, otherwise only the ones received after the {@code since} sequence, up to
+     * {@code limit} items. The sequence of the last returned notification is reported in the response header.
+     *
+     * @param allNotificationsSupplier The supplier for obtaining all the retained notifications.
+     * @param notificationsFunction The function reading the notifications after a sequence with a limit.
+     * @return The handler for retrieving the event notifications.
      */
-    public static <T> HttpHandler createGetStorageInfoHandler(Supplier<StorageStats> storageInfoSupplier){
+    public static HttpHandler createGetEventNotificationsHandler(Supplier<List<DigitalTwinStateEventNotification<?>>> allNotificationsSupplier,
+                                                                 BiFunction<Long, Integer, HttpDigitalAdapterRingBuffer.Slice<DigitalTwinStateEventNotification<?>>> notificationsFunction){
         return exchange -> {
+
+            Deque<String> sinceParameter = exchange.getQueryParameters().get(SINCE_QUERY_PARAMETER);
+            Deque<String> limitParameter = exchange.getQueryParameters().get(LIMIT_QUERY_PARAMETER);
+
             exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, JSON_CONTENT_TYPE);
-            final StorageStats storageInfo = storageInfoSupplier.get();
 
-            if(storageInfo != null){
-                final Gson gson = new Gson();
-                exchange.getResponseSender().send(gson.toJson(storageInfo));
+            if(sinceParameter == null && limitParameter == null) {
+                exchange.getResponseSender().send(toResponseJson(exchange, getGson(), allNotificationsSupplier.get()));
+                return;
             }
-            else {
-                exchange.setStatusCode(404);
-                exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, "application/json");
-                exchange.getResponseSender().send("{\"error\": \"Storage Info not available !\"}");
+
+            try {
+                long since = (sinceParameter != null) ? Long.parseLong(sinceParameter.getFirst()) : 0;
+                int limit = (limitParameter != null) ? Integer.parseInt(limitParameter.getFirst()) : Integer.MAX_VALUE;
+
+                if(since < 0 || limit < 0)
+                    throw new NumberFormatException("negative value");
+
+                HttpDigitalAdapterRingBuffer.Slice<DigitalTwinStateEventNotification<?>> slice = notificationsFunction.apply(since, limit);
+                exchange.getResponseHeaders().put(NOTIFICATION_SEQUENCE_HEADER, slice.getLastSequence());
+                exchange.getResponseSender().send(toResponseJson(exchange, getGson(), slice.getItems()));
+
+            } catch (NumberFormatException e) {
+                exchange.setStatusCode(400);
+                exchange.getResponseSender().send("{\"error\": \"Invalid since or limit parameter !\"}");
             }
         };
     }
 
+    /**
+     * Creates an HTTP handler for retrieving the Storage Information through an asynchronous request.
+     *
+     * @param storageInfoFunction The supplier starting the asynchronous retrieval of the storage information.
+     * @param timeoutMs The maximum time to wait for the storage information before answering with 504 (0 to wait indefinitely).
+     * @return The handler for retrieving the storage information.
+     */
+    public static HttpHandler createGetStorageInfoHandler(Supplier<CompletableFuture<StorageStats>> storageInfoFunction, long timeoutMs){
+        return exchange -> resumeOnCompletion(exchange, storageInfoFunction.get(), timeoutMs, HttpDigitalAdapterHandlersFactory::sendStorageInfo);
+    }
+
+    /**
+     * Creates an HTTP handler for retrieving the State History of the Digital Twin.
+     * @param storageInfoSupplier The function to produce the specified component.
+     */
+    public static <T> HttpHandler createGetStorageInfoHandler(Supplier<StorageStats> storageInfoSupplier){
+        return exchange -> sendStorageInfo(exchange, storageInfoSupplier.get());
+    }
+
+    private static void sendStorageInfo(HttpServerExchange exchange, StorageStats storageInfo) {
+
+        exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, JSON_CONTENT_TYPE);
+
+        if(storageInfo != null){
+            final Gson gson = DEFAULT_GSON;
+            exchange.getResponseSender().send(toResponseJson(exchange, gson, storageInfo));
+        }
+        else {
+            exchange.setStatusCode(404);
+            exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, "application/json");
+            exchange.getResponseSender().send("{\"error\": \"Storage Info not available !\"}");
+        }
+    }
+
     /**
      * Creates an HTTP handler for retrieving a specific component (property, action, event, relationship).
      *
@@ -222,7 +792,7 @@ public class HttpDigitalAdapterHandlersFactory {
             exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, JSON_CONTENT_TYPE);
             Optional<T> component = digitalTwinStateComponentProducer.apply(pathKey);
             String response = component.isPresent() ?
-                    getGson().toJson(component.get())
+                    toResponseJson(exchange, getGson(), component.get())
                     : "{error: \"not found\"}";
             exchange.getResponseSender().send(response);
         };
@@ -238,61 +808,200 @@ public class HttpDigitalAdapterHandlersFactory {
         return exchange -> {
             exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, JSON_CONTENT_TYPE);
             final DigitalTwin instance = instanceSupplier.get();
-            final Gson gson = new Gson();
+            final Gson gson = DEFAULT_GSON;
             final JsonObject responseObj = new JsonObject();
             responseObj.addProperty("id", instance.getDigitalTwinId());
             responseObj.add("digitalizedPhysicalAssets", gson.toJsonTree(instance.getDigitalizedPhysicalAssets()));
             responseObj.add("physicalAdapters", gson.toJsonTree(instance.getPhysicalAdapterIds()));
             responseObj.add("digitalAdapters", gson.toJsonTree(instance.getDigitalAdapterIds()));
-            exchange.getResponseSender().send(gson.toJson(responseObj));
+            exchange.getResponseSender().send(toResponseJson(exchange, gson, responseObj));
         };
     }
 
     /**
-     * Creates an HTTP handler for retrieving the digital twin state.
+     * Creates an HTTP handler serving a pre-serialized section of the current DT State snapshot.
+     * The snapshot is serialized once for each DT State update, so the handler only writes the cached buffer.
+     * When the response compression is enabled, the buffer is also compressed once for each DT State update.
      *
-     * @param dtStateSupplier The supplier for obtaining the digital twin state.
-     * @return The handler for retrieving the digital twin state.
+     * @param snapshotSupplier The supplier for obtaining the current DT State snapshot.
+     * @param snapshotContentFunction The function selecting the serialized content of the snapshot to send.
+     * @return The handler for retrieving the serialized snapshot content.
      */
-    public static HttpHandler createGetDigitalTwinStateHandler(Supplier<Optional<DigitalTwinState>> dtStateSupplier){
+    public static HttpHandler createGetStateSnapshotHandler(Supplier<HttpDigitalAdapterStateSnapshot> snapshotSupplier, Function<HttpDigitalAdapterStateSnapshot, byte[]> snapshotContentFunction){
+        return createGetStateSnapshotHandler(snapshotSupplier, snapshotContentFunction, null);
+    }
+
+    /**
+     * Creates an HTTP handler serving a pre-serialized section of the current DT State snapshot, also supporting
+     * the fields parameter through the JSON tree of the same section rebuilt by the snapshot.
+     *
+     * @param snapshotSupplier The supplier for obtaining the current DT State snapshot.
+     * @param snapshotContentFunction The function selecting the serialized content of the snapshot to send.
+     * @param snapshotTreeFunction The function selecting the JSON tree of the same content (null to ignore the fields parameter).
+     * @return The handler for retrieving the serialized snapshot content.
+     */
+    public static HttpHandler createGetStateSnapshotHandler(Supplier<HttpDigitalAdapterStateSnapshot> snapshotSupplier,
+                                                            Function<HttpDigitalAdapterStateSnapshot, byte[]> snapshotContentFunction,
+                                                            Function<HttpDigitalAdapterStateSnapshot, JsonElement> snapshotTreeFunction){
         return exchange -> {
 
-            // Check if the supplier and the DT State are available otherwise sends back a 500 Internal Server Error
-            if(dtStateSupplier == null || !dtStateSupplier.get().isPresent()){
+            final HttpDigitalAdapterStateSnapshot snapshot = snapshotSupplier.get();
+            final byte[] content = (snapshot != null) ? snapshotContentFunction.apply(snapshot) : null;
+            final HttpDigitalAdapterFieldProjection fieldProjection = (snapshotTreeFunction != null) ? HttpDigitalAdapterFieldProjection.fromRequest(exchange) : null;
+
+            // Check if the snapshot content is available otherwise sends back a 500 Internal Server Error
+            if(content == null){
                 exchange.setStatusCode(500);
                 exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, "text/plain");
                 exchange.getResponseSender().send("DigitalTwinState Supplier = Null ! Internal Server Error");
             }
-            else {
+            else if(!handleStateConditionalRequest(exchange, snapshot)) {
+                exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, JSON_CONTENT_TYPE);
+                if(fieldProjection != null)
+                    exchange.getResponseSender().send(DEFAULT_GSON.toJson(fieldProjection.apply(snapshotTreeFunction.apply(snapshot))));
+                else if(HttpDigitalAdapterCompression.acceptsPrecompressedContent(exchange, content.length))
+                    exchange.getResponseSender().send(ByteBuffer.wrap(snapshot.getGzipContent(content)));
+                else
+                    exchange.getResponseSender().send(ByteBuffer.wrap(content));
+            }
+        };
+    }
 
-                DigitalTwinState digitalTwinState = dtStateSupplier.get().get();
+    /**
+     * Creates an HTTP handler for retrieving the properties of the current DT State snapshot. Without parameters the
+     * handler serves the pre-serialized property list, while the keys parameter (comma separated property keys)
+     * selects a subset of properties through the property index of the snapshot, and the fields parameter
+     * ({@link HttpDigitalAdapterFieldProjection}, e.g., key,value) restricts the fields included for each property.
+     * Unknown property keys are omitted from the response.
+     *
+     * @param snapshotSupplier The supplier for obtaining the current DT State snapshot.
+     * @return The properties handler.
+     */
+    public static HttpHandler createGetPropertiesHandler(Supplier<HttpDigitalAdapterStateSnapshot> snapshotSupplier){
 
-                Collection<DigitalTwinStateProperty<?>> digitalTwinStatePropertiesList = (digitalTwinState.getPropertyList().isPresent()) ? digitalTwinState.getPropertyList().get() : new ArrayList<>();
-                Collection<DigitalTwinStateAction> digitalTwinStateActionsList = (digitalTwinState.getActionList().isPresent()) ? digitalTwinState.getActionList().get() : new ArrayList<>();
-                Collection<DigitalTwinStateEvent> digitalTwinStateEventsList = (digitalTwinState.getEventList().isPresent()) ? digitalTwinState.getEventList().get() : new ArrayList<>();
-                Collection<DigitalTwinStateRelationship<?>> digitalTwinStateRelationships = (digitalTwinState.getRelationshipList().isPresent()) ? digitalTwinState.getRelationshipList().get() : new ArrayList<>();
+        final HttpHandler propertyListHandler = createGetStateSnapshotHandler(snapshotSupplier, HttpDigitalAdapterStateSnapshot::getPropertiesJson, HttpDigitalAdapterStateSnapshot::getPropertiesTree);
 
-                exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, JSON_CONTENT_TYPE);
+        return exchange -> {
 
-                final Gson gson = new Gson();
-                final JsonObject responseObj = new JsonObject();
+            Set<String> propertyKeys = readListQueryParameter(exchange, KEYS_QUERY_PARAMETER);
 
-                // Instant Date String
-                DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss").withZone(ZoneId.systemDefault());
-                String formattedDateTime = formatter.format(digitalTwinState.getEvaluationInstant());
+            final HttpDigitalAdapterStateSnapshot snapshot = snapshotSupplier.get();
 
-                responseObj.addProperty("evaluation_instant_epoch_ms", digitalTwinState.getEvaluationInstant().toEpochMilli());
-                responseObj.addProperty("evaluation_instant_date", formattedDateTime);
-                responseObj.add("properties", gson.toJsonTree(digitalTwinStatePropertiesList));
-                responseObj.add("actions", gson.toJsonTree(digitalTwinStateActionsList));
-                responseObj.add("events", gson.toJsonTree(digitalTwinStateEventsList));
-                responseObj.add("relationships", getGson().toJsonTree(digitalTwinStateRelationships));
+            if(snapshot == null || propertyKeys == null) {
+                propertyListHandler.handleRequest(exchange);
+                return;
+            }
+
+            if(handleStateConditionalRequest(exchange, snapshot))
+                return;
+
+            JsonArray propertiesArray = new JsonArray();
 
-                exchange.getResponseSender().send(gson.toJson(responseObj));
+            for(String propertyKey : propertyKeys) {
+                JsonObject propertyObj = snapshot.getPropertyJson(propertyKey);
+                if(propertyObj != null)
+                    propertiesArray.add(propertyObj);
             }
+
+            exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, JSON_CONTENT_TYPE);
+            exchange.getResponseSender().send(toResponseJson(exchange, DEFAULT_GSON, propertiesArray));
+        };
+    }
+
+    /**
+     * Serializes a response applying the field projection requested through the fields parameter, if any.
+     *
+     * @param exchange The current exchange.
+     * @param gson The Gson instance used to serialize the response.
+     * @param response The response object.
+     * @return The serialized JSON response.
+     */
+    private static String toResponseJson(HttpServerExchange exchange, Gson gson, Object response) {
+
+        HttpDigitalAdapterFieldProjection fieldProjection = HttpDigitalAdapterFieldProjection.fromRequest(exchange);
+
+        if(fieldProjection == null)
+            return (response instanceof JsonElement) ? gson.toJson((JsonElement) response) : gson.toJson(response);
+
+        return gson.toJson(fieldProjection.apply((response instanceof JsonElement) ? (JsonElement) response : gson.toJsonTree(response)));
+    }
+
+    /**
+     * Reads a query parameter containing a comma separated list of values, also repeated multiple times.
+     *
+     * @param exchange The current exchange.
+     * @param parameterName The name of the query parameter.
+     * @return The values in the order of the request or null if the parameter is missing.
+     */
+    private static Set<String> readListQueryParameter(HttpServerExchange exchange, String parameterName) {
+
+        Deque<String> parameterValues = exchange.getQueryParameters().get(parameterName);
+
+        if(parameterValues == null)
+            return null;
+
+        Set<String> values = new LinkedHashSet<>();
+        for(String parameterValue : parameterValues)
+            for(String value : parameterValue.split(","))
+                if(!value.trim().isEmpty())
+                    values.add(value.trim());
+
+        return values;
+    }
+
+    /**
+     * Creates an HTTP handler supporting conditional requests on the resources derived from the current DT State.
+     * The entity tag of the response is the one of the current state snapshot, so the request is completed with
+     * 304 Not Modified and no body when the If-None-Match header of the client matches the current version.
+     *
+     * @param snapshotSupplier The supplier for obtaining the current DT State snapshot.
+     * @param handler The handler producing the response when the state has changed.
+     * @return The conditional handler.
+     */
+    public static HttpHandler createStateConditionalHandler(Supplier<HttpDigitalAdapterStateSnapshot> snapshotSupplier, HttpHandler handler){
+        return exchange -> {
+            if(!handleStateConditionalRequest(exchange, snapshotSupplier.get()))
+                handler.handleRequest(exchange);
         };
     }
 
+    /**
+     * Adds the version headers of the DT State snapshot to the response and completes the exchange with
+     * 304 Not Modified if the If-None-Match header of the request matches the snapshot entity tag.
+     *
+     * @param exchange The current exchange.
+     * @param snapshot The DT State snapshot used to build the response.
+     * @return True if the exchange has been completed with 304, false if the response has to be produced.
+     */
+    private static boolean handleStateConditionalRequest(HttpServerExchange exchange, HttpDigitalAdapterStateSnapshot snapshot){
+
+        if(snapshot == null || snapshot.getEntityTag() == null)
+            return false;
+
+        exchange.getResponseHeaders().put(STATE_VERSION_HEADER, snapshot.getVersion());
+        exchange.getResponseHeaders().put(Headers.ETAG, snapshot.getEntityTagHeader());
+
+        if(ETagUtils.handleIfNoneMatch(exchange, snapshot.getEntityTag(), true))
+            return false;
+
+        exchange.setStatusCode(304);
+        exchange.endExchange();
+        return true;
+    }
+
+    /**
+     * Creates an HTTP handler for retrieving the digital twin state.
+     *
+     * @param dtStateSupplier The supplier for obtaining the digital twin state.
+     * @return The handler for retrieving the digital twin state.
+     */
+    public static HttpHandler createGetDigitalTwinStateHandler(Supplier<Optional<DigitalTwinState>> dtStateSupplier){
+        return createGetStateSnapshotHandler(
+                () -> (dtStateSupplier != null) ? dtStateSupplier.get().map(dtState -> HttpDigitalAdapterStateSnapshot.create(0, dtState, null)).orElse(null) : null,
+                HttpDigitalAdapterStateSnapshot::getStateJson,
+                HttpDigitalAdapterStateSnapshot::getStateTree);
+    }
+
     /**
      * Creates an HTTP handler for retrieving the digital twin state change list.
      *
@@ -317,8 +1026,8 @@ public class HttpDigitalAdapterHandlersFactory {
 
                     exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, JSON_CONTENT_TYPE);
 
-                    final Gson gson = new Gson();
-                    exchange.getResponseSender().send(gson.toJson(dtStateChangeList));
+                    final Gson gson = DEFAULT_GSON;
+                    exchange.getResponseSender().send(toResponseJson(exchange, gson, dtStateChangeList));
                 }
 
             }catch (Exception e){
@@ -349,12 +1058,50 @@ public class HttpDigitalAdapterHandlersFactory {
     }
 
     /**
-     * Returns a Gson instance configured with a custom serializer for handling relationship instances.
+     * Checks if the client accepts the streamed NDJSON representation of the response.
+     *
+     * @param exchange The current exchange.
+     * @return True if the Accept header contains the NDJSON content type.
+     */
+    private static boolean acceptsNdjson(HttpServerExchange exchange){
+        HeaderValues acceptValues = exchange.getRequestHeaders().get(Headers.ACCEPT);
+
+        if(acceptValues != null)
+            for(String accept : acceptValues)
+                if(accept.contains(HttpDigitalAdapterNdjsonSender.NDJSON_CONTENT_TYPE))
+                    return true;
+
+        return false;
+    }
+
+    /**
+     * Returns the shared Gson instance configured with a custom serializer for handling relationship instances.
+     *
+     * @return A Gson instance.
+     */
+    static Gson getGson(){
+        return GSON;
+    }
+
+    /**
+     * Returns the shared Gson instance with the default configuration.
      *
      * @return A Gson instance.
      */
-    private static Gson getGson(){
-        return new GsonBuilder().registerTypeAdapter(Map.class, getRelationshipInstancesSerializer()).create();
+    static Gson getDefaultGson(){
+        return DEFAULT_GSON;
+    }
+
+    /**
+     * Builds the JSON body of an error response, escaping the message.
+     *
+     * @param message The error message.
+     * @return The error JSON.
+     */
+    static String toErrorJson(String message) {
+        JsonObject errorObj = new JsonObject();
+        errorObj.addProperty("error", message);
+        return DEFAULT_GSON.toJson(errorObj);
     }
 
     /**
@@ -364,6 +1111,26 @@ public class HttpDigitalAdapterHandlersFactory {
      */
     private static JsonSerializer<Map<String, DigitalTwinStateRelationshipInstance<?>>> getRelationshipInstancesSerializer(){
         return (stringDigitalTwinStateRelationshipInstanceMap, type, jsonSerializationContext) ->
-                new Gson().toJsonTree(new LinkedList<>(stringDigitalTwinStateRelationshipInstanceMap.values()), LinkedList.class);
+                DEFAULT_GSON.toJsonTree(new LinkedList<>(stringDigitalTwinStateRelationshipInstanceMap.values()), LinkedList.class);
+    }
+
+    /**
+     * Returns a serializer writing an {@link Instant} (e.g., the evaluation instant of the stored DT States) as epoch
+     * milliseconds, consistently with the other timestamps exposed by the adapter.
+     *
+     * @return A custom Gson serializer for instants.
+     */
+    private static JsonSerializer<Instant> getInstantSerializer(){
+        return (instant, type, jsonSerializationContext) -> new JsonPrimitive(instant.toEpochMilli());
+    }
+
+    /**
+     * Returns a serializer writing an {@link Optional} as its value or as null if empty.
+     *
+     * @return A custom Gson serializer for optionals.
+     */
+    private static JsonSerializer<Optional<?>> getOptionalSerializer(){
+        return (optional, type, jsonSerializationContext) ->
+                optional.isPresent() ? jsonSerializationContext.serialize(optional.get()) : JsonNull.INSTANCE;
     }
 }
@@ -0,0 +1,393 @@
+package it.wldt.adapter.http.digital.server;
+
+import io.undertow.server.ExchangeCompletionListener;
+import io.undertow.server.HttpHandler;
+import io.undertow.server.HttpServerExchange;
+import io.undertow.util.Headers;
+import io.undertow.util.HttpString;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.LongSupplier;
+
+/**
+ * Per-route performance metrics of the HTTP Digital Adapter exposed in the Prometheus text exposition format.
+ * For each registered route the registry records a latency histogram with fixed log-spaced buckets, the number of
+ * responses for each status code, the response bytes and the requests currently in flight.
+ * The counters are allocated when the route is registered, except for the status code counters that are added the
+ * first time a status code is returned by the route (only a few codes are expected for each route). The recording
+ * path then only performs atomic updates on them (no allocation per request), so that measuring the adapter does not
+ * distort its performance.
+ * The latency is measured from the request start time recorded by Undertow
+ * ({@link io.undertow.UndertowOptions#RECORD_REQUEST_START_TIME}) to the completion of the exchange.
+ * A registry can be shared by the adapters of the same server: the routes registered by more adapters with the same
+ * method and path template share their metrics, while the gauges of each adapter are exported with the
+ * {@code digital_twin} label and removed when the adapter stops.
+ *
+ * @author Marco Picone, Ph.D. - picone.m@gmail.com, Marta Spadoni University of Bologna
+ */
+public class HttpDigitalAdapterMetrics {
+
+    /**
+     * The content type of the Prometheus text exposition format
+     */
+    public final static String PROMETHEUS_CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    /**
+     * Default upper bounds of the latency histogram buckets in seconds
+     */
+    public final static double[] DEFAULT_LATENCY_BUCKETS = {0.0001, 0.00025, 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10};
+
+    /**
+     * Prefix of all the exported metric names
+     */
+    private final static String METRIC_PREFIX = "wldt_http_da_";
+
+    /**
+     * Metrics recorded for a single route, shared by all the exchanges of the route as completion listener
+     */
+    private static class RouteMetrics implements ExchangeCompletionListener {
+
+        private final String method;
+
+        private final String route;
+
+        private final long[] bucketBoundsNanos;
+
+        private final AtomicLongArray bucketCounts;
+
+        private final AtomicLong latencySumNanos = new AtomicLong(0);
+
+        /**
+         * Status codes returned by the route with their counters, replaced when a new status code is returned
+         */
+        private volatile StatusCounts statusCounts = new StatusCounts(new int[0], new AtomicLong[0]);
+
+        private final AtomicLong responseBytes = new AtomicLong(0);
+
+        private final AtomicLong inFlight = new AtomicLong(0);
+
+        private RouteMetrics(String method, String route, long[] bucketBoundsNanos) {
+            this.method = method;
+            this.route = route;
+            this.bucketBoundsNanos = bucketBoundsNanos;
+            // The last bucket collects the samples above the highest bound (+Inf)
+            this.bucketCounts = new AtomicLongArray(bucketBoundsNanos.length + 1);
+        }
+
+        @Override
+        public void exchangeEvent(HttpServerExchange exchange, NextListener nextListener) {
+            try {
+                inFlight.decrementAndGet();
+
+                recordStatusCode(exchange.getStatusCode());
+
+                responseBytes.addAndGet(exchange.getResponseBytesSent());
+
+                long startTime = exchange.getRequestStartTime();
+                if(startTime > 0)
+                    recordLatency(System.nanoTime() - startTime);
+            } finally {
+                nextListener.proceed();
+            }
+        }
+
+        private void recordStatusCode(int statusCode) {
+
+            StatusCounts currentCounts = statusCounts;
+            for(int i = 0; i < currentCounts.statusCodes.length; i++)
+                if(currentCounts.statusCodes[i] == statusCode) {
+                    currentCounts.counts[i].incrementAndGet();
+                    return;
+                }
+
+            // First response with this status code: the counters are copied with the new one
+            synchronized (this) {
+
+                currentCounts = statusCounts;
+                for(int i = 0; i < currentCounts.statusCodes.length; i++)
+                    if(currentCounts.statusCodes[i] == statusCode) {
+                        currentCounts.counts[i].incrementAndGet();
+                        return;
+                    }
+
+                int size = currentCounts.statusCodes.length;
+                int[] statusCodes = Arrays.copyOf(currentCounts.statusCodes, size + 1);
+                AtomicLong[] counts = Arrays.copyOf(currentCounts.counts, size + 1);
+                statusCodes[size] = statusCode;
+                counts[size] = new AtomicLong(1);
+                statusCounts = new StatusCounts(statusCodes, counts);
+            }
+        }
+
+        private void recordLatency(long latencyNanos) {
+            int index = Arrays.binarySearch(bucketBoundsNanos, latencyNanos);
+            bucketCounts.incrementAndGet(index >= 0 ? index : -index - 1);
+            latencySumNanos.addAndGet(latencyNanos);
+        }
+    }
+
+    /**
+     * Status codes returned by a route with their counters at the same index
+     */
+    private static class StatusCounts {
+
+        private final int[] statusCodes;
+
+        private final AtomicLong[] counts;
+
+        private StatusCounts(int[] statusCodes, AtomicLong[] counts) {
+            this.statusCodes = statusCodes;
+            this.counts = counts;
+        }
+    }
+
+    /**
+     * Gauge or counter whose value is read when the metrics are exported
+     */
+    private static class Gauge {
+
+        private final String name;
+
+        private final String help;
+
+        private final String type;
+
+        /**
+         * Digital Twin Id exported as label (null for the gauges of a registry owned by a single adapter)
+         */
+        private final String digitalTwinId;
+
+        private final LongSupplier valueSupplier;
+
+        private Gauge(String name, String help, String type, String digitalTwinId, LongSupplier valueSupplier) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+            this.digitalTwinId = digitalTwinId;
+            this.valueSupplier = valueSupplier;
+        }
+    }
+
+    /**
+     * Upper bounds of the latency histogram buckets in seconds
+     */
+    private final double[] latencyBuckets;
+
+    /**
+     * Upper bounds of the latency histogram buckets in nanoseconds
+     */
+    private final long[] latencyBucketsNanos;
+
+    /**
+     * Metrics of the registered routes
+     */
+    private final List<RouteMetrics> routeMetricsList = new ArrayList<>();
+
+    /**
+     * Additional gauges and counters exported with the route metrics
+     */
+    private final List<Gauge> gauges = new ArrayList<>();
+
+    /**
+     * Constructs a new metrics registry.
+     *
+     * @param latencyBuckets The increasing upper bounds of the latency histogram buckets in seconds.
+     */
+    public HttpDigitalAdapterMetrics(double[] latencyBuckets) {
+        this.latencyBuckets = latencyBuckets.clone();
+        this.latencyBucketsNanos = new long[latencyBuckets.length];
+        for(int i = 0; i < latencyBuckets.length; i++)
+            this.latencyBucketsNanos[i] = (long) (latencyBuckets[i] * 1_000_000_000L);
+    }
+
+    /**
+     * Wraps the handler of a route in order to record its metrics.
+     *
+     * @param method The HTTP method of the route.
+     * @param route The path template of the route.
+     * @param handler The handler of the route.
+     * @return The instrumented handler.
+     */
+    public synchronized HttpHandler instrument(HttpString method, String route, HttpHandler handler) {
+
+        final RouteMetrics routeMetrics = getRouteMetrics(method.toString(), route);
+
+        return exchange -> {
+            routeMetrics.inFlight.incrementAndGet();
+            exchange.addExchangeCompleteListener(routeMetrics);
+            handler.handleRequest(exchange);
+        };
+    }
+
+    /**
+     * Registers a gauge exported together with the route metrics.
+     *
+     * @param name The metric name (without the common prefix).
+     * @param help The metric description.
+     * @param valueSupplier The supplier of the current value.
+     */
+    public synchronized void registerGauge(String name, String help, LongSupplier valueSupplier) {
+        registerGauge(name, help, null, valueSupplier);
+    }
+
+    /**
+     * Registers a gauge of a Digital Twin exported together with the route metrics.
+     *
+     * @param name The metric name (without the common prefix).
+     * @param help The metric description.
+     * @param digitalTwinId The Digital Twin Id exported as label (null to export the gauge without labels).
+     * @param valueSupplier The supplier of the current value.
+     */
+    public synchronized void registerGauge(String name, String help, String digitalTwinId, LongSupplier valueSupplier) {
+        gauges.add(new Gauge(METRIC_PREFIX + name, help, "gauge", digitalTwinId, valueSupplier));
+    }
+
+    /**
+     * Registers a counter, maintained outside the registry, exported together with the route metrics.
+     *
+     * @param name The metric name (without the common prefix).
+     * @param help The metric description.
+     * @param valueSupplier The supplier of the current (monotonically increasing) value.
+     */
+    public synchronized void registerCounter(String name, String help, LongSupplier valueSupplier) {
+        registerCounter(name, help, null, valueSupplier);
+    }
+
+    /**
+     * Registers a counter of a Digital Twin, maintained outside the registry, exported together with the route metrics.
+     *
+     * @param name The metric name (without the common prefix).
+     * @param help The metric description.
+     * @param digitalTwinId The Digital Twin Id exported as label (null to export the counter without labels).
+     * @param valueSupplier The supplier of the current (monotonically increasing) value.
+     */
+    public synchronized void registerCounter(String name, String help, String digitalTwinId, LongSupplier valueSupplier) {
+        gauges.add(new Gauge(METRIC_PREFIX + name, help, "counter", digitalTwinId, valueSupplier));
+    }
+
+    /**
+     * Removes the gauges and the counters registered for a Digital Twin.
+     *
+     * @param digitalTwinId The Digital Twin Id.
+     */
+    public synchronized void unregisterDigitalTwin(String digitalTwinId) {
+        gauges.removeIf(gauge -> digitalTwinId.equals(gauge.digitalTwinId));
+    }
+
+    /**
+     * Creates the handler of the /metrics endpoint.
+     *
+     * @return The handler exporting the metrics in the Prometheus text format.
+     */
+    public HttpHandler createHandler() {
+        return exchange -> {
+            exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, PROMETHEUS_CONTENT_TYPE);
+            exchange.getResponseSender().send(export());
+        };
+    }
+
+    /**
+     * Exports all the metrics in the Prometheus text exposition format.
+     *
+     * @return The exported metrics.
+     */
+    public synchronized String export() {
+
+        StringBuilder builder = new StringBuilder(4096);
+
+        appendHeader(builder, "requests_total", "Total number of completed HTTP requests.", "counter");
+        for(RouteMetrics routeMetrics : routeMetricsList) {
+            StatusCounts statusCounts = routeMetrics.statusCounts;
+            int[] sortedStatusCodes = statusCounts.statusCodes.clone();
+            Arrays.sort(sortedStatusCodes);
+            for(int statusCode : sortedStatusCodes)
+                for(int i = 0; i < statusCounts.statusCodes.length; i++)
+                    if(statusCounts.statusCodes[i] == statusCode)
+                        appendSample(builder, "requests_total", routeMetrics, ",code=\"" + statusCode + "\"", statusCounts.counts[i].get());
+        }
+
+        appendHeader(builder, "request_duration_seconds", "HTTP request latency in seconds.", "histogram");
+        for(RouteMetrics routeMetrics : routeMetricsList) {
+            long cumulativeCount = 0;
+            for(int i = 0; i < latencyBuckets.length; i++) {
+                cumulativeCount += routeMetrics.bucketCounts.get(i);
+                appendSample(builder, "request_duration_seconds_bucket", routeMetrics, ",le=\"" + formatDouble(latencyBuckets[i]) + "\"", cumulativeCount);
+            }
+            cumulativeCount += routeMetrics.bucketCounts.get(latencyBuckets.length);
+            appendSample(builder, "request_duration_seconds_bucket", routeMetrics, ",le=\"+Inf\"", cumulativeCount);
+            appendSample(builder, "request_duration_seconds_sum", routeMetrics, "", formatDouble(routeMetrics.latencySumNanos.get() / 1_000_000_000.0));
+            appendSample(builder, "request_duration_seconds_count", routeMetrics, "", cumulativeCount);
+        }
+
+        appendHeader(builder, "response_bytes_total", "Total number of response bytes sent.", "counter");
+        for(RouteMetrics routeMetrics : routeMetricsList)
+            appendSample(builder, "response_bytes_total", routeMetrics, "", routeMetrics.responseBytes.get());
+
+        appendHeader(builder, "requests_in_flight", "Number of HTTP requests currently in progress.", "gauge");
+        for(RouteMetrics routeMetrics : routeMetricsList)
+            appendSample(builder, "requests_in_flight", routeMetrics, "", routeMetrics.inFlight.get());
+
+        // The samples of the same gauge registered by different Digital Twins are exported together
+        Map<String, List<Gauge>> gaugesByName = new LinkedHashMap<>();
+        for(Gauge gauge : gauges)
+            gaugesByName.computeIfAbsent(gauge.name, name -> new ArrayList<>()).add(gauge);
+
+        for(List<Gauge> namedGauges : gaugesByName.values()) {
+            Gauge firstGauge = namedGauges.get(0);
+            builder.append("# HELP ").append(firstGauge.name).append(' ').append(firstGauge.help).append('\n');
+            builder.append("# TYPE ").append(firstGauge.name).append(' ').append(firstGauge.type).append('\n');
+            for(Gauge gauge : namedGauges) {
+                builder.append(gauge.name);
+                if(gauge.digitalTwinId != null)
+                    builder.append("{digital_twin=\"").append(gauge.digitalTwinId.replace("\\", "\\\\").replace("\"", "\\\"")).append("\"}");
+                builder.append(' ').append(gauge.valueSupplier.getAsLong()).append('\n');
+            }
+        }
+
+        return builder.toString();
+    }
+
+    /**
+     * Retrieves the metrics of a route, creating them when the route is registered for the first time.
+     *
+     * @param method The HTTP method of the route.
+     * @param route The path template of the route.
+     * @return The metrics of the route.
+     */
+    private RouteMetrics getRouteMetrics(String method, String route) {
+
+        for(RouteMetrics routeMetrics : routeMetricsList)
+            if(routeMetrics.method.equals(method) && routeMetrics.route.equals(route))
+                return routeMetrics;
+
+        RouteMetrics routeMetrics = new RouteMetrics(method, route, latencyBucketsNanos);
+        routeMetricsList.add(routeMetrics);
+        return routeMetrics;
+    }
+
+    private static void appendHeader(StringBuilder builder, String name, String help, String type) {
+        builder.append("# HELP ").append(METRIC_PREFIX).append(name).append(' ').append(help).append('\n');
+        builder.append("# TYPE ").append(METRIC_PREFIX).append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void appendSample(StringBuilder builder, String name, RouteMetrics routeMetrics, String extraLabels, Object value) {
+        builder.append(METRIC_PREFIX).append(name)
+                .append("{method=\"").append(routeMetrics.method)
+                .append("\",route=\"").append(routeMetrics.route).append('"')
+                .append(extraLabels)
+                .append("} ").append(value).append('\n');
+    }
+
+    private static String formatDouble(double value) {
+        String formatted = String.format(Locale.ROOT, "%.6f", value);
+        formatted = formatted.replaceAll("0+$", "");
+        return formatted.endsWith(".") ? formatted + "0" : formatted;
+    }
+}
@@ -0,0 +1,161 @@
+package it.wldt.adapter.http.digital.server;
+
+import com.google.gson.Gson;
+import io.undertow.io.IoCallback;
+import io.undertow.io.Sender;
+import io.undertow.server.HttpServerExchange;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xnio.IoUtils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+
+/**
+ * Streams a sequence of items as newline delimited JSON (NDJSON, one JSON document per line) through the
+ * Undertow response sender. Items are serialized lazily into chunks of bounded size and the next chunk is produced
+ * only when the previous one has been written to the connection, so the memory used by the response stays constant
+ * regardless of the number of items, and the first records reach the client without waiting for the whole result.
+ * Responses spanning multiple chunks use the chunked transfer encoding since their length is not known in advance.
+ * <p>
+ * Only the serialized output is bounded: the items are still held by the source of the iterator, e.g., the
+ * QueryResult of a storage query is fully materialized by the storage manager before the response starts, so the
+ * memory of the result itself grows with the number of records.
+ *
+ * @author Marco Picone, Ph.D. - picone.m@gmail.com, Marta Spadoni University of Bologna
+ */
+public class HttpDigitalAdapterNdjsonSender implements IoCallback {
+
+    private final static Logger logger = LoggerFactory.getLogger(HttpDigitalAdapterNdjsonSender.class);
+
+    /**
+     * The content type of NDJSON responses
+     */
+    public final static String NDJSON_CONTENT_TYPE = "application/x-ndjson";
+
+    /**
+     * Size threshold of the serialized chunks sent to the connection
+     */
+    private final static int CHUNK_SIZE = 16 * 1024;
+
+    /**
+     * The target exchange
+     */
+    private final HttpServerExchange exchange;
+
+    /**
+     * Items still to be sent
+     */
+    private final Iterator<?> itemIterator;
+
+    /**
+     * Gson instance used to serialize each item
+     */
+    private final Gson gson;
+
+    /**
+     * Buffer reused to build the chunks
+     */
+    private final StringBuilder chunkBuilder = new StringBuilder(CHUNK_SIZE + 1024);
+
+    /**
+     * True once the first chunk has been produced and the response is committed
+     */
+    private boolean started = false;
+
+    /**
+     * True while the sender is writing a chunk from the sending loop
+     */
+    private boolean sending = false;
+
+    /**
+     * True if the write of the current chunk completed before the sender returned
+     */
+    private boolean completedSynchronously = false;
+
+    private HttpDigitalAdapterNdjsonSender(HttpServerExchange exchange, Iterator<?> itemIterator, Gson gson) {
+        this.exchange = exchange;
+        this.itemIterator = itemIterator;
+        this.gson = gson;
+    }
+
+    /**
+     * Streams the items on the exchange as NDJSON and ends the exchange once all the items have been written.
+     * The response headers have to be set before calling this method. Errors serializing the first chunk are
+     * thrown to the caller, which can still send an error response, while later errors close the connection
+     * in order to make the truncation of the stream detectable by the client.
+     *
+     * @param exchange The target exchange.
+     * @param items The items to stream.
+     * @param gson The Gson instance used to serialize each item.
+     */
+    public static void send(HttpServerExchange exchange, Iterable<?> items, Gson gson) {
+        new HttpDigitalAdapterNdjsonSender(exchange, items.iterator(), gson).sendChunks(exchange.getResponseSender());
+    }
+
+    @Override
+    public void onComplete(HttpServerExchange exchange, Sender sender) {
+        // Chunks completed within the sending loop are handled by the loop itself, avoiding a deep recursion
+        if(sending)
+            completedSynchronously = true;
+        else
+            sendChunks(sender);
+    }
+
+    @Override
+    public void onException(HttpServerExchange exchange, Sender sender, IOException exception) {
+        logger.debug("NDJSON streaming interrupted: {}", exception.toString());
+        IoCallback.END_EXCHANGE.onException(exchange, sender, exception);
+    }
+
+    /**
+     * Writes the next chunks until a write does not complete immediately (its completion callback resumes the loop)
+     * or all the items have been sent.
+     *
+     * @param sender The response sender.
+     */
+    private void sendChunks(Sender sender) {
+        do {
+            ByteBuffer chunk;
+
+            try {
+                chunk = nextChunk();
+                started = true;
+            } catch (RuntimeException e) {
+                if(!started)
+                    throw e;
+                logger.warn("Error serializing NDJSON item ! Closing the response stream. Error: {}", e.toString());
+                IoUtils.safeClose(exchange.getConnection());
+                return;
+            }
+
+            if(chunk == null) {
+                sender.close(IoCallback.END_EXCHANGE);
+                return;
+            }
+
+            completedSynchronously = false;
+            sending = true;
+            sender.send(chunk, this);
+            sending = false;
+
+        } while(completedSynchronously);
+    }
+
+    /**
+     * Serializes the next items into a chunk.
+     *
+     * @return The next chunk or null if all the items have been sent.
+     */
+    private ByteBuffer nextChunk() {
+
+        chunkBuilder.setLength(0);
+
+        while(chunkBuilder.length() < CHUNK_SIZE && itemIterator.hasNext())
+            chunkBuilder.append(gson.toJson(itemIterator.next())).append('\n');
+
+        return (chunkBuilder.length() > 0) ? ByteBuffer.wrap(chunkBuilder.toString().getBytes(StandardCharsets.UTF_8)) : null;
+    }
+}
@@ -0,0 +1,425 @@
+package it.wldt.adapter.http.digital.server;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import it.wldt.core.state.DigitalTwinState;
+import it.wldt.core.state.DigitalTwinStateProperty;
+import it.wldt.storage.model.physical.PhysicalAssetPropertyVariationRecord;
+import it.wldt.storage.model.state.DigitalTwinStateRecord;
+import it.wldt.storage.query.QueryResourceType;
+import it.wldt.storage.query.QueryResult;
+
+import java.util.*;
+
+/**
+ * Server-side downsampling of the property history returned by a Storage Query, so that charts receive a bounded
+ * number of points regardless of the size of the queried range. Two modes are supported:
+ * <ul>
+ *     <li>Bucket aggregation ({@code bucketMs}): the samples of each property are grouped in time buckets aligned to
+ *     the epoch and reduced with the requested functions (min, max, avg, last, count).</li>
+ *     <li>Largest-Triangle-Three-Buckets ({@code lttbPoints}): the samples of each property are reduced to the
+ *     requested number of points preserving the visual shape of the series.</li>
+ * </ul>
+ * The samples are extracted from the Physical Asset property variations (property key, timestamp and numeric value) or
+ * from the stored DT States (numeric properties at the evaluation instant of each state). Non numeric values are
+ * ignored. The number of buckets of each series is bounded by enlarging the requested bucket size when needed, and
+ * the number of LTTB points is bounded by the same maximum.
+ *
+ * @author Marco Picone, Ph.D. - picone.m@gmail.com, Marta Spadoni University of Bologna
+ */
+public class HttpDigitalAdapterQueryAggregation {
+
+    /**
+     * Supported aggregation functions
+     */
+    public enum AggregationFunction {
+        MIN, MAX, AVG, LAST, COUNT
+    }
+
+    /**
+     * The query body field with the size of the aggregation buckets.
+     */
+    public final static String BUCKET_MS_FIELD = "bucketMs";
+
+    /**
+     * The query body field with the list of aggregation functions.
+     */
+    public final static String AGGREGATIONS_FIELD = "aggregations";
+
+    /**
+     * The query body field with the number of points of the LTTB downsampling.
+     */
+    public final static String LTTB_POINTS_FIELD = "lttbPoints";
+
+    /**
+     * The query body field with the optional property key used to filter the samples.
+     */
+    public final static String PROPERTY_KEY_FIELD = "propertyKey";
+
+    /**
+     * Minimum number of points of the LTTB downsampling (the first and last points are always kept)
+     */
+    private final static int MIN_LTTB_POINTS = 3;
+
+    /**
+     * Aggregation bucket of a single property
+     */
+    private static class Bucket {
+
+        private long count = 0;
+
+        private double min = Double.POSITIVE_INFINITY;
+
+        private double max = Double.NEGATIVE_INFINITY;
+
+        private double sum = 0;
+
+        private double last;
+
+        private long lastTimestamp = Long.MIN_VALUE;
+
+        private void add(long timestamp, double value) {
+            count++;
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+            sum += value;
+            if(timestamp >= lastTimestamp) {
+                last = value;
+                lastTimestamp = timestamp;
+            }
+        }
+    }
+
+    /**
+     * Raw samples of a single property collected for the LTTB downsampling
+     */
+    private static class Series {
+
+        private long[] timestamps = new long[64];
+
+        private double[] values = new double[64];
+
+        private int size = 0;
+
+        private boolean sorted = true;
+
+        private void add(long timestamp, double value) {
+            if(size == timestamps.length) {
+                timestamps = Arrays.copyOf(timestamps, size * 2);
+                values = Arrays.copyOf(values, size * 2);
+            }
+            if(size > 0 && timestamp < timestamps[size - 1])
+                sorted = false;
+            timestamps[size] = timestamp;
+            values[size] = value;
+            size++;
+        }
+
+        private void sort() {
+            if(sorted)
+                return;
+            Integer[] order = new Integer[size];
+            for(int i = 0; i < size; i++)
+                order[i] = i;
+            Arrays.sort(order, Comparator.comparingLong(i -> timestamps[i]));
+            long[] sortedTimestamps = new long[size];
+            double[] sortedValues = new double[size];
+            for(int i = 0; i < size; i++) {
+                sortedTimestamps[i] = timestamps[order[i]];
+                sortedValues[i] = values[order[i]];
+            }
+            timestamps = sortedTimestamps;
+            values = sortedValues;
+            sorted = true;
+        }
+    }
+
+    /**
+     * Size of the aggregation buckets (0 for the LTTB downsampling)
+     */
+    private final long bucketMs;
+
+    /**
+     * Maximum number of buckets of each series (the bucket size is enlarged when the samples span more buckets)
+     */
+    private final int maxBuckets;
+
+    /**
+     * Functions computed for each bucket
+     */
+    private final EnumSet<AggregationFunction> aggregationFunctions;
+
+    /**
+     * Number of points of the LTTB downsampling (0 for the bucket aggregation)
+     */
+    private final int lttbPoints;
+
+    /**
+     * Optional property key used to filter the samples
+     */
+    private final String propertyKey;
+
+    private HttpDigitalAdapterQueryAggregation(long bucketMs, int maxBuckets, EnumSet<AggregationFunction> aggregationFunctions, int lttbPoints, String propertyKey) {
+        this.bucketMs = bucketMs;
+        this.maxBuckets = maxBuckets;
+        this.aggregationFunctions = aggregationFunctions;
+        this.lttbPoints = lttbPoints;
+        this.propertyKey = propertyKey;
+    }
+
+    /**
+     * Reads the downsampling options from the body of a Storage Query.
+     *
+     * @param resourceType The resource type of the query.
+     * @param requestJson The query body.
+     * @param maxBuckets The maximum number of buckets of each series of the bucket aggregation, also capping the
+     *                   number of points of the LTTB downsampling.
+     * @return The downsampling options or null if the query does not request any downsampling.
+     * @throws IllegalArgumentException If the options are not valid or not supported for the resource type.
+     */
+    public static HttpDigitalAdapterQueryAggregation fromJson(QueryResourceType resourceType, JsonObject requestJson, int maxBuckets) {
+
+        boolean bucketAggregation = requestJson.has(BUCKET_MS_FIELD);
+        boolean lttbDownsampling = requestJson.has(LTTB_POINTS_FIELD);
+
+        if(!bucketAggregation && !lttbDownsampling)
+            return null;
+
+        if(bucketAggregation && lttbDownsampling)
+            throw new IllegalArgumentException(String.format("%s and %s cannot be used together", BUCKET_MS_FIELD, LTTB_POINTS_FIELD));
+
+        if(resourceType != QueryResourceType.PHYSICAL_ASSET_PROPERTY_VARIATION && resourceType != QueryResourceType.DIGITAL_TWIN_STATE)
+            throw new IllegalArgumentException(String.format("Downsampling not supported for %s", resourceType));
+
+        String propertyKey = requestJson.has(PROPERTY_KEY_FIELD) ? requestJson.get(PROPERTY_KEY_FIELD).getAsString() : null;
+
+        if(lttbDownsampling) {
+            int lttbPoints = requestJson.get(LTTB_POINTS_FIELD).getAsInt();
+            if(lttbPoints < MIN_LTTB_POINTS)
+                throw new IllegalArgumentException(String.format("%s must be at least %d", LTTB_POINTS_FIELD, MIN_LTTB_POINTS));
+            // Larger requests are capped like the buckets, and the applied number of points is reported in the response
+            int appliedLttbPoints = Math.min(lttbPoints, Math.max(maxBuckets, MIN_LTTB_POINTS));
+            return new HttpDigitalAdapterQueryAggregation(0, 0, EnumSet.noneOf(AggregationFunction.class), appliedLttbPoints, propertyKey);
+        }
+
+        long bucketMs = requestJson.get(BUCKET_MS_FIELD).getAsLong();
+        if(bucketMs <= 0)
+            throw new IllegalArgumentException(String.format("%s must be positive", BUCKET_MS_FIELD));
+
+        EnumSet<AggregationFunction> aggregationFunctions = EnumSet.noneOf(AggregationFunction.class);
+        if(requestJson.has(AGGREGATIONS_FIELD)) {
+            for(JsonElement aggregation : requestJson.getAsJsonArray(AGGREGATIONS_FIELD)) {
+                try {
+                    aggregationFunctions.add(AggregationFunction.valueOf(aggregation.getAsString().toUpperCase(Locale.ROOT)));
+                } catch (IllegalArgumentException e) {
+                    throw new IllegalArgumentException(String.format("Unknown aggregation function %s", aggregation.getAsString()));
+                }
+            }
+        }
+        if(aggregationFunctions.isEmpty())
+            aggregationFunctions.add(AggregationFunction.AVG);
+
+        return new HttpDigitalAdapterQueryAggregation(bucketMs, maxBuckets, aggregationFunctions, 0, propertyKey);
+    }
+
+    /**
+     * Downsamples the results of a successful Storage Query.
+     *
+     * @param queryResult The query result.
+     * @return The response with the original request, the number of raw results and the downsampled series.
+     */
+    public JsonObject apply(QueryResult<?> queryResult) {
+
+        JsonObject responseObj = new JsonObject();
+        responseObj.add("originalRequest", HttpDigitalAdapterHandlersFactory.getDefaultGson().toJsonTree(queryResult.getOriginalRequest()));
+        responseObj.addProperty("isSuccessful", true);
+        responseObj.addProperty("totalResults", queryResult.getTotalResults());
+
+        JsonArray seriesArray = new JsonArray();
+
+        if(lttbPoints > 0) {
+            responseObj.addProperty(LTTB_POINTS_FIELD, lttbPoints);
+            Map<String, Series> seriesMap = new LinkedHashMap<>();
+            forEachSample(queryResult, (key, timestamp, value) -> seriesMap.computeIfAbsent(key, k -> new Series()).add(timestamp, value));
+            seriesMap.forEach((key, series) -> seriesArray.add(createSeriesObject(key, downsampleLttb(series))));
+        }
+        else {
+            long appliedBucketMs = getAppliedBucketMs(queryResult);
+            responseObj.addProperty(BUCKET_MS_FIELD, appliedBucketMs);
+            Map<String, TreeMap<Long, Bucket>> bucketsMap = new LinkedHashMap<>();
+            forEachSample(queryResult, (key, timestamp, value) -> bucketsMap.computeIfAbsent(key, k -> new TreeMap<>())
+                    .computeIfAbsent(Math.floorDiv(timestamp, appliedBucketMs) * appliedBucketMs, b -> new Bucket())
+                    .add(timestamp, value));
+            bucketsMap.forEach((key, buckets) -> seriesArray.add(createSeriesObject(key, createBucketPoints(buckets))));
+        }
+
+        responseObj.add("series", seriesArray);
+
+        return responseObj;
+    }
+
+    /**
+     * Enlarges the requested bucket size when the time span of the samples would produce more than the maximum number
+     * of buckets, so that the memory and the size of the response stay bounded for any queried range.
+     *
+     * @param queryResult The query result.
+     * @return The bucket size applied to the samples.
+     */
+    private long getAppliedBucketMs(QueryResult<?> queryResult) {
+
+        long[] timeSpan = {Long.MAX_VALUE, Long.MIN_VALUE};
+        forEachSample(queryResult, (key, timestamp, value) -> {
+            timeSpan[0] = Math.min(timeSpan[0], timestamp);
+            timeSpan[1] = Math.max(timeSpan[1], timestamp);
+        });
+
+        if(timeSpan[0] > timeSpan[1])
+            return bucketMs;
+
+        // With epoch aligned buckets a span shorter than (maxBuckets - 1) buckets never exceeds maxBuckets buckets
+        long spanMs = timeSpan[1] - timeSpan[0] + 1;
+        long minBucketMs = spanMs / (maxBuckets - 1) + ((spanMs % (maxBuckets - 1) == 0) ? 0 : 1);
+
+        return Math.max(bucketMs, minBucketMs);
+    }
+
+    /**
+     * Consumer of the numeric samples extracted from the query results
+     */
+    private interface SampleConsumer {
+        void accept(String key, long timestamp, double value);
+    }
+
+    private void forEachSample(QueryResult<?> queryResult, SampleConsumer sampleConsumer) {
+
+        if(queryResult.getResults() == null)
+            return;
+
+        for(Object result : queryResult.getResults()) {
+
+            if(result instanceof PhysicalAssetPropertyVariationRecord) {
+                PhysicalAssetPropertyVariationRecord variationRecord = (PhysicalAssetPropertyVariationRecord) result;
+                if(variationRecord.getBody() instanceof Number && (propertyKey == null || propertyKey.equals(variationRecord.getPropertykey())))
+                    sampleConsumer.accept(variationRecord.getPropertykey(), variationRecord.getTimestamp(), ((Number) variationRecord.getBody()).doubleValue());
+            }
+            else if(result instanceof DigitalTwinStateRecord) {
+                DigitalTwinState digitalTwinState = ((DigitalTwinStateRecord) result).getCurrentState();
+                if(digitalTwinState == null || digitalTwinState.getEvaluationInstant() == null)
+                    continue;
+                try {
+                    long timestamp = digitalTwinState.getEvaluationInstant().toEpochMilli();
+                    for(DigitalTwinStateProperty<?> property : digitalTwinState.getPropertyList().orElse(Collections.emptyList()))
+                        if(property.getValue() instanceof Number && (propertyKey == null || propertyKey.equals(property.getKey())))
+                            sampleConsumer.accept(property.getKey(), timestamp, ((Number) property.getValue()).doubleValue());
+                } catch (Exception e) {
+                    throw new IllegalStateException("Error reading the DT State properties: " + e.getMessage(), e);
+                }
+            }
+        }
+    }
+
+    private JsonArray createBucketPoints(TreeMap<Long, Bucket> buckets) {
+
+        JsonArray pointsArray = new JsonArray();
+
+        buckets.forEach((bucketStart, bucket) -> {
+            JsonObject pointObj = new JsonObject();
+            pointObj.addProperty("timestamp", bucketStart);
+            for(AggregationFunction aggregationFunction : aggregationFunctions) {
+                switch (aggregationFunction) {
+                    case MIN: pointObj.addProperty("min", bucket.min); break;
+                    case MAX: pointObj.addProperty("max", bucket.max); break;
+                    case AVG: pointObj.addProperty("avg", bucket.sum / bucket.count); break;
+                    case LAST: pointObj.addProperty("last", bucket.last); break;
+                    case COUNT: pointObj.addProperty("count", bucket.count); break;
+                }
+            }
+            pointsArray.add(pointObj);
+        });
+
+        return pointsArray;
+    }
+
+    /**
+     * Selects the points of a series through the Largest-Triangle-Three-Buckets algorithm: the first and last points
+     * are kept and, for each of the remaining buckets, the point forming the largest triangle with the previously
+     * selected point and the average of the next bucket.
+     *
+     * @param series The series to downsample.
+     * @return The selected points.
+     */
+    private JsonArray downsampleLttb(Series series) {
+
+        series.sort();
+
+        int size = series.size;
+        long[] timestamps = series.timestamps;
+        double[] values = series.values;
+
+        JsonArray pointsArray = new JsonArray();
+
+        if(size <= lttbPoints) {
+            for(int i = 0; i < size; i++)
+                pointsArray.add(createValuePoint(timestamps[i], values[i]));
+            return pointsArray;
+        }
+
+        // Timestamps are made relative to the first sample to preserve their precision as doubles
+        long origin = timestamps[0];
+        double every = (double) (size - 2) / (lttbPoints - 2);
+        int selected = 0;
+
+        pointsArray.add(createValuePoint(timestamps[0], values[0]));
+
+        for(int i = 0; i < lttbPoints - 2; i++) {
+
+            int averageStart = (int) Math.floor((i + 1) * every) + 1;
+            int averageEnd = Math.min((int) Math.floor((i + 2) * every) + 1, size);
+            double averageX = 0;
+            double averageY = 0;
+            for(int j = averageStart; j < averageEnd; j++) {
+                averageX += timestamps[j] - origin;
+                averageY += values[j];
+            }
+            averageX /= (averageEnd - averageStart);
+            averageY /= (averageEnd - averageStart);
+
+            int rangeStart = (int) Math.floor(i * every) + 1;
+            int rangeEnd = (int) Math.floor((i + 1) * every) + 1;
+            double selectedX = timestamps[selected] - origin;
+            double selectedY = values[selected];
+
+            double maxArea = -1;
+            int next = rangeStart;
+            for(int j = rangeStart; j < rangeEnd; j++) {
+                double area = Math.abs((selectedX - averageX) * (values[j] - selectedY) - (selectedX - (timestamps[j] - origin)) * (averageY - selectedY));
+                if(area > maxArea) {
+                    maxArea = area;
+                    next = j;
+                }
+            }
+
+            pointsArray.add(createValuePoint(timestamps[next], values[next]));
+            selected = next;
+        }
+
+        pointsArray.add(createValuePoint(timestamps[size - 1], values[size - 1]));
+
+        return pointsArray;
+    }
+
+    private static JsonObject createValuePoint(long timestamp, double value) {
+        JsonObject pointObj = new JsonObject();
+        pointObj.addProperty("timestamp", timestamp);
+        pointObj.addProperty("value", value);
+        return pointObj;
+    }
+
+    private static JsonObject createSeriesObject(String key, JsonArray pointsArray) {
+        JsonObject seriesObj = new JsonObject();
+        seriesObj.addProperty("key", key);
+        seriesObj.add("points", pointsArray);
+        return seriesObj;
+    }
+}
@@ -0,0 +1,234 @@
+package it.wldt.adapter.http.digital.server;
+
+import com.google.gson.Gson;
+import it.wldt.storage.query.QueryRequest;
+import it.wldt.storage.query.QueryResult;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Deduplicates the concurrent executions of equivalent Storage Queries (single-flight). While a query is in flight,
+ * the requests with the same normalized {@link QueryRequest} ({@link HttpDigitalAdapterQueryKey}) do not start a new
+ * execution but wait for the running one, and all of them share its result and its JSON serialization, which is
+ * produced once. The storage load is therefore bounded to one execution per distinct query, regardless of the number
+ * of clients asking for it at the same time.
+ * Each caller receives a dedicated future, so that the timeout or the disconnection of a client does not affect the
+ * other clients waiting for the same execution. When a caller times out (its future is completed with a
+ * {@link TimeoutException}) the execution is no longer shared, so that a storage result that never arrives does not
+ * hold the query: the following requests start a new execution instead of joining the stale one. Each caller leaves
+ * the execution when its future completes, either with the result, a timeout or a cancellation (e.g., its client
+ * disconnected): when all the callers left before the result is available, the execution is cancelled as well.
+ *
+ * @author Marco Picone, Ph.D. - picone.m@gmail.com, Marta Spadoni University of Bologna
+ */
+public class HttpDigitalAdapterQueryCoalescer {
+
+    /**
+     * Result of a query shared by all the coalesced requests, with its lazily computed JSON serialization
+     */
+    public static class SharedQueryResult {
+
+        private final QueryResult<?> queryResult;
+
+        private final Gson gson;
+
+        private volatile byte[] jsonBytes;
+
+        private SharedQueryResult(QueryResult<?> queryResult, Gson gson) {
+            this.queryResult = queryResult;
+            this.gson = gson;
+        }
+
+        /**
+         * Retrieves the shared query result.
+         *
+         * @return The query result.
+         */
+        public QueryResult<?> getQueryResult() {
+            return queryResult;
+        }
+
+        /**
+         * Retrieves the JSON serialization of the query result, computed by the first caller and then reused.
+         *
+         * @return The UTF-8 encoded JSON serialization (not to be modified).
+         */
+        public byte[] getJsonBytes() {
+            byte[] result = jsonBytes;
+            if(result == null) {
+                synchronized (this) {
+                    result = jsonBytes;
+                    if(result == null)
+                        jsonBytes = result = gson.toJson(queryResult).getBytes(StandardCharsets.UTF_8);
+                }
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Execution of a query shared by the callers waiting for it
+     */
+    private static class Execution {
+
+        private final CompletableFuture<SharedQueryResult> resultFuture = new CompletableFuture<>();
+
+        // Number of callers waiting for the result, -1 once all of them left
+        private final AtomicInteger waiterCount = new AtomicInteger(1);
+
+        private volatile CompletableFuture<QueryResult<?>> queryResultFuture;
+
+        private boolean tryJoin() {
+            for(int count = waiterCount.get(); count > 0; count = waiterCount.get())
+                if(waiterCount.compareAndSet(count, count + 1))
+                    return true;
+            return false;
+        }
+
+        private boolean leave() {
+            return waiterCount.decrementAndGet() == 0 && waiterCount.compareAndSet(0, -1);
+        }
+    }
+
+    /**
+     * Gson instance used to serialize the shared results
+     */
+    private final Gson gson;
+
+    /**
+     * Executions in flight for each normalized query (or custom query key)
+     */
+    private final ConcurrentHashMap<Object, Execution> inFlightQueries = new ConcurrentHashMap<>();
+
+    /**
+     * Number of executed queries
+     */
+    private final AtomicLong executionCount = new AtomicLong(0);
+
+    /**
+     * Number of requests served by joining an execution already in flight
+     */
+    private final AtomicLong coalescedCount = new AtomicLong(0);
+
+    /**
+     * Constructs a new query coalescer.
+     *
+     * @param gson The Gson instance used to serialize the shared results.
+     */
+    public HttpDigitalAdapterQueryCoalescer(Gson gson) {
+        this.gson = gson;
+    }
+
+    /**
+     * Executes a query or joins the execution of an equivalent query already in flight.
+     *
+     * @param queryRequest The query request.
+     * @param queryExecutionFunction The function starting the asynchronous execution of a query.
+     * @return A future, dedicated to the caller, completed with the shared result.
+     */
+    public CompletableFuture<SharedQueryResult> execute(QueryRequest queryRequest, Function<QueryRequest, CompletableFuture<QueryResult<?>>> queryExecutionFunction) {
+        return execute(new HttpDigitalAdapterQueryKey(queryRequest), () -> queryExecutionFunction.apply(queryRequest));
+    }
+
+    /**
+     * Executes a query identified by a custom key, e.g. a page of a paginated query read through several query
+     * requests, or joins the execution with the same key already in flight.
+     *
+     * @param queryKey The key identifying equivalent executions (with value based equality).
+     * @param queryExecution The supplier starting the asynchronous execution.
+     * @return A future, dedicated to the caller, completed with the shared result.
+     */
+    public CompletableFuture<SharedQueryResult> execute(Object queryKey, Supplier<CompletableFuture<QueryResult<?>>> queryExecution) {
+
+        Execution execution = new Execution();
+
+        Execution inFlightExecution;
+
+        while((inFlightExecution = inFlightQueries.putIfAbsent(queryKey, execution)) != null) {
+
+            if(inFlightExecution.tryJoin()) {
+                coalescedCount.incrementAndGet();
+                return join(queryKey, inFlightExecution);
+            }
+
+            // The execution in flight is being cancelled since all its callers left
+            inFlightQueries.remove(queryKey, inFlightExecution);
+        }
+
+        executionCount.incrementAndGet();
+
+        try {
+            execution.queryResultFuture = queryExecution.get();
+            execution.queryResultFuture.whenComplete((queryResult, error) -> {
+                // Requests arriving from now on start a new execution, observing the latest records
+                inFlightQueries.remove(queryKey, execution);
+                if(error != null)
+                    execution.resultFuture.completeExceptionally(error);
+                else
+                    execution.resultFuture.complete(new SharedQueryResult(queryResult, gson));
+            });
+        } catch (RuntimeException e) {
+            inFlightQueries.remove(queryKey, execution);
+            execution.resultFuture.completeExceptionally(e);
+        }
+
+        return join(queryKey, execution);
+    }
+
+    /**
+     * Creates the future of a caller waiting for an execution. If the caller times out, the execution stops being
+     * shared with the following requests. The caller leaves the execution on every outcome of its future and, once
+     * the last caller left, the execution is cancelled (no effect if its result is already available).
+     *
+     * @param queryKey The key of the execution.
+     * @param execution The shared execution.
+     * @return The future dedicated to the caller.
+     */
+    private CompletableFuture<SharedQueryResult> join(Object queryKey, Execution execution) {
+        CompletableFuture<SharedQueryResult> callerFuture = execution.resultFuture.thenApply(Function.identity());
+        callerFuture.whenComplete((sharedQueryResult, error) -> {
+            if(error instanceof TimeoutException)
+                inFlightQueries.remove(queryKey, execution);
+            if(execution.leave()) {
+                inFlightQueries.remove(queryKey, execution);
+                if(execution.queryResultFuture != null)
+                    execution.queryResultFuture.cancel(false);
+            }
+        });
+        return callerFuture;
+    }
+
+    /**
+     * Retrieves the number of executed queries.
+     *
+     * @return The number of executions.
+     */
+    public long getExecutionCount() {
+        return executionCount.get();
+    }
+
+    /**
+     * Retrieves the number of requests served by joining an execution already in flight.
+     *
+     * @return The number of coalesced requests.
+     */
+    public long getCoalescedCount() {
+        return coalescedCount.get();
+    }
+
+    /**
+     * Retrieves the number of executions currently in flight.
+     *
+     * @return The number of in-flight executions.
+     */
+    public int getInFlightCount() {
+        return inFlightQueries.size();
+    }
+}
@@ -0,0 +1,335 @@
+package it.wldt.adapter.http.digital.server;
+
+import it.wldt.core.state.DigitalTwinState;
+import it.wldt.storage.model.digital.DigitalActionRequestRecord;
+import it.wldt.storage.model.lifecycle.LifeCycleVariationRecord;
+import it.wldt.storage.model.physical.*;
+import it.wldt.storage.model.state.DigitalTwinStateEventNotificationRecord;
+import it.wldt.storage.model.state.DigitalTwinStateRecord;
+import it.wldt.storage.query.QueryRequest;
+import it.wldt.storage.query.QueryRequestType;
+import it.wldt.storage.query.QueryResourceType;
+import it.wldt.storage.query.QueryResult;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+/**
+ * Continuation cursor of a paginated Storage Query. The cursor encodes the resource type, the request type, the
+ * queried range (time window or indexes), the position of the next page, the number of items already returned, the
+ * page size and the width of the time slices read for the next page, and is exchanged with the clients as an opaque
+ * URL-safe string.
+ * Pages of SAMPLE_RANGE queries are read directly through the index range of the page. Pages of TIME_RANGE queries
+ * are read through keyset pagination: the window is pinned to the time of the first request and each page starts
+ * from the timestamp of the last returned item, skipping the items with that timestamp already returned (the Storage
+ * Manager returns the results of TIME_RANGE queries ordered by time). Since the storage cannot limit the number of
+ * results of a TIME_RANGE query, each page is read through consecutive time slices until it is filled: the first
+ * slice is sized on the time covered by the previous page and each short slice doubles the next one, so a page
+ * fetches about {@code limit} records regardless of the size of the window.
+ * A cursor is issued only while the pages are full, so short pages always end the pagination.
+ *
+ * @author Marco Picone, Ph.D. - picone.m@gmail.com, Marta Spadoni University of Bologna
+ */
+public class HttpDigitalAdapterQueryCursor {
+
+    /**
+     * Version of the cursor encoding
+     */
+    private final static String CURSOR_VERSION = "3";
+
+    /**
+     * Separator of the encoded cursor fields
+     */
+    private final static String FIELD_SEPARATOR = ":";
+
+    private final QueryResourceType resourceType;
+
+    private final QueryRequestType requestType;
+
+    private final long start;
+
+    private final long end;
+
+    /**
+     * Items to skip from the start of the range (the items of TIME_RANGE pages with the start timestamp already returned)
+     */
+    private final int offset;
+
+    /**
+     * Items returned by the previous pages
+     */
+    private final long returned;
+
+    private final int limit;
+
+    /**
+     * Width in milliseconds of the first time slice read for a TIME_RANGE page (0 for SAMPLE_RANGE pages)
+     */
+    private final long sliceMs;
+
+    private HttpDigitalAdapterQueryCursor(QueryResourceType resourceType, QueryRequestType requestType, long start, long end, int offset, long returned, int limit, long sliceMs) {
+        this.resourceType = resourceType;
+        this.requestType = requestType;
+        this.start = start;
+        this.end = end;
+        this.offset = offset;
+        this.returned = returned;
+        this.limit = limit;
+        this.sliceMs = sliceMs;
+    }
+
+    /**
+     * Checks if a query can be paginated.
+     *
+     * @param queryRequest The query request.
+     * @return True for SAMPLE_RANGE and TIME_RANGE queries.
+     */
+    public static boolean isPaginated(QueryRequest queryRequest) {
+        return queryRequest.getRequestType() == QueryRequestType.SAMPLE_RANGE || queryRequest.getRequestType() == QueryRequestType.TIME_RANGE;
+    }
+
+    /**
+     * Creates the cursor of the first page of a query. Time windows ending in the future are pinned to the time of
+     * the request, and the first time slice assumes one record per millisecond (short slices are then doubled).
+     *
+     * @param queryRequest The query request (SAMPLE_RANGE or TIME_RANGE).
+     * @param limit The page size.
+     * @return The cursor of the first page.
+     */
+    public static HttpDigitalAdapterQueryCursor first(QueryRequest queryRequest, int limit) {
+        if(queryRequest.getRequestType() == QueryRequestType.SAMPLE_RANGE)
+            return new HttpDigitalAdapterQueryCursor(queryRequest.getResourceType(), queryRequest.getRequestType(), queryRequest.getStartIndex(), queryRequest.getEndIndex(), 0, 0, limit, 0);
+        else
+            return new HttpDigitalAdapterQueryCursor(queryRequest.getResourceType(), queryRequest.getRequestType(), queryRequest.getStartTimestampMs(),
+                    Math.min(queryRequest.getEndTimestampMs(), queryRequest.getRequestTimestampMs() - 1), 0, 0, limit, limit);
+    }
+
+    /**
+     * Decodes a cursor received from a client.
+     *
+     * @param encodedCursor The encoded cursor.
+     * @return The decoded cursor.
+     * @throws IllegalArgumentException If the cursor is not valid.
+     */
+    public static HttpDigitalAdapterQueryCursor decode(String encodedCursor) {
+
+        String[] fields;
+
+        try {
+            fields = new String(Base64.getUrlDecoder().decode(encodedCursor), StandardCharsets.UTF_8).split(FIELD_SEPARATOR);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Malformed cursor");
+        }
+
+        if(fields.length != 9 || !CURSOR_VERSION.equals(fields[0]))
+            throw new IllegalArgumentException("Malformed cursor");
+
+        QueryRequestType requestType = QueryRequestType.valueOf(fields[2]);
+        if(requestType != QueryRequestType.SAMPLE_RANGE && requestType != QueryRequestType.TIME_RANGE)
+            throw new IllegalArgumentException("Malformed cursor");
+
+        int offset = Integer.parseInt(fields[5]);
+        long returned = Long.parseLong(fields[6]);
+        int limit = Integer.parseInt(fields[7]);
+        long sliceMs = Long.parseLong(fields[8]);
+        if(offset < 0 || returned < 0 || limit <= 0 || (requestType == QueryRequestType.TIME_RANGE && sliceMs <= 0))
+            throw new IllegalArgumentException("Malformed cursor");
+
+        return new HttpDigitalAdapterQueryCursor(QueryResourceType.valueOf(fields[1]), requestType, Long.parseLong(fields[3]), Long.parseLong(fields[4]), offset, returned, limit, sliceMs);
+    }
+
+    /**
+     * Encodes the cursor to be returned to the client.
+     *
+     * @return The opaque URL-safe representation of the cursor.
+     */
+    public String encode() {
+        String plainCursor = String.join(FIELD_SEPARATOR, CURSOR_VERSION, resourceType.name(), requestType.name(),
+                Long.toString(start), Long.toString(end), Integer.toString(offset), Long.toString(returned), Integer.toString(limit), Long.toString(sliceMs));
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(plainCursor.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Returns a copy of the cursor with a different page size.
+     *
+     * @param limit The new page size.
+     * @return The cursor with the new page size.
+     */
+    public HttpDigitalAdapterQueryCursor withLimit(int limit) {
+        return new HttpDigitalAdapterQueryCursor(resourceType, requestType, start, end, offset, returned, limit, sliceMs);
+    }
+
+    /**
+     * Creates the Storage Query reading the page of the cursor (the first time slice of the page for TIME_RANGE queries).
+     *
+     * @return The query request of the page.
+     */
+    public QueryRequest createPageRequest() {
+
+        if(requestType == QueryRequestType.TIME_RANGE)
+            return createSliceRequest(start, sliceMs);
+
+        QueryRequest queryRequest = new QueryRequest();
+        queryRequest.setResourceType(resourceType);
+        queryRequest.setRequestType(requestType);
+        queryRequest.setStartIndex((int) (start + offset));
+        queryRequest.setEndIndex((int) Math.min(end, start + offset + limit - 1L));
+
+        return queryRequest;
+    }
+
+    /**
+     * Reads the page of the cursor. TIME_RANGE pages are read slice by slice until {@code limit + 1} items after the
+     * ones already returned are collected (the additional item reveals that the page is not the last one) or the
+     * window is over, and the collected items are returned as the results of the page.
+     *
+     * @param queryExecutionFunction The function starting the asynchronous execution of a query.
+     * @return A future completed with the results of the page, or with the first failed result.
+     */
+    public CompletableFuture<QueryResult<?>> fetchPage(Function<QueryRequest, CompletableFuture<QueryResult<?>>> queryExecutionFunction) {
+        if(requestType == QueryRequestType.SAMPLE_RANGE)
+            return queryExecutionFunction.apply(createPageRequest());
+        return fetchSlices(queryExecutionFunction, start, sliceMs, new ArrayList<>(limit + 1));
+    }
+
+    /**
+     * Reads the time slice starting at the given timestamp and the following ones until the page is filled.
+     *
+     * @param queryExecutionFunction The function starting the asynchronous execution of a query.
+     * @param sliceStart The start timestamp of the slice.
+     * @param sliceWidthMs The width of the slice in milliseconds.
+     * @param pageResults The items collected by the previous slices of the page.
+     * @return A future completed with the results of the page.
+     */
+    private CompletableFuture<QueryResult<?>> fetchSlices(Function<QueryRequest, CompletableFuture<QueryResult<?>>> queryExecutionFunction, long sliceStart, long sliceWidthMs, List<Object> pageResults) {
+
+        final long sliceEnd = (end - sliceStart < sliceWidthMs) ? end : sliceStart + sliceWidthMs - 1;
+
+        return queryExecutionFunction.apply(createSliceRequest(sliceStart, sliceWidthMs)).thenCompose(sliceResult -> {
+
+            if(sliceResult == null || !sliceResult.isSuccessful())
+                return CompletableFuture.completedFuture(sliceResult);
+
+            // Only the first slice contains the items with the start timestamp already returned
+            List<?> sliceItems = (sliceResult.getResults() != null) ? sliceResult.getResults() : Collections.emptyList();
+            for(int i = (sliceStart == start) ? offset : 0; i < sliceItems.size() && pageResults.size() <= limit; i++)
+                pageResults.add(sliceItems.get(i));
+
+            if(pageResults.size() > limit || sliceEnd >= end)
+                return CompletableFuture.completedFuture(new QueryResult<>(createPageRequest(), true, null, pageResults, pageResults.size()));
+
+            // The slice was too short to fill the page, the next one covers twice the time
+            return fetchSlices(queryExecutionFunction, sliceEnd + 1, (sliceWidthMs > Long.MAX_VALUE / 2) ? Long.MAX_VALUE : sliceWidthMs * 2, pageResults);
+        });
+    }
+
+    private QueryRequest createSliceRequest(long sliceStart, long sliceWidthMs) {
+        QueryRequest queryRequest = new QueryRequest();
+        queryRequest.setResourceType(resourceType);
+        queryRequest.setRequestType(requestType);
+        queryRequest.setStartTimestampMs(sliceStart);
+        queryRequest.setEndTimestampMs((end - sliceStart < sliceWidthMs) ? end : sliceStart + sliceWidthMs - 1);
+        return queryRequest;
+    }
+
+    /**
+     * Extracts the items of the page from the results of the page.
+     *
+     * @param results The results of the page.
+     * @return The items of the page.
+     */
+    public List<?> getPageItems(List<?> results) {
+        if(requestType == QueryRequestType.SAMPLE_RANGE)
+            return results;
+        return results.subList(0, Math.min(limit, results.size()));
+    }
+
+    /**
+     * Retrieves the total number of items of the paginated query. Until the last page, the total is the size of the
+     * requested index range for SAMPLE_RANGE queries and a lower bound (the items fetched so far) for TIME_RANGE
+     * queries, while the last page reveals the actual number of items.
+     *
+     * @param results The results of the page.
+     * @return The total number of items across all the pages.
+     */
+    public long getTotalItems(List<?> results) {
+        if(requestType == QueryRequestType.SAMPLE_RANGE)
+            return isLastPage(results) ? returned + results.size() : Math.max(0, end - start + 1);
+        return returned + results.size();
+    }
+
+    /**
+     * Retrieves the cursor of the next page.
+     *
+     * @param results The results of the page.
+     * @return The cursor of the next page or null if this is the last page.
+     */
+    public HttpDigitalAdapterQueryCursor next(List<?> results) {
+
+        if(isLastPage(results))
+            return null;
+
+        if(requestType == QueryRequestType.SAMPLE_RANGE)
+            return new HttpDigitalAdapterQueryCursor(resourceType, requestType, start, end, offset + limit, returned + limit, limit, 0);
+
+        // Resume from the timestamp of the last item, skipping the items with the same timestamp already returned
+        List<?> pageItems = getPageItems(results);
+        Long lastTimestamp = getTimestamp(pageItems.get(pageItems.size() - 1));
+        if(lastTimestamp == null)
+            return new HttpDigitalAdapterQueryCursor(resourceType, requestType, start, end, offset + limit, returned + limit, limit, sliceMs);
+
+        int lastTimestampItems = 0;
+        for(int i = pageItems.size() - 1; i >= 0 && lastTimestamp.equals(getTimestamp(pageItems.get(i))); i--)
+            lastTimestampItems++;
+        if(lastTimestampItems == pageItems.size() && lastTimestamp == start)
+            lastTimestampItems += offset;
+
+        // The first slice of the next page is sized on the density of this page, including the items to skip and
+        // the additional item revealing the following page
+        long pageMs = Math.max(1, lastTimestamp - start + 1);
+        long nextSliceMs = Math.max(1, (long) Math.ceil((double) pageMs * (limit + 1 + lastTimestampItems) / limit));
+
+        return new HttpDigitalAdapterQueryCursor(resourceType, requestType, lastTimestamp, end, lastTimestampItems, returned + limit, limit, nextSliceMs);
+    }
+
+    private boolean isLastPage(List<?> results) {
+        if(requestType == QueryRequestType.SAMPLE_RANGE)
+            return results.size() < limit || offset + (long) limit >= end - start + 1;
+        return results.size() <= limit;
+    }
+
+    /**
+     * Retrieves the timestamp of a stored record.
+     *
+     * @param storageRecord The record.
+     * @return The timestamp in milliseconds or null if the record has no timestamp.
+     */
+    private static Long getTimestamp(Object storageRecord) {
+        if(storageRecord instanceof PhysicalAssetPropertyVariationRecord)
+            return ((PhysicalAssetPropertyVariationRecord) storageRecord).getTimestamp();
+        if(storageRecord instanceof PhysicalAssetEventNotificationRecord)
+            return ((PhysicalAssetEventNotificationRecord) storageRecord).getTimestamp();
+        if(storageRecord instanceof PhysicalAssetActionRequestRecord)
+            return ((PhysicalAssetActionRequestRecord) storageRecord).getRequestTimestamp();
+        if(storageRecord instanceof PhysicalAssetDescriptionNotificationRecord)
+            return ((PhysicalAssetDescriptionNotificationRecord) storageRecord).getNotificationTimestamp();
+        if(storageRecord instanceof PhysicalRelationshipInstanceVariationRecord)
+            return ((PhysicalRelationshipInstanceVariationRecord) storageRecord).getVariationTimestamp();
+        if(storageRecord instanceof DigitalActionRequestRecord)
+            return ((DigitalActionRequestRecord) storageRecord).getRequestTimestamp();
+        if(storageRecord instanceof DigitalTwinStateEventNotificationRecord)
+            return ((DigitalTwinStateEventNotificationRecord) storageRecord).getTimestamp();
+        if(storageRecord instanceof LifeCycleVariationRecord)
+            return ((LifeCycleVariationRecord) storageRecord).getTimestamp();
+        if(storageRecord instanceof DigitalTwinStateRecord) {
+            DigitalTwinState digitalTwinState = ((DigitalTwinStateRecord) storageRecord).getCurrentState();
+            return (digitalTwinState != null && digitalTwinState.getEvaluationInstant() != null) ? digitalTwinState.getEvaluationInstant().toEpochMilli() : null;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,76 @@
+package it.wldt.adapter.http.digital.server;
+
+import it.wldt.storage.query.QueryRequest;
+import it.wldt.storage.query.QueryRequestType;
+import it.wldt.storage.query.QueryResourceType;
+
+import java.util.Objects;
+
+/**
+ * Normalized {@link QueryRequest} used to identify equivalent Storage Queries. The key only contains the fields
+ * relevant for the request type (the time window for TIME_RANGE queries and the indexes for SAMPLE_RANGE queries),
+ * ignoring the request id and timestamp. TIME_RANGE windows ending in the future of the request (e.g., up to "now")
+ * are considered open-ended and share the same key regardless of their end.
+ *
+ * @author Marco Picone, Ph.D. - picone.m@gmail.com, Marta Spadoni University of Bologna
+ */
+public final class HttpDigitalAdapterQueryKey {
+
+    private final QueryResourceType resourceType;
+
+    private final QueryRequestType requestType;
+
+    private final long start;
+
+    private final long end;
+
+    private final int hashCode;
+
+    /**
+     * Creates the normalized key of a query request.
+     *
+     * @param queryRequest The query request.
+     */
+    public HttpDigitalAdapterQueryKey(QueryRequest queryRequest) {
+        this.resourceType = queryRequest.getResourceType();
+        this.requestType = queryRequest.getRequestType();
+
+        if(requestType == QueryRequestType.TIME_RANGE) {
+            this.start = queryRequest.getStartTimestampMs();
+            this.end = isOpenEnded(queryRequest) ? Long.MAX_VALUE : queryRequest.getEndTimestampMs();
+        }
+        else if(requestType == QueryRequestType.SAMPLE_RANGE) {
+            this.start = queryRequest.getStartIndex();
+            this.end = queryRequest.getEndIndex();
+        }
+        else {
+            this.start = 0;
+            this.end = 0;
+        }
+
+        this.hashCode = Objects.hash(resourceType, requestType, start, end);
+    }
+
+    /**
+     * Checks if the time window of a query ends in the future of the request.
+     *
+     * @param queryRequest The query request.
+     * @return True if new records can still fall in the time window.
+     */
+    public static boolean isOpenEnded(QueryRequest queryRequest) {
+        return queryRequest.getEndTimestampMs() >= queryRequest.getRequestTimestampMs();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        HttpDigitalAdapterQueryKey queryKey = (HttpDigitalAdapterQueryKey) o;
+        return start == queryKey.start && end == queryKey.end && resourceType == queryKey.resourceType && requestType == queryKey.requestType;
+    }
+
+    @Override
+    public int hashCode() {
+        return hashCode;
+    }
+}
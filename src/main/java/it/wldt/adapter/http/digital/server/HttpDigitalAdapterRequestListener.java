@@ -9,6 +9,7 @@ import it.wldt.storage.query.QueryResult;
 import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Interface defining the contract for handling various requests in an HTTP Digital Adapter.
@@ -34,6 +35,41 @@ public interface HttpDigitalAdapterRequestListener {
      */
     Optional<DigitalTwinState> onPreviousStateGet();
 
+    /**
+     * Handles the request to retrieve the current pre-serialized snapshot of the digital twin state.
+     *
+     * @return The current state snapshot, never null ({@link HttpDigitalAdapterStateSnapshot#EMPTY} if no state is available).
+     */
+    HttpDigitalAdapterStateSnapshot onStateSnapshotGet();
+
+    /**
+     * Handles the request to subscribe to the stream of the digital twin state updates.
+     *
+     * @return The state stream managing the Server-Sent Events subscriptions.
+     */
+    HttpDigitalAdapterStateStream onStateStreamGet();
+
+    /**
+     * Handles the request to open a WebSocket channel with the digital twin.
+     *
+     * @return The WebSocket endpoint managing the client subscriptions.
+     */
+    HttpDigitalAdapterWebSocketEndpoint onWebSocketEndpointGet();
+
+    /**
+     * Handles the request to wait for the next state changes of the digital twin.
+     *
+     * @return The long-polling handler managing the parked requests.
+     */
+    HttpDigitalAdapterStateChangesLongPoll onStateChangesLongPollGet();
+
+    /**
+     * Handles the request to follow the status of the action requests sent to the digital twin.
+     *
+     * @return The table tracking the action requests.
+     */
+    HttpDigitalAdapterActionRequests onActionRequestsGet();
+
     /**
      * Handles the request to retrieve a list of state changes of the digital twin.
      *
@@ -116,6 +152,15 @@ public interface HttpDigitalAdapterRequestListener {
      */
     List<DigitalTwinStateEventNotification<?>> onEventNotificationGet();
 
+    /**
+     * Handles the request to retrieve the notifications for events of the digital twin received after a known sequence.
+     *
+     * @param sinceSequence The sequence of the last notification already known by the client (0 to read from the oldest one).
+     * @param limit The maximum number of returned notifications.
+     * @return The slice of event notifications with the sequence of the last returned one.
+     */
+    HttpDigitalAdapterRingBuffer.Slice<DigitalTwinStateEventNotification<?>> onEventNotificationGet(long sinceSequence, int limit);
+
     /**
      * Handles the request to retrieve instances of a specific relationship of the digital twin.
      *
@@ -152,4 +197,20 @@ public interface HttpDigitalAdapterRequestListener {
      */
     QueryResult<?> onQueryRequest(QueryRequest queryRequest);
 
+    /**
+     * Handles the request to retrieve the Digital Twin Storage Information without blocking the caller.
+     *
+     * @return A future completed with the storage information, or with null if not available.
+     */
+    CompletableFuture<StorageStats> onAsyncStorageInfoRequest();
+
+    /**
+     * Handles the request to execute a Storage Query without blocking the caller. Cancelling the returned future
+     * discards the result of the query.
+     *
+     * @param queryRequest The query request to execute.
+     * @return A future completed with the result of the query request.
+     */
+    CompletableFuture<QueryResult<?>> onAsyncQueryRequest(QueryRequest queryRequest);
+
 }
@@ -0,0 +1,173 @@
+package it.wldt.adapter.http.digital.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Fixed-capacity ring buffer used by the HTTP Digital Adapter to retain the latest received items
+ * (e.g., DT event notifications). Each item is tagged with a monotonically increasing sequence number
+ * starting from 1, allowing clients to read only the items received after a known sequence.
+ * Writes are serialized, while readers never lock and never block the writer: an item overwritten
+ * while being read is simply skipped.
+ *
+ * @param <T> The type of the buffered items.
+ *
+ * @author Marco Picone, Ph.D. - picone.m@gmail.com, Marta Spadoni University of Bologna
+ */
+public class HttpDigitalAdapterRingBuffer<T> {
+
+    /**
+     * Immutable buffer slot associating an item to its sequence number
+     */
+    private static class Entry<T> {
+
+        private final long sequence;
+
+        private final T item;
+
+        private Entry(long sequence, T item) {
+            this.sequence = sequence;
+            this.item = item;
+        }
+    }
+
+    /**
+     * Result of a read operation containing the items and the sequence of the last returned item
+     *
+     * @param <T> The type of the buffered items.
+     */
+    public static class Slice<T> {
+
+        private final List<T> items;
+
+        private final long lastSequence;
+
+        private Slice(List<T> items, long lastSequence) {
+            this.items = items;
+            this.lastSequence = lastSequence;
+        }
+
+        /**
+         * Retrieves the items of the slice ordered by sequence.
+         *
+         * @return The list of items.
+         */
+        public List<T> getItems() {
+            return items;
+        }
+
+        /**
+         * Retrieves the sequence of the last item of the slice, to be used as cursor for the next read.
+         * If the slice is empty the provided cursor is returned.
+         *
+         * @return The sequence of the last returned item.
+         */
+        public long getLastSequence() {
+            return lastSequence;
+        }
+    }
+
+    /**
+     * Buffer slots
+     */
+    private final AtomicReferenceArray<Entry<T>> slots;
+
+    /**
+     * Buffer capacity
+     */
+    private final int capacity;
+
+    /**
+     * Sequence of the latest written item (0 if the buffer is empty)
+     */
+    private final AtomicLong latestSequence = new AtomicLong(0);
+
+    /**
+     * Constructs a new ring buffer.
+     *
+     * @param capacity The maximum number of retained items.
+     */
+    public HttpDigitalAdapterRingBuffer(int capacity) {
+        if(capacity <= 0)
+            throw new IllegalArgumentException("Ring buffer capacity must be positive");
+        this.capacity = capacity;
+        this.slots = new AtomicReferenceArray<>(capacity);
+    }
+
+    /**
+     * Appends an item to the buffer overwriting the oldest one when the buffer is full.
+     *
+     * @param item The item to append.
+     * @return The sequence assigned to the item.
+     */
+    public synchronized long add(T item) {
+        long sequence = latestSequence.get() + 1;
+        slots.set((int) (sequence % capacity), new Entry<>(sequence, item));
+        latestSequence.set(sequence);
+        return sequence;
+    }
+
+    /**
+     * Reads the items with a sequence greater than the provided one.
+     *
+     * @param sinceSequence The sequence of the last item already known by the reader (0 to read from the oldest retained item).
+     * @param limit The maximum number of returned items.
+     * @return The slice of the buffer with the requested items.
+     */
+    public Slice<T> read(long sinceSequence, int limit) {
+
+        final long latest = latestSequence.get();
+
+        // Sequences beyond the latest one (up to Long.MAX_VALUE) would overflow when incremented
+        sinceSequence = Math.min(sinceSequence, latest);
+        final long from = Math.max(sinceSequence + 1, latest - capacity + 1);
+
+        if(limit <= 0 || from > latest)
+            return new Slice<>(Collections.emptyList(), Math.max(0, sinceSequence));
+
+        final long to = Math.min(latest, from + limit - 1);
+        final List<T> items = new ArrayList<>((int) (to - from + 1));
+        long lastSequence = sinceSequence;
+
+        for(long sequence = from; sequence <= to; sequence++) {
+            Entry<T> entry = slots.get((int) (sequence % capacity));
+            // Skip the items overwritten by the writer during the read
+            if(entry != null && entry.sequence == sequence) {
+                items.add(entry.item);
+                lastSequence = sequence;
+            }
+        }
+
+        return new Slice<>(items, lastSequence);
+    }
+
+    /**
+     * Reads all the retained items.
+     *
+     * @return The list of retained items ordered by sequence.
+     */
+    public List<T> readAll() {
+        return read(0, capacity).getItems();
+    }
+
+    /**
+     * Retrieves the sequence of the latest written item.
+     *
+     * @return The latest sequence or 0 if the buffer is empty.
+     */
+    public long getLatestSequence() {
+        return latestSequence.get();
+    }
+
+    /**
+     * Retrieves the capacity of the buffer.
+     *
+     * @return The buffer capacity.
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+}
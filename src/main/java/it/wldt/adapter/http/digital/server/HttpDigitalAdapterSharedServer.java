@@ -0,0 +1,303 @@
+package it.wldt.adapter.http.digital.server;
+
+import com.google.gson.JsonArray;
+import io.undertow.Undertow;
+import io.undertow.UndertowOptions;
+import io.undertow.server.HttpHandler;
+import io.undertow.server.HttpServerExchange;
+import io.undertow.util.Headers;
+import it.wldt.adapter.http.digital.adapter.HttpDigitalAdapterConfiguration;
+import it.wldt.adapter.http.digital.adapter.HttpDigitalAdapterServerOptions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiFunction;
+import java.util.function.Supplier;
+
+/**
+ * Undertow server shared by all the HTTP Digital Adapters of the process configured with the same host and port.
+ * Each adapter registers the handler of its routes under the path of its Digital Twin
+ * ({@code /dt/{digitalTwinId}/state/...}) when it starts and unregisters it when it stops, so that any number of
+ * Digital Twins is served through a single port and a single pool of IO and worker threads (by default sized to the
+ * available cores). The server is started with the first registered Digital Twin and stopped with the last one.
+ * The server options, the dispatcher (with its dedicated executors) and the metrics registry are created from the
+ * configuration of the first adapter and shared by all the registered Digital Twins: adapters with different server
+ * options are rejected, while different dispatch or metrics settings are reported and ignored.
+ * The list of the registered Digital Twins is available at {@code /dt}, while the fleet level endpoints
+ * ({@link HttpDigitalAdapterFleet}) combine the current state of all the registered Digital Twins under {@code /fleet}.
+ *
+ * @author Marco Picone, Ph.D. - picone.m@gmail.com, Marta Spadoni University of Bologna
+ */
+public class HttpDigitalAdapterSharedServer {
+
+    private final static Logger logger = LoggerFactory.getLogger(HttpDigitalAdapterSharedServer.class);
+
+    /**
+     * The path prefix of the routes of each Digital Twin.
+     */
+    public final static String DIGITAL_TWIN_PATH_PREFIX = "/dt/";
+
+    /**
+     * The path prefix of the fleet level endpoints.
+     */
+    public final static String FLEET_PATH_PREFIX = "/fleet/";
+
+    /**
+     * Shared servers of the process indexed by host and port
+     */
+    private final static Map<String, HttpDigitalAdapterSharedServer> SHARED_SERVERS = new HashMap<>();
+
+    private final String host;
+
+    private final int port;
+
+    /**
+     * Configuration of the first adapter, providing the server options, the dispatch modes and the metrics settings
+     */
+    private final HttpDigitalAdapterConfiguration configuration;
+
+    /**
+     * Dispatcher shared by the routes of all the registered Digital Twins
+     */
+    private final HttpDigitalAdapterDispatcher dispatcher;
+
+    /**
+     * Metrics registry shared by all the registered Digital Twins (null if the metrics are disabled)
+     */
+    private final HttpDigitalAdapterMetrics metrics;
+
+    /**
+     * Handler of the /metrics endpoint exporting the shared metrics registry (null if the metrics are disabled)
+     */
+    private final HttpHandler metricsHandler;
+
+    /**
+     * Handlers of the registered Digital Twins indexed by Digital Twin Id
+     */
+    private final ConcurrentHashMap<String, HttpHandler> digitalTwinHandlers = new ConcurrentHashMap<>();
+
+    /**
+     * State snapshot suppliers of the registered Digital Twins indexed by Digital Twin Id
+     */
+    private final ConcurrentHashMap<String, Supplier<HttpDigitalAdapterStateSnapshot>> snapshotSuppliers = new ConcurrentHashMap<>();
+
+    /**
+     * Handler of the fleet level endpoints
+     */
+    private final HttpHandler fleetHandler = new HttpDigitalAdapterFleet(snapshotSuppliers).createHandler();
+
+    /**
+     * The running Undertow server (null if no Digital Twin is registered)
+     */
+    private Undertow server;
+
+    private HttpDigitalAdapterSharedServer(HttpDigitalAdapterConfiguration configuration) {
+        this.host = configuration.getHost();
+        this.port = configuration.getPort();
+        this.configuration = configuration;
+        this.dispatcher = new HttpDigitalAdapterDispatcher(configuration);
+        this.metrics = configuration.isMetricsEnabled() ? new HttpDigitalAdapterMetrics(configuration.getMetricsLatencyBuckets()) : null;
+        this.metricsHandler = (metrics != null) ? metrics.createHandler() : null;
+    }
+
+    /**
+     * Registers the routes of a Digital Twin on the shared server of the process listening on the host and port of the
+     * adapter configuration, creating and starting the server if required. The lookup and the registration are
+     * performed while holding the same lock used by {@link #unregister(String)}, so that a server stopped by the last
+     * Digital Twin (together with its dispatcher) is never reused: a stopped server is created again, with a new
+     * dispatcher, from the configuration of the registering adapter.
+     *
+     * @param configuration The configuration of the adapter.
+     * @param digitalTwinId The Digital Twin Id used as path prefix.
+     * @param handlerFactory The function creating the handler of the routes of the Digital Twin (receiving the paths
+     *                       relative to the prefix) from the shared dispatcher and metrics registry (null if disabled).
+     * @param snapshotSupplier The supplier of the current DT State snapshot used by the fleet endpoints (null to exclude the Digital Twin).
+     * @return The shared server, used to unregister the Digital Twin.
+     * @throws IllegalStateException If the running server has been created with different server options or the
+     *                               Digital Twin is already registered on the server.
+     */
+    public static HttpDigitalAdapterSharedServer register(HttpDigitalAdapterConfiguration configuration, String digitalTwinId,
+                                                          BiFunction<HttpDigitalAdapterDispatcher, HttpDigitalAdapterMetrics, HttpHandler> handlerFactory,
+                                                          Supplier<HttpDigitalAdapterStateSnapshot> snapshotSupplier) {
+
+        synchronized (HttpDigitalAdapterSharedServer.class) {
+            HttpDigitalAdapterSharedServer sharedServer = getInstance(configuration);
+            sharedServer.registerDigitalTwin(digitalTwinId, handlerFactory, snapshotSupplier);
+            return sharedServer;
+        }
+    }
+
+    /**
+     * Retrieves the shared server of the process listening on the host and port of the adapter configuration,
+     * creating it if required. A stopped server is created again with the options of the new adapter.
+     * Invoked while holding the lock of the class.
+     *
+     * @param configuration The configuration of the adapter.
+     * @return The shared server.
+     * @throws IllegalStateException If the running server has been created with different server options.
+     */
+    private static HttpDigitalAdapterSharedServer getInstance(HttpDigitalAdapterConfiguration configuration) {
+
+        String serverKey = configuration.getHost() + ":" + configuration.getPort();
+        HttpDigitalAdapterSharedServer sharedServer = SHARED_SERVERS.get(serverKey);
+
+        if(sharedServer == null || sharedServer.server == null) {
+            sharedServer = new HttpDigitalAdapterSharedServer(configuration);
+            SHARED_SERVERS.put(serverKey, sharedServer);
+            return sharedServer;
+        }
+
+        HttpDigitalAdapterConfiguration sharedConfiguration = sharedServer.configuration;
+
+        if(!sharedConfiguration.getServerOptions().equals(configuration.getServerOptions()))
+            throw new IllegalStateException(String.format("Shared HTTP server %s already running with different server options ! Adapter: %s", serverKey, configuration.getId()));
+
+        if(sharedConfiguration.getDefaultDispatchMode() != configuration.getDefaultDispatchMode()
+                || !sharedConfiguration.getRouteDispatchModes().equals(configuration.getRouteDispatchModes())
+                || sharedConfiguration.getDispatchExecutorPoolSize() != configuration.getDispatchExecutorPoolSize()
+                || sharedConfiguration.getDispatchExecutorQueueSize() != configuration.getDispatchExecutorQueueSize()
+                || sharedConfiguration.isMetricsEnabled() != configuration.isMetricsEnabled()
+                || !Arrays.equals(sharedConfiguration.getMetricsLatencyBuckets(), configuration.getMetricsLatencyBuckets()))
+            logger.warn("Shared HTTP server {} uses the dispatch and metrics settings of adapter {} ! Ignoring the ones of adapter {}",
+                    serverKey, sharedConfiguration.getId(), configuration.getId());
+
+        return sharedServer;
+    }
+
+    /**
+     * Registers the routes of a Digital Twin, starting the server if this is the first registered Digital Twin.
+     * Invoked while holding the lock of the class. If the server cannot be started the registration is reverted and
+     * the dispatcher is shut down, so that the next adapter creates the server again.
+     *
+     * @param digitalTwinId The Digital Twin Id used as path prefix.
+     * @param handlerFactory The function creating the handler of the routes of the Digital Twin.
+     * @param snapshotSupplier The supplier of the current DT State snapshot used by the fleet endpoints (null to exclude the Digital Twin).
+     * @throws IllegalStateException If the Digital Twin is already registered on the server.
+     */
+    private void registerDigitalTwin(String digitalTwinId, BiFunction<HttpDigitalAdapterDispatcher, HttpDigitalAdapterMetrics, HttpHandler> handlerFactory, Supplier<HttpDigitalAdapterStateSnapshot> snapshotSupplier) {
+
+        if(digitalTwinHandlers.containsKey(digitalTwinId))
+            throw new IllegalStateException(String.format("Digital Twin %s already registered on the shared HTTP server %s:%d", digitalTwinId, host, port));
+
+        // The routes are created while holding the lock, so that the dispatcher cannot be shut down in the meantime
+        digitalTwinHandlers.put(digitalTwinId, handlerFactory.apply(dispatcher, metrics));
+
+        if(snapshotSupplier != null)
+            snapshotSuppliers.put(digitalTwinId, snapshotSupplier);
+
+        if(server == null) {
+
+            HttpDigitalAdapterServerOptions serverOptions = configuration.getServerOptions();
+
+            Undertow startingServer = serverOptions.addListener(serverOptions.applyTo(Undertow.builder()), host, port)
+                    .setServerOption(UndertowOptions.RECORD_REQUEST_START_TIME, metrics != null)
+                    .setHandler(this::handleRequest)
+                    .build();
+
+            try {
+                startingServer.start();
+            } catch (RuntimeException e) {
+                digitalTwinHandlers.remove(digitalTwinId);
+                snapshotSuppliers.remove(digitalTwinId);
+                if(metrics != null)
+                    metrics.unregisterDigitalTwin(digitalTwinId);
+                dispatcher.shutdown();
+                throw e;
+            }
+
+            server = startingServer;
+
+            logger.info("Shared HTTP Digital Adapter Server Started on {}:{}", host, port);
+        }
+    }
+
+    /**
+     * Unregisters the routes and the metrics of a Digital Twin, stopping the server and the shared dispatcher if no
+     * other Digital Twin is registered.
+     *
+     * @param digitalTwinId The Digital Twin Id.
+     */
+    public void unregister(String digitalTwinId) {
+
+        synchronized (HttpDigitalAdapterSharedServer.class) {
+
+            snapshotSuppliers.remove(digitalTwinId);
+
+            if(metrics != null)
+                metrics.unregisterDigitalTwin(digitalTwinId);
+
+            if(digitalTwinHandlers.remove(digitalTwinId) == null || !digitalTwinHandlers.isEmpty() || server == null)
+                return;
+
+            server.stop();
+            server = null;
+            dispatcher.shutdown();
+
+            logger.info("Shared HTTP Digital Adapter Server Stopped on {}:{}", host, port);
+        }
+    }
+
+    /**
+     * Retrieves the number of Digital Twins registered on the server.
+     *
+     * @return The number of registered Digital Twins.
+     */
+    public int getDigitalTwinCount() {
+        return digitalTwinHandlers.size();
+    }
+
+    /**
+     * Routes a request to the handler of the Digital Twin identified by the first segment after the prefix, which
+     * receives the remaining part of the path as relative path.
+     *
+     * @param exchange The current exchange.
+     * @throws Exception If the Digital Twin handler fails.
+     */
+    private void handleRequest(HttpServerExchange exchange) throws Exception {
+
+        String relativePath = exchange.getRelativePath();
+
+        if(relativePath.equals("/dt") || relativePath.equals(DIGITAL_TWIN_PATH_PREFIX)) {
+            JsonArray digitalTwinIds = new JsonArray();
+            digitalTwinHandlers.keySet().forEach(digitalTwinIds::add);
+            exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, "application/json");
+            exchange.getResponseSender().send(digitalTwinIds.toString());
+            return;
+        }
+
+        if(relativePath.startsWith(FLEET_PATH_PREFIX)) {
+            fleetHandler.handleRequest(exchange);
+            return;
+        }
+
+        if(metricsHandler != null && relativePath.equals("/metrics")) {
+            metricsHandler.handleRequest(exchange);
+            return;
+        }
+
+        HttpHandler handler = null;
+        int separatorIndex = -1;
+
+        if(relativePath.startsWith(DIGITAL_TWIN_PATH_PREFIX)) {
+            separatorIndex = relativePath.indexOf('/', DIGITAL_TWIN_PATH_PREFIX.length());
+            String digitalTwinId = (separatorIndex < 0) ? relativePath.substring(DIGITAL_TWIN_PATH_PREFIX.length()) : relativePath.substring(DIGITAL_TWIN_PATH_PREFIX.length(), separatorIndex);
+            handler = digitalTwinHandlers.get(digitalTwinId);
+        }
+
+        if(handler == null) {
+            exchange.setStatusCode(404);
+            exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, "application/json");
+            exchange.getResponseSender().send("{\"error\": \"Digital Twin not found !\"}");
+            return;
+        }
+
+        exchange.setResolvedPath((separatorIndex < 0) ? relativePath : relativePath.substring(0, separatorIndex));
+        exchange.setRelativePath((separatorIndex < 0) ? "/" : relativePath.substring(separatorIndex));
+
+        handler.handleRequest(exchange);
+    }
+}
@@ -0,0 +1,437 @@
+package it.wldt.adapter.http.digital.server;
+
+import io.undertow.server.HttpHandler;
+import io.undertow.server.HttpServerExchange;
+import io.undertow.util.Headers;
+import io.undertow.util.HttpString;
+import io.undertow.util.SameThreadExecutor;
+import it.wldt.core.state.DigitalTwinStateChange;
+import org.xnio.XnioExecutor;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+/**
+ * Long-polling variant of the /state/changes resource for the clients that cannot use the SSE or WebSocket channels.
+ * A request with the {@code afterVersion} query parameter is answered immediately if a newer DT State version is
+ * already available, otherwise it is parked until the next state update or until the timeout expires (304 Not Modified).
+ * Parked requests are suspended through the Undertow async exchange model: no thread is held while waiting and each
+ * waiting client only costs the memory of its exchange and of its timeout task on the IO thread.
+ * The latest change lists are retained in a bounded ring buffer, so that a client that missed some versions receives
+ * all the changes published after {@code afterVersion} in a single list. When the missed changes are no longer
+ * available (or a non incremental update, e.g., a DT synchronization, happened in the meanwhile) the client receives
+ * the full DT State together with the {@code X-DT-State-Resync: true} header, and has to rebuild its view from it.
+ * Since the versions restart after a restart of the adapter, the responses also carry the version tag of the DT State
+ * ({@code X-DT-State-Version-Tag}), which can be used as {@code afterVersion}: a tag issued by a previous process, as
+ * well as a version newer than the latest one, is answered with the full DT State as well.
+ * Parked requests of the clients that disconnect are released immediately, without waiting for their timeout.
+ * Requests without the {@code afterVersion} parameter are forwarded to the regular /state/changes handler.
+ *
+ * @author Marco Picone, Ph.D. - picone.m@gmail.com, Marta Spadoni University of Bologna
+ */
+public class HttpDigitalAdapterStateChangesLongPoll {
+
+    /**
+     * Query parameter with the DT State version already known by the client
+     */
+    public final static String AFTER_VERSION_QUERY_PARAMETER = "afterVersion";
+
+    /**
+     * Query parameter with the maximum waiting time requested by the client
+     */
+    public final static String TIMEOUT_QUERY_PARAMETER = "timeoutMs";
+
+    /**
+     * Response header marking the responses carrying the full DT State instead of the missed changes.
+     */
+    public final static HttpString RESYNC_HEADER = new HttpString("X-DT-State-Resync");
+
+    /**
+     * Response header with the version tag of the DT State, identifying the version across the restarts of the adapter
+     */
+    public final static HttpString VERSION_TAG_HEADER = new HttpString("X-DT-State-Version-Tag");
+
+    /**
+     * Serialized change list associated to a DT State snapshot
+     */
+    private static class StateChanges {
+
+        private final HttpDigitalAdapterStateSnapshot snapshot;
+
+        /**
+         * Serialized change list (null if the update is not incremental)
+         */
+        private final byte[] changesJson;
+
+        /**
+         * True if the response carries the full DT State instead of the change list
+         */
+        private final boolean resync;
+
+        private StateChanges(HttpDigitalAdapterStateSnapshot snapshot, byte[] changesJson, boolean resync) {
+            this.snapshot = snapshot;
+            this.changesJson = changesJson;
+            this.resync = resync;
+        }
+    }
+
+    /**
+     * Parked request waiting for a DT State version newer than the one known by the client
+     */
+    private static class Waiter {
+
+        private final HttpServerExchange exchange;
+
+        private final long afterVersion;
+
+        private final AtomicBoolean completed = new AtomicBoolean(false);
+
+        /**
+         * Pending operation of the connection, cancelled if the client disconnects
+         */
+        private final CompletableFuture<Void> operation = new CompletableFuture<>();
+
+        private volatile XnioExecutor.Key timeoutKey;
+
+        private volatile Runnable unwatchDisconnection;
+
+        private Waiter(HttpServerExchange exchange, long afterVersion) {
+            this.exchange = exchange;
+            this.afterVersion = afterVersion;
+        }
+
+        /**
+         * Hands the connection back to the exchange before sending the response, on the IO thread of the exchange.
+         */
+        private void release() {
+            operation.complete(null);
+            Runnable unwatch = unwatchDisconnection;
+            if(unwatch != null)
+                unwatch.run();
+        }
+    }
+
+    /**
+     * Default waiting time applied when the client does not specify it
+     */
+    private final long defaultTimeoutMs;
+
+    /**
+     * Maximum waiting time accepted from the clients
+     */
+    private final long maxTimeoutMs;
+
+    /**
+     * Maximum number of parked requests, additional requests are rejected with 503
+     */
+    private final int maxWaiters;
+
+    /**
+     * Currently parked requests
+     */
+    private final Set<Waiter> waiters = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Latest published change list, serialized once for all the waiting clients
+     */
+    private volatile StateChanges latestStateChanges = new StateChanges(HttpDigitalAdapterStateSnapshot.EMPTY, "[]".getBytes(StandardCharsets.UTF_8), false);
+
+    /**
+     * Latest published change lists, used to answer the clients that missed some versions (null if disabled)
+     */
+    private final HttpDigitalAdapterRingBuffer<StateChanges> stateChangesBuffer;
+
+    /**
+     * Constructs a new long-polling handler.
+     *
+     * @param defaultTimeoutMs The waiting time applied when the client does not specify it.
+     * @param maxTimeoutMs The maximum waiting time accepted from the clients.
+     * @param maxWaiters The maximum number of parked requests.
+     * @param bufferSize The number of change lists retained for the clients that missed some versions (0 to always resync them).
+     */
+    public HttpDigitalAdapterStateChangesLongPoll(long defaultTimeoutMs, long maxTimeoutMs, int maxWaiters, int bufferSize) {
+        this.defaultTimeoutMs = defaultTimeoutMs;
+        this.maxTimeoutMs = maxTimeoutMs;
+        this.maxWaiters = maxWaiters;
+        this.stateChangesBuffer = (bufferSize > 0) ? new HttpDigitalAdapterRingBuffer<>(bufferSize) : null;
+    }
+
+    /**
+     * Publishes a new state update completing all the parked requests waiting for an older version.
+     *
+     * @param snapshot The snapshot of the updated DT State.
+     * @param stateChangeList The list of changes associated to the update or null if the update is not incremental
+     *                        (e.g., a DT synchronization). In this case the clients receive an empty list.
+     */
+    public void publish(HttpDigitalAdapterStateSnapshot snapshot, Collection<DigitalTwinStateChange> stateChangeList) {
+
+        byte[] changesJson = (stateChangeList != null) ? HttpDigitalAdapterHandlersFactory.getDefaultGson().toJson(stateChangeList).getBytes(StandardCharsets.UTF_8) : null;
+        StateChanges stateChanges = new StateChanges(snapshot, changesJson, false);
+
+        if(stateChangesBuffer != null)
+            stateChangesBuffer.add(stateChanges);
+        this.latestStateChanges = stateChanges;
+
+        for(Waiter waiter : waiters)
+            if(waiter.afterVersion < snapshot.getVersion())
+                complete(waiter, readChangesAfter(waiter.afterVersion, stateChanges));
+    }
+
+    /**
+     * Creates the handler of the /state/changes resource.
+     *
+     * @param changesHandler The handler serving the requests without the afterVersion parameter.
+     * @return The long-polling handler.
+     */
+    public HttpHandler createHandler(HttpHandler changesHandler) {
+        return exchange -> {
+
+            Deque<String> afterVersionParameter = exchange.getQueryParameters().get(AFTER_VERSION_QUERY_PARAMETER);
+
+            if(afterVersionParameter == null || afterVersionParameter.isEmpty()) {
+                changesHandler.handleRequest(exchange);
+                return;
+            }
+
+            Long knownVersion;
+            long timeoutMs = defaultTimeoutMs;
+
+            try {
+                // Either a version tag or a plain version
+                String afterVersionValue = afterVersionParameter.getFirst();
+                knownVersion = (afterVersionValue.indexOf('-') > 0) ? HttpDigitalAdapterStateSnapshot.parseVersionTag(afterVersionValue) : Long.valueOf(afterVersionValue);
+                Deque<String> timeoutParameter = exchange.getQueryParameters().get(TIMEOUT_QUERY_PARAMETER);
+                if(timeoutParameter != null && !timeoutParameter.isEmpty())
+                    timeoutMs = Long.parseLong(timeoutParameter.getFirst());
+                if((knownVersion != null && knownVersion < 0) || timeoutMs < 0)
+                    throw new NumberFormatException();
+            } catch (NumberFormatException e) {
+                sendError(exchange, 400, "Invalid afterVersion or timeoutMs parameter !");
+                return;
+            }
+
+            StateChanges stateChanges = this.latestStateChanges;
+
+            // The version was issued by a previous process or it is newer than the latest one (e.g., after a restart of
+            // the adapter): the client has to resync from the current DT State, as soon as one is available
+            if(knownVersion == null || knownVersion > stateChanges.snapshot.getVersion()) {
+                if(stateChanges.snapshot.getStateJson() != null) {
+                    send(exchange, resync(stateChanges));
+                    return;
+                }
+                knownVersion = 0L;
+            }
+
+            final long afterVersion = knownVersion;
+
+            // A newer version is already available
+            if(stateChanges.snapshot.getVersion() > afterVersion) {
+                send(exchange, readChangesAfter(afterVersion, stateChanges));
+                return;
+            }
+
+            if(timeoutMs == 0) {
+                sendNotModified(exchange);
+                return;
+            }
+
+            if(waiters.size() >= maxWaiters) {
+                sendError(exchange, 503, "Too many pending requests !");
+                return;
+            }
+
+            final Waiter waiter = new Waiter(exchange, afterVersion);
+            final long waitMs = Math.min(timeoutMs, maxTimeoutMs);
+
+            // Suspend the exchange: it stays open after the handler returns and the IO thread is released
+            exchange.dispatch(SameThreadExecutor.INSTANCE, () -> {
+
+                waiters.add(waiter);
+                waiter.timeoutKey = exchange.getIoThread().executeAfter(() -> onTimeout(waiter), waitMs, TimeUnit.MILLISECONDS);
+
+                // The waiter is released as soon as its client disconnects
+                waiter.operation.whenComplete((result, error) -> {
+                    if(waiter.operation.isCancelled())
+                        onDisconnection(waiter);
+                });
+                waiter.unwatchDisconnection = HttpDigitalAdapterHandlersFactory.cancelOnDisconnection(exchange, waiter.operation);
+
+                // An update published before the registration of the waiter would be missed otherwise
+                StateChanges latest = this.latestStateChanges;
+                if(latest.snapshot.getVersion() > afterVersion)
+                    complete(waiter, readChangesAfter(afterVersion, latest));
+            });
+        };
+    }
+
+    /**
+     * Retrieves the number of currently parked requests.
+     *
+     * @return The number of waiting clients.
+     */
+    public int getWaiterCount() {
+        return waiters.size();
+    }
+
+    /**
+     * Completes all the parked requests with 304 Not Modified.
+     */
+    public void shutdown() {
+        for(Waiter waiter : waiters)
+            if(waiter.completed.compareAndSet(false, true)) {
+                waiters.remove(waiter);
+                waiter.exchange.getIoThread().execute(() -> {
+                    waiter.release();
+                    sendNotModified(waiter.exchange);
+                });
+            }
+    }
+
+    /**
+     * Collects the changes published after the version known by the client, up to the latest published version.
+     * If some of them are no longer retained, or one of the updates was not incremental, the full latest DT State has
+     * to be sent instead.
+     *
+     * @param afterVersion The DT State version known by the client.
+     * @param latest The latest published change list.
+     * @return The changes to send to the client.
+     */
+    private StateChanges readChangesAfter(long afterVersion, StateChanges latest) {
+
+        // Common case: the client only missed the latest version
+        if(latest.snapshot.getVersion() == afterVersion + 1 && latest.changesJson != null)
+            return latest;
+
+        List<StateChanges> missedChanges = new ArrayList<>();
+        if(stateChangesBuffer != null)
+            for(StateChanges stateChanges : stateChangesBuffer.readAll())
+                if(stateChanges.snapshot.getVersion() > afterVersion && stateChanges.snapshot.getVersion() <= latest.snapshot.getVersion())
+                    missedChanges.add(stateChanges);
+
+        boolean complete = !missedChanges.isEmpty()
+                && missedChanges.get(0).snapshot.getVersion() == afterVersion + 1
+                && missedChanges.get(missedChanges.size() - 1).snapshot.getVersion() == latest.snapshot.getVersion();
+
+        for(StateChanges stateChanges : missedChanges)
+            complete &= stateChanges.changesJson != null;
+
+        if(!complete)
+            return resync(latest);
+
+        // Merge the serialized change lists into a single JSON array
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        outputStream.write('[');
+        boolean first = true;
+        for(StateChanges stateChanges : missedChanges) {
+            int length = stateChanges.changesJson.length;
+            if(length <= 2)
+                continue;
+            if(!first)
+                outputStream.write(',');
+            outputStream.write(stateChanges.changesJson, 1, length - 2);
+            first = false;
+        }
+        outputStream.write(']');
+
+        return new StateChanges(latest.snapshot, outputStream.toByteArray(), false);
+    }
+
+    /**
+     * Creates the response carrying the full latest DT State instead of the change list.
+     *
+     * @param latest The latest published change list.
+     * @return The resync response.
+     */
+    private static StateChanges resync(StateChanges latest) {
+        return new StateChanges(latest.snapshot, latest.snapshot.getStateJson(), true);
+    }
+
+    /**
+     * Sends the state changes to a parked request on the IO thread of its connection.
+     *
+     * @param waiter The parked request.
+     * @param stateChanges The changes to send.
+     */
+    private void complete(Waiter waiter, StateChanges stateChanges) {
+
+        if(!waiter.completed.compareAndSet(false, true))
+            return;
+
+        waiters.remove(waiter);
+
+        XnioExecutor.Key timeoutKey = waiter.timeoutKey;
+        if(timeoutKey != null)
+            timeoutKey.remove();
+
+        waiter.exchange.getIoThread().execute(() -> {
+            waiter.release();
+            send(waiter.exchange, stateChanges);
+        });
+    }
+
+    /**
+     * Completes a parked request with 304 Not Modified when its waiting time expires.
+     *
+     * @param waiter The expired request.
+     */
+    private void onTimeout(Waiter waiter) {
+
+        if(!waiter.completed.compareAndSet(false, true))
+            return;
+
+        waiters.remove(waiter);
+        waiter.release();
+        sendNotModified(waiter.exchange);
+    }
+
+    /**
+     * Releases a parked request whose client disconnected, so that it no longer counts towards the maximum number
+     * of parked requests.
+     *
+     * @param waiter The disconnected request.
+     */
+    private void onDisconnection(Waiter waiter) {
+
+        if(!waiter.completed.compareAndSet(false, true))
+            return;
+
+        waiters.remove(waiter);
+
+        XnioExecutor.Key timeoutKey = waiter.timeoutKey;
+        if(timeoutKey != null)
+            timeoutKey.remove();
+    }
+
+    private static void send(HttpServerExchange exchange, StateChanges stateChanges) {
+        exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, "application/json");
+        exchange.getResponseHeaders().put(HttpDigitalAdapterHandlersFactory.STATE_VERSION_HEADER, stateChanges.snapshot.getVersion());
+        exchange.getResponseHeaders().put(VERSION_TAG_HEADER, stateChanges.snapshot.getVersionTag());
+        if(stateChanges.snapshot.getEntityTagHeader() != null)
+            exchange.getResponseHeaders().put(Headers.ETAG, stateChanges.snapshot.getEntityTagHeader());
+        if(stateChanges.resync)
+            exchange.getResponseHeaders().put(RESYNC_HEADER, "true");
+        exchange.getResponseSender().send(ByteBuffer.wrap((stateChanges.changesJson != null) ? stateChanges.changesJson : "[]".getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static void sendNotModified(HttpServerExchange exchange) {
+        exchange.setStatusCode(304);
+        exchange.endExchange();
+    }
+
+    private static void sendError(HttpServerExchange exchange, int statusCode, String message) {
+        exchange.setStatusCode(statusCode);
+        exchange.getResponseHeaders().put(Headers.CONTENT_TYPE, "application/json");
+        exchange.getResponseSender().send(HttpDigitalAdapterHandlersFactory.toErrorJson(message));
+    }
+}
@@ -0,0 +1,366 @@
+package it.wldt.adapter.http.digital.server;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import io.undertow.util.ETag;
+import it.wldt.core.state.*;
+
+import java.nio.charset.StandardCharsets;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Immutable and versioned snapshot of the Digital Twin State handled by the HTTP Digital Adapter.
+ * The snapshot is built once for every state update received by the adapter and stores the already serialized
+ * (UTF-8 encoded JSON) representation of the current state, of the previous state and of the property list,
+ * together with an index of the serialized properties by key used to answer the reads of a subset of properties.
+ * Only the serialized bytes and the property index are retained, so that the memory of a snapshot stays close to the
+ * size of the serialized state: the JSON trees used by the responses restricted to a subset of fields
+ * ({@link HttpDigitalAdapterFieldProjection}) are rebuilt on demand by parsing the serialized content, and the gzip
+ * compressed content is computed only when the response compression is enabled.
+ * HTTP handlers can then serve these buffers directly without re-building and re-serializing the state
+ * for every incoming request.
+ *
+ * @author Marco Picone, Ph.D. - picone.m@gmail.com, Marta Spadoni University of Bologna
+ */
+public final class HttpDigitalAdapterStateSnapshot {
+
+    /**
+     * Empty snapshot used before the first Digital Twin State is available
+     */
+    public static final HttpDigitalAdapterStateSnapshot EMPTY = new HttpDigitalAdapterStateSnapshot(0, null, null, null, null, new JsonArray(), Collections.emptyMap());
+
+    /**
+     * Identifier of the current process included in the entity tags and in the version tags, so that versions
+     * restarting from 1 after a restart never match the ones cached by the clients
+     */
+    private static final String ENTITY_TAG_PREFIX = Long.toString(System.currentTimeMillis(), 36);
+
+    /**
+     * Formatter used for the human-readable evaluation instant of the DT State (DateTimeFormatter is immutable and thread-safe)
+     */
+    private static final DateTimeFormatter EVALUATION_INSTANT_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss").withZone(ZoneId.systemDefault());
+
+    /**
+     * Monotonically increasing version of the DT State
+     */
+    private final long version;
+
+    /**
+     * The DT State associated to this snapshot
+     */
+    private final DigitalTwinState digitalTwinState;
+
+    /**
+     * The previous DT State associated to this snapshot
+     */
+    private final DigitalTwinState previousDigitalTwinState;
+
+    /**
+     * Serialized JSON of the current DT State
+     */
+    private final byte[] stateJson;
+
+    /**
+     * Serialized JSON of the previous DT State
+     */
+    private final byte[] previousStateJson;
+
+    /**
+     * Serialized JSON of the list of properties of the current DT State
+     */
+    private final byte[] propertiesJson;
+
+    /**
+     * Serialized JSON tree of each property of the current DT State indexed by property key (not to be modified)
+     */
+    private final Map<String, JsonObject> propertyIndex;
+
+    /**
+     * Gzip compressed versions of the serialized content of the snapshot, computed on the first compressed response
+     */
+    private final Map<byte[], byte[]> gzipContents = new ConcurrentHashMap<>(4);
+
+    /**
+     * Weak entity tag identifying the snapshot version (null if no DT State is available). The tag is weak since the
+     * same version is served with different encodings (identity or gzip) and different sections of the state
+     */
+    private final ETag entityTag;
+
+    /**
+     * Entity tag header value, precomputed once for all the responses
+     */
+    private final String entityTagHeader;
+
+    private HttpDigitalAdapterStateSnapshot(long version,
+                                            DigitalTwinState digitalTwinState,
+                                            DigitalTwinState previousDigitalTwinState,
+                                            JsonObject stateTree,
+                                            JsonObject previousStateTree,
+                                            JsonArray propertiesTree,
+                                            Map<String, JsonObject> propertyIndex) {
+        final Gson gson = HttpDigitalAdapterHandlersFactory.getDefaultGson();
+        this.version = version;
+        this.digitalTwinState = digitalTwinState;
+        this.previousDigitalTwinState = previousDigitalTwinState;
+        this.stateJson = (stateTree != null) ? gson.toJson(stateTree).getBytes(StandardCharsets.UTF_8) : null;
+        this.previousStateJson = (previousStateTree != null) ? gson.toJson(previousStateTree).getBytes(StandardCharsets.UTF_8) : null;
+        this.propertiesJson = gson.toJson(propertiesTree).getBytes(StandardCharsets.UTF_8);
+        this.propertyIndex = propertyIndex;
+        this.entityTag = (version > 0) ? new ETag(true, ENTITY_TAG_PREFIX + "-" + version) : null;
+        this.entityTagHeader = (entityTag != null) ? entityTag.toString() : null;
+    }
+
+    /**
+     * Creates a new snapshot serializing the provided DT States.
+     *
+     * @param version The version associated to the snapshot.
+     * @param digitalTwinState The current DT State (can be null).
+     * @param previousDigitalTwinState The previous DT State (can be null).
+     * @return The new immutable snapshot.
+     */
+    public static HttpDigitalAdapterStateSnapshot create(long version, DigitalTwinState digitalTwinState, DigitalTwinState previousDigitalTwinState) {
+
+        Collection<DigitalTwinStateProperty<?>> propertyList = new ArrayList<>();
+
+        try {
+            if(digitalTwinState != null && digitalTwinState.getPropertyList().isPresent())
+                propertyList = digitalTwinState.getPropertyList().get();
+        } catch (Exception ignored) {}
+
+        // Serialize the property list once, indexing the serialized properties by key in the same pass
+        final Gson gson = HttpDigitalAdapterHandlersFactory.getGson();
+        JsonArray propertiesArray = gson.toJsonTree(propertyList).getAsJsonArray();
+        Map<String, JsonObject> propertyIndex = new LinkedHashMap<>(propertiesArray.size() * 2);
+
+        for(JsonElement propertyElement : propertiesArray) {
+            JsonElement propertyKey = propertyElement.isJsonObject() ? propertyElement.getAsJsonObject().get("key") : null;
+            if(propertyKey != null && propertyKey.isJsonPrimitive())
+                propertyIndex.put(propertyKey.getAsString(), propertyElement.getAsJsonObject());
+        }
+
+        return new HttpDigitalAdapterStateSnapshot(version,
+                digitalTwinState,
+                previousDigitalTwinState,
+                buildDigitalTwinStateTree(digitalTwinState),
+                buildDigitalTwinStateTree(previousDigitalTwinState),
+                propertiesArray,
+                Collections.unmodifiableMap(propertyIndex));
+    }
+
+    /**
+     * Builds the JSON representation of a Digital Twin State.
+     *
+     * @param digitalTwinState The DT State to serialize.
+     * @return The JSON tree or null if the state is not available.
+     */
+    private static JsonObject buildDigitalTwinStateTree(DigitalTwinState digitalTwinState){
+
+        if(digitalTwinState == null)
+            return null;
+
+        try {
+
+            Collection<DigitalTwinStateProperty<?>> digitalTwinStatePropertiesList = (digitalTwinState.getPropertyList().isPresent()) ? digitalTwinState.getPropertyList().get() : new ArrayList<>();
+            Collection<DigitalTwinStateAction> digitalTwinStateActionsList = (digitalTwinState.getActionList().isPresent()) ? digitalTwinState.getActionList().get() : new ArrayList<>();
+            Collection<DigitalTwinStateEvent> digitalTwinStateEventsList = (digitalTwinState.getEventList().isPresent()) ? digitalTwinState.getEventList().get() : new ArrayList<>();
+            Collection<DigitalTwinStateRelationship<?>> digitalTwinStateRelationships = (digitalTwinState.getRelationshipList().isPresent()) ? digitalTwinState.getRelationshipList().get() : new ArrayList<>();
+
+            final Gson gson = HttpDigitalAdapterHandlersFactory.getDefaultGson();
+            final JsonObject responseObj = new JsonObject();
+
+            responseObj.addProperty("evaluation_instant_epoch_ms", digitalTwinState.getEvaluationInstant().toEpochMilli());
+            responseObj.addProperty("evaluation_instant_date", EVALUATION_INSTANT_FORMATTER.format(digitalTwinState.getEvaluationInstant()));
+            responseObj.add("properties", gson.toJsonTree(digitalTwinStatePropertiesList));
+            responseObj.add("actions", gson.toJsonTree(digitalTwinStateActionsList));
+            responseObj.add("events", gson.toJsonTree(digitalTwinStateEventsList));
+            responseObj.add("relationships", HttpDigitalAdapterHandlersFactory.getGson().toJsonTree(digitalTwinStateRelationships));
+
+            return responseObj;
+
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * Retrieves the version of the snapshot.
+     *
+     * @return The snapshot version.
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Retrieves the tag identifying the version of the snapshot across the restarts of the adapter, made of the
+     * identifier of the current process and of the version (e.g., used as event id of the state stream).
+     *
+     * @return The version tag.
+     */
+    public String getVersionTag() {
+        return ENTITY_TAG_PREFIX + "-" + version;
+    }
+
+    /**
+     * Extracts the version from a tag returned by {@link #getVersionTag()}.
+     *
+     * @param versionTag The version tag received from a client.
+     * @return The version or null if the tag was issued by another process (e.g., before a restart).
+     * @throws NumberFormatException If the tag is not a valid version tag.
+     */
+    public static Long parseVersionTag(String versionTag) {
+        int separatorIndex = versionTag.lastIndexOf('-');
+        if(separatorIndex < 0)
+            throw new NumberFormatException("Invalid version tag: " + versionTag);
+        long version = Long.parseLong(versionTag.substring(separatorIndex + 1));
+        return ENTITY_TAG_PREFIX.equals(versionTag.substring(0, separatorIndex)) ? version : null;
+    }
+
+    /**
+     * Retrieves the entity tag identifying the snapshot version, used for conditional requests.
+     *
+     * @return The entity tag or null if no DT State is available.
+     */
+    public ETag getEntityTag() {
+        return entityTag;
+    }
+
+    /**
+     * Retrieves the value of the ETag response header associated to the snapshot.
+     *
+     * @return The ETag header value or null if no DT State is available.
+     */
+    public String getEntityTagHeader() {
+        return entityTagHeader;
+    }
+
+    /**
+     * Retrieves the DT State associated to the snapshot.
+     *
+     * @return The current DT State or null if not available.
+     */
+    public DigitalTwinState getDigitalTwinState() {
+        return digitalTwinState;
+    }
+
+    /**
+     * Retrieves the previous DT State associated to the snapshot.
+     *
+     * @return The previous DT State or null if not available.
+     */
+    public DigitalTwinState getPreviousDigitalTwinState() {
+        return previousDigitalTwinState;
+    }
+
+    /**
+     * Retrieves the serialized JSON of the current DT State.
+     * The returned array is shared and must not be modified.
+     *
+     * @return The UTF-8 encoded JSON or null if not available.
+     */
+    public byte[] getStateJson() {
+        return stateJson;
+    }
+
+    /**
+     * Retrieves the serialized JSON of the previous DT State.
+     * The returned array is shared and must not be modified.
+     *
+     * @return The UTF-8 encoded JSON or null if not available.
+     */
+    public byte[] getPreviousStateJson() {
+        return previousStateJson;
+    }
+
+    /**
+     * Retrieves the serialized JSON of the property list of the current DT State.
+     * The returned array is shared and must not be modified.
+     *
+     * @return The UTF-8 encoded JSON.
+     */
+    public byte[] getPropertiesJson() {
+        return propertiesJson;
+    }
+
+    /**
+     * Retrieves the gzip compressed version of a serialized content of this snapshot (the current state, the previous
+     * state or the property list), so that each DT State version is compressed once for all the requests.
+     * The returned array is shared and must not be modified.
+     *
+     * @param content The serialized content as returned by this snapshot.
+     * @return The gzip compressed content.
+     */
+    public byte[] getGzipContent(byte[] content) {
+        return gzipContents.computeIfAbsent(content, HttpDigitalAdapterCompression::gzip);
+    }
+
+    /**
+     * Rebuilds the JSON tree of the current DT State from its serialized JSON.
+     * A new tree is returned on each invocation.
+     *
+     * @return The JSON tree or null if not available.
+     */
+    public JsonObject getStateTree() {
+        return (stateJson != null) ? parseTree(stateJson).getAsJsonObject() : null;
+    }
+
+    /**
+     * Rebuilds the JSON tree of the previous DT State from its serialized JSON.
+     * A new tree is returned on each invocation.
+     *
+     * @return The JSON tree or null if not available.
+     */
+    public JsonObject getPreviousStateTree() {
+        return (previousStateJson != null) ? parseTree(previousStateJson).getAsJsonObject() : null;
+    }
+
+    /**
+     * Rebuilds the JSON tree of the property list of the current DT State from its serialized JSON.
+     * A new tree is returned on each invocation.
+     *
+     * @return The JSON tree.
+     */
+    public JsonArray getPropertiesTree() {
+        return parseTree(propertiesJson).getAsJsonArray();
+    }
+
+    /**
+     * Parses a serialized content of the snapshot.
+     *
+     * @param content The UTF-8 encoded JSON.
+     * @return The JSON tree.
+     */
+    private static JsonElement parseTree(byte[] content) {
+        return JsonParser.parseString(new String(content, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Retrieves the serialized JSON tree of a property of the current DT State through the property index.
+     * The returned object is shared and must not be modified.
+     *
+     * @param propertyKey The property key.
+     * @return The serialized property or null if the property is not available.
+     */
+    public JsonObject getPropertyJson(String propertyKey) {
+        return propertyIndex.get(propertyKey);
+    }
+
+    /**
+     * Retrieves the keys of the properties of the current DT State, in the order of the property list.
+     *
+     * @return The property keys.
+     */
+    public Collection<String> getPropertyKeys() {
+        return propertyIndex.keySet();
+    }
+}
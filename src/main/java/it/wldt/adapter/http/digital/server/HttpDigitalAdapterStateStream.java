@@ -0,0 +1,348 @@
+package it.wldt.adapter.http.digital.server;
+
+import io.undertow.server.HttpHandler;
+import io.undertow.server.handlers.sse.ServerSentEventConnection;
+import io.undertow.server.handlers.sse.ServerSentEventHandler;
+import it.wldt.core.state.DigitalTwinStateChange;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xnio.IoUtils;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Server-Sent Events (SSE) stream of the Digital Twin State updates received by the HTTP Digital Adapter.
+ * Each update is pushed to all the connected subscribers using the state version tag as event id, either as the
+ * full state snapshot (event "snapshot") or as the list of changes (event "changes") according to the
+ * {@code mode} query parameter selected by the client.
+ * The last published change lists are kept in a bounded in-memory replay buffer, allowing clients to resume
+ * the stream through the standard {@code Last-Event-ID} header. When the requested event is no longer available,
+ * or it was issued before a restart of the adapter, the client receives the latest full snapshot in order to
+ * restore its view of the state.
+ * Each subscriber has a bounded outbound queue: when a slow client fills it, the pending events are replaced by
+ * the latest snapshot, so that the client catches up without missing any change.
+ *
+ * @author Marco Picone, Ph.D. - picone.m@gmail.com, Marta Spadoni University of Bologna
+ */
+public class HttpDigitalAdapterStateStream {
+
+    private final static Logger logger = LoggerFactory.getLogger(HttpDigitalAdapterStateStream.class);
+
+    /**
+     * Query parameter used by the client to select the stream mode
+     */
+    public final static String MODE_QUERY_PARAMETER = "mode";
+
+    /**
+     * Name of the events carrying the full state snapshot
+     */
+    public final static String SNAPSHOT_EVENT = "snapshot";
+
+    /**
+     * Name of the events carrying the list of state changes
+     */
+    public final static String CHANGES_EVENT = "changes";
+
+    /**
+     * Keep alive period used to prevent intermediaries from closing idle connections
+     */
+    private final static long KEEP_ALIVE_TIME_MS = 15000;
+
+    /**
+     * Buffered change list associated to a published state version
+     */
+    private static class StreamEvent {
+
+        private final long version;
+
+        private final String id;
+
+        private final String changesJson;
+
+        private StreamEvent(long version, String id, String changesJson) {
+            this.version = version;
+            this.id = id;
+            this.changesJson = changesJson;
+        }
+    }
+
+    /**
+     * Event waiting to be sent to a subscriber
+     */
+    private static class PendingEvent {
+
+        private final String data;
+
+        private final String event;
+
+        private final String id;
+
+        private PendingEvent(String data, String event, String id) {
+            this.data = data;
+            this.event = event;
+            this.id = id;
+        }
+    }
+
+    /**
+     * Connected client with its stream mode and its bounded outbound queue. A single event at a time is handed
+     * to the Undertow connection, the next one is sent when the previous one has been written
+     */
+    private class Subscriber implements ServerSentEventConnection.EventCallback {
+
+        private final ServerSentEventConnection connection;
+
+        private final boolean changesMode;
+
+        private final ArrayDeque<PendingEvent> outboundQueue = new ArrayDeque<>();
+
+        private boolean sending = false;
+
+        private long resyncCount = 0;
+
+        private Subscriber(ServerSentEventConnection connection, boolean changesMode) {
+            this.connection = connection;
+            this.changesMode = changesMode;
+        }
+
+        /**
+         * Enqueues an event, replacing all the pending events with the latest snapshot when the queue is full.
+         * Invoked holding the stream lock, so that the latest snapshot is consistent with the enqueued events.
+         */
+        private void enqueue(String data, String event, String id) {
+            synchronized (this) {
+                if(outboundQueue.size() >= outboundQueueSize) {
+                    outboundQueue.clear();
+                    resyncCount++;
+                    if(resyncCount % outboundQueueSize == 1)
+                        logger.warn("Slow state stream client ! Pending events replaced by the latest snapshot: {} times", resyncCount);
+                    outboundQueue.addLast(new PendingEvent(getLatestSnapshotJson(), SNAPSHOT_EVENT, latestSnapshot.getVersionTag()));
+                }
+                else
+                    outboundQueue.addLast(new PendingEvent(data, event, id));
+                if(sending)
+                    return;
+                sending = true;
+            }
+            sendNext();
+        }
+
+        private void sendNext() {
+            PendingEvent pendingEvent;
+            synchronized (this) {
+                pendingEvent = outboundQueue.pollFirst();
+                if(pendingEvent == null) {
+                    sending = false;
+                    return;
+                }
+            }
+            connection.send(pendingEvent.data, pendingEvent.event, pendingEvent.id, this);
+        }
+
+        @Override
+        public void done(ServerSentEventConnection connection, String data, String event, String id) {
+            sendNext();
+        }
+
+        @Override
+        public void failed(ServerSentEventConnection connection, String data, String event, String id, IOException e) {
+            logger.debug("Error sending state stream event ! Closing the connection. Error: {}", e.toString());
+            subscribers.remove(this);
+            IoUtils.safeClose(connection);
+        }
+    }
+
+    /**
+     * Maximum number of change lists kept for the replay
+     */
+    private final int replayBufferSize;
+
+    /**
+     * Replay buffer of the latest published change lists ordered by event id
+     */
+    private final ArrayDeque<StreamEvent> replayBuffer;
+
+    /**
+     * Maximum number of events queued for each subscriber
+     */
+    private final int outboundQueueSize;
+
+    /**
+     * Subscribers that completed the replay phase and receive the live updates. The set is concurrent since
+     * closed connections are removed by Undertow close tasks without acquiring the stream lock
+     */
+    private final Set<Subscriber> subscribers = ConcurrentHashMap.newKeySet();
+
+    /**
+     * The Undertow handler accepting the SSE connections
+     */
+    private final ServerSentEventHandler serverSentEventHandler;
+
+    /**
+     * The latest published snapshot
+     */
+    private HttpDigitalAdapterStateSnapshot latestSnapshot = HttpDigitalAdapterStateSnapshot.EMPTY;
+
+    /**
+     * The latest published snapshot as String (lazily converted once for all the connections)
+     */
+    private String latestSnapshotJson = null;
+
+    /**
+     * Constructs a new state stream.
+     *
+     * @param replayBufferSize The maximum number of change lists kept for the Last-Event-ID resume.
+     * @param outboundQueueSize The maximum number of events queued for each subscriber.
+     */
+    public HttpDigitalAdapterStateStream(int replayBufferSize, int outboundQueueSize) {
+        this.replayBufferSize = replayBufferSize;
+        this.outboundQueueSize = outboundQueueSize;
+        this.replayBuffer = new ArrayDeque<>(replayBufferSize);
+        this.serverSentEventHandler = new ServerSentEventHandler(this::onConnected);
+    }
+
+    /**
+     * Retrieves the HTTP handler accepting the SSE subscriptions.
+     *
+     * @return The SSE handler.
+     */
+    public HttpHandler getHandler() {
+        return serverSentEventHandler;
+    }
+
+    /**
+     * Publishes a new state update to all the subscribers.
+     *
+     * @param snapshot The snapshot of the updated DT State.
+     * @param stateChangeList The list of changes associated to the update or null if the update is not incremental
+     *                        (e.g., a DT synchronization). In this case the replay buffer is reset.
+     */
+    public synchronized void publish(HttpDigitalAdapterStateSnapshot snapshot, Collection<DigitalTwinStateChange> stateChangeList) {
+
+        this.latestSnapshot = snapshot;
+        this.latestSnapshotJson = null;
+
+        final String eventId = snapshot.getVersionTag();
+        String changesJson = null;
+
+        if(stateChangeList != null) {
+            changesJson = HttpDigitalAdapterHandlersFactory.getGson().toJson(stateChangeList);
+
+            if(replayBufferSize > 0) {
+                if(replayBuffer.size() >= replayBufferSize)
+                    replayBuffer.pollFirst();
+                replayBuffer.addLast(new StreamEvent(snapshot.getVersion(), eventId, changesJson));
+            }
+        }
+        else
+            replayBuffer.clear();
+
+        for(Subscriber subscriber : subscribers) {
+            if(subscriber.changesMode && changesJson != null)
+                subscriber.enqueue(changesJson, CHANGES_EVENT, eventId);
+            else
+                sendLatestSnapshot(subscriber);
+        }
+    }
+
+    /**
+     * Retrieves the number of currently connected subscribers.
+     *
+     * @return The number of subscribers.
+     */
+    public int getSubscriberCount() {
+        return subscribers.size();
+    }
+
+    /**
+     * Closes all the active subscriptions.
+     */
+    public synchronized void shutdown() {
+        for(Subscriber subscriber : subscribers)
+            subscriber.connection.shutdown();
+        subscribers.clear();
+    }
+
+    /**
+     * Callback invoked by Undertow when a new subscriber is connected. The events missed by the client
+     * since the provided Last-Event-ID are replayed before registering the connection for the live updates.
+     *
+     * @param connection The new SSE connection.
+     * @param lastEventId The value of the Last-Event-ID header or null for new subscriptions.
+     */
+    private synchronized void onConnected(ServerSentEventConnection connection, String lastEventId) {
+
+        Deque<String> modeParameter = connection.getQueryParameters().get(MODE_QUERY_PARAMETER);
+        Subscriber subscriber = new Subscriber(connection, modeParameter != null && CHANGES_EVENT.equalsIgnoreCase(modeParameter.peekFirst()));
+        connection.setKeepAliveTime(KEEP_ALIVE_TIME_MS);
+
+        try {
+            // Event ids issued before a restart of the adapter are handled as new subscriptions
+            replay(subscriber, lastEventId != null ? HttpDigitalAdapterStateSnapshot.parseVersionTag(lastEventId.trim()) : null);
+        } catch (NumberFormatException e) {
+            logger.debug("Invalid Last-Event-ID: {} ! Sending the latest snapshot.", lastEventId);
+            replay(subscriber, null);
+        }
+
+        subscribers.add(subscriber);
+        connection.addCloseTask(closedConnection -> subscribers.remove(subscriber));
+    }
+
+    /**
+     * Sends the missed events to a subscriber.
+     *
+     * @param subscriber The target subscriber.
+     * @param lastEventVersion The version of the last event received by the client or null for new subscriptions.
+     */
+    private void replay(Subscriber subscriber, Long lastEventVersion) {
+
+        // Nothing to send before the first DT State is available
+        if(latestSnapshot.getStateJson() == null)
+            return;
+
+        // New subscription or snapshot mode: the latest snapshot is the complete view of the state
+        if(lastEventVersion == null || !subscriber.changesMode) {
+            if(lastEventVersion == null || lastEventVersion < latestSnapshot.getVersion())
+                sendLatestSnapshot(subscriber);
+            return;
+        }
+
+        // The client is up-to-date
+        if(lastEventVersion >= latestSnapshot.getVersion())
+            return;
+
+        // The missed changes are no longer available, the client has to restart from the latest snapshot
+        if(replayBuffer.isEmpty() || replayBuffer.peekFirst().version > lastEventVersion + 1) {
+            sendLatestSnapshot(subscriber);
+            return;
+        }
+
+        for(StreamEvent streamEvent : replayBuffer)
+            if(streamEvent.version > lastEventVersion)
+                subscriber.enqueue(streamEvent.changesJson, CHANGES_EVENT, streamEvent.id);
+    }
+
+    /**
+     * Sends the latest snapshot to a subscriber.
+     *
+     * @param subscriber The target subscriber.
+     */
+    private void sendLatestSnapshot(Subscriber subscriber) {
+        if(latestSnapshot.getStateJson() != null)
+            subscriber.enqueue(getLatestSnapshotJson(), SNAPSHOT_EVENT, latestSnapshot.getVersionTag());
+    }
+
+    /**
+     * Retrieves the latest snapshot as String, converting it once for all the subscribers.
+     *
+     * @return The JSON of the latest DT State.
+     */
+    private String getLatestSnapshotJson() {
+        if(latestSnapshotJson == null)
+            latestSnapshotJson = new String(latestSnapshot.getStateJson(), StandardCharsets.UTF_8);
+        return latestSnapshotJson;
+    }
+}
@@ -0,0 +1,243 @@
+package it.wldt.adapter.http.digital.server;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import it.wldt.storage.query.QueryRequest;
+import it.wldt.storage.query.QueryRequestType;
+import it.wldt.storage.query.QueryResourceType;
+import it.wldt.storage.query.QueryResult;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+/**
+ * Storage Query received through the HTTP Digital Adapter, parsed from its JSON body. Besides the query request
+ * executed on the Storage Manager, a query can request the downsampling of its results
+ * ({@link HttpDigitalAdapterQueryAggregation}) or their pagination ({@link HttpDigitalAdapterQueryCursor}), either
+ * through a page size ({@code limit}) or through the continuation cursor of a previous page ({@code cursor}).
+ *
+ * @author Marco Picone, Ph.D. - picone.m@gmail.com, Marta Spadoni University of Bologna
+ */
+public class HttpDigitalAdapterStorageQuery {
+
+    /**
+     * The query body field for the resource type.
+     */
+    private final static String QUERY_BODY_RESOURCE_TYPE_FIELD = "resourceType";
+
+    /**
+     * The query body field for the query type.
+     */
+    private final static String QUERY_BODY_QUERY_TYPE_FIELD = "queryType";
+
+    private final static String QUERY_BODY_START_MS_FIELD = "startMs";
+
+    private final static String QUERY_BODY_END_MS_FIELD = "endMs";
+
+    private final static String QUERY_BODY_START_INDEX_FIELD = "startIndex";
+
+    private final static String QUERY_BODY_END_INDEX_FIELD = "endIndex";
+
+    /**
+     * The query body field with the maximum number of results of a page.
+     */
+    private final static String QUERY_BODY_LIMIT_FIELD = "limit";
+
+    /**
+     * The query body field with the continuation cursor of a paginated query.
+     */
+    private final static String QUERY_BODY_CURSOR_FIELD = "cursor";
+
+    /**
+     * The query request executed on the Storage Manager (the request of the page for paginated queries)
+     */
+    private final QueryRequest queryRequest;
+
+    /**
+     * The downsampling of the results (null if not requested)
+     */
+    private final HttpDigitalAdapterQueryAggregation queryAggregation;
+
+    /**
+     * The cursor of the requested page (null if the query is not paginated)
+     */
+    private final HttpDigitalAdapterQueryCursor queryCursor;
+
+    private HttpDigitalAdapterStorageQuery(QueryRequest queryRequest, HttpDigitalAdapterQueryAggregation queryAggregation, HttpDigitalAdapterQueryCursor queryCursor) {
+        this.queryRequest = queryRequest;
+        this.queryAggregation = queryAggregation;
+        this.queryCursor = queryCursor;
+    }
+
+    /**
+     * Parses a Storage Query from its JSON body.
+     *
+     * @param requestJson The query body.
+     * @param aggregationMaxBuckets The maximum number of buckets of each downsampled series.
+     * @return The parsed Storage Query.
+     * @throws IllegalArgumentException If the query is not valid, with the error message to return to the client.
+     */
+    public static HttpDigitalAdapterStorageQuery fromJson(JsonObject requestJson, int aggregationMaxBuckets) {
+
+        if(requestJson == null)
+            throw new IllegalArgumentException("Invalid Query Request !");
+
+        // Resume a paginated query from the continuation cursor of the previous page
+        if(requestJson.has(QUERY_BODY_CURSOR_FIELD)) {
+            try {
+                HttpDigitalAdapterQueryCursor queryCursor = HttpDigitalAdapterQueryCursor.decode(requestJson.get(QUERY_BODY_CURSOR_FIELD).getAsString());
+                if(requestJson.has(QUERY_BODY_LIMIT_FIELD))
+                    queryCursor = queryCursor.withLimit(readLimit(requestJson));
+                return new HttpDigitalAdapterStorageQuery(queryCursor.createPageRequest(), null, queryCursor);
+            } catch (IllegalArgumentException | IllegalStateException | UnsupportedOperationException e) {
+                throw new IllegalArgumentException(String.format("Invalid Query Cursor ! %s", e.getMessage()));
+            }
+        }
+
+        if(!requestJson.has(QUERY_BODY_RESOURCE_TYPE_FIELD) || !requestJson.has(QUERY_BODY_QUERY_TYPE_FIELD))
+            throw new IllegalArgumentException("Invalid Query Request !");
+
+        QueryRequest queryRequest = new QueryRequest();
+
+        try {
+
+            QueryResourceType queryResourceType = QueryResourceType.valueOf(requestJson.get(QUERY_BODY_RESOURCE_TYPE_FIELD).getAsString());
+            QueryRequestType queryRequestType = QueryRequestType.valueOf(requestJson.get(QUERY_BODY_QUERY_TYPE_FIELD).getAsString());
+
+            // Set the Query Request Resource Type and Query Request Type
+            queryRequest.setResourceType(queryResourceType);
+            queryRequest.setRequestType(queryRequestType);
+
+            //Check if the QueryRequestType is TIME_RANGE or SAMPLE_RANGE
+            if(queryRequestType == QueryRequestType.TIME_RANGE){
+
+                long startMs = requestJson.has(QUERY_BODY_START_MS_FIELD) ? requestJson.get(QUERY_BODY_START_MS_FIELD).getAsLong() : 0;
+                long endMs = requestJson.has(QUERY_BODY_END_MS_FIELD) ? requestJson.get(QUERY_BODY_END_MS_FIELD).getAsLong() : System.currentTimeMillis();
+
+                //Set the Query Request Time Range
+                queryRequest.setStartTimestampMs(startMs);
+                queryRequest.setEndTimestampMs(endMs);
+            }
+            else if(queryRequestType == QueryRequestType.SAMPLE_RANGE) {
+
+                int startIndex = requestJson.has(QUERY_BODY_START_INDEX_FIELD) ? requestJson.get(QUERY_BODY_START_INDEX_FIELD).getAsInt() : 0;
+                int endIndex = requestJson.has(QUERY_BODY_END_INDEX_FIELD) ? requestJson.get(QUERY_BODY_END_INDEX_FIELD).getAsInt() : 0;
+
+                //Set the Query Request Sample Range
+                queryRequest.setStartIndex(startIndex);
+                queryRequest.setEndIndex(endIndex);
+            }
+
+            // Paginate the results of range queries if a page size is provided
+            if(requestJson.has(QUERY_BODY_LIMIT_FIELD) && HttpDigitalAdapterQueryCursor.isPaginated(queryRequest)) {
+                if(HttpDigitalAdapterQueryAggregation.fromJson(queryResourceType, requestJson, aggregationMaxBuckets) != null)
+                    throw new IllegalArgumentException("limit cannot be used together with downsampling");
+                HttpDigitalAdapterQueryCursor queryCursor = HttpDigitalAdapterQueryCursor.first(queryRequest, readLimit(requestJson));
+                return new HttpDigitalAdapterStorageQuery(queryCursor.createPageRequest(), null, queryCursor);
+            }
+
+        } catch (IllegalArgumentException | IllegalStateException | UnsupportedOperationException e) {
+            throw new IllegalArgumentException(String.format("Invalid Query Request ! %s", e.getMessage()));
+        }
+
+        // Read the optional downsampling of the results
+        try {
+            return new HttpDigitalAdapterStorageQuery(queryRequest, HttpDigitalAdapterQueryAggregation.fromJson(queryRequest.getResourceType(), requestJson, aggregationMaxBuckets), null);
+        } catch (IllegalArgumentException | IllegalStateException | UnsupportedOperationException e) {
+            throw new IllegalArgumentException(String.format("Invalid Query Aggregation ! %s", e.getMessage()));
+        }
+    }
+
+    private static int readLimit(JsonObject requestJson) {
+        int limit = requestJson.get(QUERY_BODY_LIMIT_FIELD).getAsInt();
+        if(limit <= 0)
+            throw new IllegalArgumentException("limit must be positive");
+        return limit;
+    }
+
+    /**
+     * Retrieves the query request to execute on the Storage Manager.
+     *
+     * @return The query request.
+     */
+    public QueryRequest getQueryRequest() {
+        return queryRequest;
+    }
+
+    /**
+     * Retrieves the downsampling of the results.
+     *
+     * @return The downsampling or null if not requested.
+     */
+    public HttpDigitalAdapterQueryAggregation getQueryAggregation() {
+        return queryAggregation;
+    }
+
+    /**
+     * Retrieves the cursor of the requested page.
+     *
+     * @return The cursor or null if the query is not paginated.
+     */
+    public HttpDigitalAdapterQueryCursor getQueryCursor() {
+        return queryCursor;
+    }
+
+    /**
+     * Executes the query through the coalescer. Pages of paginated queries are identified by their cursor and read
+     * through the cursor (TIME_RANGE pages may need several query requests).
+     *
+     * @param queryCoalescer The coalescer deduplicating the concurrent executions of the same query.
+     * @param queryExecutionFunction The function starting the asynchronous execution of a query request.
+     * @return A future completed with the shared result of the query.
+     */
+    public CompletableFuture<HttpDigitalAdapterQueryCoalescer.SharedQueryResult> execute(HttpDigitalAdapterQueryCoalescer queryCoalescer, Function<QueryRequest, CompletableFuture<QueryResult<?>>> queryExecutionFunction) {
+        if(queryCursor != null)
+            return queryCoalescer.execute(queryCursor.encode(), () -> queryCursor.fetchPage(queryExecutionFunction));
+        return queryCoalescer.execute(queryRequest, queryExecutionFunction);
+    }
+
+    /**
+     * Creates the JSON response of the query from the result of its query request: the downsampled series, the
+     * requested page (with the cursor of the next one) or the plain result. Failed results are returned as they are.
+     *
+     * @param queryResult The result of the query request.
+     * @param gson The Gson instance used to serialize the results.
+     * @return The JSON response.
+     */
+    public JsonElement toJson(QueryResult<?> queryResult, Gson gson) {
+
+        if(queryResult == null || !queryResult.isSuccessful())
+            return gson.toJsonTree(queryResult);
+
+        if(queryAggregation != null)
+            return queryAggregation.apply(queryResult);
+
+        if(queryCursor != null) {
+
+            List<?> results = getResults(queryResult);
+            HttpDigitalAdapterQueryCursor nextCursor = queryCursor.next(results);
+
+            JsonObject responseObj = gson.toJsonTree(new QueryResult<>(queryResult.getOriginalRequest(), true, null,
+                    queryCursor.getPageItems(results), (int) queryCursor.getTotalItems(results))).getAsJsonObject();
+            if(nextCursor != null)
+                responseObj.addProperty("nextCursor", nextCursor.encode());
+
+            return responseObj;
+        }
+
+        return gson.toJsonTree(queryResult);
+    }
+
+    /**
+     * Retrieves the results of a query request as a list (empty if missing).
+     *
+     * @param queryResult The result of the query request.
+     * @return The list of results.
+     */
+    static List<?> getResults(QueryResult<?> queryResult) {
+        return (queryResult.getResults() != null) ? queryResult.getResults() : Collections.emptyList();
+    }
+}
@@ -0,0 +1,417 @@
+package it.wldt.adapter.http.digital.server;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import io.undertow.Handlers;
+import io.undertow.server.HttpHandler;
+import io.undertow.websockets.core.*;
+import io.undertow.websockets.spi.WebSocketHttpExchange;
+import it.wldt.core.state.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiFunction;
+
+/**
+ * WebSocket endpoint of the HTTP Digital Adapter allowing clients to open a single bidirectional channel
+ * with the Digital Twin. Each client subscribes to a subset of property keys, event keys and relationship names
+ * and receives only the state changes and the event notifications matching its filters.
+ * Clients can also invoke DT actions on the same channel.
+ *
+ * Supported client messages are:
+ * <ul>
+ *     <li>{@code {"type": "subscribe", "properties": [...], "events": [...], "relationships": [...]}}: replaces the
+ *     filters of the client. A missing list means that no resource of that kind is received, while {@code "*"}
+ *     selects all of them.</li>
+ *     <li>{@code {"type": "action", "id": "...", "key": "...", "body": ...}}: invokes a DT action. The outcome is
+ *     notified with an {@code actionResult} message reporting the same optional id and, if the action has been
+ *     accepted, the {@code requestId} of the action request tracked as the ones received through HTTP.</li>
+ * </ul>
+ *
+ * Outgoing messages are queued on a bounded per-connection queue with a single in-flight write, so a slow client
+ * never delays the others. When the queue of a client is full the oldest pending messages are discarded.
+ *
+ * @author Marco Picone, Ph.D. - picone.m@gmail.com, Marta Spadoni University of Bologna
+ */
+public class HttpDigitalAdapterWebSocketEndpoint {
+
+    private final static Logger logger = LoggerFactory.getLogger(HttpDigitalAdapterWebSocketEndpoint.class);
+
+    /**
+     * Message type field
+     */
+    private final static String TYPE_FIELD = "type";
+
+    /**
+     * Wildcard selecting all the resources of a kind
+     */
+    private final static String WILDCARD = "*";
+
+    /**
+     * Subscription filters of a client. Instances are immutable and replaced on each subscribe message
+     */
+    private static class SubscriptionFilter {
+
+        private final static SubscriptionFilter NONE = new SubscriptionFilter(null, null, null);
+
+        private final Set<String> properties;
+
+        private final Set<String> events;
+
+        private final Set<String> relationships;
+
+        private SubscriptionFilter(Set<String> properties, Set<String> events, Set<String> relationships) {
+            this.properties = properties;
+            this.events = events;
+            this.relationships = relationships;
+        }
+
+        private static Set<String> parse(JsonObject message, String field){
+            if(!message.has(field) || !message.get(field).isJsonArray())
+                return null;
+            Set<String> keys = new HashSet<>();
+            for(JsonElement key : message.getAsJsonArray(field))
+                keys.add(key.getAsString());
+            return keys;
+        }
+
+        private static boolean matches(Set<String> filter, String key){
+            return filter != null && (filter.contains(WILDCARD) || filter.contains(key));
+        }
+
+        private boolean isEmpty(){
+            return properties == null && events == null && relationships == null;
+        }
+
+        private boolean matchesProperty(String key){
+            return matches(properties, key);
+        }
+
+        private boolean matchesEvent(String key){
+            return matches(events, key);
+        }
+
+        private boolean matchesRelationship(String name){
+            return matches(relationships, name);
+        }
+    }
+
+    /**
+     * Connected client with its filters and its bounded outbound queue
+     */
+    private class Subscriber {
+
+        private final WebSocketChannel channel;
+
+        private final ArrayDeque<String> outboundQueue = new ArrayDeque<>();
+
+        private volatile SubscriptionFilter filter = SubscriptionFilter.NONE;
+
+        private boolean sending = false;
+
+        private long droppedMessages = 0;
+
+        private final WebSocketCallback<Void> sendCallback = new WebSocketCallback<Void>() {
+            @Override
+            public void complete(WebSocketChannel webSocketChannel, Void context) {
+                sendNext();
+            }
+
+            @Override
+            public void onError(WebSocketChannel webSocketChannel, Void context, Throwable throwable) {
+                logger.debug("Error sending WebSocket message ! Closing the channel. Error: {}", throwable.toString());
+                subscribers.remove(Subscriber.this);
+                closeChannel(webSocketChannel);
+            }
+        };
+
+        private Subscriber(WebSocketChannel channel) {
+            this.channel = channel;
+        }
+
+        private void enqueue(String message) {
+            synchronized (this) {
+                if(outboundQueue.size() >= outboundQueueSize) {
+                    outboundQueue.pollFirst();
+                    droppedMessages++;
+                    if(droppedMessages % outboundQueueSize == 1)
+                        logger.warn("Slow WebSocket client {} ! Dropped messages: {}", channel.getSourceAddress(), droppedMessages);
+                }
+                outboundQueue.addLast(message);
+                if(sending)
+                    return;
+                sending = true;
+            }
+            sendNext();
+        }
+
+        private void sendNext() {
+            String message;
+            synchronized (this) {
+                message = outboundQueue.pollFirst();
+                if(message == null) {
+                    sending = false;
+                    return;
+                }
+            }
+            WebSockets.sendText(message, channel, sendCallback);
+        }
+    }
+
+    /**
+     * Maximum number of messages queued for each client
+     */
+    private final int outboundQueueSize;
+
+    /**
+     * Table tracking the accepted action requests
+     */
+    private final HttpDigitalAdapterActionRequests actionRequests;
+
+    /**
+     * Function used to invoke the DT actions
+     */
+    private final BiFunction<String, String, Integer> actionFunction;
+
+    /**
+     * Connected clients
+     */
+    private final Set<Subscriber> subscribers = ConcurrentHashMap.newKeySet();
+
+    /**
+     * The Undertow handler managing the WebSocket handshake
+     */
+    private final HttpHandler handler;
+
+    /**
+     * Constructs a new WebSocket endpoint.
+     *
+     * @param outboundQueueSize The maximum number of outgoing messages queued for each client.
+     * @param actionRequests The table tracking the accepted action requests.
+     * @param actionFunction The function used to invoke the DT actions (action key and body, returning an HTTP status code).
+     */
+    public HttpDigitalAdapterWebSocketEndpoint(int outboundQueueSize, HttpDigitalAdapterActionRequests actionRequests, BiFunction<String, String, Integer> actionFunction) {
+        this.outboundQueueSize = outboundQueueSize;
+        this.actionRequests = actionRequests;
+        this.actionFunction = actionFunction;
+        this.handler = Handlers.websocket(this::onConnect);
+    }
+
+    /**
+     * Retrieves the HTTP handler accepting the WebSocket connections.
+     *
+     * @return The WebSocket handshake handler.
+     */
+    public HttpHandler getHandler() {
+        return handler;
+    }
+
+    /**
+     * Retrieves the number of connected clients.
+     *
+     * @return The number of clients.
+     */
+    public int getSubscriberCount() {
+        return subscribers.size();
+    }
+
+    /**
+     * Sends the state changes to the clients with a matching filter. Each change is serialized only once
+     * and the per-client message is composed from the already serialized changes.
+     *
+     * @param version The version of the DT State.
+     * @param stateChangeList The list of changes associated to the update.
+     */
+    public void publishStateChanges(long version, Collection<DigitalTwinStateChange> stateChangeList) {
+
+        if(subscribers.isEmpty() || stateChangeList == null || stateChangeList.isEmpty())
+            return;
+
+        final List<DigitalTwinStateChange> changes = new ArrayList<>(stateChangeList);
+        final String[] serializedChanges = new String[changes.size()];
+
+        for(Subscriber subscriber : subscribers) {
+
+            final SubscriptionFilter filter = subscriber.filter;
+
+            if(filter.isEmpty())
+                continue;
+
+            StringBuilder message = null;
+
+            for(int i = 0; i < changes.size(); i++) {
+
+                if(!matches(filter, changes.get(i)))
+                    continue;
+
+                if(serializedChanges[i] == null)
+                    serializedChanges[i] = HttpDigitalAdapterHandlersFactory.getGson().toJson(changes.get(i));
+
+                if(message == null)
+                    message = new StringBuilder("{\"type\":\"state\",\"version\":").append(version).append(",\"changes\":[");
+                else
+                    message.append(',');
+
+                message.append(serializedChanges[i]);
+            }
+
+            if(message != null)
+                subscriber.enqueue(message.append("]}").toString());
+        }
+    }
+
+    /**
+     * Sends an event notification to the clients subscribed to the event.
+     *
+     * @param eventNotification The received event notification.
+     */
+    public void publishEventNotification(DigitalTwinStateEventNotification<?> eventNotification) {
+
+        if(subscribers.isEmpty() || eventNotification == null)
+            return;
+
+        String message = null;
+
+        for(Subscriber subscriber : subscribers) {
+            if(subscriber.filter.matchesEvent(eventNotification.getDigitalEventKey())) {
+                if(message == null) {
+                    JsonObject messageObj = new JsonObject();
+                    messageObj.addProperty(TYPE_FIELD, "event");
+                    messageObj.add("notification", HttpDigitalAdapterHandlersFactory.getDefaultGson().toJsonTree(eventNotification));
+                    message = messageObj.toString();
+                }
+                subscriber.enqueue(message);
+            }
+        }
+    }
+
+    /**
+     * Closes all the active connections.
+     */
+    public void shutdown() {
+        for(Subscriber subscriber : subscribers)
+            closeChannel(subscriber.channel);
+        subscribers.clear();
+    }
+
+    /**
+     * Checks if a state change matches the filter of a client. Changes on DT actions are sent to all the
+     * subscribed clients since they describe which actions can be invoked on the channel.
+     *
+     * @param filter The client filter.
+     * @param stateChange The state change.
+     * @return True if the change has to be sent to the client.
+     */
+    private static boolean matches(SubscriptionFilter filter, DigitalTwinStateChange stateChange) {
+
+        DigitalTwinStateResource resource = stateChange.getResource();
+
+        if(resource instanceof DigitalTwinStateProperty)
+            return filter.matchesProperty(((DigitalTwinStateProperty<?>) resource).getKey());
+        else if(resource instanceof DigitalTwinStateEvent)
+            return filter.matchesEvent(((DigitalTwinStateEvent) resource).getKey());
+        else if(resource instanceof DigitalTwinStateRelationship)
+            return filter.matchesRelationship(((DigitalTwinStateRelationship<?>) resource).getName());
+        else if(resource instanceof DigitalTwinStateRelationshipInstance)
+            return filter.matchesRelationship(((DigitalTwinStateRelationshipInstance<?>) resource).getRelationshipName());
+
+        return true;
+    }
+
+    /**
+     * Callback invoked by Undertow when a new WebSocket connection is established.
+     *
+     * @param exchange The upgrade exchange.
+     * @param channel The new WebSocket channel.
+     */
+    private void onConnect(WebSocketHttpExchange exchange, WebSocketChannel channel) {
+
+        final Subscriber subscriber = new Subscriber(channel);
+        subscribers.add(subscriber);
+        channel.addCloseTask(closedChannel -> subscribers.remove(subscriber));
+
+        channel.getReceiveSetter().set(new AbstractReceiveListener() {
+            @Override
+            protected void onFullTextMessage(WebSocketChannel channel, BufferedTextMessage message) {
+                onMessage(subscriber, message.getData());
+            }
+        });
+
+        channel.resumeReceives();
+    }
+
+    /**
+     * Handles a message received from a client.
+     *
+     * @param subscriber The client sending the message.
+     * @param message The received text message.
+     */
+    private void onMessage(Subscriber subscriber, String message) {
+        try {
+
+            JsonObject messageObj = JsonParser.parseString(message).getAsJsonObject();
+            String type = messageObj.has(TYPE_FIELD) ? messageObj.get(TYPE_FIELD).getAsString() : "";
+
+            switch (type) {
+                case "subscribe":
+                    subscriber.filter = new SubscriptionFilter(
+                            SubscriptionFilter.parse(messageObj, "properties"),
+                            SubscriptionFilter.parse(messageObj, "events"),
+                            SubscriptionFilter.parse(messageObj, "relationships"));
+                    subscriber.enqueue("{\"type\":\"subscribed\"}");
+                    break;
+                case "action":
+                    String actionKey = messageObj.get("key").getAsString();
+                    JsonElement body = messageObj.get("body");
+                    String bodyRequest = (body == null || body.isJsonNull()) ? "" : (body.isJsonPrimitive() ? body.getAsString() : body.toString());
+
+                    JsonObject resultObj = new JsonObject();
+                    resultObj.addProperty(TYPE_FIELD, "actionResult");
+                    if(messageObj.has("id"))
+                        resultObj.add("id", messageObj.get("id"));
+                    resultObj.addProperty("key", actionKey);
+                    HttpDigitalAdapterActionRequests.ActionRequest actionRequest = actionRequests.invoke(actionKey, bodyRequest, actionFunction);
+                    resultObj.addProperty("status", (actionRequest != null) ? 202 : 400);
+                    if(actionRequest != null)
+                        resultObj.addProperty("requestId", actionRequest.getId());
+                    subscriber.enqueue(resultObj.toString());
+                    break;
+                default:
+                    sendError(subscriber, "Unsupported message type: " + type);
+            }
+
+        } catch (Exception e) {
+            sendError(subscriber, "Invalid message ! " + e.getMessage());
+        }
+    }
+
+    /**
+     * Sends an error message to a client.
+     *
+     * @param subscriber The target client.
+     * @param errorMessage The error description.
+     */
+    private static void sendError(Subscriber subscriber, String errorMessage) {
+        JsonObject errorObj = new JsonObject();
+        errorObj.addProperty(TYPE_FIELD, "error");
+        errorObj.addProperty("message", errorMessage);
+        subscriber.enqueue(errorObj.toString());
+    }
+
+    /**
+     * Closes a WebSocket channel ignoring errors.
+     *
+     * @param channel The channel to close.
+     */
+    private static void closeChannel(WebSocketChannel channel) {
+        try {
+            channel.sendClose();
+        } catch (IOException e) {
+            logger.debug("Error closing WebSocket channel: {}", e.toString());
+        }
+    }
+}
@@ -1,7 +1,1571 @@
 package it.wldt.adapter.http.digital;
 
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import io.undertow.Undertow;
+import io.undertow.client.ClientCallback;
+import io.undertow.client.ClientConnection;
+import io.undertow.client.ClientExchange;
+import io.undertow.client.ClientRequest;
+import io.undertow.client.ClientResponse;
+import io.undertow.client.UndertowClient;
+import io.undertow.server.DefaultByteBufferPool;
+import io.undertow.server.HttpHandler;
+import io.undertow.server.RoutingHandler;
+import io.undertow.util.Headers;
+import io.undertow.util.StringReadChannelListener;
+import io.undertow.websockets.client.WebSocketClient;
+import io.undertow.websockets.core.AbstractReceiveListener;
+import io.undertow.websockets.core.BufferedTextMessage;
+import io.undertow.websockets.core.WebSocketChannel;
+import io.undertow.websockets.core.WebSockets;
+import it.wldt.adapter.http.digital.adapter.HttpDigitalAdapter;
+import it.wldt.adapter.http.digital.adapter.HttpDigitalAdapterConfiguration;
+import it.wldt.adapter.http.digital.adapter.HttpDigitalAdapterDispatchMode;
+import it.wldt.adapter.http.digital.adapter.HttpDigitalAdapterQueryCache;
+import it.wldt.adapter.http.digital.adapter.HttpDigitalAdapterServerOptions;
+import it.wldt.adapter.http.digital.adapter.HttpDigitalAdapterStateFilter;
+import io.undertow.util.Methods;
+import it.wldt.adapter.http.digital.exception.HttpDigitalAdapterConfigurationException;
+import it.wldt.adapter.http.digital.server.HttpDigitalAdapterActionRequests;
+import it.wldt.adapter.http.digital.server.HttpDigitalAdapterDispatcher;
+import it.wldt.adapter.http.digital.server.HttpDigitalAdapterFieldProjection;
+import it.wldt.adapter.http.digital.server.HttpDigitalAdapterMetrics;
+import it.wldt.adapter.http.digital.server.HttpDigitalAdapterQueryAggregation;
+import it.wldt.adapter.http.digital.server.HttpDigitalAdapterQueryCoalescer;
+import it.wldt.adapter.http.digital.server.HttpDigitalAdapterQueryCursor;
+import it.wldt.adapter.http.digital.server.HttpDigitalAdapterRingBuffer;
+import it.wldt.adapter.http.digital.server.HttpDigitalAdapterStateSnapshot;
+import it.wldt.adapter.http.digital.server.HttpDigitalAdapterStorageQuery;
+import it.wldt.core.state.DigitalTwinState;
+import it.wldt.core.state.DigitalTwinStateAction;
+import it.wldt.core.state.DigitalTwinStateChange;
+import it.wldt.core.state.DigitalTwinStateEventNotification;
+import it.wldt.core.state.DigitalTwinStateProperty;
+import it.wldt.storage.model.physical.PhysicalAssetPropertyVariationRecord;
+import it.wldt.storage.query.QueryRequest;
+import it.wldt.storage.query.QueryRequestType;
+import it.wldt.storage.query.QueryResourceType;
+import it.wldt.storage.query.QueryResult;
+import org.junit.Test;
+import org.xnio.OptionMap;
+import org.xnio.Xnio;
+import org.xnio.XnioWorker;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URI;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyStore;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.zip.GZIPInputStream;
+
 import static org.junit.Assert.*;
 
 public class HttpDigitalAdapterTest {
 
+    private static DigitalTwinState createDigitalTwinState(String... propertyKeys) throws Exception {
+        Map<String, DigitalTwinStateProperty<?>> properties = new HashMap<>();
+        for(String propertyKey : propertyKeys)
+            properties.put(propertyKey, new DigitalTwinStateProperty<>(propertyKey, 42));
+        return new DigitalTwinState(properties, new HashMap<>(), new HashMap<>(), new HashMap<>());
+    }
+
+    /**
+     * HTTP Digital Adapter started outside of a Digital Twin, receiving the DT State updates and serving the
+     * Storage Queries directly from the tests.
+     */
+    private static class TestHttpDigitalAdapter extends HttpDigitalAdapter {
+
+        private volatile Function<QueryRequest, CompletableFuture<QueryResult<?>>> queryFunction = queryRequest -> new CompletableFuture<>();
+
+        private TestHttpDigitalAdapter(HttpDigitalAdapterConfiguration configuration, String digitalTwinId) throws Exception {
+            super(configuration, null);
+            setDigitalTwinId(digitalTwinId);
+        }
+
+        private void updateState(DigitalTwinState newDigitalTwinState, DigitalTwinState previousDigitalTwinState) throws Exception {
+            ArrayList<DigitalTwinStateChange> stateChangeList = new ArrayList<>();
+            for(DigitalTwinStateProperty<?> property : newDigitalTwinState.getPropertyList().orElse(Collections.emptyList()))
+                stateChangeList.add(new DigitalTwinStateChange(DigitalTwinStateChange.Operation.OPERATION_UPDATE_VALUE, DigitalTwinStateChange.ResourceType.PROPERTY_VALUE, property));
+            onStateUpdate(newDigitalTwinState, previousDigitalTwinState, stateChangeList);
+        }
+
+        private void notifyEvent(String eventKey) {
+            onEventNotificationReceived(new DigitalTwinStateEventNotification<>(eventKey, null, System.currentTimeMillis()));
+        }
+
+        @Override
+        protected CompletableFuture<QueryResult<?>> executeAsyncQuery(QueryRequest queryRequest) {
+            return queryFunction.apply(queryRequest);
+        }
+    }
+
+    /**
+     * Response received by the tests starting an adapter
+     */
+    private static class TestHttpResponse {
+
+        private final int statusCode;
+
+        private final Map<String, List<String>> headers;
+
+        private final String body;
+
+        private TestHttpResponse(int statusCode, Map<String, List<String>> headers, String body) {
+            this.statusCode = statusCode;
+            this.headers = headers;
+            this.body = body;
+        }
+
+        private String getHeader(String name) {
+            for(Map.Entry<String, List<String>> header : headers.entrySet())
+                if(name.equalsIgnoreCase(header.getKey()))
+                    return header.getValue().get(0);
+            return null;
+        }
+
+        private JsonElement getJsonBody() {
+            return JsonParser.parseString(body);
+        }
+    }
+
+    private static int findFreePort() throws IOException {
+        try (ServerSocket serverSocket = new ServerSocket(0)) {
+            return serverSocket.getLocalPort();
+        }
+    }
+
+    private static TestHttpDigitalAdapter startAdapter(HttpDigitalAdapterConfiguration configuration, String digitalTwinId) throws Exception {
+        TestHttpDigitalAdapter httpDigitalAdapter = new TestHttpDigitalAdapter(configuration, digitalTwinId);
+        httpDigitalAdapter.onAdapterStart();
+        return httpDigitalAdapter;
+    }
+
+    private static TestHttpResponse sendRequest(String method, String url, String body, String... headers) throws IOException {
+
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setRequestMethod(method);
+        connection.setReadTimeout(10000);
+        for(int i = 0; i + 1 < headers.length; i += 2)
+            connection.setRequestProperty(headers[i], headers[i + 1]);
+
+        if(body != null) {
+            connection.setDoOutput(true);
+            try (OutputStream outputStream = connection.getOutputStream()) {
+                outputStream.write(body.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+
+        int statusCode = connection.getResponseCode();
+        InputStream inputStream = (statusCode >= 400) ? connection.getErrorStream() : connection.getInputStream();
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+
+        if(inputStream != null) {
+            try (InputStream responseStream = inputStream) {
+                byte[] buffer = new byte[4096];
+                for(int read = responseStream.read(buffer); read > 0; read = responseStream.read(buffer))
+                    outputStream.write(buffer, 0, read);
+            }
+        }
+
+        return new TestHttpResponse(statusCode, connection.getHeaderFields(), new String(outputStream.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Reads the next Server-Sent Event of a stream, skipping the keep alive comments.
+     *
+     * @return The event name, id and data.
+     */
+    private static String[] readServerSentEvent(BufferedReader reader) throws IOException {
+        String[] serverSentEvent = new String[3];
+        for(String line = reader.readLine(); line != null; line = reader.readLine()) {
+            if(line.isEmpty() && serverSentEvent[2] != null)
+                return serverSentEvent;
+            int separatorIndex = line.indexOf(':');
+            if(separatorIndex <= 0)
+                continue;
+            String value = line.substring(separatorIndex + 1).trim();
+            switch (line.substring(0, separatorIndex)) {
+                case "event": serverSentEvent[0] = value; break;
+                case "id": serverSentEvent[1] = value; break;
+                case "data": serverSentEvent[2] = value; break;
+                default: break;
+            }
+        }
+        throw new IOException("State stream closed");
+    }
+
+    private static HttpURLConnection openStateStream(String url, String lastEventId) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setReadTimeout(5000);
+        if(lastEventId != null)
+            connection.setRequestProperty("Last-Event-ID", lastEventId);
+        assertEquals(200, connection.getResponseCode());
+        return connection;
+    }
+
+    private static WebSocketChannel connectWebSocket(XnioWorker xnioWorker, int port, BlockingQueue<String> messages) throws Exception {
+        WebSocketChannel webSocketChannel = WebSocketClient.connectionBuilder(xnioWorker, new DefaultByteBufferPool(false, 1024),
+                new URI(String.format("ws://localhost:%d/state/ws", port))).connect().get();
+        webSocketChannel.getReceiveSetter().set(new AbstractReceiveListener() {
+            @Override
+            protected void onFullTextMessage(WebSocketChannel channel, BufferedTextMessage message) {
+                messages.add(message.getData());
+            }
+        });
+        webSocketChannel.resumeReceives();
+        return webSocketChannel;
+    }
+
+    private static JsonObject pollWebSocketMessage(BlockingQueue<String> messages) throws InterruptedException {
+        String message = messages.poll(5, TimeUnit.SECONDS);
+        assertNotNull("WebSocket message not received", message);
+        return JsonParser.parseString(message).getAsJsonObject();
+    }
+
+    private static TestHttpResponse sendHttp2Request(ClientConnection clientConnection, String path) throws Exception {
+
+        CompletableFuture<TestHttpResponse> responseFuture = new CompletableFuture<>();
+        ClientRequest clientRequest = new ClientRequest().setMethod(Methods.GET).setPath(path);
+        clientRequest.getRequestHeaders().put(Headers.HOST, "localhost");
+
+        clientConnection.sendRequest(clientRequest, new ClientCallback<ClientExchange>() {
+            @Override
+            public void completed(ClientExchange clientExchange) {
+                clientExchange.setResponseListener(new ClientCallback<ClientExchange>() {
+                    @Override
+                    public void completed(ClientExchange responseExchange) {
+                        ClientResponse clientResponse = responseExchange.getResponse();
+                        Map<String, List<String>> headers = new HashMap<>();
+                        clientResponse.getResponseHeaders().forEach(header -> headers.put(header.getHeaderName().toString(), new ArrayList<>(header)));
+                        new StringReadChannelListener(clientConnection.getBufferPool()) {
+                            @Override
+                            protected void stringDone(String body) {
+                                responseFuture.complete(new TestHttpResponse(clientResponse.getResponseCode(), headers, body));
+                            }
+
+                            @Override
+                            protected void error(IOException e) {
+                                responseFuture.completeExceptionally(e);
+                            }
+                        }.setup(responseExchange.getResponseChannel());
+                    }
+
+                    @Override
+                    public void failed(IOException e) {
+                        responseFuture.completeExceptionally(e);
+                    }
+                });
+            }
+
+            @Override
+            public void failed(IOException e) {
+                responseFuture.completeExceptionally(e);
+            }
+        });
+
+        return responseFuture.get(5, TimeUnit.SECONDS);
+    }
+
+    private static void waitFor(Supplier<Boolean> condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while(!condition.get()) {
+            assertTrue("Condition not reached", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void testEmptyStateSnapshot() {
+        assertEquals(0, HttpDigitalAdapterStateSnapshot.EMPTY.getVersion());
+        assertNull(HttpDigitalAdapterStateSnapshot.EMPTY.getStateJson());
+        assertNull(HttpDigitalAdapterStateSnapshot.EMPTY.getPreviousStateJson());
+        assertEquals("[]", new String(HttpDigitalAdapterStateSnapshot.EMPTY.getPropertiesJson(), StandardCharsets.UTF_8));
+        assertNull(HttpDigitalAdapterStateSnapshot.EMPTY.getEntityTag());
+    }
+
+    @Test
+    public void testStateSnapshotSerialization() throws Exception {
+
+        HttpDigitalAdapterStateSnapshot snapshot = HttpDigitalAdapterStateSnapshot.create(3, createDigitalTwinState("temperature", "humidity"), null);
+
+        assertEquals(3, snapshot.getVersion());
+        assertNull(snapshot.getPreviousStateJson());
+
+        JsonObject stateJson = JsonParser.parseString(new String(snapshot.getStateJson(), StandardCharsets.UTF_8)).getAsJsonObject();
+        assertEquals(2, stateJson.getAsJsonArray("properties").size());
+        assertTrue(stateJson.has("evaluation_instant_epoch_ms"));
+        assertEquals(2, JsonParser.parseString(new String(snapshot.getPropertiesJson(), StandardCharsets.UTF_8)).getAsJsonArray().size());
+
+        // The JSON trees are not retained but rebuilt from the serialized content on demand
+        assertEquals(stateJson, snapshot.getStateTree());
+        assertNotSame(snapshot.getStateTree(), snapshot.getStateTree());
+        assertEquals(2, snapshot.getPropertiesTree().size());
+        assertNull(snapshot.getPreviousStateTree());
+
+        // Properties are indexed by key
+        assertEquals(42, snapshot.getPropertyJson("humidity").get("value").getAsInt());
+        assertNull(snapshot.getPropertyJson("pressure"));
+        assertEquals(2, snapshot.getPropertyKeys().size());
+
+        // Entity tags change with the state version
+        HttpDigitalAdapterStateSnapshot nextSnapshot = HttpDigitalAdapterStateSnapshot.create(4, createDigitalTwinState("temperature", "humidity"), null);
+        assertNotNull(snapshot.getEntityTag());
+        assertTrue(snapshot.getEntityTag().isWeak());
+        assertTrue(snapshot.getEntityTagHeader().startsWith("W/"));
+        assertNotEquals(snapshot.getEntityTagHeader(), nextSnapshot.getEntityTagHeader());
+    }
+
+    @Test
+    public void testFieldProjection() throws Exception {
+
+        HttpDigitalAdapterStateSnapshot snapshot = HttpDigitalAdapterStateSnapshot.create(1, createDigitalTwinState("temperature", "humidity"), null);
+
+        JsonObject projectedState = HttpDigitalAdapterFieldProjection.compile("evaluation_instant_epoch_ms, properties.key, missing")
+                .apply(snapshot.getStateTree()).getAsJsonObject();
+        assertEquals(2, projectedState.size());
+        assertTrue(projectedState.has("evaluation_instant_epoch_ms"));
+        for(JsonElement property : projectedState.getAsJsonArray("properties")) {
+            assertEquals(1, property.getAsJsonObject().size());
+            assertTrue(property.getAsJsonObject().has("key"));
+        }
+
+        // Selecting a whole field includes its nested fields and the source tree is left untouched
+        JsonArray propertiesTree = snapshot.getPropertiesTree();
+        JsonArray projectedProperties = HttpDigitalAdapterFieldProjection.compile("value,value.x").apply(propertiesTree).getAsJsonArray();
+        assertEquals(42, projectedProperties.get(0).getAsJsonObject().get("value").getAsInt());
+        assertTrue(propertiesTree.get(0).getAsJsonObject().has("key"));
+
+        assertNull(HttpDigitalAdapterFieldProjection.compile(" , "));
+    }
+
+    @Test
+    public void testSnapshotCompression() throws Exception {
+
+        HttpDigitalAdapterStateSnapshot snapshot = HttpDigitalAdapterStateSnapshot.create(1, createDigitalTwinState("temperature", "humidity"), null);
+
+        // Each serialized content is compressed once and then reused
+        byte[] gzipStateJson = snapshot.getGzipContent(snapshot.getStateJson());
+        assertSame(gzipStateJson, snapshot.getGzipContent(snapshot.getStateJson()));
+        assertNotSame(gzipStateJson, snapshot.getGzipContent(snapshot.getPropertiesJson()));
+
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        try (GZIPInputStream gzipInputStream = new GZIPInputStream(new ByteArrayInputStream(gzipStateJson))) {
+            byte[] buffer = new byte[1024];
+            for(int read = gzipInputStream.read(buffer); read > 0; read = gzipInputStream.read(buffer))
+                outputStream.write(buffer, 0, read);
+        }
+        assertArrayEquals(snapshot.getStateJson(), outputStream.toByteArray());
+    }
+
+    @Test
+    public void testServerOptions() throws Exception {
+
+        HttpDigitalAdapterServerOptions defaultOptions = new HttpDigitalAdapterConfiguration("test-http-da", "localhost", 3000).getServerOptions();
+        assertEquals(0, defaultOptions.getIoThreads());
+        assertEquals(0, defaultOptions.getBufferSize());
+
+        HttpDigitalAdapterServerOptions lowMemoryOptions = HttpDigitalAdapterServerOptions.lowMemory();
+        assertEquals(1, lowMemoryOptions.getIoThreads());
+        assertFalse(lowMemoryOptions.isDirectBuffers());
+        assertTrue(HttpDigitalAdapterServerOptions.highThroughput().getWorkerThreads() > lowMemoryOptions.getWorkerThreads());
+        assertTrue(HttpDigitalAdapterServerOptions.lowLatency().isTcpNoDelay());
+
+        try {
+            lowMemoryOptions.setBacklog(0);
+            fail("Backlog must be positive");
+        } catch (HttpDigitalAdapterConfigurationException e) {
+            assertEquals(128, lowMemoryOptions.getBacklog());
+        }
+
+        // HTTP/2 settings and TLS key stores are validated when configured
+        defaultOptions.setHttp2Enabled(true);
+        defaultOptions.setHttp2Settings(256, 1024 * 1024);
+        assertEquals(256, defaultOptions.getHttp2MaxConcurrentStreams());
+
+        try {
+            defaultOptions.setTls("missing-keystore.p12", "password");
+            fail("Missing key store");
+        } catch (HttpDigitalAdapterConfigurationException e) {
+            assertFalse(defaultOptions.isTlsEnabled());
+        }
+
+        // TLS options are identified by the loaded SSL context, not by the key store path
+        Path keyStorePath = Files.createTempFile("test-http-da", ".p12");
+        try {
+            KeyStore keyStore = KeyStore.getInstance(KeyStore.getDefaultType());
+            keyStore.load(null, null);
+            try (OutputStream keyStoreStream = Files.newOutputStream(keyStorePath)) {
+                keyStore.store(keyStoreStream, "password".toCharArray());
+            }
+
+            HttpDigitalAdapterServerOptions firstTlsOptions = new HttpDigitalAdapterServerOptions();
+            HttpDigitalAdapterServerOptions secondTlsOptions = new HttpDigitalAdapterServerOptions();
+            assertEquals(firstTlsOptions, secondTlsOptions);
+
+            firstTlsOptions.setTls(keyStorePath.toString(), "password");
+            secondTlsOptions.setTls(keyStorePath.toString(), "password");
+            assertTrue(firstTlsOptions.isTlsEnabled());
+            assertEquals(firstTlsOptions, firstTlsOptions);
+            assertNotEquals(firstTlsOptions, secondTlsOptions);
+            assertNotEquals(firstTlsOptions, new HttpDigitalAdapterServerOptions());
+        } finally {
+            Files.deleteIfExists(keyStorePath);
+        }
+    }
+
+    @Test
+    public void testRingBufferCursorReads() {
+
+        HttpDigitalAdapterRingBuffer<Integer> ringBuffer = new HttpDigitalAdapterRingBuffer<>(4);
+
+        for(int i = 1; i <= 6; i++)
+            assertEquals(i, ringBuffer.add(i));
+
+        // Only the latest 4 items are retained
+        assertEquals(Arrays.asList(3, 4, 5, 6), ringBuffer.readAll());
+
+        HttpDigitalAdapterRingBuffer.Slice<Integer> slice = ringBuffer.read(3, 2);
+        assertEquals(Arrays.asList(4, 5), slice.getItems());
+        assertEquals(5, slice.getLastSequence());
+
+        slice = ringBuffer.read(slice.getLastSequence(), 10);
+        assertEquals(Arrays.asList(6), slice.getItems());
+        assertEquals(6, slice.getLastSequence());
+
+        slice = ringBuffer.read(6, 10);
+        assertTrue(slice.getItems().isEmpty());
+        assertEquals(6, slice.getLastSequence());
+
+        // Sequences beyond the latest one do not overflow
+        slice = ringBuffer.read(Long.MAX_VALUE, 10);
+        assertTrue(slice.getItems().isEmpty());
+        assertEquals(6, slice.getLastSequence());
+    }
+
+    @Test
+    public void testStateFilter() throws Exception {
+
+        HttpDigitalAdapterConfiguration configuration = new HttpDigitalAdapterConfiguration("test-http-da", "localhost", 3000);
+        assertTrue(new HttpDigitalAdapterStateFilter(configuration).isEmpty());
+
+        configuration.addPropertiesFilter(Arrays.asList("temperature", "pressure"));
+        HttpDigitalAdapterStateFilter stateFilter = new HttpDigitalAdapterStateFilter(configuration);
+
+        DigitalTwinState digitalTwinState = createDigitalTwinState("temperature", "humidity");
+        DigitalTwinState filteredState = stateFilter.filter(digitalTwinState);
+
+        assertEquals(1, filteredState.getPropertyList().get().size());
+        assertTrue(filteredState.containsProperty("temperature"));
+        assertFalse(filteredState.containsProperty("humidity"));
+        assertEquals(digitalTwinState.getEvaluationInstant(), filteredState.getEvaluationInstant());
+        assertTrue(stateFilter.isActionAllowed("any-action"));
+    }
+
+    @Test
+    public void testMetricsExport() {
+
+        HttpDigitalAdapterMetrics metrics = new HttpDigitalAdapterMetrics(new double[]{0.001, 0.01});
+        metrics.instrument(Methods.GET, "/state", exchange -> {});
+        metrics.registerGauge("state_version", "Version of the latest DT State snapshot.", () -> 7);
+
+        String exported = metrics.export();
+
+        assertTrue(exported.contains("# TYPE wldt_http_da_request_duration_seconds histogram"));
+        assertTrue(exported.contains("wldt_http_da_request_duration_seconds_bucket{method=\"GET\",route=\"/state\",le=\"0.001\"} 0"));
+        assertTrue(exported.contains("wldt_http_da_request_duration_seconds_bucket{method=\"GET\",route=\"/state\",le=\"+Inf\"} 0"));
+        assertTrue(exported.contains("wldt_http_da_requests_in_flight{method=\"GET\",route=\"/state\"} 0"));
+        assertTrue(exported.contains("wldt_http_da_state_version 7"));
+    }
+
+    @Test
+    public void testMetricsEndpoint() throws Exception {
+
+        int port = findFreePort();
+        HttpDigitalAdapterConfiguration configuration = new HttpDigitalAdapterConfiguration("test-http-da", "localhost", port);
+        assertFalse(configuration.isMetricsEnabled());
+        configuration.setMetricsEnabled(true);
+        TestHttpDigitalAdapter httpDigitalAdapter = startAdapter(configuration, "metrics-dt");
+        String baseUrl = String.format("http://localhost:%d", port);
+
+        try {
+            sendRequest("GET", baseUrl + "/state/properties", null);
+            sendRequest("GET", baseUrl + "/state/properties", null);
+            sendRequest("GET", baseUrl + "/state/events/notifications?since=x", null);
+
+            // Only the status codes returned by each route are exported
+            String exported = sendRequest("GET", baseUrl + "/metrics", null).body;
+            assertTrue(exported.contains("wldt_http_da_requests_total{method=\"GET\",route=\"/state/properties\",code=\"200\"} 2"));
+            assertTrue(exported.contains("wldt_http_da_requests_total{method=\"GET\",route=\"/state/events/notifications\",code=\"400\"} 1"));
+            assertFalse(exported.contains("route=\"/state/properties\",code=\"400\""));
+        } finally {
+            httpDigitalAdapter.onAdapterStop();
+        }
+    }
+
+    private static QueryRequest createTimeRangeQuery(long startMs, long endMs) {
+        QueryRequest queryRequest = new QueryRequest();
+        queryRequest.setResourceType(QueryResourceType.PHYSICAL_ASSET_PROPERTY_VARIATION);
+        queryRequest.setRequestType(QueryRequestType.TIME_RANGE);
+        queryRequest.setStartTimestampMs(startMs);
+        queryRequest.setEndTimestampMs(endMs);
+        return queryRequest;
+    }
+
+    @Test
+    public void testQueryCache() {
+
+        HttpDigitalAdapterQueryCache queryCache = new HttpDigitalAdapterQueryCache(8, 60000);
+
+        long now = System.currentTimeMillis();
+        QueryRequest historicalQuery = createTimeRangeQuery(now - 20000, now - 10000);
+        QueryRequest openEndedQuery = createTimeRangeQuery(now - 20000, now + 10000);
+
+        assertNull(queryCache.get(historicalQuery));
+        queryCache.put(historicalQuery, new QueryResult<>(historicalQuery, true, null, Collections.singletonList(1), 1), queryCache.getGeneration());
+        queryCache.put(openEndedQuery, new QueryResult<>(openEndedQuery, true, null, Collections.singletonList(2), 1), queryCache.getGeneration());
+
+        // An equivalent request with a different id and timestamp hits the cache
+        QueryRequest repeatedQuery = createTimeRangeQuery(now - 20000, now - 10000);
+        QueryResult<?> cachedResult = queryCache.get(repeatedQuery);
+        assertNotNull(cachedResult);
+        assertSame(repeatedQuery, cachedResult.getOriginalRequest());
+        assertEquals(1, queryCache.getHitCount());
+        assertEquals(1, queryCache.getMissCount());
+
+        // DT State updates only invalidate the results that can still change
+        queryCache.invalidateVolatileEntries();
+        assertNotNull(queryCache.get(historicalQuery));
+        assertNull(queryCache.get(openEndedQuery));
+
+        // Results of queries started before an update are not cached
+        long staleGeneration = queryCache.getGeneration();
+        queryCache.invalidateVolatileEntries();
+        queryCache.put(openEndedQuery, new QueryResult<>(openEndedQuery, true, null, Collections.singletonList(2), 1), staleGeneration);
+        assertNull(queryCache.get(openEndedQuery));
+    }
+
+    @Test
+    public void testActionRequests() {
+
+        HttpDigitalAdapterActionRequests actionRequests = new HttpDigitalAdapterActionRequests(2, 60000, 1000, 5000, 10);
+
+        actionRequests.publish(5);
+
+        // Rejected actions are not tracked
+        assertNull(actionRequests.invoke("switch_on", "", (actionKey, body) -> 400));
+        assertEquals(0, actionRequests.size());
+
+        HttpDigitalAdapterActionRequests.ActionRequest actionRequest = actionRequests.invoke("switch_on", "", (actionKey, body) -> 202);
+        assertEquals(HttpDigitalAdapterActionRequests.Status.DISPATCHED, actionRequests.getStatus(actionRequest));
+
+        // Only the DT State versions following the dispatch complete the request
+        actionRequests.publish(5);
+        assertEquals(HttpDigitalAdapterActionRequests.Status.DISPATCHED, actionRequests.getStatus(actionRequest));
+        actionRequests.publish(6);
+        assertEquals(HttpDigitalAdapterActionRequests.Status.COMPLETED, actionRequests.getStatus(actionRequest));
+        assertEquals(6, actionRequests.toJson(actionRequest).get("stateVersion").getAsLong());
+
+        // An update received while the action is published completes the request
+        HttpDigitalAdapterActionRequests.ActionRequest concurrentRequest = actionRequests.invoke("switch_off", "", (actionKey, body) -> {
+            actionRequests.publish(7);
+            return 202;
+        });
+        assertEquals(7, actionRequests.toJson(concurrentRequest).get("stateVersion").getAsLong());
+
+        // Updates involving only filtered resources complete the request without a new DT State version
+        HttpDigitalAdapterActionRequests.ActionRequest filteredRequest = actionRequests.invoke("switch_on", "", (actionKey, body) -> 202);
+        assertFalse(actionRequests.toJson(filteredRequest).get("stateUpdatedAfterDispatch").getAsBoolean());
+        actionRequests.publishFilteredUpdate();
+        assertEquals(HttpDigitalAdapterActionRequests.Status.COMPLETED, actionRequests.getStatus(filteredRequest));
+        assertTrue(actionRequests.toJson(filteredRequest).get("stateUpdatedAfterDispatch").getAsBoolean());
+        assertEquals(7, actionRequests.toJson(filteredRequest).get("stateVersion").getAsLong());
+
+        // The oldest requests are evicted when the table is full
+        actionRequests.invoke("switch_on", "", (actionKey, body) -> 202);
+        assertEquals(2, actionRequests.size());
+        assertNull(actionRequests.get(actionRequest.getId()));
+    }
+
+    @Test
+    public void testQueryCacheInvalidation() throws Exception {
+
+        int port = findFreePort();
+        HttpDigitalAdapterConfiguration configuration = new HttpDigitalAdapterConfiguration("test-http-da", "localhost", port);
+        TestHttpDigitalAdapter httpDigitalAdapter = startAdapter(configuration, "query-cache-dt");
+        String queryUrl = String.format("http://localhost:%d/storage/query", port);
+        String queryBody = "{\"resourceType\": \"PHYSICAL_ASSET_EVENT_NOTIFICATION\", \"queryType\": \"LAST_VALUE\"}";
+
+        AtomicInteger executionCount = new AtomicInteger(0);
+        httpDigitalAdapter.queryFunction = queryRequest -> {
+            executionCount.incrementAndGet();
+            return CompletableFuture.completedFuture(new QueryResult<>(queryRequest, true, null, Collections.singletonList(1), 1));
+        };
+
+        try {
+            assertEquals(200, sendRequest("POST", queryUrl, queryBody).statusCode);
+            assertEquals(200, sendRequest("POST", queryUrl, queryBody).statusCode);
+            assertEquals(1, executionCount.get());
+
+            // New event notifications change the latest stored records
+            httpDigitalAdapter.notifyEvent("overheating");
+            assertEquals(200, sendRequest("POST", queryUrl, queryBody).statusCode);
+            assertEquals(2, executionCount.get());
+        } finally {
+            httpDigitalAdapter.onAdapterStop();
+        }
+    }
+
+    @Test
+    public void testQueryCoalescing() throws Exception {
+
+        HttpDigitalAdapterQueryCoalescer queryCoalescer = new HttpDigitalAdapterQueryCoalescer(new Gson());
+        CompletableFuture<QueryResult<?>> execution = new CompletableFuture<>();
+
+        long now = System.currentTimeMillis();
+        QueryRequest firstQuery = createTimeRangeQuery(now - 20000, now - 10000);
+        QueryRequest secondQuery = createTimeRangeQuery(now - 20000, now - 10000);
+
+        CompletableFuture<HttpDigitalAdapterQueryCoalescer.SharedQueryResult> firstResult = queryCoalescer.execute(firstQuery, queryRequest -> execution);
+        CompletableFuture<HttpDigitalAdapterQueryCoalescer.SharedQueryResult> secondResult = queryCoalescer.execute(secondQuery, queryRequest -> { throw new IllegalStateException("Query executed twice"); });
+        CompletableFuture<HttpDigitalAdapterQueryCoalescer.SharedQueryResult> abandonedResult = queryCoalescer.execute(secondQuery, queryRequest -> execution);
+
+        assertEquals(1, queryCoalescer.getExecutionCount());
+        assertEquals(2, queryCoalescer.getCoalescedCount());
+
+        // A client leaving (e.g., timeout or disconnection) does not affect the others
+        abandonedResult.cancel(false);
+        execution.complete(new QueryResult<>(firstQuery, true, null, Collections.singletonList(1), 1));
+
+        assertSame(firstResult.get(), secondResult.get());
+        assertSame(firstResult.get().getJsonBytes(), secondResult.get().getJsonBytes());
+        assertFalse(execution.isCancelled());
+        assertEquals(0, queryCoalescer.getInFlightCount());
+
+        // An execution is cancelled once all its callers left
+        CompletableFuture<QueryResult<?>> cancelledExecution = new CompletableFuture<>();
+        CompletableFuture<HttpDigitalAdapterQueryCoalescer.SharedQueryResult> firstCaller = queryCoalescer.execute(firstQuery, queryRequest -> cancelledExecution);
+        CompletableFuture<HttpDigitalAdapterQueryCoalescer.SharedQueryResult> secondCaller = queryCoalescer.execute(secondQuery, queryRequest -> cancelledExecution);
+        firstCaller.cancel(false);
+        assertFalse(cancelledExecution.isCancelled());
+        secondCaller.cancel(false);
+        assertTrue(cancelledExecution.isCancelled());
+        assertEquals(0, queryCoalescer.getInFlightCount());
+
+        // Callers leaving with a timeout are no longer waited for, so the remaining ones can cancel the execution
+        CompletableFuture<QueryResult<?>> abandonedExecution = new CompletableFuture<>();
+        firstCaller = queryCoalescer.execute(firstQuery, queryRequest -> abandonedExecution);
+        secondCaller = queryCoalescer.execute(secondQuery, queryRequest -> abandonedExecution);
+        firstCaller.completeExceptionally(new TimeoutException());
+        assertFalse(abandonedExecution.isCancelled());
+        secondCaller.cancel(false);
+        assertTrue(abandonedExecution.isCancelled());
+        assertEquals(0, queryCoalescer.getInFlightCount());
+    }
+
+    @Test
+    public void testStalledQueryExecution() throws Exception {
+
+        int port = findFreePort();
+        HttpDigitalAdapterConfiguration configuration = new HttpDigitalAdapterConfiguration("test-http-da", "localhost", port);
+        configuration.setStorageRequestTimeout(200);
+        configuration.setQueryCache(0, 1000);
+        TestHttpDigitalAdapter httpDigitalAdapter = startAdapter(configuration, "stalled-query-dt");
+        String queryUrl = String.format("http://localhost:%d/storage/query", port);
+        String queryBody = "{\"resourceType\": \"DIGITAL_TWIN_STATE\", \"queryType\": \"LAST_VALUE\"}";
+
+        // The first execution never receives its result from the storage
+        AtomicInteger executionCount = new AtomicInteger(0);
+        httpDigitalAdapter.queryFunction = queryRequest -> (executionCount.incrementAndGet() == 1) ? new CompletableFuture<>() :
+                CompletableFuture.completedFuture(new QueryResult<>(queryRequest, true, null, Collections.singletonList(1), 1));
+
+        try {
+            assertEquals(504, sendRequest("POST", queryUrl, queryBody).statusCode);
+
+            // The following request does not join the stalled execution
+            assertEquals(200, sendRequest("POST", queryUrl, queryBody).statusCode);
+            assertEquals(2, executionCount.get());
+        } finally {
+            httpDigitalAdapter.onAdapterStop();
+        }
+    }
+
+    @Test
+    public void testQueryAggregation() {
+
+        QueryRequest queryRequest = createTimeRangeQuery(0, 1000);
+        List<PhysicalAssetPropertyVariationRecord> records = new ArrayList<>();
+        for(int i = 0; i < 100; i++)
+            records.add(new PhysicalAssetPropertyVariationRecord(i * 10L, "temperature", (double) i, new HashMap<>()));
+        QueryResult<?> queryResult = new QueryResult<>(queryRequest, true, null, records, records.size());
+
+        JsonObject bucketsRequest = JsonParser.parseString("{\"bucketMs\": 100, \"aggregations\": [\"min\", \"max\", \"count\"]}").getAsJsonObject();
+        JsonArray buckets = HttpDigitalAdapterQueryAggregation.fromJson(QueryResourceType.PHYSICAL_ASSET_PROPERTY_VARIATION, bucketsRequest, 100)
+                .apply(queryResult).getAsJsonArray("series").get(0).getAsJsonObject().getAsJsonArray("points");
+        assertEquals(10, buckets.size());
+        assertEquals(100, buckets.get(1).getAsJsonObject().get("timestamp").getAsLong());
+        assertEquals(10.0, buckets.get(1).getAsJsonObject().get("min").getAsDouble(), 0.0);
+        assertEquals(19.0, buckets.get(1).getAsJsonObject().get("max").getAsDouble(), 0.0);
+        assertEquals(10, buckets.get(1).getAsJsonObject().get("count").getAsLong());
+
+        JsonObject lttbRequest = JsonParser.parseString("{\"lttbPoints\": 10}").getAsJsonObject();
+        JsonArray points = HttpDigitalAdapterQueryAggregation.fromJson(QueryResourceType.PHYSICAL_ASSET_PROPERTY_VARIATION, lttbRequest, 100)
+                .apply(queryResult).getAsJsonArray("series").get(0).getAsJsonObject().getAsJsonArray("points");
+        assertEquals(10, points.size());
+        assertEquals(0, points.get(0).getAsJsonObject().get("timestamp").getAsLong());
+        assertEquals(990, points.get(9).getAsJsonObject().get("timestamp").getAsLong());
+
+        // The bucket size is enlarged when the samples span more than the maximum number of buckets
+        JsonObject clampedRequest = JsonParser.parseString("{\"bucketMs\": 1, \"aggregations\": [\"count\"]}").getAsJsonObject();
+        JsonObject clampedResponse = HttpDigitalAdapterQueryAggregation.fromJson(QueryResourceType.PHYSICAL_ASSET_PROPERTY_VARIATION, clampedRequest, 10).apply(queryResult);
+        assertEquals(111, clampedResponse.get("bucketMs").getAsLong());
+        assertTrue(clampedResponse.getAsJsonArray("series").get(0).getAsJsonObject().getAsJsonArray("points").size() <= 10);
+
+        // The number of LTTB points is capped by the same maximum
+        JsonObject cappedLttbRequest = JsonParser.parseString("{\"lttbPoints\": 50}").getAsJsonObject();
+        JsonObject cappedLttbResponse = HttpDigitalAdapterQueryAggregation.fromJson(QueryResourceType.PHYSICAL_ASSET_PROPERTY_VARIATION, cappedLttbRequest, 10).apply(queryResult);
+        assertEquals(10, cappedLttbResponse.get("lttbPoints").getAsInt());
+        assertEquals(10, cappedLttbResponse.getAsJsonArray("series").get(0).getAsJsonObject().getAsJsonArray("points").size());
+
+        assertNull(HttpDigitalAdapterQueryAggregation.fromJson(QueryResourceType.PHYSICAL_ASSET_PROPERTY_VARIATION, new JsonObject(), 100));
+    }
+
+    /**
+     * Reads all the pages of a TIME_RANGE query served from a list of records ordered by time.
+     *
+     * @return The timestamps of the returned items, while the records fetched by each page are added to the given list.
+     */
+    private static List<Long> readTimeRangePages(List<PhysicalAssetPropertyVariationRecord> records, QueryRequest queryRequest, int limit, List<Integer> fetchedRecords) {
+
+        AtomicInteger pageFetchedRecords = new AtomicInteger(0);
+        Function<QueryRequest, CompletableFuture<QueryResult<?>>> storageFunction = sliceRequest -> {
+            List<PhysicalAssetPropertyVariationRecord> sliceRecords = new ArrayList<>();
+            for(PhysicalAssetPropertyVariationRecord variationRecord : records)
+                if(variationRecord.getTimestamp() >= sliceRequest.getStartTimestampMs() && variationRecord.getTimestamp() <= sliceRequest.getEndTimestampMs())
+                    sliceRecords.add(variationRecord);
+            pageFetchedRecords.addAndGet(sliceRecords.size());
+            return CompletableFuture.completedFuture(new QueryResult<>(sliceRequest, true, null, sliceRecords, sliceRecords.size()));
+        };
+
+        List<Long> returnedTimestamps = new ArrayList<>();
+        HttpDigitalAdapterQueryCursor queryCursor = HttpDigitalAdapterQueryCursor.first(queryRequest, limit);
+
+        while(queryCursor != null) {
+            pageFetchedRecords.set(0);
+            List<?> pageResults = queryCursor.fetchPage(storageFunction).join().getResults();
+            fetchedRecords.add(pageFetchedRecords.get());
+            for(Object pageItem : queryCursor.getPageItems(pageResults))
+                returnedTimestamps.add(((PhysicalAssetPropertyVariationRecord) pageItem).getTimestamp());
+            assertTrue(queryCursor.getTotalItems(pageResults) >= returnedTimestamps.size());
+            queryCursor = queryCursor.next(pageResults);
+            if(queryCursor != null)
+                queryCursor = HttpDigitalAdapterQueryCursor.decode(queryCursor.encode());
+        }
+
+        return returnedTimestamps;
+    }
+
+    @Test
+    public void testQueryCursor() {
+
+        QueryRequest queryRequest = new QueryRequest();
+        queryRequest.setResourceType(QueryResourceType.DIGITAL_TWIN_STATE);
+        queryRequest.setRequestType(QueryRequestType.SAMPLE_RANGE);
+        queryRequest.setStartIndex(0);
+        queryRequest.setEndIndex(4);
+
+        HttpDigitalAdapterQueryCursor queryCursor = HttpDigitalAdapterQueryCursor.first(queryRequest, 2);
+        List<Integer> pageResults = Arrays.asList(0, 1);
+        assertEquals(1, queryCursor.createPageRequest().getEndIndex());
+        assertEquals(5, queryCursor.getTotalItems(pageResults));
+
+        // The cursor survives the round trip through its opaque representation
+        HttpDigitalAdapterQueryCursor nextCursor = HttpDigitalAdapterQueryCursor.decode(queryCursor.next(pageResults).encode());
+        assertEquals(2, nextCursor.createPageRequest().getStartIndex());
+        assertEquals(3, nextCursor.createPageRequest().getEndIndex());
+
+        HttpDigitalAdapterQueryCursor lastCursor = nextCursor.next(pageResults);
+        assertEquals(4, lastCursor.createPageRequest().getStartIndex());
+        assertEquals(4, lastCursor.createPageRequest().getEndIndex());
+        assertNull(lastCursor.next(Collections.singletonList(4)));
+
+        // A short page ends the pagination and reveals the actual number of items
+        assertNull(nextCursor.next(Collections.singletonList(2)));
+        assertEquals(3, nextCursor.getTotalItems(Collections.singletonList(2)));
+
+        // TIME_RANGE pages resume from the timestamp of the last returned item, also across duplicated timestamps
+        List<PhysicalAssetPropertyVariationRecord> records = new ArrayList<>();
+        for(long timestamp : new long[]{10, 20, 20, 20, 30})
+            records.add(new PhysicalAssetPropertyVariationRecord(timestamp, "temperature", (double) timestamp, new HashMap<>()));
+        assertEquals(Arrays.asList(10L, 20L, 20L, 20L, 30L), readTimeRangePages(records, createTimeRangeQuery(0, 100), 2, new ArrayList<>()));
+
+        // Each page fetches about limit records from the storage instead of the rest of the window
+        List<PhysicalAssetPropertyVariationRecord> history = new ArrayList<>();
+        for(int i = 0; i < 1000; i++)
+            history.add(new PhysicalAssetPropertyVariationRecord(i * 10L, "temperature", (double) i, new HashMap<>()));
+        List<Integer> fetchedRecords = new ArrayList<>();
+        assertEquals(1000, readTimeRangePages(history, createTimeRangeQuery(0, 9999), 50, fetchedRecords).size());
+        assertEquals(20, fetchedRecords.size());
+        int totalFetchedRecords = 0;
+        for(int pageFetchedRecords : fetchedRecords) {
+            assertTrue(pageFetchedRecords <= 2 * 50);
+            totalFetchedRecords += pageFetchedRecords;
+        }
+        assertTrue(totalFetchedRecords < 1100);
+
+        try {
+            HttpDigitalAdapterQueryCursor.decode("not-a-cursor");
+            fail("Malformed cursor accepted");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testStateChangesLongPoll() throws Exception {
+
+        int port = findFreePort();
+        HttpDigitalAdapterConfiguration configuration = new HttpDigitalAdapterConfiguration("test-http-da", "localhost", port);
+        TestHttpDigitalAdapter httpDigitalAdapter = startAdapter(configuration, "long-poll-dt");
+        String changesUrl = String.format("http://localhost:%d/state/changes", port);
+
+        try {
+            httpDigitalAdapter.updateState(createDigitalTwinState("temperature"), null);
+
+            // No newer version within the waiting time
+            long startTimeMs = System.currentTimeMillis();
+            assertEquals(304, sendRequest("GET", changesUrl + "?afterVersion=1&timeoutMs=200", null).statusCode);
+            assertTrue(System.currentTimeMillis() - startTimeMs >= 200);
+
+            // A parked request is completed by the next update
+            CompletableFuture<TestHttpResponse> parkedResponse = CompletableFuture.supplyAsync(() -> {
+                try {
+                    return sendRequest("GET", changesUrl + "?afterVersion=1&timeoutMs=5000", null);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            });
+            waitFor(() -> httpDigitalAdapter.onStateChangesLongPollGet().getWaiterCount() == 1);
+            httpDigitalAdapter.updateState(createDigitalTwinState("temperature", "humidity"), createDigitalTwinState("temperature"));
+
+            TestHttpResponse response = parkedResponse.get(5, TimeUnit.SECONDS);
+            assertEquals(200, response.statusCode);
+            assertEquals("2", response.getHeader("X-DT-State-Version"));
+            assertEquals(2, response.getJsonBody().getAsJsonArray().size());
+
+            // A client that missed some versions receives all the changes after its version
+            httpDigitalAdapter.updateState(createDigitalTwinState("pressure"), null);
+            response = sendRequest("GET", changesUrl + "?afterVersion=1&timeoutMs=0", null);
+            assertEquals("3", response.getHeader("X-DT-State-Version"));
+            assertEquals(3, response.getJsonBody().getAsJsonArray().size());
+            assertNull(response.getHeader("X-DT-State-Resync"));
+
+            // Non incremental updates require the clients to resync from the full DT State
+            httpDigitalAdapter.onDigitalTwinSync(createDigitalTwinState("pressure"));
+            response = sendRequest("GET", changesUrl + "?afterVersion=2&timeoutMs=0", null);
+            assertEquals("true", response.getHeader("X-DT-State-Resync"));
+            assertTrue(response.getJsonBody().getAsJsonObject().has("properties"));
+
+            // Versions newer than the latest one or tagged by a previous process (e.g., before a restart) require a resync
+            response = sendRequest("GET", changesUrl + "?afterVersion=99&timeoutMs=0", null);
+            assertEquals("true", response.getHeader("X-DT-State-Resync"));
+            String versionTag = response.getHeader("X-DT-State-Version-Tag");
+            assertEquals(response.getHeader("X-DT-State-Version"), versionTag.substring(versionTag.lastIndexOf('-') + 1));
+            assertEquals("true", sendRequest("GET", changesUrl + "?afterVersion=0-1&timeoutMs=0", null).getHeader("X-DT-State-Resync"));
+            assertEquals(304, sendRequest("GET", changesUrl + "?afterVersion=" + versionTag + "&timeoutMs=0", null).statusCode);
+
+            // Parked requests of the clients that disconnect are released before their timeout
+            try (Socket socket = new Socket("localhost", port)) {
+                String request = String.format("GET /state/changes?afterVersion=%s&timeoutMs=60000 HTTP/1.1\r\nHost: localhost\r\n\r\n", versionTag);
+                socket.getOutputStream().write(request.getBytes(StandardCharsets.UTF_8));
+                socket.getOutputStream().flush();
+                waitFor(() -> httpDigitalAdapter.onStateChangesLongPollGet().getWaiterCount() == 1);
+            }
+            waitFor(() -> httpDigitalAdapter.onStateChangesLongPollGet().getWaiterCount() == 0);
+
+            assertEquals(400, sendRequest("GET", changesUrl + "?afterVersion=x", null).statusCode);
+        } finally {
+            httpDigitalAdapter.onAdapterStop();
+        }
+    }
+
+    @Test
+    public void testStateEntityTag() throws Exception {
+
+        int port = findFreePort();
+        HttpDigitalAdapterConfiguration configuration = new HttpDigitalAdapterConfiguration("test-http-da", "localhost", port);
+        assertFalse(configuration.isResponseCompressionEnabled());
+        configuration.setResponseCompression(true, 1);
+        TestHttpDigitalAdapter httpDigitalAdapter = startAdapter(configuration, "entity-tag-dt");
+        String stateUrl = String.format("http://localhost:%d/state", port);
+
+        try {
+            httpDigitalAdapter.updateState(createDigitalTwinState("temperature", "humidity"), null);
+
+            // The identity and the gzip encodings of the same version share the same weak entity tag
+            TestHttpResponse identityResponse = sendRequest("GET", stateUrl, null);
+            TestHttpResponse gzipResponse = sendRequest("GET", stateUrl, null, "Accept-Encoding", "gzip");
+            assertEquals("gzip", gzipResponse.getHeader("Content-Encoding"));
+            assertTrue(identityResponse.getHeader("ETag").startsWith("W/"));
+            assertEquals(identityResponse.getHeader("ETag"), gzipResponse.getHeader("ETag"));
+
+            assertEquals(304, sendRequest("GET", stateUrl, null, "If-None-Match", gzipResponse.getHeader("ETag")).statusCode);
+            assertEquals(304, sendRequest("GET", stateUrl, null, "Accept-Encoding", "gzip", "If-None-Match", identityResponse.getHeader("ETag")).statusCode);
+        } finally {
+            httpDigitalAdapter.onAdapterStop();
+        }
+    }
+
+    @Test
+    public void testActionInvocation() throws Exception {
+
+        int port = findFreePort();
+        HttpDigitalAdapterConfiguration configuration = new HttpDigitalAdapterConfiguration("test-http-da", "localhost", port);
+        configuration.addPropertyFilter("temperature");
+        TestHttpDigitalAdapter httpDigitalAdapter = startAdapter(configuration, "action-dt");
+        XnioWorker xnioWorker = Xnio.getInstance().createWorker(OptionMap.EMPTY);
+
+        try {
+            Map<String, DigitalTwinStateAction> actions = new HashMap<>();
+            actions.put("switch_on", new DigitalTwinStateAction("switch_on", "switch.on", "text/plain"));
+            httpDigitalAdapter.updateState(new DigitalTwinState(new HashMap<>(), actions, new HashMap<>(), new HashMap<>()), null);
+
+            // Rejected actions never create an action request
+            assertEquals(400, sendRequest("POST", String.format("http://localhost:%d/state/actions/unknown", port), "on").statusCode);
+            assertEquals(0, httpDigitalAdapter.onActionRequestsGet().size());
+
+            // Actions received through the WebSocket channel are tracked as the HTTP ones
+            WebSocketChannel webSocketChannel = WebSocketClient.connectionBuilder(xnioWorker, new DefaultByteBufferPool(false, 1024),
+                    new URI(String.format("ws://localhost:%d/state/ws", port))).connect().get();
+            CompletableFuture<String> actionResult = new CompletableFuture<>();
+            webSocketChannel.getReceiveSetter().set(new AbstractReceiveListener() {
+                @Override
+                protected void onFullTextMessage(WebSocketChannel channel, BufferedTextMessage message) {
+                    actionResult.complete(message.getData());
+                }
+            });
+            webSocketChannel.resumeReceives();
+            WebSockets.sendTextBlocking("{\"type\": \"action\", \"id\": \"req-1\", \"key\": \"switch_on\", \"body\": \"on\"}", webSocketChannel);
+
+            JsonObject resultObj = JsonParser.parseString(actionResult.get(5, TimeUnit.SECONDS)).getAsJsonObject();
+            assertEquals("actionResult", resultObj.get("type").getAsString());
+            assertEquals("req-1", resultObj.get("id").getAsString());
+            assertEquals(202, resultObj.get("status").getAsInt());
+            webSocketChannel.sendClose();
+
+            String actionRequestUrl = String.format("http://localhost:%d/state/actions/requests/%s", port, resultObj.get("requestId").getAsString());
+            assertEquals("dispatched", sendRequest("GET", actionRequestUrl, null).getJsonBody().getAsJsonObject().get("status").getAsString());
+
+            // Updates of the properties filtered out by the adapter complete the action requests as well
+            JsonObject actionRequestObj = sendRequest("POST", String.format("http://localhost:%d/state/actions/switch_on", port), "on").getJsonBody().getAsJsonObject();
+            String filteredActionRequestUrl = String.format("http://localhost:%d/state/actions/requests/%s", port, actionRequestObj.get("id").getAsString());
+            assertFalse(actionRequestObj.get("stateUpdatedAfterDispatch").getAsBoolean());
+            Map<String, DigitalTwinStateProperty<?>> filteredProperties = new HashMap<>();
+            filteredProperties.put("humidity", new DigitalTwinStateProperty<>("humidity", 42));
+            httpDigitalAdapter.updateState(new DigitalTwinState(filteredProperties, actions, new HashMap<>(), new HashMap<>()), null);
+            actionRequestObj = sendRequest("GET", filteredActionRequestUrl, null).getJsonBody().getAsJsonObject();
+            assertEquals("completed", actionRequestObj.get("status").getAsString());
+            assertTrue(actionRequestObj.get("stateUpdatedAfterDispatch").getAsBoolean());
+            assertEquals(1, actionRequestObj.get("stateVersion").getAsLong());
+
+            httpDigitalAdapter.updateState(createDigitalTwinState("temperature"), null);
+            assertEquals("completed", sendRequest("GET", actionRequestUrl, null).getJsonBody().getAsJsonObject().get("status").getAsString());
+        } finally {
+            xnioWorker.shutdownNow();
+            httpDigitalAdapter.onAdapterStop();
+        }
+    }
+
+    @Test
+    public void testQueryBatch() throws Exception {
+
+        int port = findFreePort();
+        HttpDigitalAdapterConfiguration configuration = new HttpDigitalAdapterConfiguration("test-http-da", "localhost", port);
+        configuration.setQueryBatchMaxSize(3);
+        TestHttpDigitalAdapter httpDigitalAdapter = startAdapter(configuration, "query-batch-dt");
+        String batchUrl = String.format("http://localhost:%d/storage/query/batch", port);
+
+        httpDigitalAdapter.queryFunction = queryRequest -> CompletableFuture.completedFuture(
+                new QueryResult<>(queryRequest, true, null, Collections.singletonList(queryRequest.getResourceType().name()), 1));
+
+        try {
+            // Each query is answered in the order of the request, an invalid query does not affect the others
+            TestHttpResponse response = sendRequest("POST", batchUrl, "[" +
+                    "{\"resourceType\": \"DIGITAL_TWIN_STATE\", \"queryType\": \"LAST_VALUE\"}," +
+                    "{\"resourceType\": \"UNKNOWN\", \"queryType\": \"LAST_VALUE\"}," +
+                    "{\"resourceType\": \"LIFE_CYCLE_EVENT\", \"queryType\": \"LAST_VALUE\"}]");
+            assertEquals(200, response.statusCode);
+
+            JsonArray itemsArray = response.getJsonBody().getAsJsonArray();
+            assertEquals(3, itemsArray.size());
+            assertEquals(200, itemsArray.get(0).getAsJsonObject().get("status").getAsInt());
+            assertEquals("DIGITAL_TWIN_STATE", itemsArray.get(0).getAsJsonObject().getAsJsonObject("response").getAsJsonArray("results").get(0).getAsString());
+            assertEquals(400, itemsArray.get(1).getAsJsonObject().get("status").getAsInt());
+            assertTrue(itemsArray.get(1).getAsJsonObject().has("error"));
+            assertEquals("LIFE_CYCLE_EVENT", itemsArray.get(2).getAsJsonObject().getAsJsonObject("response").getAsJsonArray("results").get(0).getAsString());
+
+            // The time range of a query ends at its endMs field
+            QueryRequest timeRangeRequest = HttpDigitalAdapterStorageQuery.fromJson(JsonParser.parseString(
+                    "{\"resourceType\": \"PHYSICAL_ASSET_PROPERTY_VARIATION\", \"queryType\": \"TIME_RANGE\", \"startMs\": 1000, \"endMs\": 2000}").getAsJsonObject(),
+                    HttpDigitalAdapterConfiguration.DEFAULT_QUERY_AGGREGATION_MAX_BUCKETS).getQueryRequest();
+            assertEquals(1000, timeRangeRequest.getStartTimestampMs());
+            assertEquals(2000, timeRangeRequest.getEndTimestampMs());
+
+            // Batches above the configured size are rejected
+            String tooLargeBatch = "[{}, {}, {}, {}]";
+            assertEquals(400, sendRequest("POST", batchUrl, tooLargeBatch).statusCode);
+        } finally {
+            httpDigitalAdapter.onAdapterStop();
+        }
+    }
+
+    @Test
+    public void testSharedServer() throws Exception {
+
+        int port = findFreePort();
+        HttpDigitalAdapterConfiguration firstConfiguration = new HttpDigitalAdapterConfiguration("test-http-da-a", "localhost", port);
+        firstConfiguration.setSharedServerEnabled(true);
+        firstConfiguration.setMetricsEnabled(true);
+        HttpDigitalAdapterConfiguration secondConfiguration = new HttpDigitalAdapterConfiguration("test-http-da-b", "localhost", port);
+        secondConfiguration.setSharedServerEnabled(true);
+        secondConfiguration.setMetricsEnabled(true);
+
+        TestHttpDigitalAdapter firstAdapter = startAdapter(firstConfiguration, "shared-dt-a");
+        TestHttpDigitalAdapter secondAdapter = null;
+        String baseUrl = String.format("http://localhost:%d", port);
+
+        try {
+            secondAdapter = startAdapter(secondConfiguration, "shared-dt-b");
+            firstAdapter.updateState(createDigitalTwinState("temperature"), null);
+            firstAdapter.updateState(createDigitalTwinState("temperature"), null);
+            secondAdapter.updateState(createDigitalTwinState("humidity"), null);
+
+            // Both the Digital Twins are listed and each prefix is routed to its own adapter
+            JsonArray digitalTwinIds = sendRequest("GET", baseUrl + "/dt", null).getJsonBody().getAsJsonArray();
+            assertEquals(2, digitalTwinIds.size());
+            assertEquals("2", sendRequest("GET", baseUrl + "/dt/shared-dt-a/state", null).getHeader("X-DT-State-Version"));
+            assertEquals("1", sendRequest("GET", baseUrl + "/dt/shared-dt-b/state", null).getHeader("X-DT-State-Version"));
+            assertEquals(404, sendRequest("GET", baseUrl + "/dt/unknown-dt/state", null).statusCode);
+
+            // The gauges of each Digital Twin are exported by the shared registry with their label
+            String exported = sendRequest("GET", baseUrl + "/metrics", null).body;
+            assertTrue(exported.contains("state_version{digital_twin=\"shared-dt-a\"} 2"));
+            assertTrue(exported.contains("state_version{digital_twin=\"shared-dt-b\"} 1"));
+
+            // An adapter with different server options cannot join the running server
+            HttpDigitalAdapterConfiguration lowMemoryConfiguration = new HttpDigitalAdapterConfiguration("test-http-da-c", "localhost", port);
+            lowMemoryConfiguration.setSharedServerEnabled(true);
+            lowMemoryConfiguration.setServerOptions(HttpDigitalAdapterServerOptions.lowMemory());
+            try {
+                startAdapter(lowMemoryConfiguration, "shared-dt-c");
+                fail("Different server options accepted");
+            } catch (IllegalStateException e) {
+                assertTrue(e.getMessage().contains("different server options"));
+            }
+
+            // The routes and the gauges of a stopped adapter are removed while the other one is still served
+            secondAdapter.onAdapterStop();
+            secondAdapter = null;
+            assertEquals(404, sendRequest("GET", baseUrl + "/dt/shared-dt-b/state", null).statusCode);
+            assertEquals(200, sendRequest("GET", baseUrl + "/dt/shared-dt-a/state", null).statusCode);
+            assertFalse(sendRequest("GET", baseUrl + "/metrics", null).body.contains("shared-dt-b"));
+        } finally {
+            if(secondAdapter != null)
+                secondAdapter.onAdapterStop();
+            firstAdapter.onAdapterStop();
+        }
+
+        // The server stops with the last adapter
+        try {
+            sendRequest("GET", baseUrl + "/dt", null);
+            fail("Shared server still running");
+        } catch (ConnectException e) {
+            assertNotNull(e.getMessage());
+        }
+
+        // A restarted server is created with a new dispatcher, so the executor routes keep working
+        HttpDigitalAdapterConfiguration executorConfiguration = new HttpDigitalAdapterConfiguration("test-http-da-d", "localhost", port);
+        executorConfiguration.setSharedServerEnabled(true);
+        executorConfiguration.setDefaultDispatchMode(HttpDigitalAdapterDispatchMode.EXECUTOR);
+        TestHttpDigitalAdapter restartedAdapter = startAdapter(executorConfiguration, "shared-dt-d");
+        try {
+            restartedAdapter.updateState(createDigitalTwinState("temperature"), null);
+            assertEquals(200, sendRequest("GET", baseUrl + "/dt/shared-dt-d/state", null).statusCode);
+        } finally {
+            restartedAdapter.onAdapterStop();
+        }
+    }
+
+    @Test
+    public void testFleetProperties() throws Exception {
+
+        int port = findFreePort();
+        String baseUrl = String.format("http://localhost:%d/fleet/properties", port);
+        Map<String, Integer> temperatures = new HashMap<>();
+        temperatures.put("fleet-dt-a", 20);
+        temperatures.put("fleet-dt-b", 35);
+        temperatures.put("fleet-dt-c", 40);
+
+        List<TestHttpDigitalAdapter> httpDigitalAdapters = new ArrayList<>();
+
+        try {
+            for(Map.Entry<String, Integer> temperature : temperatures.entrySet()) {
+                HttpDigitalAdapterConfiguration configuration = new HttpDigitalAdapterConfiguration("test-http-da", "localhost", port);
+                configuration.setSharedServerEnabled(true);
+                TestHttpDigitalAdapter httpDigitalAdapter = startAdapter(configuration, temperature.getKey());
+                httpDigitalAdapters.add(httpDigitalAdapter);
+
+                Map<String, DigitalTwinStateProperty<?>> properties = new HashMap<>();
+                properties.put("temperature", new DigitalTwinStateProperty<>("temperature", temperature.getValue()));
+                httpDigitalAdapter.updateState(new DigitalTwinState(properties, new HashMap<>(), new HashMap<>(), new HashMap<>()), null);
+            }
+
+            // A Digital Twin without the property is not part of the results
+            HttpDigitalAdapterConfiguration configuration = new HttpDigitalAdapterConfiguration("test-http-da", "localhost", port);
+            configuration.setSharedServerEnabled(true);
+            TestHttpDigitalAdapter humidityAdapter = startAdapter(configuration, "fleet-dt-d");
+            httpDigitalAdapters.add(humidityAdapter);
+            humidityAdapter.updateState(createDigitalTwinState("humidity"), null);
+
+            // The properties of the fleet are sorted by Digital Twin Id
+            JsonArray itemsArray = sendRequest("GET", baseUrl + "/temperature", null).getJsonBody().getAsJsonArray();
+            assertEquals(3, itemsArray.size());
+            assertEquals("fleet-dt-a", itemsArray.get(0).getAsJsonObject().get("digitalTwinId").getAsString());
+            assertEquals(1, itemsArray.get(0).getAsJsonObject().get("version").getAsLong());
+            assertEquals(20, itemsArray.get(0).getAsJsonObject().getAsJsonObject("property").get("value").getAsInt());
+
+            // The numeric filters are combined
+            itemsArray = sendRequest("GET", baseUrl + "/temperature?gt=30", null).getJsonBody().getAsJsonArray();
+            assertEquals(2, itemsArray.size());
+            assertEquals("fleet-dt-b", itemsArray.get(0).getAsJsonObject().get("digitalTwinId").getAsString());
+            itemsArray = sendRequest("GET", baseUrl + "/temperature?gt=30&lt=38", null).getJsonBody().getAsJsonArray();
+            assertEquals(1, itemsArray.size());
+            assertEquals(0, sendRequest("GET", baseUrl + "/temperature?eq=21", null).getJsonBody().getAsJsonArray().size());
+            assertEquals(400, sendRequest("GET", baseUrl + "/temperature?gt=warm", null).statusCode);
+
+            // The same list is streamed one Digital Twin per line
+            TestHttpResponse response = sendRequest("GET", baseUrl + "/temperature?gte=35", null, "Accept", "application/x-ndjson");
+            assertEquals(200, response.statusCode);
+            assertEquals(2, response.body.trim().split("\n").length);
+
+            // Statistics over the matching Digital Twins
+            JsonObject statsObj = sendRequest("GET", baseUrl + "/temperature/stats", null).getJsonBody().getAsJsonObject();
+            assertEquals(3, statsObj.get("twins").getAsInt());
+            assertEquals(3, statsObj.get("count").getAsInt());
+            assertEquals(20.0, statsObj.get("min").getAsDouble(), 0.0);
+            assertEquals(40.0, statsObj.get("max").getAsDouble(), 0.0);
+            assertEquals(95.0 / 3, statsObj.get("avg").getAsDouble(), 0.001);
+
+            statsObj = sendRequest("GET", baseUrl + "/temperature/stats?gte=35", null).getJsonBody().getAsJsonObject();
+            assertEquals(2, statsObj.get("count").getAsInt());
+            assertEquals(37.5, statsObj.get("avg").getAsDouble(), 0.0);
+
+            statsObj = sendRequest("GET", baseUrl + "/pressure/stats", null).getJsonBody().getAsJsonObject();
+            assertEquals(0, statsObj.get("count").getAsInt());
+            assertFalse(statsObj.has("avg"));
+
+            // A stopped Digital Twin leaves the fleet
+            httpDigitalAdapters.remove(0).onAdapterStop();
+            assertEquals(2, sendRequest("GET", baseUrl + "/temperature", null).getJsonBody().getAsJsonArray().size());
+        } finally {
+            for(TestHttpDigitalAdapter httpDigitalAdapter : httpDigitalAdapters)
+                httpDigitalAdapter.onAdapterStop();
+        }
+    }
+
+    @Test
+    public void testNdjsonStreaming() throws Exception {
+
+        int port = findFreePort();
+        HttpDigitalAdapterConfiguration configuration = new HttpDigitalAdapterConfiguration("test-http-da", "localhost", port);
+        TestHttpDigitalAdapter httpDigitalAdapter = startAdapter(configuration, "ndjson-dt");
+        String queryUrl = String.format("http://localhost:%d/storage/query", port);
+
+        // Large results generated lazily, tracking the items serialized by the server
+        final int totalItems = 40000;
+        final char[] padding = new char[1024];
+        Arrays.fill(padding, 'x');
+        AtomicInteger serializedItems = new AtomicInteger(0);
+        List<String> results = new AbstractList<String>() {
+            @Override
+            public String get(int index) {
+                serializedItems.incrementAndGet();
+                return index + ":" + new String(padding);
+            }
+
+            @Override
+            public int size() {
+                return totalItems;
+            }
+        };
+
+        httpDigitalAdapter.queryFunction = queryRequest -> CompletableFuture.completedFuture(new QueryResult<>(queryRequest, true, null, results, totalItems));
+
+        try {
+            HttpURLConnection connection = (HttpURLConnection) new URL(queryUrl).openConnection();
+            connection.setRequestMethod("POST");
+            connection.setReadTimeout(10000);
+            connection.setRequestProperty("Accept", "application/x-ndjson");
+            connection.setDoOutput(true);
+            try (OutputStream outputStream = connection.getOutputStream()) {
+                outputStream.write("{\"resourceType\": \"DIGITAL_TWIN_STATE\", \"queryType\": \"LAST_VALUE\"}".getBytes(StandardCharsets.UTF_8));
+            }
+
+            assertEquals(200, connection.getResponseCode());
+            assertEquals("application/x-ndjson", connection.getHeaderField("Content-Type"));
+            assertEquals("chunked", connection.getHeaderField("Transfer-Encoding"));
+            assertNull(connection.getHeaderField("Content-Length"));
+
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8))) {
+
+                // The first records are received while the server is stopped by the client that is not reading
+                assertTrue(reader.readLine().startsWith("\"0:"));
+                Thread.sleep(200);
+                assertTrue(serializedItems.get() < totalItems);
+
+                // All the records are then received in order, one per line
+                int lineCount = 1;
+                for(String line = reader.readLine(); line != null; line = reader.readLine()) {
+                    assertTrue(line.startsWith("\"" + lineCount + ":"));
+                    lineCount++;
+                }
+                assertEquals(totalItems, lineCount);
+            }
+        } finally {
+            httpDigitalAdapter.onAdapterStop();
+        }
+    }
+
+    @Test
+    public void testStorageRequestTimeoutAndDisconnection() throws Exception {
+
+        int port = findFreePort();
+        HttpDigitalAdapterConfiguration configuration = new HttpDigitalAdapterConfiguration("test-http-da", "localhost", port);
+        configuration.setStorageRequestTimeout(1000);
+        TestHttpDigitalAdapter httpDigitalAdapter = startAdapter(configuration, "storage-timeout-dt");
+        String queryUrl = String.format("http://localhost:%d/storage/query", port);
+
+        // The storage never publishes the results
+        AtomicReference<CompletableFuture<QueryResult<?>>> pendingQuery = new AtomicReference<>();
+        httpDigitalAdapter.queryFunction = queryRequest -> {
+            CompletableFuture<QueryResult<?>> queryResultFuture = new CompletableFuture<>();
+            pendingQuery.set(queryResultFuture);
+            return queryResultFuture;
+        };
+
+        try {
+            // A client waiting longer than the timeout receives 504
+            long startTimeMs = System.currentTimeMillis();
+            TestHttpResponse response = sendRequest("POST", queryUrl, "{\"resourceType\": \"DIGITAL_TWIN_STATE\", \"queryType\": \"LAST_VALUE\"}");
+            assertEquals(504, response.statusCode);
+            assertTrue(System.currentTimeMillis() - startTimeMs >= 1000);
+            assertEquals("Storage request timeout !", response.getJsonBody().getAsJsonObject().get("error").getAsString());
+
+            // The error messages are escaped in the error responses
+            response = sendRequest("POST", queryUrl, "{\"resourceType\": \"DIGITAL_TWIN_STATE\", \"queryType\": \"LAST_\\\"VALUE\"}");
+            assertEquals(400, response.statusCode);
+            assertTrue(response.getJsonBody().getAsJsonObject().get("error").getAsString().contains("LAST_\"VALUE"));
+
+            // The query of a client disconnecting before the timeout is cancelled
+            pendingQuery.set(null);
+            String queryBody = "{\"resourceType\": \"LIFE_CYCLE_EVENT\", \"queryType\": \"LAST_VALUE\"}";
+            try (Socket socket = new Socket("localhost", port)) {
+                OutputStream outputStream = socket.getOutputStream();
+                outputStream.write(String.format("POST /storage/query HTTP/1.1\r\nHost: localhost\r\nContent-Type: application/json\r\nContent-Length: %d\r\n\r\n%s",
+                        queryBody.length(), queryBody).getBytes(StandardCharsets.UTF_8));
+                outputStream.flush();
+                waitFor(() -> pendingQuery.get() != null);
+            }
+            waitFor(() -> pendingQuery.get().isCancelled());
+        } finally {
+            httpDigitalAdapter.onAdapterStop();
+        }
+    }
+
+    @Test
+    public void testStateStream() throws Exception {
+
+        int port = findFreePort();
+        HttpDigitalAdapterConfiguration configuration = new HttpDigitalAdapterConfiguration("test-http-da", "localhost", port);
+        TestHttpDigitalAdapter httpDigitalAdapter = startAdapter(configuration, "state-stream-dt");
+        String streamUrl = String.format("http://localhost:%d/state/stream?mode=changes", port);
+
+        try {
+            httpDigitalAdapter.updateState(createDigitalTwinState("temperature"), null);
+
+            // New subscriptions start from the latest snapshot and then receive the changes
+            HttpURLConnection connection = openStateStream(streamUrl, null);
+            BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8));
+            String[] snapshotEvent = readServerSentEvent(reader);
+            assertEquals("snapshot", snapshotEvent[0]);
+            assertTrue(snapshotEvent[1].endsWith("-1"));
+            assertTrue(JsonParser.parseString(snapshotEvent[2]).getAsJsonObject().has("properties"));
+
+            waitFor(() -> httpDigitalAdapter.onStateStreamGet().getSubscriberCount() == 1);
+            httpDigitalAdapter.updateState(createDigitalTwinState("humidity"), createDigitalTwinState("temperature"));
+            String[] changesEvent = readServerSentEvent(reader);
+            assertEquals("changes", changesEvent[0]);
+            assertTrue(changesEvent[1].endsWith("-2"));
+            assertEquals(1, JsonParser.parseString(changesEvent[2]).getAsJsonArray().size());
+            connection.disconnect();
+
+            // A client resuming with the Last-Event-ID header receives the missed changes
+            httpDigitalAdapter.updateState(createDigitalTwinState("pressure"), createDigitalTwinState("humidity"));
+            connection = openStateStream(streamUrl, changesEvent[1]);
+            reader = new BufferedReader(new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8));
+            String[] replayedEvent = readServerSentEvent(reader);
+            assertEquals("changes", replayedEvent[0]);
+            assertTrue(replayedEvent[1].endsWith("-3"));
+            assertTrue(replayedEvent[2].contains("pressure"));
+            connection.disconnect();
+
+            // Event ids issued before a restart of the adapter require the clients to restart from the snapshot
+            String previousProcessEventId = "0-2";
+            assertNotEquals(previousProcessEventId.split("-")[0], changesEvent[1].substring(0, changesEvent[1].lastIndexOf('-')));
+            connection = openStateStream(streamUrl, previousProcessEventId);
+            reader = new BufferedReader(new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8));
+            snapshotEvent = readServerSentEvent(reader);
+            assertEquals("snapshot", snapshotEvent[0]);
+            assertTrue(snapshotEvent[1].endsWith("-3"));
+            connection.disconnect();
+        } finally {
+            httpDigitalAdapter.onAdapterStop();
+        }
+    }
+
+    @Test
+    public void testDispatcher() throws Exception {
+
+        int port = findFreePort();
+        HttpDigitalAdapterConfiguration configuration = new HttpDigitalAdapterConfiguration("test-http-da", "localhost", port);
+        configuration.setDispatchMode("/worker", HttpDigitalAdapterDispatchMode.WORKER);
+        configuration.setDispatchMode("/executor", HttpDigitalAdapterDispatchMode.EXECUTOR);
+        configuration.setDispatchMode("/virtual", HttpDigitalAdapterDispatchMode.VIRTUAL_THREAD);
+        configuration.setDispatchExecutorSize(1, 1);
+
+        // The storage queries leave the IO threads by default
+        assertEquals(HttpDigitalAdapterDispatchMode.IO_THREAD, configuration.getDefaultDispatchMode());
+        assertEquals(HttpDigitalAdapterDispatchMode.WORKER, configuration.getDispatchMode("/storage/query"));
+        assertEquals(HttpDigitalAdapterDispatchMode.WORKER, configuration.getDispatchMode("/storage/query/batch"));
+
+        HttpDigitalAdapterDispatcher dispatcher = new HttpDigitalAdapterDispatcher(configuration);
+        CountDownLatch executorEntered = new CountDownLatch(1);
+        CountDownLatch executorReleased = new CountDownLatch(1);
+        HttpHandler threadNameHandler = exchange -> exchange.getResponseSender().send(String.format("%s|%b|%b",
+                Thread.currentThread().getName(), exchange.isInIoThread(), exchange.isBlocking()));
+
+        RoutingHandler routingHandler = new RoutingHandler();
+        routingHandler.add(Methods.GET, "/worker", dispatcher.dispatch("/worker", threadNameHandler));
+        routingHandler.add(Methods.GET, "/virtual", dispatcher.dispatch("/virtual", threadNameHandler));
+        routingHandler.add(Methods.GET, "/executor", dispatcher.dispatch("/executor", exchange -> {
+            executorEntered.countDown();
+            assertTrue(executorReleased.await(10, TimeUnit.SECONDS));
+            exchange.getResponseSender().send("done");
+        }));
+
+        Undertow server = Undertow.builder().addHttpListener(port, "localhost").setHandler(routingHandler).build();
+        server.start();
+
+        try {
+            // WORKER routes run in blocking mode on the Undertow worker pool
+            String[] workerThread = sendRequest("GET", String.format("http://localhost:%d/worker", port), null).body.split("\\|");
+            assertEquals("false", workerThread[1]);
+            assertEquals("true", workerThread[2]);
+            assertTrue(workerThread[0].contains("task"));
+
+            // Without virtual threads (Java < 21) the VIRTUAL_THREAD routes fall back to the dedicated executor
+            String[] virtualThread = sendRequest("GET", String.format("http://localhost:%d/virtual", port), null).body.split("\\|");
+            assertEquals("false", virtualThread[1]);
+            boolean virtualThreadsAvailable;
+            try {
+                Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                virtualThreadsAvailable = true;
+            } catch (NoSuchMethodException e) {
+                virtualThreadsAvailable = false;
+            }
+            if(!virtualThreadsAvailable)
+                assertTrue(virtualThread[0].startsWith("http-da-test-http-da-dispatch-"));
+
+            // The dedicated executor holds one running and one queued request, the following ones are rejected with 503
+            List<CompletableFuture<TestHttpResponse>> executorResponses = new ArrayList<>();
+            for(int i = 0; i < 3; i++) {
+                executorResponses.add(CompletableFuture.supplyAsync(() -> {
+                    try {
+                        return sendRequest("GET", String.format("http://localhost:%d/executor", port), null);
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }));
+                if(i == 0)
+                    assertTrue(executorEntered.await(5, TimeUnit.SECONDS));
+            }
+
+            waitFor(() -> executorResponses.stream().filter(CompletableFuture::isDone).count() == 1);
+            executorReleased.countDown();
+
+            int rejectedCount = 0;
+            for(CompletableFuture<TestHttpResponse> executorResponse : executorResponses) {
+                int statusCode = executorResponse.get(5, TimeUnit.SECONDS).statusCode;
+                assertTrue(statusCode == 200 || statusCode == 503);
+                if(statusCode == 503)
+                    rejectedCount++;
+            }
+            assertEquals(1, rejectedCount);
+        } finally {
+            executorReleased.countDown();
+            server.stop();
+            dispatcher.shutdown();
+        }
+    }
+
+    @Test
+    public void testWebSocketSubscriptions() throws Exception {
+
+        int port = findFreePort();
+        int outboundQueueSize = 4;
+        HttpDigitalAdapterConfiguration configuration = new HttpDigitalAdapterConfiguration("test-http-da", "localhost", port);
+        configuration.setWebSocketOutboundQueueSize(outboundQueueSize);
+        TestHttpDigitalAdapter httpDigitalAdapter = startAdapter(configuration, "web-socket-dt");
+        XnioWorker xnioWorker = Xnio.getInstance().createWorker(OptionMap.EMPTY);
+
+        try {
+            BlockingQueue<String> propertyMessages = new LinkedBlockingQueue<>();
+            BlockingQueue<String> wildcardMessages = new LinkedBlockingQueue<>();
+            BlockingQueue<String> slowMessages = new LinkedBlockingQueue<>();
+            WebSocketChannel propertyChannel = connectWebSocket(xnioWorker, port, propertyMessages);
+            WebSocketChannel wildcardChannel = connectWebSocket(xnioWorker, port, wildcardMessages);
+            WebSocketChannel slowChannel = connectWebSocket(xnioWorker, port, slowMessages);
+
+            WebSockets.sendTextBlocking("{\"type\": \"subscribe\", \"properties\": [\"temperature\"]}", propertyChannel);
+            WebSockets.sendTextBlocking("{\"type\": \"subscribe\", \"properties\": [\"*\"], \"events\": [\"*\"]}", wildcardChannel);
+            WebSockets.sendTextBlocking("{\"type\": \"subscribe\", \"properties\": [\"*\"]}", slowChannel);
+            assertEquals("subscribed", pollWebSocketMessage(propertyMessages).get("type").getAsString());
+            assertEquals("subscribed", pollWebSocketMessage(wildcardMessages).get("type").getAsString());
+            assertEquals("subscribed", pollWebSocketMessage(slowMessages).get("type").getAsString());
+
+            // Each client receives only the changes and the events matching its filters
+            httpDigitalAdapter.updateState(createDigitalTwinState("temperature", "humidity"), null);
+            httpDigitalAdapter.notifyEvent("overheating");
+
+            JsonObject stateMessage = pollWebSocketMessage(wildcardMessages);
+            assertEquals("state", stateMessage.get("type").getAsString());
+            assertEquals(1, stateMessage.get("version").getAsLong());
+            assertEquals(2, stateMessage.getAsJsonArray("changes").size());
+            assertEquals("event", pollWebSocketMessage(wildcardMessages).get("type").getAsString());
+
+            stateMessage = pollWebSocketMessage(propertyMessages);
+            assertEquals(1, stateMessage.getAsJsonArray("changes").size());
+            assertTrue(stateMessage.getAsJsonArray("changes").get(0).toString().contains("temperature"));
+            assertEquals(1, pollWebSocketMessage(slowMessages).get("version").getAsLong());
+
+            propertyChannel.sendClose();
+            wildcardChannel.sendClose();
+            waitFor(() -> httpDigitalAdapter.onWebSocketEndpointGet().getSubscriberCount() == 1);
+
+            // A client that stops reading fills its outbound queue: the oldest messages are dropped, the latest are kept
+            slowChannel.suspendReceives();
+            char[] payload = new char[128 * 1024];
+            Arrays.fill(payload, 'x');
+            Map<String, DigitalTwinStateProperty<?>> properties = new HashMap<>();
+            properties.put("payload", new DigitalTwinStateProperty<>("payload", new String(payload)));
+            DigitalTwinState payloadState = new DigitalTwinState(properties, new HashMap<>(), new HashMap<>(), new HashMap<>());
+
+            int updateCount = 200;
+            for(int i = 0; i < updateCount; i++)
+                httpDigitalAdapter.updateState(payloadState, null);
+            long latestVersion = 1 + updateCount;
+
+            slowChannel.resumeReceives();
+            List<Long> receivedVersions = new ArrayList<>();
+            while(receivedVersions.isEmpty() || receivedVersions.get(receivedVersions.size() - 1) < latestVersion)
+                receivedVersions.add(pollWebSocketMessage(slowMessages).get("version").getAsLong());
+
+            assertTrue(receivedVersions.size() < updateCount);
+            for(int i = 1; i < receivedVersions.size(); i++)
+                assertTrue(receivedVersions.get(i) > receivedVersions.get(i - 1));
+            for(int i = 0; i < outboundQueueSize; i++)
+                assertEquals(latestVersion - i, (long) receivedVersions.get(receivedVersions.size() - 1 - i));
+
+            slowChannel.sendClose();
+        } finally {
+            xnioWorker.shutdownNow();
+            httpDigitalAdapter.onAdapterStop();
+        }
+    }
+
+    @Test
+    public void testHttp2PriorKnowledge() throws Exception {
+
+        int port = findFreePort();
+        HttpDigitalAdapterConfiguration configuration = new HttpDigitalAdapterConfiguration("test-http-da", "localhost", port);
+        configuration.getServerOptions().setHttp2Enabled(true);
+        configuration.getServerOptions().setHttp2Settings(16, 0);
+        TestHttpDigitalAdapter httpDigitalAdapter = startAdapter(configuration, "http2-dt");
+        XnioWorker xnioWorker = Xnio.getInstance().createWorker(OptionMap.EMPTY);
+
+        try {
+            httpDigitalAdapter.updateState(createDigitalTwinState("temperature", "humidity"), null);
+
+            // Clients with prior knowledge start the cleartext connection (h2c) directly with the HTTP/2 preface
+            ClientConnection clientConnection = UndertowClient.getInstance().connect(new URI(String.format("h2c-prior://localhost:%d", port)),
+                    xnioWorker, new DefaultByteBufferPool(false, 1024), OptionMap.EMPTY).get();
+
+            try {
+                assertTrue(clientConnection.isMultiplexingSupported());
+
+                // Consecutive requests are multiplexed as streams of the same connection
+                TestHttpResponse stateResponse = sendHttp2Request(clientConnection, "/state");
+                assertEquals(200, stateResponse.statusCode);
+                assertEquals(2, stateResponse.getJsonBody().getAsJsonObject().getAsJsonArray("properties").size());
+
+                TestHttpResponse propertyResponse = sendHttp2Request(clientConnection, "/state/properties/temperature");
+                assertEquals(200, propertyResponse.statusCode);
+                assertEquals("temperature", propertyResponse.getJsonBody().getAsJsonObject().get("key").getAsString());
+
+                assertEquals(404, sendHttp2Request(clientConnection, "/missing").statusCode);
+                assertTrue(clientConnection.isOpen());
+            } finally {
+                clientConnection.close();
+            }
+
+            // HTTP/1.1 clients keep working on the same listener
+            assertEquals(200, sendRequest("GET", String.format("http://localhost:%d/state", port), null).statusCode);
+        } finally {
+            xnioWorker.shutdownNow();
+            httpDigitalAdapter.onAdapterStop();
+        }
+    }
 }
\ No newline at end of file